@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.pgm.debug;
+
+import static java.lang.Long.valueOf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.pgm.TextBuiltin;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.PackFile;
+import org.eclipse.jgit.storage.file.PackIndex;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Compare the heap and memory mapped pack index implementations.
+ * <p>
+ * For each pack of the repository the index is loaded once through
+ * {@link PackIndex#open(File)}, which copies the tables onto the heap, and once
+ * through {@link PackIndex#openMapped(File)}, which searches a memory mapping
+ * of the file in place. The time to open the index, the heap retained by it
+ * and the average latency of {@link PackIndex#findOffset} over randomly
+ * chosen objects of the pack are reported for both.
+ */
+class BenchmarkPackIndex extends TextBuiltin {
+	@Option(name = "--lookups", metaVar = "COUNT", usage = "Number of findOffset calls per index")
+	int lookups = 1000000;
+
+	@Option(name = "--rounds", metaVar = "COUNT", usage = "Number of timed rounds, after one warm up round")
+	int rounds = 5;
+
+	private final Runtime rt = Runtime.getRuntime();
+
+	private long sink;
+
+	@Override
+	protected void run() throws Exception {
+		outw.format("%-50s %-6s %10s %12s %14s\n", //
+				"Index", "Loader", "Open(us)", "Heap(KiB)", "findOffset(ns)");
+		outw.println("-----------------------------------------------------" //$NON-NLS-1$
+				+ "-----------------------------------------"); //$NON-NLS-1$
+
+		for (PackFile pack : ((FileRepository) db).getObjectDatabase()
+				.getPacks()) {
+			File idxFile = new File(pack.getPackFile().getParentFile(),
+					"pack-" + pack.getPackName() + ".idx"); //$NON-NLS-1$ //$NON-NLS-2$
+			ObjectId[] ids = sample(PackIndex.open(idxFile));
+			if (ids.length == 0)
+				continue;
+			test(idxFile, "heap", false, ids); //$NON-NLS-1$
+			test(idxFile, "mmap", true, ids); //$NON-NLS-1$
+		}
+		outw.flush();
+	}
+
+	private ObjectId[] sample(PackIndex idx) {
+		long cnt = idx.getObjectCount();
+		ObjectId[] ids = new ObjectId[(int) Math.min(cnt, 4096)];
+		Random rng = new Random(cnt);
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = idx.getObjectId((long) rng.nextInt((int) cnt));
+		return ids;
+	}
+
+	private void test(File idxFile, String loader, boolean mmap,
+			ObjectId[] ids) throws IOException {
+		long heapBefore = usedHeap();
+		long openStart = System.nanoTime();
+		PackIndex idx = mmap ? PackIndex.openMapped(idxFile) : PackIndex
+				.open(idxFile);
+		long openTime = System.nanoTime() - openStart;
+		long heap = usedHeap() - heapBefore;
+
+		long sum = lookup(idx, ids); // warm up
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			sum += lookup(idx, ids);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		sink += sum; // keep the lookups from being optimized away
+
+		outw.format("%-50s %-6s %10d %12d %14d\n", //
+				idxFile.getName(), loader, //
+				valueOf(openTime / 1000), //
+				valueOf(Math.max(0, heap) / 1024), //
+				valueOf(best / Math.max(1, lookups)));
+	}
+
+	private long lookup(PackIndex idx, ObjectId[] ids) {
+		long sum = 0;
+		for (int i = 0; i < lookups; i++)
+			sum += idx.findOffset(ids[i % ids.length]);
+		return sum;
+	}
+
+	private long usedHeap() {
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.pgm.debug;
+
+import static java.lang.Integer.valueOf;
+import static java.lang.Long.valueOf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.pgm.TextBuiltin;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.storage.file.WindowCache;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.storage.file.WindowCacheConfig.CachePolicy;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Compare the {@link WindowCache} policies under concurrent load.
+ * <p>
+ * A trace of object accesses is replayed by several threads at once, each
+ * starting at a different point of the trace, once for every
+ * {@link CachePolicy}. Every access asks the reader for the size of the
+ * object, which reads the object header through the window cache. The trace is
+ * either read from a file written by an earlier {@code --record}, or recorded
+ * on the fly by walking every object reachable from the repository's refs.
+ */
+class BenchmarkWindowCache extends TextBuiltin {
+	@Option(name = "--trace", metaVar = "FILE", usage = "Replay the object accesses listed in this file")
+	File trace;
+
+	@Option(name = "--record", metaVar = "FILE", usage = "Save the replayed object accesses to this file")
+	File record;
+
+	@Option(name = "--threads", metaVar = "COUNT", usage = "Number of threads replaying the trace")
+	int threads = Runtime.getRuntime().availableProcessors();
+
+	@Option(name = "--limit", metaVar = "BYTES", usage = "Size of the window cache")
+	int limit = 10 * WindowCacheConfig.MB;
+
+	@Option(name = "--window-size", metaVar = "BYTES", usage = "Size of one cached window")
+	int windowSize = 8 * WindowCacheConfig.KB;
+
+	@Option(name = "--rounds", metaVar = "COUNT", usage = "Number of timed rounds, after one warm up round")
+	int rounds = 3;
+
+	@Override
+	protected void run() throws Exception {
+		final ObjectId[] ids = trace != null ? readTrace() : recordTrace();
+		if (record != null)
+			writeTrace(ids);
+		if (ids.length == 0)
+			return;
+
+		outw.format("%-12s %8s %10s %10s %12s\n", //
+				"Policy", "Threads", "Accesses", "Time(ms)", "Accesses/s");
+		outw.println("------------------------------------------------" //$NON-NLS-1$
+				+ "------------"); //$NON-NLS-1$
+		try {
+			for (CachePolicy policy : CachePolicy.values())
+				test(policy, ids);
+		} finally {
+			final WindowCacheConfig cfg = new WindowCacheConfig();
+			cfg.fromConfig(db.getConfig());
+			WindowCache.reconfigure(cfg);
+		}
+		outw.flush();
+	}
+
+	private void test(CachePolicy policy, ObjectId[] ids) throws Exception {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitLimit(limit);
+		cfg.setPackedGitWindowSize(windowSize);
+		cfg.setPackedGitCachePolicy(policy);
+		WindowCache.reconfigure(cfg);
+
+		replay(ids); // warm up
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; r++)
+			best = Math.min(best, replay(ids));
+
+		final long accesses = (long) threads * ids.length;
+		outw.format("%-12s %8d %10d %10d %12d\n", //
+				policy.name(), //
+				valueOf(threads), //
+				valueOf(accesses), //
+				valueOf(best / 1000000), //
+				valueOf(accesses * 1000000000L / Math.max(1, best)));
+	}
+
+	private long replay(final ObjectId[] ids) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final Exception[] error = new Exception[1];
+		for (int t = 0; t < threads; t++) {
+			final int first = (int) ((long) ids.length * t / threads);
+			new Thread() {
+				@Override
+				public void run() {
+					final ObjectReader reader = db.newObjectReader();
+					try {
+						start.await();
+						for (int i = 0; i < ids.length; i++) {
+							final int p = (first + i) % ids.length;
+							reader.getObjectSize(ids[p], ObjectReader.OBJ_ANY);
+						}
+					} catch (Exception e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					} finally {
+						reader.release();
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		final long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		final long time = System.nanoTime() - begin;
+		synchronized (error) {
+			if (error[0] != null)
+				throw error[0];
+		}
+		return time;
+	}
+
+	private ObjectId[] recordTrace() throws IOException {
+		final List<ObjectId> ids = new ArrayList<ObjectId>();
+		final ObjectWalk ow = new ObjectWalk(db);
+		try {
+			for (Ref ref : db.getAllRefs().values()) {
+				if (ref.getObjectId() == null)
+					continue;
+				final RevObject o = ow.parseAny(ref.getObjectId());
+				ow.markStart(o);
+			}
+			RevCommit c;
+			while ((c = ow.next()) != null)
+				ids.add(c.copy());
+			RevObject o;
+			while ((o = ow.nextObject()) != null)
+				ids.add(o.copy());
+		} finally {
+			ow.release();
+		}
+		return ids.toArray(new ObjectId[ids.size()]);
+	}
+
+	private ObjectId[] readTrace() throws IOException {
+		final List<ObjectId> ids = new ArrayList<ObjectId>();
+		final BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(trace), Constants.CHARSET));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() > 0)
+					ids.add(ObjectId.fromString(line));
+			}
+		} finally {
+			in.close();
+		}
+		return ids.toArray(new ObjectId[ids.size()]);
+	}
+
+	private void writeTrace(ObjectId[] ids) throws IOException {
+		final Writer out = new OutputStreamWriter(new FileOutputStream(record),
+				Constants.CHARSET);
+		try {
+			for (ObjectId id : ids) {
+				out.write(id.name());
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
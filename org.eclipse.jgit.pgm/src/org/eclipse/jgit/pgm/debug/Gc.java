@@ -47,12 +47,25 @@
 import org.eclipse.jgit.pgm.TextBuiltin;
 import org.eclipse.jgit.storage.file.FileRepository;
 import org.eclipse.jgit.storage.file.GC;
+import org.kohsuke.args4j.Option;
 
 class Gc extends TextBuiltin {
+	@Option(name = "--incremental", usage = "Only combine loose objects and small packs")
+	boolean incremental;
+
+	@Option(name = "--geometric-factor", metaVar = "FACTOR", usage = "Ratio of object counts kept between packs by --incremental")
+	int geometricFactor = 2;
+
+	@Option(name = "--threads", metaVar = "COUNT", usage = "Number of threads used to prune; 0 for one per processor")
+	int threads = 1;
+
 	@Override
 	protected void run() throws Exception {
 		GC gc = new GC((FileRepository) db);
 		gc.setProgressMonitor(new TextProgressMonitor());
+		gc.setIncremental(incremental);
+		gc.setGeometricFactor(geometricFactor);
+		gc.setThreads(threads);
 		gc.gc();
 	}
 }
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.dfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.storage.dfs.DfsReader.FoundObject;
+import org.eclipse.jgit.storage.pack.PackExt;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DfsAsyncObjectLoaderQueueTest {
+	private static final int BLOCK_SIZE = 512;
+
+	private InMemoryRepository repo;
+
+	private List<ObjectId> ids;
+
+	private Map<ObjectId, byte[]> data;
+
+	@Before
+	public void setUp() throws IOException {
+		DfsBlockCache.reconfigure(new DfsBlockCacheConfig()
+				.setBlockSize(BLOCK_SIZE)
+				.setBlockLimit(64 * BLOCK_SIZE));
+		repo = new InMemoryRepository(new DfsRepositoryDescription("test"));
+		insertBlobs(100);
+	}
+
+	@After
+	public void tearDown() {
+		DfsBlockCache.reconfigure(new DfsBlockCacheConfig());
+	}
+
+	@Test
+	public void testSameOrderAsSequentialQueue() throws IOException {
+		List<ObjectId> want = new ArrayList<ObjectId>(ids);
+		want.add(10, ObjectId.zeroId());
+		want.add(ObjectId
+				.fromString("0123456789012345678901234567890123456789"));
+
+		List<ObjectId> expect = readAll(want);
+		assertEquals(want.size(), expect.size());
+
+		configure(Executors.newSingleThreadExecutor());
+		assertEquals(expect, readAll(want));
+	}
+
+	@Test
+	public void testMissingReportedByOpen() throws IOException {
+		configure(Executors.newFixedThreadPool(4));
+		List<ObjectId> want = new ArrayList<ObjectId>(ids);
+		want.add(50, ObjectId.zeroId());
+
+		DfsReader ctx = newReader();
+		try {
+			AsyncObjectLoaderQueue<ObjectId> q = ctx.open(want, true);
+			int missing = 0;
+			for (int i = 0; i < want.size(); i++) {
+				assertTrue(q.next());
+				try {
+					assertArrayEquals(data.get(q.getCurrent()), q.open()
+							.getBytes());
+				} catch (MissingObjectException e) {
+					assertEquals(ObjectId.zeroId(), q.getCurrent());
+					missing++;
+				}
+			}
+			assertFalse(q.next());
+			assertEquals(1, missing);
+			q.release();
+		} finally {
+			ctx.release();
+		}
+	}
+
+	@Test
+	public void testInFlightBound() throws IOException {
+		ManualExecutor svc = new ManualExecutor(true);
+		configure(svc);
+
+		DfsReader ctx = newReader();
+		try {
+			// Count the objects in each group the queue submits.
+			Map<String, Integer> groups = new HashMap<String, Integer>();
+			for (ObjectId id : ids) {
+				String g = groupOf(ctx, id);
+				Integer n = groups.get(g);
+				groups.put(g,
+						Integer.valueOf(n != null ? n.intValue() + 1 : 1));
+			}
+			assertTrue(2 * DfsAsyncObjectLoaderQueue.MAX_IN_FLIGHT < groups
+					.size());
+
+			AsyncObjectLoaderQueue<ObjectId> q = ctx.open(ids, true);
+			assertEquals(DfsAsyncObjectLoaderQueue.MAX_IN_FLIGHT,
+					svc.submitted);
+			int consumed = 0;
+			while (q.next()) {
+				assertArrayEquals(data.get(q.getCurrent()), q.open()
+						.getBytes());
+				String g = groupOf(ctx, q.getCurrent());
+				int n = groups.get(g).intValue() - 1;
+				groups.put(g, Integer.valueOf(n));
+				if (n == 0)
+					consumed++;
+				assertTrue(svc.submitted <= consumed
+						+ DfsAsyncObjectLoaderQueue.MAX_IN_FLIGHT);
+			}
+			assertEquals(groups.size(), consumed);
+			assertEquals(groups.size(), svc.submitted);
+			q.release();
+		} finally {
+			ctx.release();
+		}
+	}
+
+	@Test
+	public void testCancelWhileInFlight() throws IOException {
+		ManualExecutor svc = new ManualExecutor(false);
+		configure(svc);
+
+		DfsReader ctx = newReader();
+		try {
+			AsyncObjectLoaderQueue<ObjectId> q = ctx.open(ids, true);
+			assertEquals(DfsAsyncObjectLoaderQueue.MAX_IN_FLIGHT,
+					svc.tasks.size());
+			svc.runNext();
+			assertTrue(q.next());
+			assertNotNull(q.open());
+
+			int submitted = svc.submitted;
+			assertTrue(q.cancel(false));
+			assertFalse(q.next());
+
+			// Groups cancelled before they started must not run.
+			DfsBlockCache cache = DfsBlockCache.getInstance();
+			long requests = cache.getTotalRequestCount();
+			while (svc.runNext())
+				continue;
+			assertEquals(requests, cache.getTotalRequestCount());
+			assertEquals(submitted, svc.submitted);
+			q.release();
+			assertFalse(q.next());
+		} finally {
+			ctx.release();
+		}
+	}
+
+	@Test
+	public void testReleaseWhileInFlight() throws Exception {
+		ExecutorService svc = Executors.newFixedThreadPool(4);
+		configure(svc);
+
+		DfsReader ctx = newReader();
+		try {
+			AsyncObjectLoaderQueue<ObjectId> q = ctx.open(ids, true);
+			for (int i = 0; i < 10; i++) {
+				assertTrue(q.next());
+				assertArrayEquals(data.get(q.getCurrent()), q.open()
+						.getBytes());
+			}
+			q.release();
+			assertFalse(q.next());
+		} finally {
+			ctx.release();
+		}
+		svc.shutdown();
+		assertTrue(svc.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testErrorInGroup() throws Exception {
+		ExecutorService svc = Executors.newFixedThreadPool(4);
+		configure(svc);
+
+		DfsReader ctx = newReader();
+		try {
+			DfsPackFile pack = repo.getObjectDatabase().getPacks()[0];
+			long len = pack.getPackDescription().getFileSize(PackExt.PACK);
+			ObjectId bad = ObjectId
+					.fromString("0123456789012345678901234567890123456789");
+
+			// The first group reads past the end of the pack.
+			List<FoundObject<ObjectId>> order = new ArrayList<FoundObject<ObjectId>>();
+			order.add(new FoundObject<ObjectId>(bad, 0, pack, len
+					+ BLOCK_SIZE));
+			for (ObjectId id : ids)
+				order.add(new FoundObject<ObjectId>(id, 0, pack, pack
+						.findOffset(ctx, id)));
+
+			DfsAsyncObjectLoaderQueue<ObjectId> q;
+			q = new DfsAsyncObjectLoaderQueue<ObjectId>(ctx, order, svc);
+			q.start();
+			int failed = 0;
+			for (int i = 0; i < order.size(); i++) {
+				assertTrue(q.next());
+				try {
+					assertArrayEquals(data.get(q.getCurrent()), q.open()
+							.getBytes());
+				} catch (EOFException e) {
+					assertEquals(bad, q.getCurrent());
+					failed++;
+				}
+			}
+			assertFalse(q.next());
+			assertEquals(1, failed);
+			q.release();
+		} finally {
+			ctx.release();
+		}
+	}
+
+	private List<ObjectId> readAll(List<ObjectId> want) throws IOException {
+		List<ObjectId> r = new ArrayList<ObjectId>();
+		DfsReader ctx = newReader();
+		try {
+			AsyncObjectLoaderQueue<ObjectId> q = ctx.open(want, true);
+			try {
+				while (q.next()) {
+					r.add(q.getCurrent());
+					try {
+						assertArrayEquals(data.get(q.getCurrent()), q.open()
+								.getBytes());
+					} catch (MissingObjectException e) {
+						assertFalse(data.containsKey(q.getCurrent()));
+					}
+				}
+			} finally {
+				q.release();
+			}
+		} finally {
+			ctx.release();
+		}
+		return r;
+	}
+
+	private static String groupOf(DfsReader ctx, ObjectId id)
+			throws IOException {
+		for (DfsPackFile pack : ctx.db.getPacks()) {
+			long pos = pack.findOffset(ctx, id);
+			if (0 < pos)
+				return pack.getPackDescription().getFileName(PackExt.PACK) + "@"
+						+ pack.alignToBlock(pos);
+		}
+		fail("missing " + id.name());
+		return null;
+	}
+
+	private DfsReader newReader() {
+		return (DfsReader) repo.newObjectReader();
+	}
+
+	private static void configure(ExecutorService svc) {
+		DfsBlockCache.reconfigure(new DfsBlockCacheConfig()
+				.setBlockSize(BLOCK_SIZE)
+				.setBlockLimit(64 * BLOCK_SIZE)
+				.setAsyncReadService(svc));
+	}
+
+	private void insertBlobs(int cnt) throws IOException {
+		ids = new ArrayList<ObjectId>(cnt);
+		data = new HashMap<ObjectId, byte[]>();
+		Random rng = new Random(1);
+		ObjectInserter ins = repo.newObjectInserter();
+		try {
+			for (int i = 0; i < cnt; i++) {
+				byte[] b = new byte[rng.nextInt(3 * BLOCK_SIZE)];
+				rng.nextBytes(b);
+				ObjectId id = ins.insert(Constants.OBJ_BLOB, b);
+				ids.add(id);
+				data.put(id, b);
+			}
+			ins.flush();
+		} finally {
+			ins.release();
+		}
+	}
+
+	/** Queues tasks until the test runs them, or runs them at once. */
+	private static class ManualExecutor extends AbstractExecutorService {
+		final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+		final boolean direct;
+
+		int submitted;
+
+		ManualExecutor(boolean direct) {
+			this.direct = direct;
+		}
+
+		public void execute(Runnable task) {
+			submitted++;
+			if (direct)
+				task.run();
+			else
+				tasks.add(task);
+		}
+
+		boolean runNext() {
+			Runnable task = tasks.poll();
+			if (task == null)
+				return false;
+			task.run();
+			return true;
+		}
+
+		public void shutdown() {
+			// Nothing to stop.
+		}
+
+		public List<Runnable> shutdownNow() {
+			List<Runnable> r = new ArrayList<Runnable>(tasks);
+			tasks.clear();
+			return r;
+		}
+
+		public boolean isShutdown() {
+			return false;
+		}
+
+		public boolean isTerminated() {
+			return tasks.isEmpty();
+		}
+
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return isTerminated();
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.dfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.storage.pack.PackExt;
+import org.eclipse.jgit.storage.pack.PackOutputStream;
+import org.eclipse.jgit.storage.pack.PackWriter;
+import org.eclipse.jgit.util.io.NullOutputStream;
+import org.junit.After;
+import org.junit.Test;
+
+public class DfsBlockCacheTest {
+	private static final int BLOCK_SIZE = 512;
+
+	private InMemoryRepository repo;
+
+	private List<ObjectId> ids;
+
+	private List<byte[]> data;
+
+	@After
+	public void tearDown() {
+		DfsBlockCache.reconfigure(new DfsBlockCacheConfig());
+	}
+
+	@Test
+	public void testHeapBlocks() throws IOException {
+		configure(64 * BLOCK_SIZE, false);
+		insertBlobs(100);
+		assertAllBlocks(false);
+		assertBlobs();
+	}
+
+	@Test
+	public void testOffHeapBlocks() throws IOException {
+		configure(64 * BLOCK_SIZE, true);
+		insertBlobs(100);
+		assertAllBlocks(true);
+		assertBlobs();
+	}
+
+	@Test
+	public void testOffHeapSlotsReusedAfterEviction() throws IOException {
+		// Only a few blocks fit, so reading the pack evicts most of them
+		// and every new block must reuse a released slot.
+		configure(4 * BLOCK_SIZE, true);
+		insertBlobs(100);
+		for (int i = 0; i < 3; i++)
+			assertAllBlocks(true);
+		assertBlobs();
+	}
+
+	@Test
+	public void testOffHeapCopyAsIs() throws IOException {
+		configure(16 * BLOCK_SIZE, true);
+		insertBlobs(100);
+
+		// Garbage collection copies objects as-is, verifying each one.
+		assertTrue(new DfsGarbageCollector(repo).pack(null));
+		assertBlobs();
+	}
+
+	@Test
+	public void testStreamingKeepsHotBlocks() throws IOException {
+		configure(32 * BLOCK_SIZE, false);
+		insertBlobs(100);
+		DfsPackFile hotPack = repo.getObjectDatabase().getPacks()[0];
+		insertBlobs(100, 2);
+		DfsPackFile streamPack = otherPack(hotPack);
+		DfsBlockCache cache = DfsBlockCache.getInstance();
+
+		DfsReader ctx = (DfsReader) repo.newObjectReader();
+		try {
+			hotPack.getPackIndex(ctx);
+			for (int i = 0; i < 4; i++) {
+				read(hotPack, i, ctx);
+				read(hotPack, i, ctx);
+			}
+
+			// Serve a clone of the other pack, which is several times
+			// larger than the cache.
+			long len = streamPack.getPackDescription().getFileSize(
+					PackExt.PACK);
+			assertTrue(4 * 32 * BLOCK_SIZE < len);
+			PackWriter pw = new PackWriter(repo);
+			try {
+				ctx.copyPackAsIs(new PackOutputStream(
+						NullProgressMonitor.INSTANCE, NullOutputStream.INSTANCE,
+						pw), new DfsCachedPack(streamPack), false);
+			} finally {
+				pw.release();
+			}
+		} finally {
+			ctx.release();
+		}
+
+		assertTrue(cache.isProtected(hotPack.key, DfsPackFile.POS_INDEX));
+		for (int i = 0; i < 4; i++)
+			assertTrue(cache.isProtected(hotPack.key, i * BLOCK_SIZE));
+		assertTrue(cache.getCurrentSize() <= 32 * BLOCK_SIZE);
+	}
+
+	@Test
+	public void testProtectAndDemote() throws IOException {
+		configure(32 * BLOCK_SIZE, false);
+		insertBlobs(100);
+		DfsPackFile pack = repo.getObjectDatabase().getPacks()[0];
+		DfsBlockCache cache = DfsBlockCache.getInstance();
+
+		DfsReader ctx = (DfsReader) repo.newObjectReader();
+		try {
+			read(pack, 0, ctx);
+			read(pack, 0, ctx);
+			assertFalse(cache.isProtected(pack.key, 0));
+
+			// Blocks used once stay on probation; the sweeps making room
+			// for them protect the block used twice.
+			for (int i = 1; i < 40; i++)
+				read(pack, i, ctx);
+			assertTrue(cache.isProtected(pack.key, 0));
+			for (int i = 1; i < 40; i++)
+				assertFalse(cache.isProtected(pack.key, i * BLOCK_SIZE));
+
+			// Once protected blocks exceed their share, idle ones are put
+			// back on probation and evicted.
+			for (int i = 40; i < 100; i++) {
+				read(pack, i, ctx);
+				read(pack, i, ctx);
+			}
+			assertFalse(cache.isProtected(pack.key, 0));
+			assertFalse(cache.contains(pack.key, 0));
+		} finally {
+			ctx.release();
+		}
+	}
+
+	@Test
+	public void testReadAheadBlockOnProbationAfterFirstUse()
+			throws IOException {
+		configure(32 * BLOCK_SIZE, false);
+		insertBlobs(100);
+		DfsPackFile pack = repo.getObjectDatabase().getPacks()[0];
+		DfsBlockCache cache = DfsBlockCache.getInstance();
+
+		DfsReader ctx = (DfsReader) repo.newObjectReader();
+		try {
+			cache.put(pack.readOneBlock(0, ctx), true);
+			read(pack, 0, ctx);
+			assertEquals(BLOCK_SIZE, cache.getReadAheadUsedBytes());
+
+			for (int i = 1; i < 40; i++)
+				read(pack, i, ctx);
+			assertFalse(cache.isProtected(pack.key, 0));
+			assertFalse(cache.contains(pack.key, 0));
+		} finally {
+			ctx.release();
+		}
+	}
+
+	private DfsPackFile otherPack(DfsPackFile pack) throws IOException {
+		for (DfsPackFile p : repo.getObjectDatabase().getPacks()) {
+			if (p != pack)
+				return p;
+		}
+		throw new AssertionError("no other pack");
+	}
+
+	private static void read(DfsPackFile pack, int block, DfsReader ctx)
+			throws IOException {
+		DfsBlock b = pack.getOrLoadBlock(block * BLOCK_SIZE, ctx);
+		assertEquals(block * BLOCK_SIZE, b.start);
+		b.unpin();
+	}
+
+	private void configure(int limit, boolean offHeap) {
+		DfsBlockCache.reconfigure(new DfsBlockCacheConfig()
+				.setBlockSize(BLOCK_SIZE)
+				.setBlockLimit(limit)
+				.setOffHeap(offHeap));
+		repo = new InMemoryRepository(new DfsRepositoryDescription("test"));
+	}
+
+	private void insertBlobs(int cnt) throws IOException {
+		insertBlobs(cnt, 1);
+	}
+
+	private void insertBlobs(int cnt, long seed) throws IOException {
+		ids = new ArrayList<ObjectId>(cnt);
+		data = new ArrayList<byte[]>(cnt);
+		Random rng = new Random(seed);
+		ObjectInserter ins = repo.newObjectInserter();
+		try {
+			for (int i = 0; i < cnt; i++) {
+				byte[] b = new byte[rng.nextInt(3 * BLOCK_SIZE)];
+				rng.nextBytes(b);
+				data.add(b);
+				ids.add(ins.insert(Constants.OBJ_BLOB, b));
+			}
+			ins.flush();
+		} finally {
+			ins.release();
+		}
+	}
+
+	private void assertBlobs() throws IOException {
+		ObjectReader reader = repo.newObjectReader();
+		try {
+			for (int i = 0; i < ids.size(); i++)
+				assertArrayEquals(data.get(i), reader.open(ids.get(i),
+						Constants.OBJ_BLOB).getBytes());
+		} finally {
+			reader.release();
+		}
+	}
+
+	private void assertAllBlocks(boolean offHeap) throws IOException {
+		DfsReader ctx = (DfsReader) repo.newObjectReader();
+		try {
+			for (DfsPackFile pack : repo.getObjectDatabase().getPacks()) {
+				long len = pack.getPackDescription().getFileSize(PackExt.PACK);
+				for (long pos = 0; pos < len;) {
+					DfsBlock b = pack.getOrLoadBlock(pos, ctx);
+					try {
+						assertEquals(offHeap, b.isOffHeap());
+						assertEquals(pos, b.start);
+					} finally {
+						b.unpin();
+					}
+					pos = b.end;
+				}
+			}
+		} finally {
+			ctx.release();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.dfs;
+
+import static org.eclipse.jgit.storage.dfs.DfsObjDatabase.PackSource.COMPACT;
+import static org.eclipse.jgit.storage.dfs.DfsObjDatabase.PackSource.GC;
+import static org.eclipse.jgit.storage.dfs.DfsObjDatabase.PackSource.UNREACHABLE_GARBAGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.revwalk.RevBlob;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.dfs.DfsObjDatabase.PackSource;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DfsGarbageCollectorTest {
+	private InMemoryRepository repo;
+
+	private TestRepository<InMemoryRepository> git;
+
+	private DfsObjDatabase odb;
+
+	@Before
+	public void setUp() throws Exception {
+		repo = new InMemoryRepository(new DfsRepositoryDescription("test"));
+		git = new TestRepository<InMemoryRepository>(repo);
+		odb = repo.getObjectDatabase();
+	}
+
+	@Test
+	public void testIncrementalWithoutGcPackIsFull() throws Exception {
+		RevCommit c1 = git.branch("master").commit().add("a", "a").create();
+
+		assertTrue(gc(true));
+		DfsPackFile[] packs = odb.getPacks();
+		assertEquals(1, packs.length);
+		assertEquals(GC, source(packs[0]));
+		assertTrue(has(packs[0], c1));
+	}
+
+	@Test
+	public void testIncrementalKeepsGcPacks() throws Exception {
+		RevCommit c1 = git.branch("master").commit().add("a", "a").create();
+		assertTrue(gc(false));
+		DfsPackDescription gcPack = odb.getPacks()[0].getPackDescription();
+
+		RevBlob b2 = git.blob("b");
+		RevCommit c2 = git.branch("master").commit().add("b", b2).create();
+		assertTrue(odb.getPacks().length > 1);
+
+		assertTrue(gc(true));
+		DfsPackFile[] packs = odb.getPacks();
+		assertEquals(2, packs.length);
+		DfsPackFile kept = find(packs, GC);
+		assertEquals(gcPack, kept.getPackDescription());
+		assertTrue(has(kept, c1));
+
+		// Only the new objects are packed; those in the GC pack are not.
+		DfsPackFile compact = find(packs, COMPACT);
+		assertTrue(has(compact, c2));
+		assertTrue(has(compact, b2));
+		assertTrue(has(compact, git.parseBody(c2).getTree()));
+		assertFalse(has(compact, c1));
+		assertEquals(3, compact.getPackDescription().getObjectCount());
+	}
+
+	@Test
+	public void testIncrementalFoldsCompactPacks() throws Exception {
+		git.branch("master").commit().add("a", "a").create();
+		assertTrue(gc(false));
+		RevCommit c2 = git.branch("master").commit().add("b", "b").create();
+		assertTrue(gc(true));
+		RevCommit c3 = git.branch("master").commit().add("c", "c").create();
+		assertTrue(gc(true));
+
+		DfsPackFile[] packs = odb.getPacks();
+		assertEquals(2, packs.length);
+		DfsPackFile compact = find(packs, COMPACT);
+		assertTrue(has(compact, c2));
+		assertTrue(has(compact, c3));
+	}
+
+	@Test
+	public void testIncrementalMovesUnreachableToGarbage() throws Exception {
+		RevCommit c1 = git.branch("master").commit().add("a", "a").create();
+		assertTrue(gc(false));
+
+		RevCommit c2 = git.branch("master").commit().add("b", "b").create();
+		RevBlob lost = git.blob("lost");
+		git.update("master", c1);
+
+		assertTrue(gc(true));
+		DfsPackFile[] packs = odb.getPacks();
+		assertEquals(2, packs.length);
+		assertTrue(has(find(packs, GC), c1));
+		DfsPackFile garbage = find(packs, UNREACHABLE_GARBAGE);
+		assertTrue(has(garbage, c2));
+		assertTrue(has(garbage, lost));
+		assertTrue(repo.hasObject(lost));
+	}
+
+	@Test
+	public void testIncrementalWithoutTipsIsFull() throws Exception {
+		git.branch("master").commit().add("a", "a").create();
+		assertTrue(gc(false));
+		odb.getPacks()[0].getPackDescription().setTips(null);
+
+		RevCommit c2 = git.branch("master").commit().add("b", "b").create();
+		assertTrue(gc(true));
+		DfsPackFile[] packs = odb.getPacks();
+		assertEquals(1, packs.length);
+		assertEquals(GC, source(packs[0]));
+		assertTrue(has(packs[0], c2));
+	}
+
+	private boolean gc(boolean incremental) throws Exception {
+		DfsGarbageCollector gc = new DfsGarbageCollector(repo);
+		gc.setIncremental(incremental);
+		boolean ok = gc.pack(null);
+		odb.clearCache();
+		return ok;
+	}
+
+	private static PackSource source(DfsPackFile pack) {
+		return pack.getPackDescription().getPackSource();
+	}
+
+	private static DfsPackFile find(DfsPackFile[] packs, PackSource source) {
+		List<DfsPackFile> found = new ArrayList<DfsPackFile>();
+		for (DfsPackFile pack : packs) {
+			if (source(pack) == source)
+				found.add(pack);
+		}
+		assertEquals(1, found.size());
+		assertNotNull(found.get(0));
+		return found.get(0);
+	}
+
+	private boolean has(DfsPackFile pack, AnyObjectId id) throws Exception {
+		DfsReader ctx = (DfsReader) repo.newObjectReader();
+		try {
+			return pack.hasObject(ctx, id);
+		} finally {
+			ctx.release();
+		}
+	}
+}
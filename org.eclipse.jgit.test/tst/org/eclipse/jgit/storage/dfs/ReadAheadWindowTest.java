@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.dfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadAheadWindowTest {
+	private static final int BLOCK_SIZE = 512;
+
+	private static final int LIMIT = 8 * BLOCK_SIZE;
+
+	private ThreadPoolExecutor svc;
+
+	private DfsBlockCache cache;
+
+	private DfsPackFile pack;
+
+	private DfsReader ctx;
+
+	@Before
+	public void setUp() {
+		svc = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (ctx != null)
+			ctx.release();
+		DfsBlockCache.reconfigure(new DfsBlockCacheConfig());
+		svc.shutdown();
+		svc.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testWindowGrowsAndResets() throws Exception {
+		configure(256 * BLOCK_SIZE);
+		ReadAheadWindow w = new ReadAheadWindow();
+		long[] expect = { 0, 2, 4, 4, 8, 8, 8, 8, 8, 8 };
+		for (int i = 0; i < expect.length; i++) {
+			access(w, i);
+			assertEquals("block " + i, expect[i] * BLOCK_SIZE, w.getWindow());
+		}
+
+		long loaded = cache.getReadAheadBytes();
+		access(w, 40);
+		assertEquals(0, w.getWindow());
+		access(w, 20);
+		assertEquals(0, w.getWindow());
+		assertEquals(loaded, cache.getReadAheadBytes());
+
+		// Sequential access after a reset starts over from one block.
+		access(w, 21);
+		assertEquals(2 * BLOCK_SIZE, w.getWindow());
+	}
+
+	@Test
+	public void testLoadedAndUsedBytes() throws Exception {
+		configure(256 * BLOCK_SIZE);
+		ReadAheadWindow w = new ReadAheadWindow();
+		for (int i = 0; i < 5; i++)
+			access(w, i);
+
+		// Blocks 2 to 12 were read ahead; blocks 2 to 4 were then used.
+		assertEquals(11 * BLOCK_SIZE, cache.getReadAheadBytes());
+		assertEquals(3 * BLOCK_SIZE, cache.getReadAheadUsedBytes());
+		assertEquals(0, cache.getReadAheadWastedBytes());
+
+		// Using a block read ahead is only counted once.
+		access(w, 4);
+		assertEquals(3 * BLOCK_SIZE, cache.getReadAheadUsedBytes());
+	}
+
+	@Test
+	public void testWastedBytes() throws Exception {
+		configure(16 * BLOCK_SIZE);
+		ReadAheadWindow w = new ReadAheadWindow();
+		for (int i = 0; i < 5; i++)
+			access(w, i);
+		long unused = cache.getReadAheadBytes()
+				- cache.getReadAheadUsedBytes();
+		assertEquals(8 * BLOCK_SIZE, unused);
+
+		// Random reads elsewhere in the pack evict the unused blocks.
+		for (int i = 0; i < 4; i++) {
+			for (int b = 40; b < 100; b += 2)
+				access(w, b);
+		}
+		assertEquals(unused, cache.getReadAheadWastedBytes());
+	}
+
+	@Test
+	public void testWindowPerReaderAndPack() throws Exception {
+		configure(256 * BLOCK_SIZE);
+		DfsReader other = new DfsReader(ctx.db);
+		try {
+			ReadAheadWindow w = ctx.getReadAheadWindow(pack.key);
+			assertSame(w, ctx.getReadAheadWindow(pack.key));
+			assertNotSame(w, ctx.getReadAheadWindow(new DfsPackKey()));
+			assertNotSame(w, other.getReadAheadWindow(pack.key));
+		} finally {
+			other.release();
+		}
+	}
+
+	private void configure(int cacheLimit) throws IOException {
+		InMemoryRepository repo = new InMemoryRepository(
+				new DfsRepositoryDescription("test"));
+		Random rng = new Random(1);
+		ObjectInserter ins = repo.newObjectInserter();
+		try {
+			for (int i = 0; i < 100; i++) {
+				byte[] b = new byte[BLOCK_SIZE + rng.nextInt(BLOCK_SIZE)];
+				rng.nextBytes(b);
+				ins.insert(Constants.OBJ_BLOB, b);
+			}
+			ins.flush();
+		} finally {
+			ins.release();
+		}
+
+		// The inserter cached the blocks it wrote; start from an empty cache.
+		DfsBlockCache.reconfigure(new DfsBlockCacheConfig()
+				.setBlockSize(BLOCK_SIZE)
+				.setBlockLimit(cacheLimit)
+				.setReadAheadLimit(LIMIT)
+				.setReadAheadService(svc));
+		cache = DfsBlockCache.getInstance();
+		repo.getObjectDatabase().clearCache();
+		pack = repo.getObjectDatabase().getPacks()[0];
+		ctx = (DfsReader) repo.newObjectReader();
+	}
+
+	private void access(ReadAheadWindow w, int block) throws Exception {
+		DfsBlock b = pack.getOrLoadBlock((long) block * BLOCK_SIZE, ctx);
+		try {
+			assertEquals((long) block * BLOCK_SIZE, b.start);
+			w.accessed(pack, b, LIMIT, ctx);
+		} finally {
+			b.unpin();
+		}
+		while (svc.getCompletedTaskCount() < svc.getTaskCount())
+			Thread.sleep(1);
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.junit.TestRepository.BranchBuilder;
+import org.eclipse.jgit.lib.CommitGraph;
+import org.eclipse.jgit.lib.MutableObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CommitGraphTest extends LocalDiskRepositoryTestCase {
+	private TestRepository<FileRepository> tr;
+
+	private FileRepository repo;
+
+	private File graphFile;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		repo = createBareRepository();
+		tr = new TestRepository<FileRepository>(repo);
+		graphFile = new File(new File(repo.getObjectsDirectory(), "info"),
+				CommitGraphFile.FILE_NAME);
+	}
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		BranchBuilder master = tr.branch("refs/heads/master");
+		RevCommit a = master.commit().add("A", "A").create();
+		RevCommit b = master.commit().add("B", "B").create();
+		RevCommit c = tr.branch("refs/heads/c").commit().parent(a)
+				.add("C", "C").create();
+		RevCommit d = tr.branch("refs/heads/d").commit().parent(a)
+				.add("D", "D").create();
+		RevCommit octopus = master.commit().parent(c).parent(d)
+				.add("E", "E").create();
+		tr.lightweightTag("t", tr.tag("annotated", c));
+
+		assertEquals(5, new GC(repo).writeCommitGraph());
+		assertTrue(graphFile.exists());
+
+		CommitGraph graph = CommitGraphFile.open(graphFile);
+		assertEquals(5, graph.getCommitCount());
+		for (int pos = 0; pos < graph.getCommitCount(); pos++)
+			assertEquals(pos, graph.findGraphPosition(graph.getObjectId(pos)));
+		assertEquals(-1, graph.findGraphPosition(a.getTree()));
+
+		int pa = graph.findGraphPosition(a);
+		assertEquals(0, graph.getParentCount(pa));
+		assertEquals(1, graph.getGeneration(pa));
+		assertEquals(a.getCommitTime(), graph.getCommitTime(pa));
+		MutableObjectId tree = new MutableObjectId();
+		graph.getTree(pa, tree);
+		assertEquals(a.getTree(), tree);
+
+		int pb = graph.findGraphPosition(b);
+		assertEquals(1, graph.getParentCount(pb));
+		assertEquals(pa, graph.getParent(pb, 0));
+		assertEquals(2, graph.getGeneration(pb));
+
+		int po = graph.findGraphPosition(octopus);
+		assertEquals(3, graph.getParentCount(po));
+		assertEquals(b, graph.getObjectId(graph.getParent(po, 0)));
+		assertEquals(c, graph.getObjectId(graph.getParent(po, 1)));
+		assertEquals(d, graph.getObjectId(graph.getParent(po, 2)));
+		assertEquals(3, graph.getGeneration(po));
+	}
+
+	@Test
+	public void testRevWalkParsesFromGraph() throws Exception {
+		BranchBuilder master = tr.branch("refs/heads/master");
+		RevCommit a = master.commit().add("A", "A").create();
+		RevCommit b = master.commit().add("B", "B").create();
+		RevCommit c = master.commit().add("C", "C").create();
+		new GC(repo).writeCommitGraph();
+
+		ObjectReader reader = repo.newObjectReader();
+		try {
+			RevWalk rw = new RevWalk(reader);
+			rw.setRetainBody(false);
+			RevCommit parsed = rw.parseCommit(b);
+			assertEquals(1, parsed.getParentCount());
+			assertEquals(a, parsed.getParent(0));
+			assertEquals(b.getTree(), parsed.getTree());
+			assertEquals(b.getCommitTime(), parsed.getCommitTime());
+			assertNull(parsed.getRawBuffer());
+
+			rw.markStart(rw.parseCommit(c));
+			assertSame(rw.lookupCommit(c), rw.next());
+			assertSame(parsed, rw.next());
+			assertEquals(a, rw.next());
+			assertNull(rw.next());
+		} finally {
+			reader.release();
+		}
+	}
+
+	@Test
+	public void testGraphNotTrustedForMissingCommit() throws Exception {
+		BranchBuilder master = tr.branch("refs/heads/master");
+		master.commit().add("A", "A").create();
+		RevCommit b = master.commit().add("B", "B").create();
+		RevCommit c = master.commit().add("C", "C").create();
+		new GC(repo).writeCommitGraph();
+
+		// The graph still lists the commit after it was pruned.
+		FileUtils.delete(repo.getObjectDatabase().fileFor(b));
+		FileRepository pruned = new FileRepository(repo.getDirectory());
+		addRepoToClose(pruned);
+
+		ObjectReader reader = pruned.newObjectReader();
+		try {
+			RevWalk rw = new RevWalk(reader);
+			rw.setRetainBody(false);
+			try {
+				rw.parseAny(b);
+				fail("pruned commit was parsed from the graph");
+			} catch (MissingObjectException expected) {
+				// The commit object is gone.
+			}
+
+			rw = new RevWalk(reader);
+			rw.setRetainBody(false);
+			rw.markStart(rw.parseCommit(c));
+			try {
+				while (rw.next() != null) {
+					// Walk until the pruned parent is reached.
+				}
+				fail("walked into a pruned commit");
+			} catch (MissingObjectException expected) {
+				// Parents found through the graph are checked too.
+			}
+		} finally {
+			reader.release();
+		}
+	}
+
+	@Test
+	public void testIsMergedIntoUsesGenerations() throws Exception {
+		BranchBuilder master = tr.branch("refs/heads/master");
+		RevCommit a = master.commit().add("A", "A").create();
+		RevCommit b = master.commit().add("B", "B").create();
+		RevCommit side = tr.branch("refs/heads/side").commit().parent(a)
+				.add("S", "S").create();
+		new GC(repo).writeCommitGraph();
+
+		RevWalk rw = new RevWalk(repo);
+		try {
+			rw.setRetainBody(false);
+			assertTrue(rw.isMergedInto(rw.parseCommit(a), rw.parseCommit(b)));
+			assertFalse(rw.isMergedInto(rw.parseCommit(b), rw.parseCommit(a)));
+			assertFalse(rw.isMergedInto(rw.parseCommit(side),
+					rw.parseCommit(b)));
+		} finally {
+			rw.release();
+		}
+	}
+
+	@Test
+	public void testCorruptGraphIgnored() throws Exception {
+		RevCommit a = tr.branch("refs/heads/master").commit().add("A", "A")
+				.create();
+		tr.parseBody(a);
+		write(graphFile, "not a commit graph");
+
+		RevWalk rw = new RevWalk(repo);
+		try {
+			rw.setRetainBody(false);
+			assertEquals(a.getTree(), rw.parseCommit(a).getTree());
+		} finally {
+			rw.release();
+		}
+	}
+}
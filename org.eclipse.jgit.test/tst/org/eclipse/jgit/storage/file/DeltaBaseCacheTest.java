@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.storage.pack.CacheStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeltaBaseCacheTest {
+	private PackFile pack1;
+
+	private PackFile pack2;
+
+	@Before
+	public void setUp() {
+		WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setDeltaBaseCacheLimit(1000);
+		WindowCache.reconfigure(cfg);
+		pack1 = new PackFile(new File("pack-1.pack"), 0);
+		pack2 = new PackFile(new File("pack-2.pack"), 0);
+	}
+
+	@After
+	public void tearDown() {
+		WindowCache.reconfigure(new WindowCacheConfig());
+	}
+
+	@Test
+	public void testSharedByPackAndOffset() {
+		DeltaBaseCache cache = DeltaBaseCache.getInstance();
+		byte[] data = new byte[10];
+		assertNull(cache.get(pack1, 12));
+		cache.store(pack1, 12, data, Constants.OBJ_BLOB);
+
+		DeltaBaseCache.Entry e = cache.get(pack1, 12);
+		assertNotNull(e);
+		assertSame(data, e.data);
+		assertEquals(Constants.OBJ_BLOB, e.type);
+		assertNull(cache.get(pack1, 13));
+		assertNull(cache.get(pack2, 12));
+
+		CacheStats stats = WindowCache.getDeltaBaseCacheStats();
+		assertEquals(1, stats.getHitCount());
+		assertEquals(3, stats.getMissCount());
+		assertEquals(10, stats.getOpenByteCount());
+
+		DeltaBaseCache.purge(pack1);
+		assertNull(cache.get(pack1, 12));
+		assertEquals(0, stats.getOpenByteCount());
+	}
+
+	@Test
+	public void testByteLimit() {
+		DeltaBaseCache cache = DeltaBaseCache.getInstance();
+		for (int i = 0; i < 100; i++)
+			cache.store(pack1, i * 1000, new byte[150], Constants.OBJ_BLOB);
+		assertTrue(cache.getOpenByteCount() <= 1000);
+		assertTrue(0 < cache.getOpenByteCount());
+
+		cache.store(pack1, 1, new byte[1001], Constants.OBJ_BLOB);
+		assertNull(cache.get(pack1, 1));
+	}
+
+	@Test
+	public void testClosedPackNotStored() {
+		DeltaBaseCache cache = DeltaBaseCache.getInstance();
+		pack1.close();
+		cache.store(pack1, 12, new byte[10], Constants.OBJ_BLOB);
+		assertNull(cache.get(pack1, 12));
+		assertEquals(0, cache.getOpenByteCount());
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	public void testRejectedNotCountedAsEvicted() {
+		DeltaBaseCache cache = DeltaBaseCache.getInstance();
+		for (int i = 0; i < 5; i++) {
+			for (int n = 0; n < 5; n++)
+				cache.get(pack1, i);
+			cache.store(pack1, i, new byte[200], Constants.OBJ_BLOB);
+		}
+		DeltaBaseCacheStats stats = (DeltaBaseCacheStats) WindowCache
+				.getDeltaBaseCacheStats();
+		assertEquals(0, stats.getEvictionCount());
+		assertEquals(0, stats.getRejectedCount());
+
+		// A base never requested before is not admitted into the full cache.
+		cache.store(pack2, 0, new byte[200], Constants.OBJ_BLOB);
+		assertNull(cache.get(pack2, 0));
+		assertEquals(1, stats.getRejectedCount());
+		assertEquals(0, stats.getEvictionCount());
+	}
+
+	@Test
+	public void testPopularBasesSurviveScan() {
+		DeltaBaseCache cache = DeltaBaseCache.getInstance();
+		for (int i = 0; i < 4; i++) {
+			for (int n = 0; n < 5; n++)
+				cache.get(pack1, i);
+			cache.store(pack1, i, new byte[200], Constants.OBJ_BLOB);
+		}
+
+		// Bases requested only once each, as in a single pass over a pack.
+		for (int i = 0; i < 50; i++) {
+			cache.get(pack2, i);
+			cache.store(pack2, i, new byte[200], Constants.OBJ_BLOB);
+		}
+
+		for (int i = 0; i < 4; i++)
+			assertNotNull(cache.get(pack1, i));
+		assertTrue(cache.getOpenByteCount() <= 1000);
+	}
+}
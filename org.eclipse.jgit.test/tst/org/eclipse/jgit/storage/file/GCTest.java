@@ -233,6 +233,29 @@ public void repackEmptyRepo_noPackCreated() throws IOException {
 		assertEquals(0, repo.getObjectDatabase().getPacks().size());
 	}
 
+	@Test
+	public void repack_writesReverseIndex() throws Exception {
+		BranchBuilder bb = tr.branch("refs/heads/master");
+		bb.commit().add("A", "A").add("B", "B").create();
+		gc.repack();
+
+		Collection<PackFile> packs = repo.getObjectDatabase().getPacks();
+		assertEquals(1, packs.size());
+		PackFile pack = packs.iterator().next();
+		String base = pack.getPackFile().getPath();
+		File rev = new File(base.substring(0, base.length() - 4) + "rev");
+		assertTrue(rev.exists());
+
+		PackReverseIndex computed = new PackReverseIndex(pack.getIndex());
+		PackReverseIndex written = PackReverseIndex.open(rev, pack.getIndex());
+		for (int i = 0; i < pack.getObjectCount(); i++)
+			assertEquals(computed.findObjectByPosition(i),
+					written.findObjectByPosition(i));
+		for (MutableEntry e : pack)
+			assertEquals(e.toObjectId(),
+					pack.findObjectForOffset(e.getOffset()));
+	}
+
 	@Test
 	public void concurrentRepack() throws Exception {
 		final CyclicBarrier syncPoint = new CyclicBarrier(2);
@@ -372,6 +395,58 @@ public void branch_historyNotPruned() throws Exception {
 		} while (tip != null);
 	}
 
+	@Test
+	public void branches_sharedHistoryNotPrunedByParallelWalks()
+			throws Exception {
+		RevCommit base = commitChain(5);
+		RevCommit[] tips = new RevCommit[6];
+		for (int i = 0; i < tips.length; i++) {
+			tips[i] = tr.commit().parent(base).add("b" + i, "b" + i).create();
+			tr.branch("b" + i).update(tips[i]);
+		}
+		RevBlob unreferenced = tr.blob("unreferenced");
+		gc.setExpireAgeMillis(0);
+		gc.setThreads(4);
+		fsTick();
+		gc.prune(Collections.<ObjectId> emptySet());
+		assertFalse(repo.hasObject(unreferenced));
+		for (RevCommit tip : tips) {
+			assertTrue(repo.hasObject(tip));
+			tr.parseBody(tip);
+			assertTrue(repo.hasObject(tip.getTree()));
+			assertTrue(repo.hasObject(tr.get(tip.getTree(), "a")));
+		}
+		RevCommit c = base;
+		do {
+			assertTrue(repo.hasObject(c));
+			tr.parseBody(c);
+			c = c.getParentCount() > 0 ? c.getParent(0) : null;
+		} while (c != null);
+	}
+
+	@Test
+	public void prune_callerExecutorReusedNotShutDown() throws Exception {
+		RevCommit tip = commitChain(5);
+		tr.branch("b").update(tip);
+		RevBlob unreferenced = tr.blob("unreferenced");
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			gc.setExpireAgeMillis(0);
+			gc.setExecutor(pool);
+			fsTick();
+			gc.prune(Collections.<ObjectId> emptySet());
+			assertFalse(repo.hasObject(unreferenced));
+			assertTrue(repo.hasObject(tip));
+			assertFalse(pool.isShutdown());
+
+			gc.gc();
+			assertTrue(repo.hasObject(tip));
+			assertFalse(pool.isShutdown());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 	@Test
 	public void deleteBranch_historyPruned() throws Exception {
 		RevCommit tip = commitChain(10);
@@ -489,6 +564,59 @@ public void testKeepFiles() throws Exception {
 						ind2.hasObject(e.toObjectId()));
 	}
 
+	@Test
+	public void testGeometricSplit() {
+		assertEquals(0, GC.geometricSplit(new long[] {}, 0, 2));
+		assertEquals(0, GC.geometricSplit(new long[] { 10 }, 0, 2));
+		assertEquals(0, GC.geometricSplit(new long[] { 10, 20, 40 }, 0, 2));
+		assertEquals(0, GC.geometricSplit(new long[] { 10, 20, 40 }, 4, 2));
+		assertEquals(3, GC.geometricSplit(new long[] { 10, 20, 40 }, 6, 2));
+		assertEquals(2, GC.geometricSplit(new long[] { 10, 30, 100 }, 6, 2));
+		assertEquals(2, GC.geometricSplit(new long[] { 10, 15, 100 }, 0, 2));
+		assertEquals(3, GC.geometricSplit(new long[] { 10, 15, 40 }, 0, 2));
+		assertEquals(0, GC.geometricSplit(new long[] { 10, 30, 90 }, 0, 3));
+		assertEquals(3, GC.geometricSplit(new long[] { 10, 30, 90 }, 0, 4));
+	}
+
+	@Test
+	public void testIncrementalKeepsLargePack() throws Exception {
+		BranchBuilder bb = tr.branch("refs/heads/master");
+		CommitBuilder cb = bb.commit();
+		for (int i = 0; i < 20; i++)
+			cb.add("f" + i, "content " + i);
+		cb.create();
+		gc.gc();
+		stats = gc.getStatistics();
+		assertEquals(22, stats.numberOfPackedObjects);
+		assertEquals(1, stats.numberOfPackFiles);
+		File largePack = repo.getObjectDatabase().getPacks().iterator()
+				.next().getPackFile();
+
+		gc.setIncremental(true);
+		bb.commit().add("a", "a").create();
+		assertEquals(3, gc.getStatistics().numberOfLooseObjects);
+		gc.gc();
+		stats = gc.getStatistics();
+		assertEquals(0, stats.numberOfLooseObjects);
+		assertEquals(25, stats.numberOfPackedObjects);
+		assertEquals(2, stats.numberOfPackFiles);
+		assertTrue(largePack.exists());
+
+		// The new loose objects and the small pack are combined, as the
+		// small pack is less than twice as large as the loose objects.
+		bb.commit().add("b", "b").create();
+		gc.gc();
+		stats = gc.getStatistics();
+		assertEquals(0, stats.numberOfLooseObjects);
+		assertEquals(28, stats.numberOfPackedObjects);
+		assertEquals(2, stats.numberOfPackFiles);
+		assertTrue(largePack.exists());
+
+		// Nothing to do without loose objects and a single small pack.
+		assertTrue(gc.repackIncremental().isEmpty());
+		assertEquals(2, gc.getStatistics().numberOfPackFiles);
+	}
+
 	@Test
 	public void testPackRepoWithNoRefs() throws Exception {
 		tr.commit().add("A", "A").add("B", "B").create();
@@ -518,6 +646,45 @@ public void testPack2Commits() throws Exception {
 		assertEquals(1, stats.numberOfPackFiles);
 	}
 
+	@Test
+	public void testBitmapIndexWritten() throws Exception {
+		BranchBuilder bb = tr.branch("refs/heads/master");
+		RevCommit first = bb.commit().add("A", "A").add("B", "B").create();
+		RevCommit second = bb.commit().add("A", "A2").create();
+		RevCommit side = tr.branch("refs/heads/side").commit().parent(first)
+				.add("C", "C").create();
+		gc.gc();
+		stats = gc.getStatistics();
+		assertEquals(1, stats.numberOfPackFiles);
+
+		PackFile pack = repo.getObjectDatabase().getPacks().iterator().next();
+		File bitmapFile = new File(pack.getPackFile().getParentFile(), "pack-"
+				+ pack.getPackName() + ".bitmap");
+		assertTrue(bitmapFile.exists());
+
+		PackBitmapIndex bitmaps = pack.getBitmapIndex();
+		assertEquals(pack.getObjectCount(), bitmaps.getObjectCount());
+		assertEquals(3, bitmaps.ofObjectType(Constants.OBJ_COMMIT)
+				.cardinality());
+		assertEquals(3, bitmaps.ofObjectType(Constants.OBJ_TREE)
+				.cardinality());
+		assertEquals(4, bitmaps.ofObjectType(Constants.OBJ_BLOB)
+				.cardinality());
+		assertEquals(0, bitmaps.ofObjectType(Constants.OBJ_TAG)
+				.cardinality());
+
+		// first: commit, tree, 2 blobs; second adds 3; side adds 3.
+		assertEquals(7, bitmaps.getBitmap(second).cardinality());
+		assertEquals(7, bitmaps.getBitmap(side).cardinality());
+		for (int pos = 0; pos < bitmaps.getObjectCount(); pos++)
+			assertEquals(pos, bitmaps.findPosition(bitmaps.getObject(pos)));
+
+		// Old bitmaps are removed together with their pack.
+		bb.commit().add("A", "A3").create();
+		gc.gc();
+		assertFalse(bitmapFile.exists());
+	}
+
 	@Test
 	public void testPackCommitsAndLooseOne() throws Exception {
 		BranchBuilder bb = tr.branch("refs/heads/master");
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+import org.junit.Test;
+
+public class MappedPackIndexV2Test extends PackIndexV2Test {
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		smallIdx = PackIndex.openMapped(getFileForPack34be9032());
+		denseIdx = PackIndex.openMapped(getFileForPackdf2982f28());
+	}
+
+	@Test
+	public void testMapped() {
+		assertTrue(smallIdx instanceof MappedPackIndexV2);
+		assertTrue(denseIdx instanceof MappedPackIndexV2);
+	}
+
+	@Test
+	public void testMatchesHeapIndex() throws Exception {
+		PackIndex heap = PackIndex.open(getFileForPackdf2982f28());
+		assertEquals(heap.getObjectCount(), denseIdx.getObjectCount());
+		for (long i = 0; i < heap.getObjectCount(); i++) {
+			ObjectId id = heap.getObjectId(i);
+			assertEquals(id, denseIdx.getObjectId(i));
+			assertEquals(heap.findOffset(id), denseIdx.findOffset(id));
+			assertEquals(heap.findCRC32(id), denseIdx.findCRC32(id));
+		}
+		assertEquals(-1, denseIdx.findOffset(ObjectId.zeroId()));
+
+		ObjectId first = heap.getObjectId(0);
+		AbbreviatedObjectId abbrev = AbbreviatedObjectId.fromString(first
+				.name().substring(0, 2));
+		Set<ObjectId> expect = new HashSet<ObjectId>();
+		Set<ObjectId> actual = new HashSet<ObjectId>();
+		heap.resolve(expect, abbrev, 256);
+		denseIdx.resolve(actual, abbrev, 256);
+		assertEquals(expect, actual);
+	}
+
+	@Test
+	public void test64BitOffsets() throws Exception {
+		List<PackedObjectInfo> list = new ArrayList<PackedObjectInfo>();
+		list.add(info("1000000000000000000000000000000000000000", 12));
+		list.add(info("2000000000000000000000000000000000000000",
+				(1L << 31) + 5));
+		list.add(info("3000000000000000000000000000000000000000",
+				(1L << 40) + 7));
+
+		File idxFile = new File(trash, "large.idx");
+		FileOutputStream out = new FileOutputStream(idxFile);
+		try {
+			PackIndexWriter.createVersion(out, 2).write(list, new byte[20]);
+		} finally {
+			out.close();
+		}
+
+		PackIndex idx = PackIndex.openMapped(idxFile);
+		assertTrue(idx instanceof MappedPackIndexV2);
+		assertEquals(2, idx.getOffset64Count());
+		for (PackedObjectInfo oe : list) {
+			assertEquals(oe.getOffset(), idx.findOffset(oe));
+			assertEquals(oe.getCRC(), (int) idx.findCRC32(oe));
+		}
+		int n = 0;
+		for (PackIndex.MutableEntry e : idx) {
+			assertEquals(list.get(n).getOffset(), e.getOffset());
+			assertEquals(list.get(n).name(), e.name());
+			n++;
+		}
+		assertEquals(list.size(), n);
+	}
+
+	@Test
+	public void testCorrupt64BitOffset() throws Exception {
+		List<PackedObjectInfo> list = new ArrayList<PackedObjectInfo>();
+		list.add(info("1000000000000000000000000000000000000000", 12));
+		list.add(info("2000000000000000000000000000000000000000",
+				(1L << 31) + 5));
+
+		File idxFile = new File(trash, "corrupt.idx");
+		FileOutputStream out = new FileOutputStream(idxFile);
+		try {
+			PackIndexWriter.createVersion(out, 2).write(list, new byte[20]);
+		} finally {
+			out.close();
+		}
+
+		// Point the first object past the only 64 bit offset.
+		int offset32Pos = 8 + 256 * 4 + list.size() * (20 + 4);
+		RandomAccessFile raf = new RandomAccessFile(idxFile, "rw");
+		try {
+			raf.seek(offset32Pos);
+			raf.writeInt(0x80000001);
+		} finally {
+			raf.close();
+		}
+
+		// Only the lookup following the bad offset fails.
+		PackIndex idx = PackIndex.openMapped(idxFile);
+		assertEquals((1L << 31) + 5, idx.findOffset(ObjectId
+				.fromString("2000000000000000000000000000000000000000")));
+		try {
+			idx.findOffset(ObjectId
+					.fromString("1000000000000000000000000000000000000000"));
+			fail("followed corrupt offset");
+		} catch (MappedPackIndexV2.CorruptOffsetException e) {
+			assertTrue(e.getCause() instanceof CorruptObjectException);
+		}
+	}
+
+	private static PackedObjectInfo info(String name, long offset) {
+		PackedObjectInfo oe = new PackedObjectInfo(ObjectId.fromString(name));
+		oe.setOffset(offset);
+		oe.setCRC((int) offset * 31);
+		return oe;
+	}
+}
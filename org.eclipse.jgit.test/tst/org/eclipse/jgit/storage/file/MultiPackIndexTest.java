@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.junit.TestRepository.BranchBuilder;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.RevBlob;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.pack.PackWriter;
+import org.eclipse.jgit.util.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiPackIndexTest extends LocalDiskRepositoryTestCase {
+	private TestRepository<FileRepository> tr;
+
+	private FileRepository repo;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		repo = createBareRepository();
+		tr = new TestRepository<FileRepository>(repo);
+	}
+
+	@Test
+	public void testCreateCoversAllPacks() throws Exception {
+		BranchBuilder master = tr.branch("refs/heads/master");
+		master.commit().add("A", "A").create();
+		pack();
+		master.commit().add("B", "B").create();
+		pack();
+		master.commit().add("C", "C").create();
+		pack();
+
+		PackFile[] packs = getPacks();
+		assertEquals(3, packs.length);
+		MultiPackIndex midx = MultiPackIndex.create(packs);
+
+		long cnt = 0;
+		for (PackFile p : packs)
+			cnt += p.getObjectCount();
+		assertEquals(cnt, midx.getObjectCount());
+
+		for (PackFile p : packs) {
+			for (PackIndex.MutableEntry e : p) {
+				ObjectId id = e.toObjectId();
+				int pos = midx.find(id);
+				assertTrue(0 <= pos);
+				assertSame(firstPackWith(packs, id), midx.getPack(pos));
+
+				boolean found = false;
+				for (; 0 <= pos; pos = midx.next(pos, id)) {
+					if (midx.getPack(pos) == p) {
+						assertEquals(e.getOffset(), midx.getOffset(pos));
+						found = true;
+					}
+				}
+				assertTrue(found);
+			}
+		}
+		assertEquals(-1, midx.find(ObjectId.zeroId()));
+	}
+
+	@Test
+	public void testAddAndRemove() throws Exception {
+		BranchBuilder master = tr.branch("refs/heads/master");
+		master.commit().add("A", "A").create();
+		pack();
+		master.commit().add("B", "B").create();
+		pack();
+
+		PackFile[] packs = getPacks();
+		assertEquals(2, packs.length);
+		MultiPackIndex older = MultiPackIndex
+				.create(new PackFile[] { packs[1] });
+		MultiPackIndex added = older.add(packs[0]);
+		MultiPackIndex full = MultiPackIndex.create(packs);
+		assertEquals(full.getObjectCount(), added.getObjectCount());
+		assertSame(packs[0], added.getPacks()[0]);
+		assertSame(packs[1], added.getPacks()[1]);
+		for (PackFile p : packs) {
+			for (PackIndex.MutableEntry e : p) {
+				ObjectId id = e.toObjectId();
+				int a = added.find(id);
+				int f = full.find(id);
+				assertEquals(f, a);
+				for (; 0 <= f; f = full.next(f, id), a = added.next(a, id)) {
+					assertSame(full.getPack(f), added.getPack(a));
+					assertEquals(full.getOffset(f), added.getOffset(a));
+				}
+				assertEquals(-1, a);
+			}
+		}
+
+		MultiPackIndex removed = added.remove(packs[0]);
+		assertEquals(older.getObjectCount(), removed.getObjectCount());
+		assertEquals(1, removed.getPacks().length);
+		for (PackIndex.MutableEntry e : packs[1]) {
+			int pos = removed.find(e.toObjectId());
+			assertSame(packs[1], removed.getPack(pos));
+			assertEquals(e.getOffset(), removed.getOffset(pos));
+		}
+		for (PackIndex.MutableEntry e : packs[0]) {
+			if (!packs[1].hasObject(e.toObjectId()))
+				assertEquals(-1, removed.find(e.toObjectId()));
+		}
+		assertSame(removed, removed.remove(packs[0]));
+	}
+
+	@Test
+	public void testUpdate() throws Exception {
+		BranchBuilder master = tr.branch("refs/heads/master");
+		master.commit().add("A", "A").create();
+		pack();
+		master.commit().add("B", "B").create();
+		pack();
+		master.commit().add("C", "C").create();
+		pack();
+
+		PackFile[] packs = getPacks();
+		assertEquals(3, packs.length);
+		MultiPackIndex older = MultiPackIndex.create(new PackFile[] {
+				packs[1], packs[2] });
+		assertSameEntries(MultiPackIndex.create(packs), older.update(packs));
+
+		PackFile[] kept = { packs[0], packs[2] };
+		assertSameEntries(MultiPackIndex.create(kept), older.update(kept));
+
+		PackFile[] reordered = { packs[2], packs[1] };
+		assertSameEntries(MultiPackIndex.create(reordered),
+				older.update(reordered));
+	}
+
+	@Test
+	public void testRepositoryLookups() throws Exception {
+		repo.getConfig().setBoolean("core", null, "multipackindex", true);
+		repo.getConfig().save();
+		repo = new FileRepository(repo.getDirectory());
+		addRepoToClose(repo);
+		tr = new TestRepository<FileRepository>(repo);
+
+		BranchBuilder master = tr.branch("refs/heads/master");
+		RevBlob a = tr.blob("a");
+		RevCommit c1 = master.commit().add("A", a).create();
+		pack();
+		RevCommit c2 = master.commit().add("B", "B").create();
+		pack();
+
+		assertTrue(repo.hasObject(c1));
+		assertTrue(repo.hasObject(c2));
+		assertFalse(repo.hasObject(ObjectId.zeroId()));
+		assertEquals(1, repo.open(a).getSize());
+
+		// Insert another pack after the combined index was built.
+		RevCommit c3 = master.commit().add("C", "CC").create();
+		pack();
+		assertEquals(3, getPacks().length);
+		assertTrue(repo.hasObject(c3));
+		assertEquals(2, repo.open(tr.blob("CC")).getSize());
+		assertEquals(1, repo.open(a).getSize());
+	}
+
+	private static void assertSameEntries(MultiPackIndex expect,
+			MultiPackIndex actual) {
+		assertEquals(expect.getObjectCount(), actual.getObjectCount());
+		assertArrayEquals(expect.getPacks(), actual.getPacks());
+		for (PackFile p : expect.getPacks()) {
+			for (PackIndex.MutableEntry e : p) {
+				ObjectId id = e.toObjectId();
+				int a = actual.find(id);
+				int f = expect.find(id);
+				assertEquals(f, a);
+				for (; 0 <= f; f = expect.next(f, id), a = actual.next(a, id)) {
+					assertSame(expect.getPack(f), actual.getPack(a));
+					assertEquals(expect.getOffset(f), actual.getOffset(a));
+				}
+				assertEquals(-1, a);
+			}
+		}
+	}
+
+	/** Pack every object reachable from the branches into a new pack. */
+	private void pack() throws Exception {
+		NullProgressMonitor m = NullProgressMonitor.INSTANCE;
+		File packDir = new File(repo.getObjectsDirectory(), "pack");
+		File pack, idx;
+		PackWriter pw = new PackWriter(repo);
+		try {
+			Set<ObjectId> all = new HashSet<ObjectId>();
+			for (Ref r : repo.getAllRefs().values())
+				all.add(r.getObjectId());
+			pw.preparePack(m, all, Collections.<ObjectId> emptySet());
+
+			String name = "pack-" + pw.computeName().name();
+			FileUtils.mkdirs(packDir, true);
+			pack = new File(packDir, name + ".pack");
+			OutputStream out = new FileOutputStream(pack);
+			try {
+				pw.writePack(m, m, out);
+			} finally {
+				out.close();
+			}
+
+			idx = new File(packDir, name + ".idx");
+			out = new FileOutputStream(idx);
+			try {
+				pw.writeIndex(out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			pw.release();
+		}
+		repo.getObjectDatabase().openPack(pack);
+	}
+
+	private PackFile[] getPacks() {
+		List<PackFile> r = new ArrayList<PackFile>(repo.getObjectDatabase()
+				.getPacks());
+		return r.toArray(new PackFile[r.size()]);
+	}
+
+	private static PackFile firstPackWith(PackFile[] packs, ObjectId id)
+			throws Exception {
+		for (PackFile p : packs) {
+			if (p.hasObject(id))
+				return p;
+		}
+		return null;
+	}
+}
@@ -42,6 +42,13 @@
 
 package org.eclipse.jgit.storage.file;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.concurrent.Callable;
@@ -50,8 +57,13 @@
 import java.util.concurrent.Future;
 
 import org.eclipse.jgit.junit.RepositoryTestCase;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.revwalk.RevBlob;
+import org.eclipse.jgit.util.FS;
 import org.junit.Test;
 
 public class ObjectDirectoryTest extends RepositoryTestCase {
@@ -68,6 +80,119 @@ public void testConcurrentInsertionOfBlobsToTheSameNewFanOutDirectory()
 		}
 	}
 
+	@Test
+	public void testLooseObjectListingCache() throws Exception {
+		FileRepository repo = createBareRepository();
+		ObjectDirectory db = openListingCache(repo);
+		WindowCursor curs = new WindowCursor(db);
+
+		ObjectInserter ins = db.newInserter();
+		ObjectId a = ins.insert(Constants.OBJ_BLOB, new byte[] { 'a' });
+		ins.release();
+		ObjectId missing = ObjectId.fromString(a.name().substring(0, 2)
+				+ "00000000000000000000000000000000000000");
+
+		long saved = db.getLooseObjectListingSavedSyscalls();
+		assertNotNull(db.openObject2(curs, a.name(), a));
+		assertNull(db.openObject2(curs, missing.name(), missing));
+		assertNull(db.openObject2(curs, missing.name(), missing));
+		assertEquals(saved + 2, db.getLooseObjectListingSavedSyscalls());
+		assertTrue(db.getLooseObjectListingSpentSyscalls() > 0);
+
+		// An object this directory inserts is found without a new listing.
+		ins = db.newInserter();
+		ObjectId b = ins.insert(Constants.OBJ_BLOB, new byte[] { 'b' });
+		ins.release();
+		assertNotNull(db.openObject2(curs, b.name(), b));
+		curs.release();
+		db.close();
+	}
+
+	@Test
+	public void testLooseObjectListingCacheRevalidates() throws Exception {
+		FileRepository repo = createBareRepository();
+		ObjectDirectory db = openListingCache(repo);
+		WindowCursor curs = new WindowCursor(db);
+
+		ObjectId a = ObjectId.fromString(
+				"ce013625030ba8dba906f756967f9e9ca394464a");
+		assertNull(db.openObject2(curs, a.name(), a));
+
+		// Another writer adds the object behind this directory's back. The
+		// very next read must see it.
+		ObjectInserter ins = repo.newObjectInserter();
+		assertEquals(a, ins.insert(Constants.OBJ_BLOB,
+				Constants.encode("hello\n")));
+		ins.release();
+
+		assertNotNull(db.openObject2(curs, a.name(), a));
+		assertEquals(1, db.getLooseObjectListingSavedSyscalls());
+		assertTrue(db.getLooseObjectListingSpentSyscalls() > 0);
+		curs.release();
+		db.close();
+	}
+
+	@Test
+	public void testWatchedPackDirectoryFindsNewPacks() throws Exception {
+		FileRepository repo = createBareRepository();
+		Config cfg = new Config();
+		cfg.setBoolean("core", null, "watchpackdirectory", true);
+		ObjectDirectory db = new ObjectDirectory(cfg, repo.getObjectDatabase()
+				.getDirectory(), null, FS.DETECTED, null);
+
+		TestRepository<FileRepository> tr = new TestRepository<FileRepository>(
+				repo);
+		RevBlob blob = tr.blob("a");
+		tr.lightweightTag("t", blob);
+		assertTrue(db.has(blob));
+		ObjectId missing = ObjectId.fromString(
+				"ce013625030ba8dba906f756967f9e9ca394464a");
+		assertFalse(db.has(missing));
+
+		// Another writer packs the blob and removes its loose copy. The
+		// pack must be found before the watch service reports it.
+		tr.packAndPrune();
+		assertTrue(db.has(blob));
+		assertEquals(1, db.getPacks().size());
+		db.close();
+	}
+
+	@Test
+	public void testWatchedPackDirectorySharedByTwoDatabases()
+			throws Exception {
+		FileRepository repo = createBareRepository();
+		Config cfg = new Config();
+		cfg.setBoolean("core", null, "watchpackdirectory", true);
+		File dir = repo.getObjectDatabase().getDirectory();
+		ObjectDirectory db1 = new ObjectDirectory(cfg, dir, null,
+				FS.DETECTED, null);
+		ObjectDirectory db2 = new ObjectDirectory(cfg, dir, null,
+				FS.DETECTED, null);
+
+		TestRepository<FileRepository> tr = new TestRepository<FileRepository>(
+				repo);
+		RevBlob blob = tr.blob("a");
+		tr.lightweightTag("t", blob);
+		assertTrue(db1.has(blob));
+		assertTrue(db2.has(blob));
+
+		// Closing one database must not stop the other from being told
+		// about the directory.
+		db1.close();
+		tr.packAndPrune();
+		assertTrue(db2.has(blob));
+		assertEquals(1, db2.getPacks().size());
+		db2.close();
+	}
+
+	private static ObjectDirectory openListingCache(FileRepository repo)
+			throws Exception {
+		Config cfg = new Config();
+		cfg.setBoolean("core", null, "looseobjectlistingcache", true);
+		return new ObjectDirectory(cfg, repo.getObjectDatabase()
+				.getDirectory(), null, FS.DETECTED, null);
+	}
+
 	private Collection<Callable<ObjectId>> blobInsertersForTheSameFanOutDir(
 			final ObjectDirectory db) {
 		Callable<ObjectId> callable = new Callable<ObjectId>() {
@@ -156,6 +156,19 @@ public void testCompareEntriesOffsetsWithFindOffsets() {
 		}
 	}
 
+	/**
+	 * Compare offset from iterator entries with output of getOffset() method.
+	 */
+	@Test
+	public void testCompareEntriesOffsetsWithGetOffset() {
+		int i = 0;
+		for (MutableEntry me : smallIdx)
+			assertEquals(me.getOffset(), smallIdx.getOffset(i++));
+		i = 0;
+		for (MutableEntry me : denseIdx)
+			assertEquals(me.getOffset(), denseIdx.getOffset(i++));
+	}
+
 	/**
 	 * Test partial results of iterator comparing to content of well-known
 	 * (prepared) dense index, that may need multi-level indexing.
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.eclipse.jgit.junit.RepositoryTestCase;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.util.IO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackInserterTest extends RepositoryTestCase {
+	private final int streamThreshold = 16 * 1024;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+
+		WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setStreamFileThreshold(streamThreshold);
+		WindowCache.reconfigure(cfg);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		WindowCache.reconfigure(new WindowCacheConfig());
+		super.tearDown();
+	}
+
+	@Test
+	public void testPendingObjectsVisibleAfterFlush() throws Exception {
+		FileRepository repo = createBareRepository();
+		ObjectDirectory db = repo.getObjectDatabase();
+		PackInserter ins = db.newPackInserter();
+		ObjectReader reader = ins.newReader();
+		try {
+			ObjectId a = ins.insert(Constants.OBJ_BLOB, Constants.encode("a"));
+			ObjectId b = ins.insert(Constants.OBJ_BLOB, Constants.encode("b"));
+			assertEquals(a, ins.insert(Constants.OBJ_BLOB, Constants.encode("a")));
+
+			assertFalse(db.has(a));
+			assertTrue(reader.has(a));
+			assertEquals("b", new String(reader.open(b).getBytes(), "UTF-8"));
+			assertEquals(0, db.getPacks().size());
+
+			ins.flush();
+			assertTrue(db.has(a));
+			assertTrue(db.has(b));
+			assertEquals(1, db.getPacks().size());
+			assertEquals("a", new String(reader.open(a).getBytes(), "UTF-8"));
+
+			// Nothing new is pending, no empty pack is created.
+			ins.insert(Constants.OBJ_BLOB, Constants.encode("b"));
+			ins.flush();
+			assertEquals(1, db.getPacks().size());
+		} finally {
+			reader.release();
+			ins.release();
+		}
+	}
+
+	@Test
+	public void testLargeObject() throws Exception {
+		FileRepository repo = createBareRepository();
+		ObjectDirectory db = repo.getObjectDatabase();
+		byte[] data = new byte[streamThreshold + 10];
+		new Random(42).nextBytes(data);
+
+		PackInserter ins = db.newPackInserter();
+		ObjectReader reader = ins.newReader();
+		try {
+			ObjectId id = ins.insert(Constants.OBJ_BLOB, data.length,
+					new ByteArrayInputStream(data));
+			assertEquals(id, ins.insert(Constants.OBJ_BLOB, data.length,
+					new ByteArrayInputStream(data)));
+
+			ObjectLoader ldr = reader.open(id, Constants.OBJ_BLOB);
+			assertTrue(ldr.isLarge());
+			assertEquals(data.length, ldr.getSize());
+			byte[] act = new byte[data.length];
+			IO.readFully(ldr.openStream(), act, 0, act.length);
+			assertTrue(Arrays.equals(data, act));
+
+			ins.flush();
+			ldr = db.open(id, Constants.OBJ_BLOB);
+			assertEquals(data.length, ldr.getSize());
+			assertEquals(1, db.getPacks().iterator().next()
+					.getObjectCount());
+		} finally {
+			reader.release();
+			ins.release();
+		}
+	}
+}
@@ -58,9 +58,9 @@
 
 public class PackReverseIndexTest extends RepositoryTestCase {
 
-	private PackIndex idx;
+	PackIndex idx;
 
-	private PackReverseIndex reverseIdx;
+	PackReverseIndex reverseIdx;
 
 	/**
 	 * Set up tested class instance, test constructor by the way.
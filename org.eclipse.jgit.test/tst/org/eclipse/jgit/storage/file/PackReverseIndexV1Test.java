@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.junit.JGitTestUtil;
+import org.eclipse.jgit.storage.file.PackIndex.MutableEntry;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+import org.eclipse.jgit.util.IO;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackReverseIndexV1Test extends PackReverseIndexTest {
+	private byte[] rev;
+
+	private File revFile;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		idx = PackIndex.open(JGitTestUtil.getTestResourceFile("pack-huge.idx"));
+
+		List<PackedObjectInfo> objs = new ArrayList<PackedObjectInfo>();
+		for (MutableEntry me : idx) {
+			PackedObjectInfo oe = new PackedObjectInfo(me.toObjectId());
+			oe.setOffset(me.getOffset());
+			objs.add(oe);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new PackReverseIndexWriter(out).write(objs, idx.packChecksum);
+		rev = out.toByteArray();
+
+		revFile = new File(db.getDirectory(), "pack-huge.rev");
+		writeFile(revFile, rev);
+		reverseIdx = PackReverseIndex.open(revFile, idx);
+	}
+
+	@Test
+	public void testMapped() {
+		assertTrue(reverseIdx instanceof PackReverseIndexV1);
+		assertEquals(12 + 4 * idx.getObjectCount() + 40, rev.length);
+	}
+
+	@Test
+	public void testMatchesComputedIndex() {
+		PackReverseIndex computed = new PackReverseIndex(idx);
+		for (int i = 0; i < idx.getObjectCount(); i++) {
+			assertEquals(computed.findObjectByPosition(i),
+					reverseIdx.findObjectByPosition(i));
+			long offset = idx.findOffset(computed.findObjectByPosition(i));
+			assertEquals(i, reverseIdx.findPosition(offset));
+		}
+		assertEquals(-1, reverseIdx.findPosition(0));
+	}
+
+	@Test
+	public void testRejectsOtherPack() throws Exception {
+		rev[rev.length - 40] ^= 1; // pack checksum
+		writeFile(revFile, rev);
+		try {
+			PackReverseIndex.open(revFile, idx);
+			fail("reverse index of another pack was accepted");
+		} catch (IOException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRejectsTruncatedFile() throws Exception {
+		byte[] buf = IO.readFully(revFile);
+		byte[] truncated = new byte[buf.length - 4];
+		System.arraycopy(buf, 0, truncated, 0, truncated.length);
+		writeFile(revFile, truncated);
+		try {
+			PackReverseIndex.open(revFile, idx);
+			fail("truncated reverse index was accepted");
+		} catch (IOException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRejectsPositionOutOfRange() throws Exception {
+		for (int i = 12; i < 16; i++)
+			rev[i] = (byte) 0xff; // first record
+		writeFile(revFile, rev);
+		reverseIdx = PackReverseIndex.open(revFile, idx);
+		assertNotNull(reverseIdx.findObjectByPosition(1));
+		try {
+			reverseIdx.findObjectByPosition(0);
+			fail("position past the end of the index was accepted");
+		} catch (PackReverseIndexV1.CorruptPositionException e) {
+			assertTrue(e.getCause() instanceof CorruptObjectException);
+		}
+	}
+
+	private static void writeFile(File f, byte[] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+}
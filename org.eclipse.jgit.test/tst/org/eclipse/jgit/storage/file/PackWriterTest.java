@@ -61,6 +61,7 @@
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.junit.JGitTestUtil;
@@ -70,6 +71,7 @@
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.revwalk.RevBlob;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -481,6 +483,129 @@ public void testExclude() throws Exception {
 						contentB.getId()));
 	}
 
+	@Test
+	public void testUseBitmaps() throws Exception {
+		FileRepository repo = createBareRepository();
+		TestRepository<FileRepository> testRepo = new TestRepository<FileRepository>(
+				repo);
+		BranchBuilder bb = testRepo.branch("refs/heads/master");
+		RevCommit c1 = bb.commit().add("f", "1").add("g", "g").create();
+		RevCommit c2 = bb.commit().add("f", "2").create();
+		new GC(repo).gc();
+		assertNotNull(repo.getObjectDatabase().getBitmapIndex());
+
+		// Objects created after the repack are not covered by the bitmaps.
+		RevCommit c3 = bb.commit().add("f", "3").create();
+		RevCommit c4 = bb.commit().add("h", "h").create();
+
+		Set<ObjectId> want = Collections.<ObjectId> singleton(c4);
+		Set<ObjectId> have = Collections.<ObjectId> singleton(c1);
+		Set<ObjectId> expected = objectsToPack(repo, want, have, false);
+		assertEquals(expected, objectsToPack(repo, want, have, true));
+		assertEquals(3 + 3 + 3, expected.size());
+		assertTrue(expected.contains(c2));
+		assertTrue(expected.contains(c3));
+		assertFalse(expected.contains(c1));
+
+		PackWriter pw = new PackWriter(repo);
+		try {
+			pw.setUseBitmaps(true);
+			pw.preparePack(NullProgressMonitor.INSTANCE, want, have);
+			pw.writePack(NullProgressMonitor.INSTANCE,
+					NullProgressMonitor.INSTANCE, new ByteArrayOutputStream());
+			assertEquals(2, pw.getStatistics().getBitmapIndexMisses());
+		} finally {
+			pw.release();
+		}
+	}
+
+	@Test
+	public void testWritePackWithThreads() throws Exception {
+		writeVerifyFileHistory(0, null);
+		PackWriter.Statistics stats = writer.getStatistics();
+		assertTrue(0 < stats.getTotalDeltas());
+
+		List<PackWriter.Statistics.DeltaSearchThread> threads = stats
+				.getDeltaSearchThreads();
+		assertTrue(1 < threads.size());
+		assertTrue(threads.size() <= 4);
+		long searched = 0;
+		for (PackWriter.Statistics.DeltaSearchThread t : threads) {
+			assertTrue(1 <= t.getSlices());
+			searched += t.getObjects();
+		}
+		assertEquals(stats.getDeltaSearchNonEdgeObjects(), searched);
+	}
+
+	@Test
+	public void testWritePackWithTotalDeltaMemoryLimit() throws Exception {
+		// Too small to hold a window of more than a couple of objects, so
+		// some searches must be skipped or shortened.
+		writeVerifyFileHistory(4096, null);
+	}
+
+	@Test
+	public void testWritePackWithCallerRunsExecutor() throws Exception {
+		// Not an ExecutorService, and runs every task in the writing thread.
+		writeVerifyFileHistory(0, new Executor() {
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+	}
+
+	private void writeVerifyFileHistory(long totalMemoryLimit,
+			Executor executor) throws Exception {
+		FileRepository repo = createBareRepository();
+		TestRepository<FileRepository> testRepo = new TestRepository<FileRepository>(
+				repo);
+		BranchBuilder bb = testRepo.branch("refs/heads/master");
+		StringBuilder content = new StringBuilder();
+		RevCommit tip = null;
+		for (int i = 0; i < 40; i++) {
+			content.append("line ").append(i).append('\n');
+			tip = bb.commit().add("f", content.toString()).create();
+		}
+
+		config = new PackConfig(repo);
+		config.setReuseDeltas(false);
+		config.setReuseObjects(false);
+		config.setDeltaCacheLimit(0);
+		config.setDeltaSearchTotalMemoryLimit(totalMemoryLimit);
+		config.setThreads(4);
+		config.setExecutor(executor);
+		NullProgressMonitor m = NullProgressMonitor.INSTANCE;
+		writer = new PackWriter(config, repo.newObjectReader());
+		writer.preparePack(m, Collections.<ObjectId> singleton(tip),
+				Collections.<ObjectId> emptySet());
+		writer.writePack(m, m, os);
+		assertEquals(3 * 40, writer.getObjectCount());
+
+		Set<ObjectId> written = objectsToPack(repo,
+				Collections.<ObjectId> singleton(tip),
+				Collections.<ObjectId> emptySet(), false);
+		verifyOpenPack(false);
+		assertEquals(written.size(), pack.getObjectCount());
+		for (ObjectId id : written)
+			assertTrue(pack.hasObject(id));
+	}
+
+	private static Set<ObjectId> objectsToPack(FileRepository repo,
+			Set<ObjectId> want, Set<ObjectId> have, boolean useBitmaps)
+			throws IOException {
+		PackWriter pw = new PackWriter(repo);
+		try {
+			pw.setUseBitmaps(useBitmaps);
+			pw.preparePack(NullProgressMonitor.INSTANCE, want, have);
+			Set<ObjectId> ids = new HashSet<ObjectId>();
+			for (ObjectIdOwnerMap.Entry e : pw.getObjectSet())
+				ids.add(e.copy());
+			return ids;
+		} finally {
+			pw.release();
+		}
+	}
+
 	private static void assertContent(PackIndex pi, List<ObjectId> expected) {
 		assertEquals("Pack index has wrong size.", expected.size(),
 				pi.getObjectCount());
@@ -60,6 +60,7 @@
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -68,14 +69,21 @@
 import org.eclipse.jgit.events.RefsChangedEvent;
 import org.eclipse.jgit.events.RefsChangedListener;
 import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
+import org.eclipse.jgit.junit.MockSystemReader;
 import org.eclipse.jgit.junit.TestRepository;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Ref.Storage;
 import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefWriter;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.eclipse.jgit.util.SystemReader;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -1143,6 +1151,120 @@ public void testPeelCommit() throws IOException {
 		assertSame(master_p2, refdir.peel(master_p2));
 	}
 
+	@Test
+	public void testMappedPackedRefs() throws IOException {
+		writePackedRefs("# pack-refs with: peeled sorted\n" + //
+				A.name() + " refs/heads/master\n" + //
+				B.name() + " refs/heads/other\n" + //
+				A.name() + " refs/heads/other2\n" + //
+				v1_0.name() + " refs/tags/v1.0\n" + //
+				"^" + v1_0.getObject().name() + "\n");
+		writeLooseRef("refs/heads/other2", B);
+		RefDirectory mapped = openMapped();
+
+		Ref master = mapped.getRef("master");
+		assertEquals(Storage.PACKED, master.getStorage());
+		assertEquals(A, master.getObjectId());
+		assertTrue(master.isPeeled());
+		assertEquals(A, mapped.getRef(HEAD).getObjectId());
+
+		Ref tag = mapped.getRef("v1.0");
+		assertEquals(v1_0, tag.getObjectId());
+		assertEquals(v1_0.getObject(), tag.getPeeledObjectId());
+
+		assertEquals(B, mapped.getRef("other2").getObjectId());
+		assertNull(mapped.getRef("refs/heads/maste"));
+		assertNull(mapped.getRef("refs/heads/master2"));
+		assertNull(mapped.getRef("refs/tags/v1.0.1"));
+
+		assertTrue(mapped.isNameConflicting("refs/heads/master/x"));
+		assertTrue(mapped.isNameConflicting("refs/tags"));
+		assertFalse(mapped.isNameConflicting("refs/heads/next"));
+
+		Map<String, Ref> heads = mapped.getRefs(R_HEADS);
+		assertEquals(3, heads.size());
+		assertEquals(Storage.LOOSE, heads.get("other2").getStorage());
+		assertEquals(5, mapped.getRefs(RefDatabase.ALL).size());
+	}
+
+	@Test
+	public void testMappedPackedRefsUnsorted() throws IOException {
+		writePackedRefs(B.name() + " refs/heads/other\n" + //
+				A.name() + " refs/heads/master\n");
+		RefDirectory mapped = openMapped();
+		assertEquals(A, mapped.getRef("master").getObjectId());
+		assertEquals(B, mapped.getRef("other").getObjectId());
+		assertEquals(2, mapped.getRefs(R_HEADS).size());
+	}
+
+	@Test
+	public void testMappedPackedRefsWrittenInUtf8Order() throws IOException {
+		// U+1F600 sorts first as UTF-16, but after U+FF21 as UTF-8.
+		String[] names = { "refs/heads/a", "refs/heads/\ud83d\ude00",
+				"refs/heads/\uff21", "refs/heads/\uff22", "refs/heads/\uff23" };
+		List<Ref> refs = new ArrayList<Ref>();
+		for (String name : names)
+			refs.add(new ObjectIdRef.PeeledNonTag(Storage.PACKED, name, A));
+		new RefWriter(refs) {
+			@Override
+			protected void writeFile(String file, byte[] content)
+					throws IOException {
+				write(new File(diskRepo.getDirectory(), file),
+						RawParseUtils.decode(content));
+			}
+		}.writePackedRefs();
+
+		RefDirectory mapped = openMapped();
+		for (String name : names)
+			assertEquals(A, mapped.getRef(name).getObjectId());
+	}
+
+	@Test
+	public void testMappedPackedRefsSeesRewrite() throws IOException {
+		writePackedRefs(A.name() + " refs/heads/master\n");
+		RefDirectory mapped = openMapped();
+		assertEquals(A, mapped.getRef("master").getObjectId());
+
+		write(new File(diskRepo.getDirectory(), "packed-refs"), //
+				A.name() + " refs/heads/master\n" + //
+				B.name() + " refs/heads/other\n");
+		assertEquals(B, mapped.getRef("other").getObjectId());
+	}
+
+	@Test
+	public void testMappedPackedRefsDelete() throws IOException {
+		writePackedRefs("# pack-refs with: peeled sorted\n" + //
+				A.name() + " refs/heads/master\n" + //
+				B.name() + " refs/heads/other\n");
+		RefDirectory mapped = openMapped();
+		assertEquals(B, mapped.getRef("other").getObjectId());
+
+		RefUpdate u = mapped.newUpdate("refs/heads/other", false);
+		u.setForceUpdate(true);
+		assertEquals(RefUpdate.Result.FORCED, u.delete());
+		assertNull(mapped.getRef("other"));
+		assertEquals(A, mapped.getRef("master").getObjectId());
+		assertEquals(1, openMapped().getRefs(R_HEADS).size());
+	}
+
+	@Test
+	public void testMappedPackedRefsNotUsedOnWindows() throws IOException {
+		// The header claims an order the records do not have, so a search
+		// of the mapped file would miss refs/heads/a.
+		writePackedRefs("# pack-refs with: peeled sorted\n" + //
+				A.name() + " refs/heads/c\n" + //
+				A.name() + " refs/heads/b\n" + //
+				B.name() + " refs/heads/a\n");
+		MockSystemReader system = (MockSystemReader) SystemReader
+				.getInstance();
+		system.setWindows();
+		try {
+			assertEquals(B, openMapped().getRef("refs/heads/a").getObjectId());
+		} finally {
+			system.setUnix();
+		}
+	}
+
 	@Test
 	public void testRefsChangedStackOverflow() throws Exception {
 		final FileRepository newRepo = createBareRepository();
@@ -1173,6 +1295,15 @@ public void onRefsChanged(RefsChangedEvent event) {
 		assertEquals(1, changeCount.get());
 	}
 
+	private RefDirectory openMapped() throws IOException {
+		diskRepo.getConfig().setBoolean(ConfigConstants.CONFIG_CORE_SECTION,
+				null, ConfigConstants.CONFIG_KEY_PACKED_REFS_MMAP, true);
+		diskRepo.getConfig().save();
+		FileRepository r = new FileRepository(diskRepo.getDirectory());
+		addRepoToClose(r);
+		return (RefDirectory) r.getRefDatabase();
+	}
+
 	private void writeLooseRef(String name, AnyObjectId id) throws IOException {
 		writeLooseRef(name, id.name() + "\n");
 	}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
+import org.eclipse.jgit.junit.TestRepository;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.eclipse.jgit.util.SystemReader;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReftableDatabaseTest extends LocalDiskRepositoryTestCase {
+	private FileRepository db;
+
+	private RevCommit a;
+
+	private RevCommit b;
+
+	@Override
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		db = new FileRepository(createUniqueTestGitDir(true));
+		db.createWithRefTables(true);
+		addRepoToClose(db);
+
+		TestRepository<FileRepository> repo = new TestRepository<FileRepository>(
+				db);
+		a = repo.commit().create();
+		b = repo.commit().parent(a).create();
+	}
+
+	@Test
+	public void testCreate() throws Exception {
+		assertTrue(db.getRefDatabase() instanceof ReftableDatabase);
+
+		FileBasedConfig cfg = new FileBasedConfig(new File(db.getDirectory(),
+				Constants.CONFIG), db.getFS());
+		cfg.load();
+		assertEquals(1, cfg.getInt("core", "repositoryformatversion", 0));
+		assertEquals(ReftableDatabase.REFTABLE, cfg.getString("extensions",
+				null, "refStorage"));
+		assertEquals("ref: refs/heads/.invalid\n", RawParseUtils.decode(IO
+				.readFully(new File(db.getDirectory(), Constants.HEAD))));
+
+		Ref head = db.getRef(Constants.HEAD);
+		assertTrue(head.isSymbolic());
+		assertEquals("refs/heads/master", head.getTarget().getName());
+		assertNull(head.getObjectId());
+		assertTrue(RepositoryCache.FileKey.isGitRepository(db.getDirectory(),
+				db.getFS()));
+	}
+
+	@Test
+	public void testUserConfigDoesNotSelectTables() throws Exception {
+		FileBasedConfig userConfig = SystemReader.getInstance()
+				.openUserConfig(null, FS.DETECTED);
+		userConfig.setString(ConfigConstants.CONFIG_CORE_SECTION, null,
+				ConfigConstants.CONFIG_KEY_REFSTORAGE, "reftable");
+		userConfig.save();
+
+		FileRepository r = new FileRepository(createUniqueTestGitDir(true));
+		r.create(true);
+		addRepoToClose(r);
+		assertTrue(r.getRefDatabase() instanceof RefDirectory);
+		assertEquals(0, r.getConfig().getInt("core",
+				"repositoryformatversion", -1));
+		assertFalse(new File(r.getDirectory(), ReftableDatabase.REFTABLE_DIR)
+				.exists());
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		update("refs/heads/master", a);
+		FileRepository other = new FileRepository(db.getDirectory());
+		try {
+			assertTrue(other.getRefDatabase() instanceof ReftableDatabase);
+			assertEquals(a, other.resolve(Constants.HEAD));
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void testUnknownExtension() throws Exception {
+		FileBasedConfig cfg = db.getConfig();
+		cfg.setString("extensions", null, "objectFormat", "sha256");
+		cfg.save();
+		try {
+			new FileRepository(db.getDirectory()).close();
+			fail("repository with unknown extension was opened");
+		} catch (IOException e) {
+			// Expected.
+		}
+
+		cfg.unset("extensions", null, "objectFormat");
+		cfg.setInt("core", null, "repositoryformatversion", 2);
+		cfg.save();
+		try {
+			new FileRepository(db.getDirectory()).close();
+			fail("repository with unknown version was opened");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testUpdateAndDelete() throws IOException {
+		assertEquals(Result.NEW, update("refs/heads/master", a));
+		assertEquals(a, db.resolve(Constants.HEAD));
+		assertEquals(Result.FAST_FORWARD, update("refs/heads/master", b));
+		assertEquals(b, db.getRef("master").getObjectId());
+
+		RefUpdate u = db.updateRef("refs/heads/master");
+		u.setExpectedOldObjectId(a);
+		u.setNewObjectId(a);
+		u.setForceUpdate(true);
+		assertEquals(Result.LOCK_FAILURE, u.update());
+
+		assertEquals(Result.NEW, update("refs/heads/side", a));
+		u = db.updateRef("refs/heads/side");
+		u.setForceUpdate(true);
+		assertEquals(Result.FORCED, u.delete());
+		assertNull(db.getRef("side"));
+	}
+
+	@Test
+	public void testGetRefsAndConflicts() throws IOException {
+		update("refs/heads/master", a);
+		update("refs/heads/topic/one", b);
+		update("refs/tags/v1", a);
+
+		Map<String, Ref> heads = db.getRefDatabase().getRefs(
+				Constants.R_HEADS);
+		assertEquals(2, heads.size());
+		assertEquals(b, heads.get("topic/one").getObjectId());
+
+		Map<String, Ref> all = db.getAllRefs();
+		assertEquals(4, all.size());
+		assertEquals(a, all.get(Constants.HEAD).getObjectId());
+
+		assertTrue(db.getRefDatabase().isNameConflicting("refs/heads/topic"));
+		assertTrue(db.getRefDatabase().isNameConflicting(
+				"refs/heads/master/x"));
+		assertFalse(db.getRefDatabase().isNameConflicting("refs/heads/two"));
+	}
+
+	@Test
+	public void testRenameUpdatesHead() throws IOException {
+		db.getConfig().setBoolean("core", null, "logallrefupdates", true);
+		db.getConfig().save();
+		update("refs/heads/master", a);
+		assertEquals(1, db.getReflogReader("refs/heads/master")
+				.getReverseEntries().size());
+
+		assertEquals(Result.RENAMED, db.renameRef("refs/heads/master",
+				"refs/heads/main").rename());
+		assertNull(db.getRef("refs/heads/master"));
+		assertEquals("refs/heads/main", db.getRef(Constants.HEAD).getTarget()
+				.getName());
+		assertEquals(a, db.resolve(Constants.HEAD));
+
+		assertFalse(new File(db.getDirectory(), "logs/refs/heads/master")
+				.exists());
+		ReflogReader log = db.getReflogReader("refs/heads/main");
+		assertEquals(2, log.getReverseEntries().size());
+		assertEquals("Branch: renamed master to main", log.getLastEntry()
+				.getComment());
+		assertEquals(a, log.getLastEntry().getNewId());
+	}
+
+	@Test
+	public void testRenameIntoSourcePath() throws IOException {
+		update("refs/heads/topic", a);
+		assertEquals(Result.RENAMED, db.renameRef("refs/heads/topic",
+				"refs/heads/topic/one").rename());
+		assertNull(db.getRef("refs/heads/topic"));
+		assertEquals(a, db.getRef("refs/heads/topic/one").getObjectId());
+
+		update("refs/heads/other", b);
+		assertEquals(Result.LOCK_FAILURE, db.renameRef("refs/heads/other",
+				"refs/heads/topic/one").rename());
+		assertEquals(b, db.getRef("refs/heads/other").getObjectId());
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		ReftableDatabase refdb = (ReftableDatabase) db.getRefDatabase();
+		for (int i = 0; i < 100; i++)
+			update("refs/heads/b" + i, i % 2 == 0 ? a : b);
+		assertTrue(refdb.getTableCount() <= 8);
+
+		update("refs/heads/b0", b);
+		RefUpdate u = db.updateRef("refs/heads/b1");
+		u.setForceUpdate(true);
+		assertEquals(Result.FORCED, u.delete());
+		new GC(db).packRefs();
+		assertEquals(1, refdb.getTableCount());
+		assertEquals(1, new File(db.getDirectory(),
+				ReftableDatabase.REFTABLE_DIR).list().length - 1);
+
+		FileRepository other = new FileRepository(db.getDirectory());
+		try {
+			assertEquals(b, other.getRef("b0").getObjectId());
+			assertNull(other.getRef("b1"));
+			assertEquals(99, other.getRefDatabase()
+					.getRefs(Constants.R_HEADS).size());
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void testCompactionBetweenListReadAndTableOpen() throws IOException {
+		final ReftableDatabase refdb = (ReftableDatabase) db.getRefDatabase();
+		for (int i = 0; i < 100; i++)
+			update("refs/heads/b" + i, a);
+		assertTrue(refdb.compact());
+		update("refs/heads/master", a);
+		update("refs/heads/other", b);
+		assertTrue(1 < refdb.getTableCount());
+
+		// Another process compacts the stack right after this one read the
+		// list, deleting the tables the list names.
+		File dir = new File(db.getDirectory(), ReftableDatabase.REFTABLE_DIR);
+		final boolean[] compacted = new boolean[1];
+		ReftableStack stack = new ReftableStack(dir, db.getFS()) {
+			@Override
+			List<String> readList() throws IOException {
+				List<String> names = super.readList();
+				if (!compacted[0]) {
+					compacted[0] = true;
+					assertTrue(refdb.compact());
+				}
+				return names;
+			}
+		};
+		try {
+			MergedReftable merged = stack.getMerged();
+			assertTrue(compacted[0]);
+			assertEquals(1, stack.getTableCount());
+			assertEquals(a, merged.exactRef("refs/heads/master").getObjectId());
+			assertEquals(b, merged.exactRef("refs/heads/other").getObjectId());
+		} finally {
+			stack.close();
+		}
+	}
+
+	private Result update(String name, RevCommit id) throws IOException {
+		RefUpdate u = db.updateRef(name);
+		u.setNewObjectId(id);
+		return u.update();
+	}
+}
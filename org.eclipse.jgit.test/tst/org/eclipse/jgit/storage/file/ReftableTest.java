@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.eclipse.jgit.util.FileUtils;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.junit.After;
+import org.junit.Test;
+
+public class ReftableTest {
+	private final List<File> files = new ArrayList<File>();
+
+	private final List<ReftableReader> readers = new ArrayList<ReftableReader>();
+
+	@After
+	public void tearDown() throws IOException {
+		for (ReftableReader r : readers)
+			r.close();
+		for (File f : files)
+			FileUtils.delete(f, FileUtils.SKIP_MISSING);
+	}
+
+	@Test
+	public void testEmptyTable() throws IOException {
+		ReftableReader r = write(new Ref[0], new String[0], 1);
+		assertEquals(0, r.getRecordCount());
+		assertFalse(r.seek(new byte[0]).next());
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		ObjectId a = id(1);
+		ObjectId b = id(2);
+		Ref head = new SymbolicRef(Constants.HEAD, new ObjectIdRef.Unpeeled(
+				Ref.Storage.NEW, "refs/heads/master", null));
+		Ref master = new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED,
+				"refs/heads/master", a);
+		Ref tag = new ObjectIdRef.PeeledTag(Ref.Storage.PACKED,
+				"refs/tags/v1.0", b, a);
+		Ref unpeeled = new ObjectIdRef.Unpeeled(Ref.Storage.PACKED,
+				"refs/tags/v2.0", b);
+		ReftableReader r = write(new Ref[] { head, master, tag, unpeeled },
+				new String[0], 7);
+		assertEquals(4, r.getRecordCount());
+		assertEquals(7, r.getMinUpdateIndex());
+		assertEquals(7, r.getMaxUpdateIndex());
+
+		MergedReftable m = merge(r);
+		Ref h = m.exactRef(Constants.HEAD);
+		assertTrue(h.isSymbolic());
+		assertEquals("refs/heads/master", h.getTarget().getName());
+
+		Ref ref = m.exactRef("refs/heads/master");
+		assertEquals(a, ref.getObjectId());
+		assertTrue(ref.isPeeled());
+		assertNull(ref.getPeeledObjectId());
+
+		ref = m.exactRef("refs/tags/v1.0");
+		assertEquals(b, ref.getObjectId());
+		assertEquals(a, ref.getPeeledObjectId());
+
+		ref = m.exactRef("refs/tags/v2.0");
+		assertEquals(b, ref.getObjectId());
+		assertFalse(ref.isPeeled());
+
+		assertNull(m.exactRef("refs/heads/mast"));
+		assertNull(m.exactRef("refs/tags/v1.0.1"));
+	}
+
+	@Test
+	public void testManyBlocks() throws IOException {
+		int n = 5000;
+		Ref[] refs = new Ref[n];
+		for (int i = 0; i < n; i++)
+			refs[i] = ref(name(i), i);
+		sort(refs);
+		ReftableReader r = write(refs, new String[0], 1);
+		assertTrue(r.getSize() > 10 * ReftableConstants.DEFAULT_BLOCK_SIZE);
+
+		MergedReftable m = merge(r);
+		for (int i = 0; i < n; i += 7)
+			assertEquals(id(i), m.exactRef(name(i)).getObjectId());
+		assertNull(m.exactRef("refs/heads/a"));
+		assertNull(m.exactRef("refs/heads/zzz"));
+
+		RefCursor c = m.seek("refs/heads/", false);
+		int cnt = 0;
+		while (c.next()) {
+			assertEquals(refs[cnt].getName(), c.getRef().getName());
+			cnt++;
+		}
+		assertEquals(n, cnt);
+
+		c = m.seek(name(123), false);
+		List<String> found = new ArrayList<String>();
+		while (c.next())
+			found.add(c.getRef().getName());
+		assertEquals(Arrays.asList(name(123)), found);
+
+		c = m.seek("refs/heads/b/001", false);
+		cnt = 0;
+		while (c.next()) {
+			assertTrue(c.getRef().getName().startsWith("refs/heads/b/001"));
+			cnt++;
+		}
+		assertEquals(50, cnt);
+	}
+
+	@Test
+	public void testMergeHidesOlderAndDeleted() throws IOException {
+		ReftableReader t1 = write(new Ref[] { ref("refs/heads/a", 1),
+				ref("refs/heads/b", 2), ref("refs/heads/c", 3) },
+				new String[0], 1);
+		ReftableReader t2 = write(new Ref[] { ref("refs/heads/a", 4) },
+				new String[] { "refs/heads/b" }, 2);
+		MergedReftable m = merge(t1, t2);
+
+		assertEquals(id(4), m.exactRef("refs/heads/a").getObjectId());
+		assertNull(m.exactRef("refs/heads/b"));
+		assertEquals(id(3), m.exactRef("refs/heads/c").getObjectId());
+
+		RefCursor c = m.seek("refs/", false);
+		assertTrue(c.next());
+		assertEquals(id(4), c.getRef().getObjectId());
+		assertTrue(c.next());
+		assertEquals("refs/heads/c", c.getRef().getName());
+		assertFalse(c.next());
+
+		c = m.seek("refs/", true);
+		assertTrue(c.next());
+		assertTrue(c.next());
+		assertTrue(c.wasDeleted());
+		assertEquals("refs/heads/b", RawParseUtils.decode(c.getNameBytes()));
+		assertTrue(c.next());
+		assertFalse(c.next());
+	}
+
+	@Test
+	public void testRejectsUnsortedRefs() throws IOException {
+		try {
+			write(new Ref[] { ref("refs/heads/b", 1), ref("refs/heads/a", 2) },
+					new String[0], 1);
+			fail("accepted refs out of order");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testRejectsCorruptTable() throws IOException {
+		File f = newFile();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(new byte[64]);
+		} finally {
+			out.close();
+		}
+		try {
+			new ReftableReader(f).close();
+			fail("accepted a corrupt table");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	private ReftableReader write(Ref[] refs, String[] deletes, long updateIndex)
+			throws IOException {
+		File f = newFile();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			ReftableWriter w = new ReftableWriter(out, 256, updateIndex,
+					updateIndex);
+			w.begin();
+			int d = 0;
+			for (Ref ref : refs) {
+				while (d < deletes.length
+						&& deletes[d].compareTo(ref.getName()) < 0)
+					w.deleteRef(deletes[d++]);
+				w.writeRef(ref);
+			}
+			while (d < deletes.length)
+				w.deleteRef(deletes[d++]);
+			w.finish();
+		} finally {
+			out.close();
+		}
+		ReftableReader r = new ReftableReader(f);
+		readers.add(r);
+		return r;
+	}
+
+	private File newFile() throws IOException {
+		File f = File.createTempFile("reftable", ".ref");
+		files.add(f);
+		return f;
+	}
+
+	private static MergedReftable merge(ReftableReader... tables) {
+		return new MergedReftable(Arrays.asList(tables));
+	}
+
+	private static void sort(Ref[] refs) {
+		Arrays.sort(refs, new java.util.Comparator<Ref>() {
+			public int compare(Ref a, Ref b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+	}
+
+	private static String name(int i) {
+		return String.format("refs/heads/%s/%05d", i % 2 == 0 ? "a" : "b",
+				Integer.valueOf(i));
+	}
+
+	private static Ref ref(String name, int i) {
+		return new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, name, id(i));
+	}
+
+	private static ObjectId id(int i) {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		raw[0] = (byte) (i >>> 24);
+		raw[1] = (byte) (i >>> 16);
+		raw[2] = (byte) (i >>> 8);
+		raw[3] = (byte) i;
+		raw[19] = 1;
+		return ObjectId.fromRaw(raw);
+	}
+}
@@ -51,15 +51,22 @@
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.junit.JGitTestUtil;
 import org.eclipse.jgit.junit.SampleDataRepositoryTestCase;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.storage.file.WindowCacheConfig.CachePolicy;
+import org.eclipse.jgit.storage.pack.CacheStats;
 import org.eclipse.jgit.util.MutableInteger;
 import org.junit.Before;
 import org.junit.Test;
@@ -126,6 +133,156 @@ public void testCache_TooSmallLimit() throws IOException {
 		checkLimits(cfg);
 	}
 
+	@Test
+	public void testCache_TinyLfuDefaults() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitCachePolicy(CachePolicy.TINY_LFU);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		checkLimits(cfg);
+
+		final WindowCache cache = WindowCache.getInstance();
+		assertEquals(6, cache.getOpenFiles());
+		assertEquals(17346, cache.getOpenBytes());
+	}
+
+	@Test
+	public void testCache_TinyLfuTooFewFiles() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitCachePolicy(CachePolicy.TINY_LFU);
+		cfg.setPackedGitOpenFiles(2);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		checkLimits(cfg);
+	}
+
+	@Test
+	public void testCache_TinyLfuTooSmallLimit() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitCachePolicy(CachePolicy.TINY_LFU);
+		cfg.setPackedGitWindowSize(4096);
+		cfg.setPackedGitLimit(4096);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		checkLimits(cfg);
+	}
+
+	@Test
+	public void testCache_TinyLfuRejectedPackClosedOnPurge()
+			throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitCachePolicy(CachePolicy.TINY_LFU);
+		cfg.setPackedGitWindowSize(4096);
+		cfg.setPackedGitLimit(4096);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		doCacheTests();
+
+		final WindowCache cache = WindowCache.getInstance();
+		assertTrue(0 < cache.getOpenFiles());
+		for (PackFile p : db.getObjectDatabase().getPacks())
+			p.close();
+		assertEquals(0, cache.getOpenFiles());
+		assertEquals(0, cache.getOpenBytes());
+	}
+
+	@Test
+	public void testCache_TinyLfuConcurrentReaders() throws Exception {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitCachePolicy(CachePolicy.TINY_LFU);
+		cfg.setPackedGitWindowSize(4096);
+		cfg.setPackedGitLimit(3 * 4096);
+		WindowCache.reconfigure(cfg);
+
+		final Exception[] error = new Exception[1];
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 10; i++)
+							doCacheTests();
+					} catch (Exception e) {
+						error[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		if (error[0] != null)
+			throw error[0];
+		checkLimits(cfg);
+	}
+
+	@Test
+	public void testCache_Stats() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		WindowCache.reconfigure(cfg);
+		final CacheStats stats = WindowCache.getStats();
+		assertEquals(0, stats.getRequestCount());
+
+		doCacheTests();
+		final long misses = stats.getMissCount();
+		assertTrue(0 < misses);
+		assertEquals(misses, stats.getLoadSuccessCount());
+		assertEquals(0, stats.getLoadFailureCount());
+		assertEquals(misses, sum(stats.getLoadTimeHistogram()));
+		assertEquals(Long.valueOf(misses), stats.getMissCountByExt().get("pack"));
+		assertEquals(6, stats.getOpenFileCount());
+		assertEquals(17346, stats.getOpenByteCount());
+		assertEquals(17346, sum(stats.getOpenByteCountByPack().values()));
+		assertEquals(misses, sum(stats.getMissCountByPack().values()));
+
+		doCacheTests();
+		assertEquals(misses, stats.getMissCount());
+		assertTrue(0 < stats.getHitCount());
+		assertEquals(0, stats.getEvictionCount());
+
+		stats.resetCounters();
+		assertEquals(0, stats.getRequestCount());
+		assertEquals(17346, stats.getOpenByteCount());
+	}
+
+	@Test
+	public void testCache_StatsEvictions() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitWindowSize(4096);
+		cfg.setPackedGitLimit(4096);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		assertTrue(0 < WindowCache.getStats().getEvictionCount());
+	}
+
+	@Test
+	public void testCache_StatsViaJmx() throws Exception {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setExposeStatsViaJmx(true);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("org.eclipse.jgit:type=WindowCache");
+		assertTrue(server.isRegistered(name));
+		assertEquals(Long.valueOf(WindowCache.getStats().getRequestCount()),
+				server.getAttribute(name, "RequestCount"));
+		assertTrue(server.isRegistered(new ObjectName(
+				"org.eclipse.jgit:type=DeltaBaseCache")));
+	}
+
+	@Test
+	public void testConfig_CachePolicy() throws Exception {
+		final FileBasedConfig rc = db.getConfig();
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.fromConfig(rc);
+		assertEquals(CachePolicy.SAMPLED_LRU, cfg.getPackedGitCachePolicy());
+		rc.setEnum("core", null, "packedgitcachepolicy", CachePolicy.TINY_LFU);
+		cfg.fromConfig(rc);
+		assertEquals(CachePolicy.TINY_LFU, cfg.getPackedGitCachePolicy());
+	}
+
 	private static void checkLimits(final WindowCacheConfig cfg) {
 		final WindowCache cache = WindowCache.getInstance();
 		assertTrue(cache.getOpenFiles() <= cfg.getPackedGitOpenFiles());
@@ -134,7 +291,21 @@ private static void checkLimits(final WindowCacheConfig cfg) {
 		assertTrue(0 < cache.getOpenBytes());
 	}
 
-	private void doCacheTests() throws IOException {
+	private static long sum(long[] values) {
+		long r = 0;
+		for (long v : values)
+			r += v;
+		return r;
+	}
+
+	private static long sum(Collection<Long> values) {
+		long r = 0;
+		for (Long v : values)
+			r += v.longValue();
+		return r;
+	}
+
+		private void doCacheTests() throws IOException {
 		for (final TestObject o : toLoad) {
 			final ObjectLoader or = db.open(o.id, o.type);
 			assertNotNull(or);
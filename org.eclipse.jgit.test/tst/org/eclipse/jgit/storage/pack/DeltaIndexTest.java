@@ -119,6 +119,45 @@ public void testCopyZeros_Length128() throws IOException {
 		assertEquals(2636, new DeltaIndex(src).getIndexSize());
 	}
 
+	@Test
+	public void testPooledIndex() throws IOException {
+		// Leave another index's contents behind in the pooled arrays.
+		DeltaIndexPool pool = new DeltaIndexPool(4);
+		new DeltaIndex(getRng().nextBytes(2048), pool).release(pool);
+
+		src = getRng().nextBytes(2048);
+		copy(1024, 1024);
+		insert("xyz");
+		copy(0, 1024);
+		dst = dstBuf.toByteArray();
+
+		ByteArrayOutputStream pooled = new ByteArrayOutputStream();
+		new DeltaIndex(src, pool).encode(pooled, dst);
+		new DeltaIndex(src).encode(actDeltaBuf, dst);
+		assertArrayEquals(actDeltaBuf.toByteArray(), pooled.toByteArray());
+		assertArrayEquals(dst, BinaryDelta.apply(src, pooled.toByteArray()));
+	}
+
+	@Test
+	public void testPoolRetainedBytes() {
+		DeltaIndexPool pool = new DeltaIndexPool(4);
+		assertEquals(0, pool.getRetainedBytes());
+
+		DeltaIndex idx = new DeltaIndex(getRng().nextBytes(2048), pool);
+		long scratch = pool.getRetainedBytes();
+		assertTrue(0 < scratch);
+
+		idx.release(pool);
+		assertTrue(scratch < pool.getRetainedBytes());
+
+		// Building another index takes the arrays back out of the pool.
+		new DeltaIndex(getRng().nextBytes(2048), pool);
+		assertEquals(scratch, pool.getRetainedBytes());
+
+		pool.clear();
+		assertEquals(0, pool.getRetainedBytes());
+	}
+
 	@Test
 	public void testShuffleSegments() throws IOException {
 		src = getRng().nextBytes(128);
@@ -73,6 +73,8 @@
 import org.eclipse.jgit.revwalk.RevBlob;
 import org.eclipse.jgit.storage.file.ObjectDirectoryPackParser;
 import org.eclipse.jgit.storage.file.PackFile;
+import org.eclipse.jgit.storage.file.PackIndex;
+import org.eclipse.jgit.storage.file.PackIndex.MutableEntry;
 import org.eclipse.jgit.util.NB;
 import org.eclipse.jgit.util.TemporaryBuffer;
 import org.eclipse.jgit.util.io.UnionInputStream;
@@ -146,6 +148,30 @@ public void test2() throws  IOException {
 		}
 	}
 
+	@Test
+	public void testResolveDeltasWithThreads() throws IOException {
+		File packFile = JGitTestUtil.getTestResourceFile("pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371.pack");
+		File idxFile = JGitTestUtil.getTestResourceFile("pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371.idx");
+		final InputStream is = new FileInputStream(packFile);
+		try {
+			ObjectDirectoryPackParser p = (ObjectDirectoryPackParser) index(is);
+			p.setThreads(4);
+			p.setObjectChecking(true);
+			p.parse(NullProgressMonitor.INSTANCE);
+			PackFile file = p.getPackFile();
+
+			PackIndex idx = PackIndex.open(idxFile);
+			assertEquals(idx.getObjectCount(), p.getObjectCount());
+			for (MutableEntry e : idx) {
+				assertTrue(file.hasObject(e.toObjectId()));
+				assertEquals(e.getOffset(), file.getIndex().findOffset(
+						e.toObjectId()));
+			}
+		} finally {
+			is.close();
+		}
+	}
+
 	@Test
 	public void testTinyThinPack() throws Exception {
 		TestRepository d = new TestRepository<Repository>(db);
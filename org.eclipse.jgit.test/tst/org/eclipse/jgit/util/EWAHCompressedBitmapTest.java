@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EWAHCompressedBitmapTest {
+	@Test
+	public void testEmpty() throws IOException {
+		EWAHCompressedBitmap b = EWAHCompressedBitmap.compress(new long[0], 0);
+		assertEquals(0, b.sizeInBits());
+		assertEquals(0, b.cardinality());
+		assertEquals(0, b.decompress().length);
+		assertEquals(b, roundTrip(b));
+		assertEquals(EWAHCompressedBitmap.EMPTY, b);
+	}
+
+	@Test
+	public void testRuns() throws IOException {
+		long[] words = new long[1000];
+		for (int i = 100; i < 600; i++)
+			words[i] = ~0L;
+		EWAHCompressedBitmap b = EWAHCompressedBitmap.compress(words,
+				words.length * 64);
+		assertEquals(500 * 64, b.cardinality());
+		assertArrayEquals(words, b.decompress());
+		assertTrue("runs are compressed", b.sizeInBytes() < 100);
+		assertEquals(b, roundTrip(b));
+	}
+
+	@Test
+	public void testLiterals() throws IOException {
+		Random rng = new Random(42);
+		long[] words = new long[300];
+		int cnt = 0;
+		for (int i = 0; i < words.length; i++) {
+			switch (rng.nextInt(3)) {
+			case 0:
+				break;
+			case 1:
+				words[i] = ~0L;
+				break;
+			default:
+				words[i] = rng.nextLong();
+			}
+			cnt += Long.bitCount(words[i]);
+		}
+		EWAHCompressedBitmap b = EWAHCompressedBitmap.compress(words,
+				words.length * 64 - 13);
+		assertEquals(cnt, b.cardinality());
+		assertArrayEquals(words, b.decompress());
+		assertEquals(b, roundTrip(b));
+		assertArrayEquals(words, roundTrip(b).decompress());
+	}
+
+	@Test
+	public void testShortInput() {
+		EWAHCompressedBitmap b = EWAHCompressedBitmap.compress(
+				new long[] { 5 }, 200);
+		assertEquals(4, b.uncompressedWordLength());
+		assertArrayEquals(new long[] { 5, 0, 0, 0 }, b.decompress());
+	}
+
+	@Test
+	public void testOperations() {
+		long[] a = { 0x0fL, 0, ~0L, 0x1234L };
+		long[] b = { 0xf0L, ~0L, ~0L, 0x1200L };
+		EWAHCompressedBitmap cb = EWAHCompressedBitmap.compress(b, 256);
+
+		long[] or = a.clone();
+		cb.or(or);
+		assertArrayEquals(new long[] { 0xffL, ~0L, ~0L, 0x1234L }, or);
+
+		long[] andNot = a.clone();
+		cb.andNot(andNot);
+		assertArrayEquals(new long[] { 0x0fL, 0, 0, 0x34L }, andNot);
+
+		long[] xor = a.clone();
+		cb.xor(xor);
+		assertArrayEquals(new long[] { 0xffL, ~0L, 0, 0x34L }, xor);
+	}
+
+	@Test
+	public void testCorrupt() throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(64);
+		out.writeInt(1);
+		out.writeLong(1L << 33); // one literal word, but none follow
+		out.writeInt(0);
+		out.flush();
+		try {
+			EWAHCompressedBitmap.readFrom(new DataInputStream(
+					new ByteArrayInputStream(buf.toByteArray())));
+			fail("accepted corrupt bitmap");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static EWAHCompressedBitmap roundTrip(EWAHCompressedBitmap b)
+			throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		b.writeTo(out);
+		out.flush();
+		assertEquals(b.sizeInBytes(), buf.size());
+		return EWAHCompressedBitmap.readFrom(new DataInputStream(
+				new ByteArrayInputStream(buf.toByteArray())));
+	}
+}
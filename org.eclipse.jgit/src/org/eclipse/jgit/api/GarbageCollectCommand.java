@@ -74,6 +74,8 @@ public class GarbageCollectCommand extends GitCommand<Properties> {
 
 	private Date expire;
 
+	private boolean incremental;
+
 	/**
 	 * @param repo
 	 */
@@ -110,6 +112,20 @@ public GarbageCollectCommand setExpire(Date expire) {
 		return this;
 	}
 
+	/**
+	 * Whether to only combine loose objects and the smallest pack files,
+	 * keeping the large pack files as they are. Unreachable objects are not
+	 * pruned in this mode. See {@link GC#repackIncremental()}.
+	 *
+	 * @param incremental
+	 *            true to repack incrementally; default is false.
+	 * @return this instance
+	 */
+	public GarbageCollectCommand setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
+
 	@Override
 	public Properties call() throws GitAPIException {
 		checkCallable();
@@ -118,6 +134,7 @@ public Properties call() throws GitAPIException {
 		gc.setProgressMonitor(monitor);
 		if (this.expire != null)
 			gc.setExpire(expire);
+		gc.setIncremental(incremental);
 
 		try {
 			gc.gc();
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.lib;
+
+/**
+ * Headers of the commits of a repository, indexed for walking history.
+ * <p>
+ * The commit-graph stores the headers of every commit reachable from the
+ * repository's references at the time it was written: the commit's tree, its
+ * parents, its committer time and its generation number. Commits are
+ * identified by their position in the graph, which is the position of their
+ * name in the sorted table of commit names. Parents are stored as positions,
+ * so walking history through the graph never needs to inflate a commit.
+ * <p>
+ * The generation number of a root commit is 1; every other commit has a
+ * generation one larger than the largest generation of its parents. If
+ * commit A has a smaller generation than commit B, B cannot be reachable from
+ * A.
+ * <p>
+ * A graph is obtained from {@link ObjectReader#getCommitGraph()}. How it is
+ * stored is up to the object database.
+ */
+public abstract class CommitGraph {
+	/** Largest generation number that can be stored in a graph. */
+	public static final int GENERATION_NUMBER_MAX = 0x3fffffff;
+
+	/**
+	 * Finds the position of a commit in the graph.
+	 *
+	 * @param commitId
+	 *            the commit to locate.
+	 * @return the position of the commit, or -1 if it is not in the graph.
+	 */
+	public abstract int findGraphPosition(AnyObjectId commitId);
+
+	/**
+	 * Get the name of the commit at a position.
+	 *
+	 * @param position
+	 *            position of the commit, in the range [0, getCommitCount()).
+	 * @return the name of the commit.
+	 */
+	public abstract ObjectId getObjectId(int position);
+
+	/**
+	 * Copy the name of the commit at a position.
+	 *
+	 * @param position
+	 *            position of the commit, in the range [0, getCommitCount()).
+	 * @param dst
+	 *            buffer to receive the name of the commit.
+	 */
+	public abstract void getObjectId(int position, MutableObjectId dst);
+
+	/**
+	 * Copy the name of the root tree of the commit at a position.
+	 *
+	 * @param position
+	 *            position of the commit, in the range [0, getCommitCount()).
+	 * @param dst
+	 *            buffer to receive the name of the tree.
+	 */
+	public abstract void getTree(int position, MutableObjectId dst);
+
+	/**
+	 * @param position
+	 *            position of the commit, in the range [0, getCommitCount()).
+	 * @return number of parents of the commit.
+	 */
+	public abstract int getParentCount(int position);
+
+	/**
+	 * @param position
+	 *            position of the commit, in the range [0, getCommitCount()).
+	 * @param nth
+	 *            index of the parent, in the range [0, getParentCount()).
+	 * @return graph position of the {@code nth} parent of the commit.
+	 */
+	public abstract int getParent(int position, int nth);
+
+	/**
+	 * @param position
+	 *            position of the commit, in the range [0, getCommitCount()).
+	 * @return committer time of the commit, in seconds since the epoch.
+	 */
+	public abstract long getCommitTime(int position);
+
+	/**
+	 * @param position
+	 *            position of the commit, in the range [0, getCommitCount()).
+	 * @return generation number of the commit, at least 1 and at most
+	 *         {@link #GENERATION_NUMBER_MAX}.
+	 */
+	public abstract int getGeneration(int position);
+
+	/** @return the number of commits in the graph. */
+	public abstract int getCommitCount();
+}
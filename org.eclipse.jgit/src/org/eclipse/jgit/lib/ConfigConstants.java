@@ -83,6 +83,9 @@ public class ConfigConstants {
 	/** The "pack" section */
 	public static final String CONFIG_PACK_SECTION = "pack";
 
+	/** The "extensions" section */
+	public static final String CONFIG_EXTENSIONS_SECTION = "extensions";
+
 	/** The "algorithm" key */
 	public static final String CONFIG_KEY_ALGORITHM = "algorithm";
 
@@ -119,6 +122,12 @@ public class ConfigConstants {
 	/** The "readAheadThreads" key */
 	public static final String CONFIG_KEY_READ_AHEAD_THREADS = "readAheadThreads";
 
+	/** The "offHeap" key */
+	public static final String CONFIG_KEY_OFF_HEAP = "offHeap";
+
+	/** The "asyncReadThreads" key */
+	public static final String CONFIG_KEY_ASYNC_READ_THREADS = "asyncReadThreads";
+
 	/** The "deltaBaseCacheLimit" key */
 	public static final String CONFIG_KEY_DELTA_BASE_CACHE_LIMIT = "deltaBaseCacheLimit";
 
@@ -184,6 +193,9 @@ public class ConfigConstants {
 	/** The "indexversion" key */
 	public static final String CONFIG_KEY_INDEXVERSION = "indexversion";
 
+	/** The "indexthreads" key */
+	public static final String CONFIG_KEY_INDEXTHREADS = "indexthreads";
+
 	/** The "precomposeunicode" key */
 	public static final String CONFIG_KEY_PRECOMPOSEUNICODE = "precomposeunicode";
 
@@ -198,4 +210,10 @@ public class ConfigConstants {
 
 	/** The "checkstat" key */
 	public static final String CONFIG_KEY_CHECKSTAT = "checkstat";
+
+	/** The "refstorage" key */
+	public static final String CONFIG_KEY_REFSTORAGE = "refstorage";
+
+	/** The "packedrefsmmap" key */
+	public static final String CONFIG_KEY_PACKED_REFS_MMAP = "packedrefsmmap";
 }
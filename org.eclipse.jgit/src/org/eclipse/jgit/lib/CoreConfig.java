@@ -97,6 +97,8 @@ public static enum CheckStat {
 
 	private final int packIndexVersion;
 
+	private final int packIndexThreads;
+
 	private final boolean logAllRefUpdates;
 
 	private final String excludesfile;
@@ -106,6 +108,9 @@ private CoreConfig(final Config rc) {
 				ConfigConstants.CONFIG_KEY_COMPRESSION, DEFAULT_COMPRESSION);
 		packIndexVersion = rc.getInt(ConfigConstants.CONFIG_PACK_SECTION,
 				ConfigConstants.CONFIG_KEY_INDEXVERSION, 2);
+		packIndexThreads = Math.max(0, rc.getInt(
+				ConfigConstants.CONFIG_PACK_SECTION,
+				ConfigConstants.CONFIG_KEY_INDEXTHREADS, 1));
 		logAllRefUpdates = rc.getBoolean(ConfigConstants.CONFIG_CORE_SECTION,
 				ConfigConstants.CONFIG_KEY_LOGALLREFUPDATES, true);
 		excludesfile = rc.getString(ConfigConstants.CONFIG_CORE_SECTION, null,
@@ -126,6 +131,16 @@ public int getPackIndexVersion() {
 		return packIndexVersion;
 	}
 
+	/**
+	 * @return number of threads resolving deltas of received packs; 0 for one
+	 *         per available processor. Defaults to 1, as a server receiving
+	 *         several packs at once would otherwise start a thread per
+	 *         processor for each of them.
+	 */
+	public int getPackIndexThreads() {
+		return packIndexThreads;
+	}
+
 	/**
 	 * @return whether to log all refUpdates
 	 */
@@ -398,6 +398,21 @@ public void release() {
 		};
 	}
 
+	/**
+	 * Obtain the commit-graph describing the commits of this repository.
+	 * <p>
+	 * The graph may not contain every commit in the repository, such as
+	 * commits created since the graph was last written. Callers must fall back
+	 * to reading commits that are not found in it.
+	 *
+	 * @return the commit-graph, or null if none is available.
+	 * @throws IOException
+	 *             the commit-graph exists but cannot be read.
+	 */
+	public CommitGraph getCommitGraph() throws IOException {
+		return null;
+	}
+
 	/**
 	 * Advice from a {@link RevWalk} that a walk is starting from these roots.
 	 *
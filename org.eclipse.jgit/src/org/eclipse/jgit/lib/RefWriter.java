@@ -48,7 +48,11 @@
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.jgit.storage.file.RefDirectory;
@@ -63,6 +67,33 @@
  * caller. This is because it is used by transport classes as well.
  */
 public abstract class RefWriter {
+	/**
+	 * Orders names as their UTF-8 encodings compare byte by byte.
+	 * <p>
+	 * This is the order of code points. {@link String#compareTo(String)}
+	 * differs for surrogate pairs, which sort below U+E000..U+FFFF.
+	 */
+	private static final Comparator<Ref> UTF8_ORDER = new Comparator<Ref>() {
+		public int compare(Ref o1, Ref o2) {
+			String a = o1.getName();
+			String b = o2.getName();
+			int n = Math.min(a.length(), b.length());
+			for (int i = 0; i < n; i++) {
+				char ca = a.charAt(i);
+				char cb = b.charAt(i);
+				if (ca != cb)
+					return codePointOrder(ca) - codePointOrder(cb);
+			}
+			return a.length() - b.length();
+		}
+	};
+
+	private static int codePointOrder(char c) {
+		if (Character.MIN_SURROGATE <= c)
+			return c <= Character.MAX_SURROGATE ? c + 0x2000 : c - 0x800;
+		return c;
+	}
+
 
 	private final Collection<Ref> refs;
 
@@ -139,7 +170,9 @@ public void writeInfoRefs() throws IOException {
 	 * <p>
 	 * This method rebuilds the contents of the {@link Constants#PACKED_REFS}
 	 * file to match the passed list of references, including only those refs
-	 * that have a storage type of {@link Ref.Storage#PACKED}.
+	 * that have a storage type of {@link Ref.Storage#PACKED}. Records are
+	 * sorted by the UTF-8 encoding of their names, the order the
+	 * {@link RefDirectory#PACKED_REFS_SORTED} trait promises to readers.
 	 *
 	 * @throws IOException
 	 *             writing is not supported, or attempting to write the file
@@ -159,11 +192,12 @@ public void writePackedRefs() throws IOException {
 			w.write(RefDirectory.PACKED_REFS_HEADER);
 			if (peeled)
 				w.write(RefDirectory.PACKED_REFS_PEELED);
+			w.write(RefDirectory.PACKED_REFS_SORTED);
 			w.write('\n');
 		}
 
 		final char[] tmp = new char[Constants.OBJECT_ID_STRING_LENGTH];
-		for (final Ref r : refs) {
+		for (final Ref r : inUtf8Order(refs)) {
 			if (r.getStorage() != Ref.Storage.PACKED)
 				continue;
 
@@ -181,6 +215,19 @@ public void writePackedRefs() throws IOException {
 		writeFile(Constants.PACKED_REFS, Constants.encode(w.toString()));
 	}
 
+	private static Collection<Ref> inUtf8Order(Collection<Ref> refs) {
+		Ref last = null;
+		for (Ref r : refs) {
+			if (last != null && UTF8_ORDER.compare(last, r) > 0) {
+				List<Ref> sorted = new ArrayList<Ref>(refs);
+				Collections.sort(sorted, UTF8_ORDER);
+				return sorted;
+			}
+			last = r;
+		}
+		return refs;
+	}
+
 	/**
 	 * Handles actual writing of ref files to the git repository, which may
 	 * differ slightly depending on the destination and transport.
@@ -60,6 +60,7 @@
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.filter.ObjectFilter;
 import org.eclipse.jgit.util.RawParseUtils;
 
 /**
@@ -113,6 +114,8 @@ public class ObjectWalk extends RevWalk {
 
 	private boolean boundary;
 
+	private ObjectFilter objectFilter;
+
 	/**
 	 * Create a new revision and object walker for a given repository.
 	 *
@@ -136,6 +139,7 @@ public ObjectWalk(ObjectReader or) {
 		rootObjects = new ArrayList<RevObject>();
 		pendingObjects = new BlockObjQueue();
 		pathBuf = new byte[256];
+		objectFilter = ObjectFilter.ALL;
 	}
 
 	/**
@@ -254,6 +258,34 @@ public void sort(RevSort s, boolean use) {
 		boundary = hasRevSort(RevSort.BOUNDARY);
 	}
 
+	/**
+	 * Get the currently configured object filter.
+	 *
+	 * @return the current filter. Never null as a filter is always needed.
+	 */
+	public ObjectFilter getObjectFilter() {
+		return objectFilter;
+	}
+
+	/**
+	 * Set the object filter for this walker. This filter affects the objects
+	 * visited by {@link #nextObject()}. It does not affect the commits listed
+	 * by {@link #next()}.
+	 * <p>
+	 * If the filter returns false for an object, then that object is skipped
+	 * and objects reachable from it are not enqueued to be walked recursively.
+	 * This can be used to speed up the object walk by skipping subtrees that
+	 * are known to be uninteresting.
+	 *
+	 * @param newFilter
+	 *            the new filter. If null the special {@link ObjectFilter#ALL}
+	 *            filter will be used instead, as it matches every object.
+	 */
+	public void setObjectFilter(ObjectFilter newFilter) {
+		assertNotStarted();
+		objectFilter = newFilter != null ? newFilter : ObjectFilter.ALL;
+	}
+
 	@Override
 	public RevCommit next() throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
@@ -318,14 +350,15 @@ public RevObject nextObject() throws MissingObjectException,
 						obj = new RevBlob(idBuffer);
 						obj.flags = SEEN;
 						objects.add(obj);
-						return obj;
+						if (objectFilter.include(this, obj))
+							return obj;
+						continue;
 					}
 					if (!(obj instanceof RevBlob))
 						throw new IncorrectObjectTypeException(obj, OBJ_BLOB);
 					obj.flags = flags = obj.flags | SEEN;
-					if ((flags & UNINTERESTING) == 0)
-						return obj;
-					if (boundary)
+					if (((flags & UNINTERESTING) == 0 | boundary)
+							&& objectFilter.include(this, obj))
 						return obj;
 					continue;
 
@@ -334,14 +367,15 @@ public RevObject nextObject() throws MissingObjectException,
 						obj = new RevTree(idBuffer);
 						obj.flags = SEEN;
 						objects.add(obj);
-						return enterTree(obj);
+						if (objectFilter.include(this, obj))
+							return enterTree(obj);
+						continue;
 					}
 					if (!(obj instanceof RevTree))
 						throw new IncorrectObjectTypeException(obj, OBJ_TREE);
 					obj.flags = flags = obj.flags | SEEN;
-					if ((flags & UNINTERESTING) == 0)
-						return enterTree(obj);
-					if (boundary)
+					if (((flags & UNINTERESTING) == 0 | boundary)
+							&& objectFilter.include(this, obj))
 						return enterTree(obj);
 					continue;
 
@@ -375,6 +409,8 @@ public RevObject nextObject() throws MissingObjectException,
 			flags |= SEEN;
 			o.flags = flags;
 			if ((flags & UNINTERESTING) == 0 | boundary) {
+				if (!objectFilter.include(this, o))
+					continue;
 				if (o instanceof RevTree) {
 					tv = newTreeVisit(o);
 					tv.parent = null;
@@ -634,6 +670,7 @@ private void growPathBuf(int ptr) {
 	public void dispose() {
 		super.dispose();
 		pendingObjects = new BlockObjQueue();
+		objectFilter = ObjectFilter.ALL;
 		firstCommit = null;
 		lastCommit = null;
 		currVisit = null;
@@ -53,6 +53,7 @@
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitGraph;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.MutableObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
@@ -139,6 +140,13 @@ protected RevCommit(final AnyObjectId id) {
 	@Override
 	void parseHeaders(final RevWalk walk) throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
+		// Without a body to retain, the commit-graph holds everything the
+		// headers need and the commit does not have to be inflated.
+		final int pos = walk.findGraphPosition(this);
+		if (0 <= pos) {
+			parseGraph(walk, walk.getCommitGraph(), pos);
+			return;
+		}
 		parseCanonical(walk, walk.getCachedBytes(this));
 	}
 
@@ -152,6 +160,29 @@ void parseBody(final RevWalk walk) throws MissingObjectException,
 		}
 	}
 
+	void parseGraph(final RevWalk walk, final CommitGraph graph, final int pos)
+			throws IOException {
+		if (!walk.shallowCommitsInitialized)
+			walk.initializeShallowCommits();
+
+		final MutableObjectId idBuffer = walk.idBuffer;
+		graph.getTree(pos, idBuffer);
+		tree = walk.lookupTree(idBuffer);
+
+		if (parents == null) {
+			final RevCommit[] pList = new RevCommit[graph.getParentCount(pos)];
+			for (int i = 0; i < pList.length; i++) {
+				graph.getObjectId(graph.getParent(pos, i), idBuffer);
+				pList[i] = walk.lookupCommit(idBuffer);
+			}
+			parents = pList;
+		}
+
+		// In 2038 commitTime will overflow unless it is changed to long.
+		commitTime = (int) graph.getCommitTime(pos);
+		flags |= PARSED;
+	}
+
 	void parseCanonical(final RevWalk walk, final byte[] raw)
 			throws IOException {
 		if (!walk.shallowCommitsInitialized)
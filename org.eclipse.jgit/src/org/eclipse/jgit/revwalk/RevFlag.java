@@ -66,6 +66,18 @@ public class RevFlag {
 	public static final RevFlag UNINTERESTING = new StaticRevFlag(
 			"UNINTERESTING", RevWalk.UNINTERESTING); //$NON-NLS-1$
 
+	/**
+	 * Set on RevCommit instances added to the walker's pending queue.
+	 * <p>
+	 * Applications may set this flag on a commit's parents from within a
+	 * {@link org.eclipse.jgit.revwalk.filter.RevFilter} to prevent the walker
+	 * from traversing into them, for example because the parents are already
+	 * known to the application through some other means.
+	 * <p>
+	 * This is a static flag. Its RevWalk is not available.
+	 */
+	public static final RevFlag SEEN = new StaticRevFlag("SEEN", RevWalk.SEEN); //$NON-NLS-1$
+
 	final RevWalk walker;
 
 	final String name;
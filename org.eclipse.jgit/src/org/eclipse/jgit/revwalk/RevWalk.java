@@ -60,6 +60,7 @@
 import org.eclipse.jgit.internal.JGitText;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
+import org.eclipse.jgit.lib.CommitGraph;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.MutableObjectId;
 import org.eclipse.jgit.lib.ObjectId;
@@ -194,6 +195,10 @@ public class RevWalk implements Iterable<RevCommit> {
 
 	boolean shallowCommitsInitialized;
 
+	private CommitGraph commitGraph;
+
+	private boolean commitGraphLoaded;
+
 	/**
 	 * Create a new revision walker for a given repository.
 	 *
@@ -387,6 +392,16 @@ public void markUninteresting(final RevCommit c)
 	public boolean isMergedInto(final RevCommit base, final RevCommit tip)
 			throws MissingObjectException, IncorrectObjectTypeException,
 			IOException {
+		final CommitGraph graph = getCommitGraph();
+		if (graph != null) {
+			// A commit cannot reach another with a larger generation.
+			final int b = graph.findGraphPosition(base);
+			final int t = graph.findGraphPosition(tip);
+			if (0 <= b && 0 <= t
+					&& graph.getGeneration(t) < graph.getGeneration(b))
+				return false;
+		}
+
 		final RevFilter oldRF = filter;
 		final TreeFilter oldTF = treeFilter;
 		try {
@@ -572,6 +587,10 @@ public boolean isRetainBody() {
 	 * If a body of a commit or tag is not retained, the application must
 	 * call {@link #parseBody(RevObject)} before the body can be safely
 	 * accessed through the type specific access methods.
+	 * <p>
+	 * Walks that do not retain bodies parse commit headers from the
+	 * repository's commit-graph when it is available, without reading the
+	 * commit objects at all.
 	 *
 	 * @param retain true to retain bodies; false to discard them early.
 	 */
@@ -813,9 +832,15 @@ public RevTag parseTag(final AnyObjectId id) throws MissingObjectException,
 	public RevObject parseAny(final AnyObjectId id)
 			throws MissingObjectException, IOException {
 		RevObject r = objects.get(id);
-		if (r == null)
-			r = parseNew(id, reader.open(id));
-		else
+		if (r == null) {
+			if (0 <= findGraphPosition(id)) {
+				// A commit-graph entry is only written for commits, the
+				// object type does not have to be loaded to be known.
+				r = lookupCommit(id);
+				parseHeaders(r);
+			} else
+				r = parseNew(id, reader.open(id));
+		} else
 			parseHeaders(r);
 		return r;
 	}
@@ -1212,6 +1237,8 @@ public void dispose() {
 		queue = new DateRevQueue();
 		pending = new StartGenerator(this);
 		shallowCommitsInitialized = false;
+		commitGraph = null;
+		commitGraphLoaded = false;
 	}
 
 	/**
@@ -1316,6 +1343,37 @@ void carryFlagsImpl(final RevCommit c) {
 			RevCommit.carryFlags(c, carry);
 	}
 
+	CommitGraph getCommitGraph() throws IOException {
+		if (!commitGraphLoaded) {
+			commitGraph = reader != null ? reader.getCommitGraph() : null;
+			commitGraphLoaded = true;
+		}
+		return commitGraph;
+	}
+
+	/**
+	 * Find a commit whose headers can be parsed from the commit-graph.
+	 * <p>
+	 * The graph is not trusted for commits the repository no longer has,
+	 * such as commits pruned after the graph was written.
+	 *
+	 * @param id
+	 *            the commit to locate.
+	 * @return position of the commit in {@link #getCommitGraph()}; -1 if the
+	 *         commit must be read from the repository.
+	 * @throws IOException
+	 *             the commit-graph or the object database cannot be read.
+	 */
+	int findGraphPosition(AnyObjectId id) throws IOException {
+		final CommitGraph graph = retainBody ? null : getCommitGraph();
+		if (graph == null)
+			return -1;
+		final int pos = graph.findGraphPosition(id);
+		if (pos < 0 || !reader.has(id))
+			return -1;
+		return pos;
+	}
+
 	void initializeShallowCommits() throws IOException {
 		if (shallowCommitsInitialized)
 			throw new IllegalStateException(
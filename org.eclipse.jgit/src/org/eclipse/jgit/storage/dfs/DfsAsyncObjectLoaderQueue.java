@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.dfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.storage.dfs.DfsReader.FoundObject;
+
+/**
+ * Loads objects on a thread pool, returning them as they complete.
+ * <p>
+ * Objects are grouped by the block of their pack file they start in, so one
+ * task reads a block once and loads every requested object from it. Several
+ * tasks are kept in flight, overlapping the round trips to the DFS. A new
+ * task is only started once the caller has consumed all objects of an
+ * earlier one, bounding the memory held by loaded objects.
+ *
+ * @param <T>
+ *            type of identifier supplied by the caller.
+ */
+final class DfsAsyncObjectLoaderQueue<T extends ObjectId> implements
+		AsyncObjectLoaderQueue<T> {
+	/** Number of groups loading or waiting to be consumed. */
+	static final int MAX_IN_FLIGHT = 8;
+
+	private final DfsObjDatabase db;
+
+	private final ExecutorService service;
+
+	/** Groups not yet submitted to the service. */
+	private final LinkedList<Group> pending;
+
+	/** Loaded objects, in the order they completed. */
+	private final BlockingQueue<Result> done;
+
+	/** Groups submitted to the service and not yet fully consumed. */
+	private final List<Group> running;
+
+	/** Number of objects not yet returned by {@link #next()}. */
+	private int remaining;
+
+	private Result cur;
+
+	private volatile boolean cancelled;
+
+	DfsAsyncObjectLoaderQueue(DfsReader ctx, List<FoundObject<T>> order,
+			ExecutorService service) {
+		this.db = ctx.db;
+		this.service = service;
+		this.pending = new LinkedList<Group>();
+		this.done = new LinkedBlockingQueue<Result>();
+		this.running = new LinkedList<Group>();
+		this.remaining = order.size();
+
+		Group g = null;
+		for (FoundObject<T> f : order) {
+			if (f.pack == null) {
+				// Missing objects are reported by open().
+				done.add(new Result(f, null));
+				continue;
+			}
+
+			long block = f.pack.alignToBlock(f.offset);
+			if (g == null || g.pack != f.pack || g.block != block) {
+				g = new Group(f.pack, block);
+				pending.add(g);
+			}
+			g.objects.add(f);
+			g.unconsumed++;
+		}
+	}
+
+	/** Submit groups until the in-flight limit is reached. */
+	void start() {
+		for (int i = 0; i < MAX_IN_FLIGHT; i++)
+			submitNext();
+	}
+
+	private void submitNext() {
+		Group g = pending.poll();
+		if (g == null || cancelled)
+			return;
+		try {
+			g.future = service.submit(g);
+			running.add(g);
+		} catch (RejectedExecutionException shutdown) {
+			// The cache was reconfigured; load on the caller's thread.
+			g.run();
+		}
+	}
+
+	public boolean next() throws MissingObjectException, IOException {
+		if (remaining == 0 || cancelled) {
+			cur = null;
+			return false;
+		}
+
+		try {
+			cur = done.take();
+		} catch (InterruptedException e) {
+			cancel(true);
+			throw new InterruptedIOException();
+		}
+		remaining--;
+
+		Group g = cur.group;
+		if (g != null && --g.unconsumed == 0) {
+			running.remove(g);
+			submitNext();
+		}
+		return true;
+	}
+
+	public T getCurrent() {
+		return cur.object.id;
+	}
+
+	public ObjectId getObjectId() {
+		return cur.object.id;
+	}
+
+	public ObjectLoader open() throws IOException {
+		if (cur.object.pack == null)
+			throw new MissingObjectException(cur.object.id, "unknown"); //$NON-NLS-1$
+		if (cur.error != null)
+			throw cur.error;
+		return cur.loader;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		cancelled = true;
+		for (Group g : running)
+			g.future.cancel(mayInterruptIfRunning);
+		running.clear();
+		pending.clear();
+		return true;
+	}
+
+	public void release() {
+		cancel(true);
+		done.clear();
+	}
+
+	private final class Group implements Runnable {
+		final DfsPackFile pack;
+
+		final long block;
+
+		final List<FoundObject<T>> objects;
+
+		/** Objects not yet consumed; only accessed by the caller's thread. */
+		int unconsumed;
+
+		Future<?> future;
+
+		Group(DfsPackFile pack, long block) {
+			this.pack = pack;
+			this.block = block;
+			this.objects = new ArrayList<FoundObject<T>>(4);
+		}
+
+		public void run() {
+			int i = 0;
+			DfsReader ctx = new DfsReader(db);
+			try {
+				for (; i < objects.size(); i++) {
+					Result r = new Result(objects.get(i), this);
+					if (cancelled)
+						r.error = new InterruptedIOException();
+					else {
+						try {
+							r.loader = pack.load(ctx, r.object.offset);
+						} catch (IOException err) {
+							r.error = err;
+						} catch (RuntimeException err) {
+							r.error = wrap(err);
+						}
+					}
+					done.add(r);
+				}
+			} catch (Error err) {
+				// Fail the rest of the group, next() would wait for them.
+				for (; i < objects.size(); i++) {
+					Result r = new Result(objects.get(i), this);
+					r.error = wrap(err);
+					done.add(r);
+				}
+				throw err;
+			} finally {
+				ctx.release();
+			}
+		}
+
+		private IOException wrap(Throwable err) {
+			IOException e = new IOException(err.getMessage());
+			e.initCause(err);
+			return e;
+		}
+	}
+
+	private final class Result {
+		final FoundObject<T> object;
+
+		final Group group;
+
+		ObjectLoader loader;
+
+		IOException error;
+
+		Result(FoundObject<T> object, Group group) {
+			this.object = object;
+			this.group = group;
+		}
+	}
+}
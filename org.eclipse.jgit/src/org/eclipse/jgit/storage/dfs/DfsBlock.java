@@ -46,14 +46,28 @@
 package org.eclipse.jgit.storage.dfs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 import org.eclipse.jgit.storage.pack.PackOutputStream;
 
-/** A cached slice of a {@link DfsPackFile}. */
+/**
+ * A cached slice of a {@link DfsPackFile}.
+ * <p>
+ * The slice is held either in a heap byte array, or in direct memory outside
+ * of the heap when the cache is configured for off-heap storage. Java's
+ * {@link Inflater} and {@link CRC32} only accept arrays, so off-heap data is
+ * passed to them through a stride buffer of the reader, copied onto the heap.
+ * <p>
+ * An off-heap block occupies a slot of {@link DfsBlockSlabs} and counts its
+ * references: one held by the cache while the block is cached, and one by
+ * each reader that pinned it. The slot is returned for reuse when the last
+ * reference is released.
+ */
 final class DfsBlock {
 	/**
 	 * Size in bytes to pass to {@link Inflater} at a time.
@@ -66,6 +80,9 @@ final class DfsBlock {
 	 */
 	private static final int INFLATE_STRIDE = 512;
 
+	/** Size of the buffer off-heap data is copied through. */
+	static final int STRIDE_BUFFER_SIZE = 8192;
+
 	final DfsPackKey pack;
 
 	final long start;
@@ -74,20 +91,90 @@ final class DfsBlock {
 
 	private final byte[] block;
 
+	/** Off-heap storage, used instead of {@link #block} if not null. */
+	private final ByteBuffer direct;
+
+	private final int size;
+
+	/** Owner of the slot holding {@link #direct}; null for heap blocks. */
+	private final DfsBlockSlabs slabs;
+
+	/** References to an off-heap block; 0 once its slot was released. */
+	private final AtomicInteger refs;
+
 	DfsBlock(DfsPackKey p, long pos, byte[] buf) {
 		pack = p;
 		start = pos;
 		end = pos + buf.length;
 		block = buf;
+		direct = null;
+		size = buf.length;
+		slabs = null;
+		refs = null;
+	}
+
+	/**
+	 * Create a block stored outside of the heap.
+	 *
+	 * @param p
+	 *            pack the block belongs to.
+	 * @param pos
+	 *            position of the block within the pack.
+	 * @param buf
+	 *            the block's data, from position 0 up to its limit. The
+	 *            buffer must not be modified once the block is created.
+	 * @param owner
+	 *            slabs the buffer is released to. The block starts with one
+	 *            reference, owned by its creator.
+	 */
+	DfsBlock(DfsPackKey p, long pos, ByteBuffer buf, DfsBlockSlabs owner) {
+		pack = p;
+		start = pos;
+		end = pos + buf.limit();
+		block = null;
+		direct = buf;
+		size = buf.limit();
+		slabs = owner;
+		refs = new AtomicInteger(1);
+	}
+
+	/** @return true if the data is stored outside of the heap. */
+	boolean isOffHeap() {
+		return direct != null;
+	}
+
+	/**
+	 * Add a reference to the block.
+	 *
+	 * @return true if the block can be used until {@link #unpin()} is called;
+	 *         false if its slot was already released, and the block must not
+	 *         be read. Heap blocks can always be used.
+	 */
+	boolean pin() {
+		if (refs == null)
+			return true;
+		for (;;) {
+			int n = refs.get();
+			if (n == 0)
+				return false;
+			if (refs.compareAndSet(n, n + 1))
+				return true;
+		}
+	}
+
+	/** Release a reference, freeing the slot after the last one. */
+	void unpin() {
+		if (refs != null && refs.decrementAndGet() == 0)
+			slabs.free(direct);
 	}
 
 	int size() {
-		return block.length;
+		return size;
 	}
 
 	int remaining(long pos) {
 		int ptr = (int) (pos - start);
-		return block.length - ptr;
+		return size - ptr;
 	}
 
 	boolean contains(DfsPackKey want, long pos) {
@@ -100,28 +187,49 @@ int copy(long pos, byte[] dstbuf, int dstoff, int cnt) {
 	}
 
 	int copy(int p, byte[] b, int o, int n) {
-		n = Math.min(block.length - p, n);
-		System.arraycopy(block, p, b, o, n);
+		n = Math.min(size - p, n);
+		if (direct != null)
+			slice(p, n).get(b, o, n);
+		else
+			System.arraycopy(block, p, b, o, n);
 		return n;
 	}
 
-	int inflate(Inflater inf, long pos, byte[] dstbuf, int dstoff)
-			throws DataFormatException {
+	/**
+	 * Get a view of part of the off-heap data.
+	 * <p>
+	 * Several threads may read the block at once, so each read works on its
+	 * own duplicate of the buffer rather than moving the shared position.
+	 */
+	private ByteBuffer slice(int p, int n) {
+		ByteBuffer b = direct.duplicate();
+		b.limit(p + n);
+		b.position(p);
+		return b;
+	}
+
+	int inflate(Inflater inf, long pos, byte[] dstbuf, int dstoff,
+			DfsReader ctx) throws DataFormatException {
+		// The inflater keeps a reference to its input, but the reader only
+		// refills the stride buffer once the inflater needs more input, and
+		// resets the inflater before starting another stream.
+		byte[] in = direct != null ? ctx.getStrideBuffer() : block;
+
 		int ptr = (int) (pos - start);
-		int in = Math.min(INFLATE_STRIDE, block.length - ptr);
+		int n = Math.min(INFLATE_STRIDE, size - ptr);
 		if (dstoff < dstbuf.length)
-			in = Math.min(in, dstbuf.length - dstoff);
-		inf.setInput(block, ptr, in);
+			n = Math.min(n, dstbuf.length - dstoff);
+		setInput(inf, in, ptr, n);
 
 		for (;;) {
 			int out = inf.inflate(dstbuf, dstoff, dstbuf.length - dstoff);
 			if (out == 0) {
 				if (inf.needsInput()) {
-					ptr += in;
-					in = Math.min(INFLATE_STRIDE, block.length - ptr);
-					if (in == 0)
+					ptr += n;
+					n = Math.min(INFLATE_STRIDE, size - ptr);
+					if (n == 0)
 						return dstoff;
-					inf.setInput(block, ptr, in);
+					setInput(inf, in, ptr, n);
 					continue;
 				}
 				return dstoff;
@@ -130,21 +238,63 @@ int inflate(Inflater inf, long pos, byte[] dstbuf, int dstoff)
 		}
 	}
 
-	void crc32(CRC32 out, long pos, int cnt) {
+	private void setInput(Inflater inf, byte[] in, int ptr, int n) {
+		if (direct != null) {
+			slice(ptr, n).get(in, 0, n);
+			inf.setInput(in, 0, n);
+		} else
+			inf.setInput(in, ptr, n);
+	}
+
+	void crc32(CRC32 out, long pos, int cnt, DfsReader ctx) {
 		int ptr = (int) (pos - start);
-		out.update(block, ptr, cnt);
+		if (direct != null) {
+			byte[] tmp = ctx.getStrideBuffer();
+			ByteBuffer b = slice(ptr, cnt);
+			while (b.hasRemaining()) {
+				int n = Math.min(b.remaining(), tmp.length);
+				b.get(tmp, 0, n);
+				out.update(tmp, 0, n);
+			}
+		} else
+			out.update(block, ptr, cnt);
 	}
 
 	void write(PackOutputStream out, long pos, int cnt, MessageDigest digest)
 			throws IOException {
 		int ptr = (int) (pos - start);
+		if (direct != null) {
+			byte[] tmp = out.getCopyBuffer();
+			ByteBuffer b = slice(ptr, cnt);
+			while (b.hasRemaining()) {
+				int n = Math.min(b.remaining(), tmp.length);
+				b.get(tmp, 0, n);
+				out.write(tmp, 0, n);
+				if (digest != null)
+					digest.update(tmp, 0, n);
+			}
+			return;
+		}
 		out.write(block, ptr, cnt);
 		if (digest != null)
 			digest.update(block, ptr, cnt);
 	}
 
-	void check(Inflater inf, byte[] tmp, long pos, int cnt)
+	void check(Inflater inf, byte[] tmp, long pos, int cnt, DfsReader ctx)
 			throws DataFormatException {
+		if (direct != null) {
+			byte[] in = ctx.getStrideBuffer();
+			ByteBuffer b = slice((int) (pos - start), cnt);
+			while (b.hasRemaining()) {
+				int n = Math.min(b.remaining(), in.length);
+				b.get(in, 0, n);
+				inf.setInput(in, 0, n);
+				while (inf.inflate(tmp, 0, tmp.length) > 0)
+					continue;
+			}
+			return;
+		}
+
 		// Unlike inflate() above the exact byte count is known by the caller.
 		// Push all of it in a single invocation to avoid unnecessary loops.
 		//
@@ -51,12 +51,15 @@
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.storage.pack.CacheStats;
+import org.eclipse.jgit.storage.pack.PackExt;
+import org.eclipse.jgit.util.IO;
 
 /**
  * Caches slices of a {@link DfsPackFile} in memory for faster read access.
@@ -77,6 +80,15 @@
  * to have been accessed during a sweep of the cache to save itself from
  * eviction.
  * <p>
+ * To resist a single large read (such as a clone streaming a whole pack)
+ * flushing the blocks every other request needs, the clock is segmented. A
+ * newly loaded block is on probation, and is evicted by the next sweep
+ * unless it was accessed again. A block accessed again is protected, and is
+ * skipped by sweeps until the protected blocks outgrow their share of the
+ * cache, at which point idle protected blocks are put back on probation.
+ * Indexes are protected as soon as they are loaded. Blocks read by a reader
+ * that is only streaming data out stay on probation.
+ * <p>
  * Entities created by the cache are held under hard references, preventing the
  * Java VM from clearing anything. Blocks are discarded by the replacement
  * algorithm when adding a new block would cause the cache to exceed its
@@ -90,6 +102,10 @@
  * The internal hash table does not expand at runtime, instead it is fixed in
  * size at cache creation time. The internal lock table used to gate load
  * invocations is also fixed in size.
+ * <p>
+ * Hits, misses, evictions and load times are counted by {@link #getStats()},
+ * which may also be registered with the platform MBean server, see
+ * {@link DfsBlockCacheConfig#setExposeStatsViaJmx(boolean)}.
  */
 public final class DfsBlockCache {
 	private static volatile DfsBlockCache cache;
@@ -114,10 +130,15 @@ public static void reconfigure(DfsBlockCacheConfig cfg) {
 		DfsBlockCache nc = new DfsBlockCache(cfg);
 		DfsBlockCache oc = cache;
 		cache = nc;
+		if (cfg.isExposeStatsViaJmx())
+			nc.stats.publish();
 
 		if (oc != null) {
 			if (oc.readAheadService != null)
 				oc.readAheadService.shutdown();
+			if (oc.asyncReadService != null
+					&& oc.asyncReadService != nc.asyncReadService)
+				oc.asyncReadService.shutdown();
 			for (DfsPackFile pack : oc.getPackFiles())
 				pack.key.cachedSize.set(0);
 		}
@@ -128,6 +149,9 @@ public static DfsBlockCache getInstance() {
 		return cache;
 	}
 
+	/** Share of the cache that protected entries may hold. */
+	private static final int PROTECTED_PERCENT = 80;
+
 	/** Number of entries in {@link #table}. */
 	private final int tableSize;
 
@@ -159,20 +183,20 @@ public static DfsBlockCache getInstance() {
 	/** Thread pool to handle optimistic read-ahead. */
 	private final ThreadPoolExecutor readAheadService;
 
+	/** Thread pool to load objects for asynchronous queues. */
+	private final ExecutorService asyncReadService;
+
+	/** Direct memory for block data; null if blocks are kept on the heap. */
+	private final DfsBlockSlabs slabs;
+
 	/** Cache of pack files, indexed by description. */
 	private final Map<DfsPackDescription, DfsPackFile> packCache;
 
 	/** View of pack files in the pack cache. */
 	private final Collection<DfsPackFile> packFiles;
 
-	/** Number of times a block was found in the cache. */
-	private final AtomicLong statHit;
-
-	/** Number of times a block was not found, and had to be loaded. */
-	private final AtomicLong statMiss;
-
-	/** Number of blocks evicted due to cache being full. */
-	private volatile long statEvict;
+	/** Hit, miss, eviction and load counters. */
+	private final DfsBlockCacheStats stats;
 
 	/** Protects the clock and its related data. */
 	private final ReentrantLock clockLock;
@@ -183,6 +207,12 @@ public static DfsBlockCache getInstance() {
 	/** Number of bytes currently loaded in the cache. */
 	private volatile long liveBytes;
 
+	/** Maximum number of bytes held by protected entries. */
+	private final long maxProtectedBytes;
+
+	/** Number of bytes held by protected entries. */
+	private long protectedBytes;
+
 	private DfsBlockCache(final DfsBlockCacheConfig cfg) {
 		tableSize = tableSize(cfg);
 		if (tableSize < 1)
@@ -202,22 +232,24 @@ else if (eb < 4)
 			eb = tableSize;
 
 		maxBytes = cfg.getBlockLimit();
+		maxProtectedBytes = maxBytes * PROTECTED_PERCENT / 100;
 		blockSize = cfg.getBlockSize();
 		blockSizeShift = Integer.numberOfTrailingZeros(blockSize);
 
 		clockLock = new ReentrantLock(true /* fair */);
-		clockHand = new Ref<Object>(new DfsPackKey(), -1, 0, null);
+		clockHand = new Ref<Object>(new DfsPackKey(), PackExt.PACK, -1, 0, null);
 		clockHand.next = clockHand;
 
 		readAheadLimit = cfg.getReadAheadLimit();
 		readAheadService = cfg.getReadAheadService();
+		asyncReadService = cfg.getAsyncReadService();
+		slabs = cfg.isOffHeap() ? new DfsBlockSlabs(cfg) : null;
 
 		packCache = new ConcurrentHashMap<DfsPackDescription, DfsPackFile>(
 				16, 0.75f, 1);
 		packFiles = Collections.unmodifiableCollection(packCache.values());
 
-		statHit = new AtomicLong();
-		statMiss = new AtomicLong();
+		stats = new DfsBlockCacheStats(this);
 	}
 
 	/** @return total number of bytes in the cache. */
@@ -232,12 +264,12 @@ public long getFillPercentage() {
 
 	/** @return number of requests for items in the cache. */
 	public long getHitCount() {
-		return statHit.get();
+		return stats.getHitCount();
 	}
 
 	/** @return number of requests for items not in the cache. */
 	public long getMissCount() {
-		return statMiss.get();
+		return stats.getMissCount();
 	}
 
 	/** @return total number of requests (hit + miss). */
@@ -247,17 +279,36 @@ public long getTotalRequestCount() {
 
 	/** @return 0..100, defining number of cache hits. */
 	public long getHitRatio() {
-		long hits = statHit.get();
-		long miss = statMiss.get();
-		long total = hits + miss;
-		if (total == 0)
-			return 0;
-		return hits * 100 / total;
+		return stats.getHitRatio();
 	}
 
 	/** @return number of evictions performed due to cache being full. */
 	public long getEvictions() {
-		return statEvict;
+		return stats.getEvictionCount();
+	}
+
+	/** @return number of bytes loaded into the cache by read-ahead. */
+	public long getReadAheadBytes() {
+		return stats.getReadAheadLoadedBytes();
+	}
+
+	/** @return number of read-ahead bytes later used by a reader. */
+	public long getReadAheadUsedBytes() {
+		return stats.getReadAheadUsedBytes();
+	}
+
+	/** @return number of read-ahead bytes evicted without being used. */
+	public long getReadAheadWastedBytes() {
+		return stats.getReadAheadWastedBytes();
+	}
+
+	/**
+	 * @return detailed statistics of this cache, which are also published
+	 *         through JMX while this cache is the active one, if its
+	 *         configuration asked for that.
+	 */
+	public CacheStats getStats() {
+		return stats;
 	}
 
 	/**
@@ -298,6 +349,10 @@ int getBlockSize() {
 		return blockSize;
 	}
 
+	ExecutorService getAsyncReadService() {
+		return asyncReadService;
+	}
+
 	private static int tableSize(final DfsBlockCacheConfig cfg) {
 		final int wsz = cfg.getBlockSize();
 		final long limit = cfg.getBlockLimit();
@@ -317,7 +372,8 @@ private static int tableSize(final DfsBlockCacheConfig cfg) {
 	 *            offset within <code>pack</code> of the object.
 	 * @param ctx
 	 *            current thread's reader.
-	 * @return the object reference.
+	 * @return the object reference, pinned for the caller which must
+	 *         {@link DfsBlock#unpin()} it when done.
 	 * @throws IOException
 	 *             the reference was not in the cache and could not be loaded.
 	 */
@@ -329,9 +385,9 @@ DfsBlock getOrLoad(DfsPackFile pack, long position, DfsReader ctx)
 		DfsPackKey key = pack.key;
 		int slot = slot(key, position);
 		HashEntry e1 = table.get(slot);
-		DfsBlock v = scan(e1, key, position);
+		DfsBlock v = hit(e1, key, position, ctx);
 		if (v != null) {
-			statHit.incrementAndGet();
+			stats.hit(key, PackExt.PACK);
 			return v;
 		}
 
@@ -341,22 +397,26 @@ DfsBlock getOrLoad(DfsPackFile pack, long position, DfsReader ctx)
 		try {
 			HashEntry e2 = table.get(slot);
 			if (e2 != e1) {
-				v = scan(e2, key, position);
+				v = hit(e2, key, position, ctx);
 				if (v != null) {
-					statHit.incrementAndGet();
+					stats.hit(key, PackExt.PACK);
 					creditSpace(blockSize);
 					return v;
 				}
 			}
 
-			statMiss.incrementAndGet();
+			stats.miss(key, PackExt.PACK);
 			boolean credit = true;
+			long start = System.nanoTime();
 			try {
 				v = pack.readOneBlock(position, ctx);
+				stats.loaded(System.nanoTime() - start);
 				credit = false;
 			} finally {
-				if (credit)
+				if (credit) {
+					stats.loadFailed(System.nanoTime() - start);
 					creditSpace(blockSize);
+				}
 			}
 			if (position != v.start) {
 				// The file discovered its blockSize and adjusted.
@@ -365,9 +425,13 @@ DfsBlock getOrLoad(DfsPackFile pack, long position, DfsReader ctx)
 				e2 = table.get(slot);
 			}
 
+			// The cache owns the reference the block was created with;
+			// take another for the caller before others can evict it.
+			v.pin();
 			key.cachedSize.addAndGet(v.size());
-			Ref<DfsBlock> ref = new Ref<DfsBlock>(key, position, v.size(), v);
-			ref.hot = true;
+			Ref<DfsBlock> ref = new Ref<DfsBlock>(key, PackExt.PACK, position,
+					v.size(), v);
+			ref.streaming = ctx.isStreaming();
 			for (;;) {
 				HashEntry n = new HashEntry(clean(e2), ref);
 				if (table.compareAndSet(slot, e2, n))
@@ -383,6 +447,7 @@ DfsBlock getOrLoad(DfsPackFile pack, long position, DfsReader ctx)
 		// that was loaded is the wrong block for the requested position.
 		if (v.contains(pack.key, requestedPosition))
 			return v;
+		v.unpin();
 		return getOrLoad(pack, requestedPosition, ctx);
 	}
 
@@ -394,11 +459,35 @@ private void reserveSpace(int reserve) {
 			if (maxBytes < live) {
 				Ref prev = clockHand;
 				Ref hand = clockHand.next;
+				Ref mark = hand;
+				int laps = 0;
+				boolean squeeze = false;
 				do {
+					if (hand == mark && 2 < ++laps) {
+						// Two sweeps found nothing to evict, the
+						// rest of the cache must all be protected.
+						squeeze = true;
+					}
+
 					if (hand.hot) {
-						// Value was recently touched. Clear
-						// hot and give it another chance.
+						// Value was recently touched. Clear hot and
+						// protect it, unless it is only being streamed.
 						hand.hot = false;
+						if (!hand.protect && !hand.streaming) {
+							hand.protect = true;
+							protectedBytes += hand.size;
+						}
+						prev = hand;
+						hand = hand.next;
+						continue;
+					} else if (hand.protect) {
+						// Idle protected values are put back on
+						// probation only if protected ones use
+						// more than their share of the cache.
+						if (squeeze || maxProtectedBytes < protectedBytes) {
+							hand.protect = false;
+							protectedBytes -= hand.size;
+						}
 						prev = hand;
 						hand = hand.next;
 						continue;
@@ -411,10 +500,17 @@ private void reserveSpace(int reserve) {
 					hand = hand.next;
 					prev.next = hand;
 					dead.next = null;
+					Object old = dead.value;
 					dead.value = null;
+					release(old);
 					live -= dead.size;
 					dead.pack.cachedSize.addAndGet(-dead.size);
-					statEvict++;
+					stats.evicted(dead.ext);
+					if (dead.readAhead)
+						stats.readAheadWasted(dead.size);
+					mark = hand;
+					laps = 0;
+					squeeze = false;
 				} while (maxBytes < live);
 				clockHand = prev;
 			}
@@ -424,6 +520,12 @@ private void reserveSpace(int reserve) {
 		}
 	}
 
+	/** Release the cache's reference to a value no longer cached. */
+	private static void release(Object v) {
+		if (v instanceof DfsBlock)
+			((DfsBlock) v).unpin();
+	}
+
 	private void creditSpace(int credit) {
 		clockLock.lock();
 		liveBytes -= credit;
@@ -435,6 +537,8 @@ private void addToClock(Ref ref, int credit) {
 		try {
 			if (credit != 0)
 				liveBytes -= credit;
+			if (ref.protect)
+				protectedBytes += ref.size;
 			Ref ptr = clockHand;
 			ref.next = ptr.next;
 			ptr.next = ref;
@@ -444,16 +548,84 @@ private void addToClock(Ref ref, int credit) {
 		}
 	}
 
+	/**
+	 * Read a block from a channel.
+	 * <p>
+	 * The block is stored in direct memory if the cache is configured to be
+	 * off-heap and a slot is available, otherwise on the heap.
+	 *
+	 * @param key
+	 *            pack the block belongs to.
+	 * @param pos
+	 *            position of the block, which must also be the current
+	 *            position of the channel.
+	 * @param size
+	 *            number of bytes to read.
+	 * @param rc
+	 *            channel to read from.
+	 * @return the block, holding fewer than {@code size} bytes if the channel
+	 *         ended early; null if nothing could be read.
+	 * @throws IOException
+	 *             the channel could not be read.
+	 */
+	DfsBlock read(DfsPackKey key, long pos, int size, ReadableChannel rc)
+			throws IOException {
+		DfsBlock v = slabs != null ? slabs.read(key, pos, size, rc) : null;
+		if (v != null) {
+			if (v.size() != 0)
+				return v;
+			v.unpin();
+			return null;
+		}
+
+		byte[] buf = new byte[size];
+		int cnt = IO.read(rc, buf, 0, size);
+		if (cnt <= 0)
+			return null;
+		if (cnt != size) {
+			byte[] n = new byte[cnt];
+			System.arraycopy(buf, 0, n, 0, n.length);
+			buf = n;
+		}
+		return new DfsBlock(key, pos, buf);
+	}
+
 	void put(DfsBlock v) {
-		put(v.pack, v.start, v.size(), v);
+		put(v, false);
 	}
 
-	<T> Ref<T> put(DfsPackKey key, long pos, int size, T v) {
+	/**
+	 * Add a block to the cache.
+	 *
+	 * @param v
+	 *            the block. The reference of an off-heap block is passed to
+	 *            the cache, and released if the block is already cached.
+	 * @param readAhead
+	 *            true if the block was loaded ahead of any reader asking for
+	 *            it, and is to be counted in the read-ahead statistics.
+	 */
+	void put(DfsBlock v, boolean readAhead) {
+		if (slabs != null)
+			v = slabs.copy(v);
+		Ref<DfsBlock> ref = put(v.pack, PackExt.PACK, v.start, v.size(), v,
+				readAhead);
+		if (readAhead && ref.value == v)
+			stats.readAheadLoaded(ref.size);
+	}
+
+	<T> Ref<T> put(DfsPackKey key, PackExt ext, long pos, int size, T v) {
+		return put(key, ext, pos, size, v, false);
+	}
+
+	private <T> Ref<T> put(DfsPackKey key, PackExt ext, long pos, int size,
+			T v, boolean readAhead) {
 		int slot = slot(key, pos);
 		HashEntry e1 = table.get(slot);
 		Ref<T> ref = scanRef(e1, key, pos);
-		if (ref != null)
+		if (ref != null) {
+			release(v);
 			return ref;
+		}
 
 		reserveSpace(size);
 		ReentrantLock regionLock = lockFor(key, pos);
@@ -464,13 +636,20 @@ <T> Ref<T> put(DfsPackKey key, long pos, int size, T v) {
 				ref = scanRef(e2, key, pos);
 				if (ref != null) {
 					creditSpace(size);
+					release(v);
 					return ref;
 				}
 			}
 
 			key.cachedSize.addAndGet(size);
-			ref = new Ref<T>(key, pos, size, v);
+			ref = new Ref<T>(key, ext, pos, size, v);
+			// Blocks are put before their first use and survive one
+			// sweep to be used; only a later use protects them.
+			// Indexes are needed by every reader.
 			ref.hot = true;
+			ref.protect = ext != PackExt.PACK;
+			ref.streaming = ext == PackExt.PACK;
+			ref.readAhead = readAhead;
 			for (;;) {
 				HashEntry n = new HashEntry(clean(e2), ref);
 				if (table.compareAndSet(slot, e2, n))
@@ -488,23 +667,65 @@ boolean contains(DfsPackKey key, long position) {
 		return scan(table.get(slot(key, position)), key, position) != null;
 	}
 
+	/**
+	 * @return true if the entry is cached and in the protected segment of
+	 *         the clock. Does not count as an access to the entry.
+	 */
+	boolean isProtected(DfsPackKey key, long position) {
+		HashEntry n = table.get(slot(key, position));
+		for (; n != null; n = n.next) {
+			Ref<?> r = n.ref;
+			if (r.pack == key && r.position == position) {
+				if (r.value == null)
+					return false;
+				clockLock.lock();
+				try {
+					return r.protect;
+				} finally {
+					clockLock.unlock();
+				}
+			}
+		}
+		return false;
+	}
+
 	@SuppressWarnings("unchecked")
 	<T> T get(DfsPackKey key, long position) {
 		T val = (T) scan(table.get(slot(key, position)), key, position);
 		if (val == null)
-			statMiss.incrementAndGet();
+			stats.miss(key, PackExt.PACK);
 		else
-			statHit.incrementAndGet();
+			stats.hit(key, PackExt.PACK);
 		return val;
 	}
 
-	boolean readAhead(ReadableChannel rc, DfsPackKey key, int size, long pos,
-			long len, DfsReader ctx) {
-		if (!ctx.wantReadAhead() || readAheadLimit <= 0 || readAheadService == null)
-			return false;
+	int getReadAheadLimit() {
+		return readAheadService != null ? readAheadLimit : 0;
+	}
 
-		int cap = readAheadLimit / size;
-		long readAheadEnd = pos + readAheadLimit;
+	/**
+	 * Load blocks of a pack in the background.
+	 *
+	 * @param pack
+	 *            the pack to read from.
+	 * @param size
+	 *            block size of the pack.
+	 * @param pos
+	 *            position of the first block to load.
+	 * @param readAheadEnd
+	 *            position to stop loading blocks at. The block containing
+	 *            this position is not loaded unless it starts before it.
+	 * @param ctx
+	 *            reader the blocks are loaded for.
+	 */
+	void readAhead(DfsPackFile pack, int size, long pos, long readAheadEnd,
+			DfsReader ctx) {
+		if (readAheadLimit <= 0 || readAheadService == null)
+			return;
+
+		DfsPackKey key = pack.key;
+		long len = pack.length;
+		int cap = (int) Math.min((readAheadEnd - pos) / size + 1, 1024);
 		List<ReadAheadTask.BlockFuture> blocks = new ArrayList<ReadAheadTask.BlockFuture>(cap);
 		while (pos < readAheadEnd && pos < len) {
 			long end = Math.min(pos + size, len);
@@ -513,7 +734,15 @@ boolean readAhead(ReadableChannel rc, DfsPackKey key, int size, long pos,
 			pos = end;
 		}
 		if (blocks.isEmpty())
-			return false;
+			return;
+
+		ReadableChannel rc;
+		try {
+			rc = ctx.db.openFile(pack.getPackDescription(), PackExt.PACK);
+		} catch (IOException err) {
+			// Ignore read-ahead errors. These will be caught later on.
+			return;
+		}
 
 		ReadAheadTask task = new ReadAheadTask(this, rc, blocks);
 		ReadAheadTask.TaskFuture t = new ReadAheadTask.TaskFuture(task);
@@ -521,7 +750,34 @@ boolean readAhead(ReadableChannel rc, DfsPackKey key, int size, long pos,
 			b.setTask(t);
 		readAheadService.execute(t);
 		ctx.startedReadAhead(blocks);
-		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private DfsBlock hit(HashEntry n, DfsPackKey pack, long position,
+			DfsReader ctx) {
+		for (; n != null; n = n.next) {
+			Ref<DfsBlock> r = n.ref;
+			if (r.pack == pack && r.position == position) {
+				if (r.readAhead && r.value != null) {
+					r.readAhead = false;
+					stats.readAheadUsed(r.size);
+				}
+				DfsBlock v;
+				if (r.streaming && !ctx.isStreaming()) {
+					// First use by a reader that may need it again. As
+					// for a block the reader loaded itself, only a later
+					// use protects it.
+					r.streaming = false;
+					r.hot = false;
+					v = r.value;
+				} else
+					v = r.get();
+
+				// An evicted block's slot may already be released.
+				return v != null && v.pin() ? v : null;
+			}
+		}
+		return null;
 	}
 
 	private <T> T scan(HashEntry n, DfsPackKey pack, long position) {
@@ -575,16 +831,49 @@ private static final class HashEntry {
 		}
 	}
 
+	/**
+	 * Sum the bytes held by the cache for each kind of file.
+	 *
+	 * @param byExt
+	 *            array indexed by {@link PackExt#getPosition()} to add the
+	 *            bytes of each extension into.
+	 */
+	void getCurrentSize(long[] byExt) {
+		clockLock.lock();
+		try {
+			Ref r = clockHand;
+			do {
+				int p = r.ext.getPosition();
+				if (r.value != null && p < byExt.length)
+					byExt[p] += r.size;
+				r = r.next;
+			} while (r != clockHand);
+		} finally {
+			clockLock.unlock();
+		}
+	}
+
 	static final class Ref<T> {
 		final DfsPackKey pack;
+		final PackExt ext;
 		final long position;
 		final int size;
 		volatile T value;
 		Ref next;
 		volatile boolean hot;
 
-		Ref(DfsPackKey pack, long position, int size, T v) {
+		/** In the protected segment; only modified under the clock lock. */
+		boolean protect;
+
+		/** Not yet used other than to stream data out; never protected. */
+		volatile boolean streaming;
+
+		/** Loaded by read-ahead and not yet used by a reader. */
+		volatile boolean readAhead;
+
+		Ref(DfsPackKey pack, PackExt ext, long position, int size, T v) {
 			this.pack = pack;
+			this.ext = ext;
 			this.position = position;
 			this.size = size;
 			this.value = v;
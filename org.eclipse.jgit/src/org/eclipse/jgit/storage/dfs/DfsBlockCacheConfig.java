@@ -45,12 +45,16 @@
 
 import static org.eclipse.jgit.lib.ConfigConstants.CONFIG_CORE_SECTION;
 import static org.eclipse.jgit.lib.ConfigConstants.CONFIG_DFS_SECTION;
+import static org.eclipse.jgit.lib.ConfigConstants.CONFIG_KEY_ASYNC_READ_THREADS;
 import static org.eclipse.jgit.lib.ConfigConstants.CONFIG_KEY_BLOCK_LIMIT;
 import static org.eclipse.jgit.lib.ConfigConstants.CONFIG_KEY_BLOCK_SIZE;
+import static org.eclipse.jgit.lib.ConfigConstants.CONFIG_KEY_OFF_HEAP;
 import static org.eclipse.jgit.lib.ConfigConstants.CONFIG_KEY_READ_AHEAD_LIMIT;
 import static org.eclipse.jgit.lib.ConfigConstants.CONFIG_KEY_READ_AHEAD_THREADS;
 
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -75,6 +79,12 @@ public class DfsBlockCacheConfig {
 
 	private ThreadPoolExecutor readAheadService;
 
+	private boolean offHeap;
+
+	private ExecutorService asyncReadService;
+
+	private boolean exposeStatsViaJmx;
+
 	/** Create a default configuration. */
 	public DfsBlockCacheConfig() {
 		setBlockLimit(32 * MB);
@@ -118,14 +128,18 @@ public DfsBlockCacheConfig setBlockSize(final int newSize) {
 		return this;
 	}
 
-	/** @return number of bytes to read ahead sequentially by. */
+	/**
+	 * @return maximum number of bytes to read ahead of a reader accessing a
+	 *         pack sequentially. Read-ahead starts at one block and doubles
+	 *         while access remains sequential.
+	 */
 	public int getReadAheadLimit() {
 		return readAheadLimit;
 	}
 
 	/**
 	 * @param newSize
-	 *            new read-ahead limit, in bytes.
+	 *            new read-ahead limit, in bytes. 0 disables read-ahead.
 	 * @return {@code this}
 	 */
 	public DfsBlockCacheConfig setReadAheadLimit(final int newSize) {
@@ -152,6 +166,78 @@ public DfsBlockCacheConfig setReadAheadService(ThreadPoolExecutor svc) {
 		return this;
 	}
 
+	/**
+	 * @return true if pack file data is cached in direct memory outside of the
+	 *         Java heap. <b>Default is false.</b>
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Store cached blocks outside of the Java heap.
+	 * <p>
+	 * Direct memory is not scanned by the garbage collector, allowing a large
+	 * cache without growing the heap. The {@link #getBlockLimit() block limit}
+	 * then bounds the direct memory used; up to a quarter more may be held
+	 * by evicted blocks still in use by readers. The JVM's own direct memory
+	 * limit must allow for this. Blocks are kept on the heap if direct memory
+	 * is exhausted.
+	 *
+	 * @param offHeap
+	 *            true to cache pack file data in direct memory.
+	 * @return {@code this}
+	 */
+	public DfsBlockCacheConfig setOffHeap(final boolean offHeap) {
+		this.offHeap = offHeap;
+		return this;
+	}
+
+	/**
+	 * @return service to load objects requested through
+	 *         {@link DfsReader#open(Iterable, boolean)} with, or null to load
+	 *         them one at a time on the caller's thread.
+	 */
+	public ExecutorService getAsyncReadService() {
+		return asyncReadService;
+	}
+
+	/**
+	 * @param svc
+	 *            service to load objects requested through
+	 *            {@link DfsReader#open(Iterable, boolean)} with. Each reader
+	 *            keeps a small number of reads in flight on the service, so
+	 *            the round trips to a slow DFS overlap. If null objects are
+	 *            loaded one at a time on the caller's thread.
+	 * @return {@code this}
+	 */
+	public DfsBlockCacheConfig setAsyncReadService(ExecutorService svc) {
+		asyncReadService = svc;
+		return this;
+	}
+
+	/**
+	 * @return true if the statistics of the cache are registered with the
+	 *         platform MBean server when this configuration is applied.
+	 *         <b>Default is false.</b>
+	 */
+	public boolean isExposeStatsViaJmx() {
+		return exposeStatsViaJmx;
+	}
+
+	/**
+	 * @param expose
+	 *            true to register {@link DfsBlockCache#getStats()} with the
+	 *            platform MBean server when this configuration is applied by
+	 *            {@link DfsBlockCache#reconfigure(DfsBlockCacheConfig)}.
+	 *            Nothing is registered if JMX is not available.
+	 * @return {@code this}
+	 */
+	public DfsBlockCacheConfig setExposeStatsViaJmx(final boolean expose) {
+		exposeStatsViaJmx = expose;
+		return this;
+	}
+
 	/**
 	 * Update properties by setting fields from the configuration.
 	 * <p>
@@ -181,6 +267,12 @@ public DfsBlockCacheConfig fromConfig(final Config rc) {
 				CONFIG_KEY_READ_AHEAD_LIMIT,
 				getReadAheadLimit()));
 
+		setOffHeap(rc.getBoolean(
+				CONFIG_CORE_SECTION,
+				CONFIG_DFS_SECTION,
+				CONFIG_KEY_OFF_HEAP,
+				isOffHeap()));
+
 		int readAheadThreads = rc.getInt(
 				CONFIG_CORE_SECTION,
 				CONFIG_DFS_SECTION,
@@ -193,20 +285,41 @@ public DfsBlockCacheConfig fromConfig(final Config rc) {
 					readAheadThreads, // Maximum threads active.
 					60, TimeUnit.SECONDS, // Idle threads wait this long before ending.
 					new ArrayBlockingQueue<Runnable>(1), // Do not queue deeply.
-					new ThreadFactory() {
-						private final String name = "JGit-DFS-ReadAhead"; //$NON-NLS-1$
-						private final AtomicInteger cnt = new AtomicInteger();
-						private final ThreadGroup group = new ThreadGroup(name);
-
-						public Thread newThread(Runnable body) {
-							int id = cnt.incrementAndGet();
-							Thread thread = new Thread(group, body, name + "-" + id); //$NON-NLS-1$
-							thread.setDaemon(true);
-							thread.setContextClassLoader(getClass().getClassLoader());
-							return thread;
-						}
-					}, ReadAheadRejectedExecutionHandler.INSTANCE));
+					newThreadFactory("JGit-DFS-ReadAhead"), //$NON-NLS-1$
+					ReadAheadRejectedExecutionHandler.INSTANCE));
+		}
+
+		int asyncReadThreads = rc.getInt(
+				CONFIG_CORE_SECTION,
+				CONFIG_DFS_SECTION,
+				CONFIG_KEY_ASYNC_READ_THREADS,
+				0);
+
+		if (0 < asyncReadThreads) {
+			ThreadPoolExecutor svc = new ThreadPoolExecutor(
+					asyncReadThreads, // Threads active, all may be idle.
+					asyncReadThreads,
+					60, TimeUnit.SECONDS, // Idle threads wait this long before ending.
+					new LinkedBlockingQueue<Runnable>(), // Readers bound their own work.
+					newThreadFactory("JGit-DFS-AsyncRead")); //$NON-NLS-1$
+			svc.allowCoreThreadTimeOut(true);
+			setAsyncReadService(svc);
 		}
 		return this;
 	}
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger cnt = new AtomicInteger();
+			private final ThreadGroup group = new ThreadGroup(name);
+
+			public Thread newThread(Runnable body) {
+				int id = cnt.incrementAndGet();
+				Thread thread = new Thread(group, body, name + "-" + id); //$NON-NLS-1$
+				thread.setDaemon(true);
+				thread.setContextClassLoader(getClass().getClassLoader());
+				return thread;
+			}
+		};
+	}
 }
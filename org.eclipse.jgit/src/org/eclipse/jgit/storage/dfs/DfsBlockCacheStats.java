@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.eclipse.jgit.storage.dfs;
+
+import static org.eclipse.jgit.storage.pack.PackExt.PACK;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.storage.pack.CacheStats;
+import org.eclipse.jgit.storage.pack.PackExt;
+import org.eclipse.jgit.util.StripedCounter;
+
+/**
+ * Statistics of one {@link DfsBlockCache}, published as {@code DfsBlockCache}.
+ * <p>
+ * The DFS does not hold files open between reads, so the open file count is
+ * the number of packs that have at least one block in the cache.
+ */
+final class DfsBlockCacheStats extends CacheStats {
+	private final DfsBlockCache cache;
+
+	private final StripedCounter readAheadLoaded = new StripedCounter();
+
+	private final StripedCounter readAheadUsed = new StripedCounter();
+
+	private final StripedCounter readAheadWasted = new StripedCounter();
+
+	DfsBlockCacheStats(DfsBlockCache cache) {
+		this.cache = cache;
+	}
+
+	void publish() {
+		register("DfsBlockCache", this); //$NON-NLS-1$
+	}
+
+	void hit(DfsPackKey key, PackExt ext) {
+		key.cacheHits.increment();
+		recordHit(ext);
+	}
+
+	void miss(DfsPackKey key, PackExt ext) {
+		key.cacheMisses.increment();
+		recordMiss(ext);
+	}
+
+	void evicted(PackExt ext) {
+		recordEviction(ext);
+	}
+
+	void loaded(long nanos) {
+		recordLoadSuccess(nanos);
+	}
+
+	void loadFailed(long nanos) {
+		recordLoadFailure(nanos);
+	}
+
+	void readAheadLoaded(int bytes) {
+		readAheadLoaded.add(bytes);
+	}
+
+	void readAheadUsed(int bytes) {
+		readAheadUsed.add(bytes);
+	}
+
+	void readAheadWasted(int bytes) {
+		readAheadWasted.add(bytes);
+	}
+
+	long getReadAheadLoadedBytes() {
+		return readAheadLoaded.get();
+	}
+
+	long getReadAheadUsedBytes() {
+		return readAheadUsed.get();
+	}
+
+	long getReadAheadWastedBytes() {
+		return readAheadWasted.get();
+	}
+
+	public long getOpenFileCount() {
+		long cnt = 0;
+		for (DfsPackFile pack : cache.getPackFiles()) {
+			if (0 < pack.key.cachedSize.get())
+				cnt++;
+		}
+		return cnt;
+	}
+
+	public long getOpenByteCount() {
+		return cache.getCurrentSize();
+	}
+
+	public Map<String, Long> getOpenByteCountByExt() {
+		PackExt[] exts = PackExt.values();
+		long[] bytes = new long[exts.length];
+		cache.getCurrentSize(bytes);
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for (PackExt ext : exts)
+			add(r, ext, bytes[ext.getPosition()]);
+		return r;
+	}
+
+	public Map<String, Long> getHitCountByPack() {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for (DfsPackFile pack : cache.getPackFiles())
+			add(r, name(pack), pack.key.cacheHits.get());
+		return r;
+	}
+
+	public Map<String, Long> getMissCountByPack() {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for (DfsPackFile pack : cache.getPackFiles())
+			add(r, name(pack), pack.key.cacheMisses.get());
+		return r;
+	}
+
+	public Map<String, Long> getOpenByteCountByPack() {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for (DfsPackFile pack : cache.getPackFiles())
+			add(r, name(pack), pack.key.cachedSize.get());
+		return r;
+	}
+
+	@Override
+	public void resetCounters() {
+		super.resetCounters();
+		readAheadLoaded.reset();
+		readAheadUsed.reset();
+		readAheadWasted.reset();
+		for (DfsPackFile pack : cache.getPackFiles()) {
+			pack.key.cacheHits.reset();
+			pack.key.cacheMisses.reset();
+		}
+	}
+
+	private static String name(DfsPackFile pack) {
+		return pack.getPackDescription().getFileName(PACK);
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.dfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Direct memory backing {@link DfsBlock}s held by the {@link DfsBlockCache}.
+ * <p>
+ * Memory is allocated outside of the Java heap in large slabs, which are cut
+ * into fixed size slots of the cache's block size. Allocating a direct buffer
+ * is expensive and its memory is only returned when the buffer is garbage
+ * collected, so slabs are never released; slots are recycled instead.
+ * <p>
+ * A block evicted from the cache may still be in use by a reader that found
+ * it just before eviction. Blocks therefore count the cache and the readers
+ * pinning them, and only return their slot once all have released it.
+ * <p>
+ * When all slots are in use, or a block does not fit into a slot, callers get
+ * no slot and fall back to storing the block on the heap.
+ */
+final class DfsBlockSlabs {
+	/** Target size of a single slab, rounded down to whole slots. */
+	private static final int SLAB_SIZE = 64 * DfsBlockCacheConfig.MB;
+
+	private final int slotSize;
+
+	private final int slotsPerSlab;
+
+	/** Maximum number of slots, including evicted blocks still pinned. */
+	private final int maxSlots;
+
+	private final List<ByteBuffer> slabs;
+
+	/** Next unused slot within the last slab. */
+	private int nextSlot;
+
+	/** Total number of slots handed out from slabs so far. */
+	private int allocated;
+
+	/** Slots whose blocks have been released, ready for reuse. */
+	private final List<ByteBuffer> free;
+
+	DfsBlockSlabs(DfsBlockCacheConfig cfg) {
+		slotSize = cfg.getBlockSize();
+
+		// Allow for blocks evicted from the cache but still pinned.
+		long limit = cfg.getBlockLimit() / slotSize;
+		maxSlots = (int) Math.min(limit + limit / 4, Integer.MAX_VALUE);
+		slotsPerSlab = Math.max(1, Math.min(SLAB_SIZE / slotSize, maxSlots));
+
+		slabs = new ArrayList<ByteBuffer>();
+		free = new ArrayList<ByteBuffer>();
+	}
+
+	/**
+	 * Read a block from a channel into a slot.
+	 *
+	 * @param key
+	 *            pack the block belongs to.
+	 * @param pos
+	 *            position of the block, which must also be the current
+	 *            position of the channel.
+	 * @param size
+	 *            number of bytes to read.
+	 * @param rc
+	 *            channel to read from.
+	 * @return the block with one reference owned by the caller, holding fewer
+	 *         than {@code size} bytes if the channel ended early; null if no
+	 *         slot is available to hold the block.
+	 * @throws IOException
+	 *             the channel could not be read. The slot is released.
+	 */
+	DfsBlock read(DfsPackKey key, long pos, int size, ReadableChannel rc)
+			throws IOException {
+		ByteBuffer slot = alloc(size);
+		if (slot == null)
+			return null;
+
+		boolean release = true;
+		try {
+			slot.limit(size);
+			while (slot.hasRemaining()) {
+				if (rc.read(slot) <= 0)
+					break;
+			}
+			slot.flip();
+			release = false;
+			return new DfsBlock(key, pos, slot, this);
+		} finally {
+			if (release)
+				free(slot);
+		}
+	}
+
+	/**
+	 * Move a block from the heap into a slot.
+	 *
+	 * @param v
+	 *            block to copy.
+	 * @return the off-heap copy of the block with one reference owned by the
+	 *         caller, or {@code v} itself if it is already off-heap or no slot
+	 *         is available.
+	 */
+	DfsBlock copy(DfsBlock v) {
+		if (v.isOffHeap())
+			return v;
+		int size = v.size();
+		ByteBuffer slot = alloc(size);
+		if (slot == null)
+			return v;
+
+		byte[] tmp = new byte[Math.min(size, 8192)];
+		for (int p = 0; p < size;) {
+			int n = v.copy(p, tmp, 0, tmp.length);
+			slot.put(tmp, 0, n);
+			p += n;
+		}
+		slot.flip();
+		return new DfsBlock(v.pack, v.start, slot, this);
+	}
+
+	private synchronized ByteBuffer alloc(int size) {
+		if (slotSize < size)
+			return null;
+
+		if (!free.isEmpty())
+			return free.remove(free.size() - 1);
+		if (maxSlots <= allocated)
+			return null;
+
+		ByteBuffer slab;
+		if (slabs.isEmpty() || nextSlot == slotsPerSlab) {
+			int n = Math.min(slotsPerSlab, maxSlots - allocated);
+			try {
+				slab = ByteBuffer.allocateDirect(n * slotSize);
+			} catch (OutOfMemoryError noDirectMemory) {
+				// The JVM's direct memory limit was reached; the cache
+				// still works by keeping new blocks on the heap.
+				return null;
+			}
+			slabs.add(slab);
+			nextSlot = 0;
+		} else
+			slab = slabs.get(slabs.size() - 1);
+
+		ByteBuffer b = slab.duplicate();
+		b.position(nextSlot * slotSize);
+		b.limit(b.position() + slotSize);
+		nextSlot++;
+		allocated++;
+		return b.slice();
+	}
+
+	/**
+	 * Return a slot for reuse.
+	 *
+	 * @param slot
+	 *            the slot, no longer referenced by any block in use.
+	 */
+	synchronized void free(ByteBuffer slot) {
+		slot.clear();
+		free.add(slot);
+	}
+}
@@ -43,8 +43,10 @@
 
 package org.eclipse.jgit.storage.dfs;
 
+import static org.eclipse.jgit.storage.dfs.DfsObjDatabase.PackSource.COMPACT;
 import static org.eclipse.jgit.storage.dfs.DfsObjDatabase.PackSource.GC;
 import static org.eclipse.jgit.storage.dfs.DfsObjDatabase.PackSource.UNREACHABLE_GARBAGE;
+import static org.eclipse.jgit.storage.pack.PackExt.BITMAP_INDEX;
 import static org.eclipse.jgit.storage.pack.PackExt.PACK;
 import static org.eclipse.jgit.storage.pack.PackExt.INDEX;
 
@@ -89,15 +91,29 @@ public class DfsGarbageCollector {
 
 	private PackConfig packConfig;
 
+	private boolean incremental;
+
 	private Map<String, Ref> refsBefore;
 
 	private List<DfsPackFile> packsBefore;
 
+	/** Packs replaced by the new packs; all of {@link #packsBefore} if full. */
+	private List<DfsPackFile> packsToPrune;
+
+	/** GC packs kept by an incremental pack. */
+	private List<DfsPackFile> packsKept;
+
+	/** Objects of {@link #packsKept}. */
+	private List<PackWriter.ObjectIdSet> keptPackObj;
+
+	/** Tips of {@link #packsKept}, where the incremental walk stops. */
+	private Set<ObjectId> keptTips;
+
 	private Set<ObjectId> allHeads;
 
 	private Set<ObjectId> nonHeads;
 
-	/** Sum of object counts in {@link #packsBefore}. */
+	/** Sum of object counts in {@link #packsToPrune}. */
 	private long objectsBefore;
 
 	/** Sum of object counts iN {@link #newPackDesc}. */
@@ -138,12 +154,47 @@ public DfsGarbageCollector setPackConfig(PackConfig newConfig) {
 		return this;
 	}
 
+	/** @return true if packing keeps the existing GC packs. */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Set whether packing keeps the existing GC packs.
+	 * <p>
+	 * A full pack rewrites every reachable object into new GC packs. An
+	 * incremental pack instead keeps the packs made by the last full pack,
+	 * and only folds the packs created since (by inserters, pushes, fetches,
+	 * compaction or earlier incremental packs) into one new pack holding the
+	 * objects reachable from the references but not in the GC packs. Objects
+	 * of the folded packs that are unreachable go into a garbage pack, as
+	 * they do for a full pack.
+	 * <p>
+	 * The cost of an incremental pack is proportional to the amount of new
+	 * data rather than to the size of the repository. Its output is not as
+	 * compact however, and garbage in the GC packs is never pruned, so a full
+	 * pack should still be run once in a while. If the repository has no GC
+	 * pack yet, or its GC packs do not record their tips, an incremental pack
+	 * is a full pack.
+	 *
+	 * @param incremental
+	 *            true to keep the existing GC packs.
+	 * @return {@code this}
+	 */
+	public DfsGarbageCollector setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
+
 	/**
 	 * Create a single new pack file containing all of the live objects.
 	 * <p>
 	 * This method safely decides which packs can be expired after the new pack
 	 * is created by validating the references have not been modified in an
 	 * incompatible way.
+	 * <p>
+	 * If {@link #setIncremental(boolean)} is set, the existing GC packs are
+	 * kept and only the live objects that are not in them are packed.
 	 *
 	 * @param pm
 	 *            progress monitor to receive updates on as packing may take a
@@ -170,6 +221,16 @@ public boolean pack(ProgressMonitor pm) throws IOException {
 			if (packsBefore.isEmpty())
 				return true;
 
+			packsToPrune = packsBefore;
+			packsKept = Collections.emptyList();
+			keptPackObj = Collections.emptyList();
+			keptTips = Collections.emptySet();
+			if (incremental) {
+				selectPacksToKeep();
+				if (packsToPrune.isEmpty())
+					return true;
+			}
+
 			allHeads = new HashSet<ObjectId>();
 			nonHeads = new HashSet<ObjectId>();
 			tagTargets = new HashSet<ObjectId>();
@@ -187,8 +248,11 @@ public boolean pack(ProgressMonitor pm) throws IOException {
 
 			boolean rollback = true;
 			try {
-				packHeads(pm);
-				packRest(pm);
+				if (packsKept.isEmpty()) {
+					packHeads(pm);
+					packRest(pm);
+				} else
+					packIncremental(pm);
 				packGarbage(pm);
 				objdb.commitPack(newPackDesc, toPrune());
 				rollback = false;
@@ -218,13 +282,55 @@ public List<PackWriter.Statistics> getNewPackStatistics() {
 	}
 
 	private List<DfsPackDescription> toPrune() {
-		int cnt = packsBefore.size();
+		int cnt = packsToPrune.size();
 		List<DfsPackDescription> all = new ArrayList<DfsPackDescription>(cnt);
-		for (DfsPackFile pack : packsBefore)
+		for (DfsPackFile pack : packsToPrune)
 			all.add(pack.getPackDescription());
 		return all;
 	}
 
+	private void selectPacksToKeep() throws IOException {
+		List<DfsPackFile> keep = new ArrayList<DfsPackFile>();
+		List<DfsPackFile> prune = new ArrayList<DfsPackFile>();
+		for (DfsPackFile pack : packsBefore) {
+			switch (pack.getPackDescription().getPackSource()) {
+			case GC:
+			case UNREACHABLE_GARBAGE:
+				keep.add(pack);
+				break;
+			default:
+				prune.add(pack);
+			}
+		}
+
+		List<PackWriter.ObjectIdSet> keptObjs = new ArrayList<PackWriter.ObjectIdSet>();
+		Set<ObjectId> tips = new HashSet<ObjectId>();
+		for (DfsPackFile pack : keep) {
+			DfsPackDescription desc = pack.getPackDescription();
+			if (desc.getPackSource() != GC)
+				continue;
+			if (desc.getTips() != null)
+				tips.addAll(desc.getTips());
+			final PackIndex idx = pack.getPackIndex(ctx);
+			keptObjs.add(new PackWriter.ObjectIdSet() {
+				public boolean contains(AnyObjectId objectId) {
+					return idx.hasObject(objectId);
+				}
+			});
+		}
+
+		// Without tips the walk for new objects would traverse all of
+		// history, which is what a full pack does anyway, and makes the
+		// result compact again.
+		if (keptObjs.isEmpty() || tips.isEmpty())
+			return;
+
+		packsToPrune = prune;
+		packsKept = keep;
+		keptPackObj = keptObjs;
+		keptTips = tips;
+	}
+
 	private void packHeads(ProgressMonitor pm) throws IOException {
 		if (allHeads.isEmpty())
 			return;
@@ -240,7 +346,7 @@ private void packHeads(ProgressMonitor pm) throws IOException {
 	}
 
 	private void packRest(ProgressMonitor pm) throws IOException {
-		if (nonHeads.isEmpty() || objectsPacked == getObjectsBefore())
+		if (nonHeads.isEmpty() || allObjectsPacked())
 			return;
 
 		PackWriter pw = newPackWriter();
@@ -255,15 +361,35 @@ private void packRest(ProgressMonitor pm) throws IOException {
 		}
 	}
 
+	private void packIncremental(ProgressMonitor pm) throws IOException {
+		Set<ObjectId> want = new HashSet<ObjectId>(allHeads);
+		want.addAll(nonHeads);
+		if (want.isEmpty())
+			return;
+
+		// Objects reachable from the tips of the GC packs are in those
+		// packs; stop the walk there instead of traversing all history.
+		PackWriter pw = newPackWriter();
+		try {
+			for (PackWriter.ObjectIdSet keptObjs : keptPackObj)
+				pw.excludeObjects(keptObjs);
+			pw.preparePack(pm, want, keptTips);
+			if (0 < pw.getObjectCount())
+				writePack(COMPACT, pw, pm);
+		} finally {
+			pw.release();
+		}
+	}
+
 	private void packGarbage(ProgressMonitor pm) throws IOException {
-		if (objectsPacked == getObjectsBefore())
+		if (allObjectsPacked())
 			return;
 
 		// TODO(sop) This is ugly. The garbage pack needs to be deleted.
 		PackWriter pw = newPackWriter();
 		try {
 			RevWalk pool = new RevWalk(ctx);
-			for (DfsPackFile oldPack : packsBefore) {
+			for (DfsPackFile oldPack : packsToPrune) {
 				PackIndex oldIdx = oldPack.getPackIndex(ctx);
 				pm.beginTask("Finding garbage", (int) oldIdx.getObjectCount());
 				for (PackIndex.MutableEntry ent : oldIdx) {
@@ -288,6 +414,9 @@ private boolean anyPackHas(AnyObjectId id) {
 		for (PackWriter.ObjectIdSet packedObjs : newPackObj)
 			if (packedObjs.contains(id))
 				return true;
+		for (PackWriter.ObjectIdSet keptObjs : keptPackObj)
+			if (keptObjs.contains(id))
+				return true;
 		return false;
 	}
 
@@ -295,9 +424,19 @@ private static boolean isHead(Ref ref) {
 		return ref.getName().startsWith(Constants.R_HEADS);
 	}
 
+	/**
+	 * @return true if the new packs certainly hold every object of the packs
+	 *         to prune. Only known for a full pack, whose new packs hold no
+	 *         object from elsewhere; an incremental pack does not repack
+	 *         objects of the folded packs that are also in kept packs.
+	 */
+	private boolean allObjectsPacked() {
+		return packsKept.isEmpty() && objectsPacked == getObjectsBefore();
+	}
+
 	private long getObjectsBefore() {
 		if (objectsBefore == 0) {
-			for (DfsPackFile p : packsBefore)
+			for (DfsPackFile p : packsToPrune)
 				objectsBefore += p.getPackDescription().getObjectCount();
 		}
 		return objectsBefore;
@@ -333,6 +472,18 @@ private DfsPackDescription writePack(PackSource source, PackWriter pw,
 			out.close();
 		}
 
+		if (pw.prepareBitmapIndex(pm)) {
+			out = objdb.writeFile(pack, BITMAP_INDEX);
+			try {
+				CountingOutputStream cnt = new CountingOutputStream(out);
+				pw.writeBitmapIndex(cnt);
+				pack.setFileSize(BITMAP_INDEX, cnt.getCount());
+				pack.addFileExt(BITMAP_INDEX);
+			} finally {
+				out.close();
+			}
+		}
+
 		final ObjectIdOwnerMap<ObjectIdOwnerMap.Entry> packedObjs = pw
 				.getObjectSet();
 		newPackObj.add(new PackWriter.ObjectIdSet() {
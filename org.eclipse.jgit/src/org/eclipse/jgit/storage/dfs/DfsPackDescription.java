@@ -69,6 +69,8 @@ public class DfsPackDescription implements Comparable<DfsPackDescription> {
 
 	private long lastModified;
 
+	private int extensions;
+
 	private Map<PackExt, Long> sizeMap;
 
 	private long objectCount;
@@ -106,6 +108,27 @@ public DfsRepositoryDescription getRepositoryDescription() {
 		return repoDesc;
 	}
 
+	/**
+	 * Adds the pack file extension to the known list.
+	 *
+	 * @param ext
+	 *            the file extension
+	 * @return {@code this}
+	 */
+	public DfsPackDescription addFileExt(PackExt ext) {
+		extensions |= ext.getBit();
+		return this;
+	}
+
+	/**
+	 * @param ext
+	 *            the file extension
+	 * @return whether the pack file extensions is known to exist.
+	 */
+	public boolean hasFileExt(PackExt ext) {
+		return (extensions & ext.getBit()) != 0;
+	}
+
 	/**
 	 * @param ext
 	 *            the file extension
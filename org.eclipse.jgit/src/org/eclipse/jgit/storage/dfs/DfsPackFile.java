@@ -45,8 +45,10 @@
 
 package org.eclipse.jgit.storage.dfs;
 
+import static org.eclipse.jgit.storage.pack.PackExt.BITMAP_INDEX;
 import static org.eclipse.jgit.storage.pack.PackExt.PACK;
 import static org.eclipse.jgit.storage.pack.PackExt.INDEX;
+import static org.eclipse.jgit.storage.pack.PackExt.REVERSE_INDEX;
 
 import java.io.BufferedInputStream;
 import java.io.EOFException;
@@ -71,12 +73,12 @@
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.PackBitmapIndex;
 import org.eclipse.jgit.storage.file.PackIndex;
 import org.eclipse.jgit.storage.file.PackReverseIndex;
 import org.eclipse.jgit.storage.pack.BinaryDelta;
 import org.eclipse.jgit.storage.pack.PackOutputStream;
 import org.eclipse.jgit.storage.pack.StoredObjectRepresentation;
-import org.eclipse.jgit.util.IO;
 import org.eclipse.jgit.util.LongList;
 
 /**
@@ -94,11 +96,14 @@ public final class DfsPackFile {
 	 * collide with a valid data block from the file as the high bits will all
 	 * be set when treated as an unsigned long by the cache code.
 	 */
-	private static final long POS_INDEX = -1;
+	static final long POS_INDEX = -1;
 
 	/** Offset used to cache {@link #reverseIndex}. See {@link #POS_INDEX}. */
 	private static final long POS_REVERSE_INDEX = -2;
 
+	/** Offset used to cache {@link #bitmapIndex}. See {@link #POS_INDEX}. */
+	private static final long POS_BITMAP_INDEX = -3;
+
 	/** Cache that owns this pack file and its data. */
 	private final DfsBlockCache cache;
 
@@ -141,6 +146,12 @@ public final class DfsPackFile {
 	/** Reverse version of {@link #index} mapping position to {@link ObjectId}. */
 	private volatile DfsBlockCache.Ref<PackReverseIndex> reverseIndex;
 
+	/** Index of compressed bitmap mapping entire object graph. */
+	private volatile DfsBlockCache.Ref<PackBitmapIndex> bitmapIndex;
+
+	/** True if the bitmap index exists but could not be loaded. */
+	private volatile boolean invalidBitmap;
+
 	/**
 	 * Objects we have tried to read, and discovered to be corrupt.
 	 * <p>
@@ -201,7 +212,7 @@ void setPackIndex(PackIndex idx) {
 		long objCnt = idx.getObjectCount();
 		int recSize = Constants.OBJECT_ID_LENGTH + 8;
 		int sz = (int) Math.min(objCnt * recSize, Integer.MAX_VALUE);
-		index = cache.put(key, POS_INDEX, sz, idx);
+		index = cache.put(key, INDEX, POS_INDEX, sz, idx);
 	}
 
 	PackIndex getPackIndex(DfsReader ctx) throws IOException {
@@ -267,6 +278,58 @@ else if (bs <= 0)
 		}
 	}
 
+	PackBitmapIndex getBitmapIndex(DfsReader ctx) throws IOException {
+		if (invalid || invalidBitmap || !packDesc.hasFileExt(BITMAP_INDEX))
+			return null;
+
+		DfsBlockCache.Ref<PackBitmapIndex> idxref = bitmapIndex;
+		if (idxref != null) {
+			PackBitmapIndex idx = idxref.get();
+			if (idx != null)
+				return idx;
+		}
+
+		synchronized (initLock) {
+			idxref = bitmapIndex;
+			if (idxref != null) {
+				PackBitmapIndex idx = idxref.get();
+				if (idx != null)
+					return idx;
+			}
+
+			PackIndex idx = idx(ctx);
+			PackReverseIndex revidx = getReverseIdx(ctx);
+			PackBitmapIndex bmidx;
+			long size;
+			try {
+				ReadableChannel rc = ctx.db.openFile(packDesc, BITMAP_INDEX);
+				try {
+					InputStream in = Channels.newInputStream(rc);
+					int wantSize = 8192;
+					int bs = rc.blockSize();
+					if (0 < bs && bs < wantSize)
+						bs = (wantSize / bs) * bs;
+					else if (bs <= 0)
+						bs = wantSize;
+					in = new BufferedInputStream(in, bs);
+					bmidx = PackBitmapIndex.read(in, idx, revidx);
+					size = rc.size();
+				} finally {
+					rc.close();
+				}
+			} catch (IOException e) {
+				// The bitmap only makes packing faster. Ignore it if it
+				// cannot be read, rather than failing the operation.
+				invalidBitmap = true;
+				return null;
+			}
+
+			int sz = (int) Math.min(size, Integer.MAX_VALUE);
+			bitmapIndex = cache.put(key, BITMAP_INDEX, POS_BITMAP_INDEX, sz, bmidx);
+			return bmidx;
+		}
+	}
+
 	private PackReverseIndex getReverseIdx(DfsReader ctx) throws IOException {
 		DfsBlockCache.Ref<PackReverseIndex> revref = reverseIndex;
 		if (revref != null) {
@@ -287,7 +350,8 @@ private PackReverseIndex getReverseIdx(DfsReader ctx) throws IOException {
 			PackReverseIndex revidx = new PackReverseIndex(idx);
 			int sz = (int) Math.min(
 					idx.getObjectCount() * 8, Integer.MAX_VALUE);
-			reverseIndex = cache.put(key, POS_REVERSE_INDEX, sz, revidx);
+			reverseIndex = cache.put(key, REVERSE_INDEX,
+					POS_REVERSE_INDEX, sz, revidx);
 			return revidx;
 		}
 	}
@@ -341,6 +405,7 @@ public void close() {
 		cache.remove(this);
 		index = null;
 		reverseIndex = null;
+		bitmapIndex = null;
 	}
 
 	/**
@@ -472,7 +537,7 @@ void copyAsIs(PackOutputStream out, DfsObjectToPack src,
 				//
 				expectedCRC = idx(ctx).findCRC32(src);
 				if (quickCopy != null) {
-					quickCopy.crc32(crc1, dataOffset, (int) dataLength);
+					quickCopy.crc32(crc1, dataOffset, (int) dataLength, ctx);
 				} else {
 					long pos = dataOffset;
 					long cnt = dataLength;
@@ -498,7 +563,8 @@ void copyAsIs(PackOutputStream out, DfsObjectToPack src,
 				Inflater inf = ctx.inflater();
 				byte[] tmp = new byte[1024];
 				if (quickCopy != null) {
-					quickCopy.check(inf, tmp, dataOffset, (int) dataLength);
+					quickCopy.check(inf, tmp, dataOffset, (int) dataLength,
+							ctx);
 				} else {
 					long pos = dataOffset;
 					long cnt = dataLength;
@@ -614,7 +680,17 @@ long alignToBlock(long pos) {
 	}
 
 	DfsBlock getOrLoadBlock(long pos, DfsReader ctx) throws IOException {
-		return cache.getOrLoad(this, pos, ctx);
+		DfsBlock b = cache.getOrLoad(this, pos, ctx);
+		int limit = cache.getReadAheadLimit();
+		if (0 < limit && ctx.wantReadAhead())
+			ctx.getReadAheadWindow(key).accessed(this, b, limit, ctx);
+		return b;
+	}
+
+	void readAhead(long start, long end, DfsReader ctx) {
+		int size = blockSize;
+		if (0 < size)
+			cache.readAhead(this, size, start, end, ctx);
 	}
 
 	DfsBlock readOneBlock(long pos, DfsReader ctx)
@@ -622,7 +698,6 @@ DfsBlock readOneBlock(long pos, DfsReader ctx)
 		if (invalid)
 			throw new PackInvalidException(getPackName());
 
-		boolean close = true;
 		ReadableChannel rc = ctx.db.openFile(packDesc, PACK);
 		try {
 			// If the block alignment is not yet known, discover it. Prefer the
@@ -656,11 +731,13 @@ else if (size < cache.getBlockSize())
 						DfsText.get().shortReadOfBlock, Long.valueOf(pos),
 						getPackName(), Long.valueOf(0), Long.valueOf(0)));
 
-			byte[] buf = new byte[size];
 			rc.position(pos);
-			int cnt = IO.read(rc, buf, 0, size);
+			DfsBlock v = cache.read(key, pos, size, rc);
+			int cnt = v != null ? v.size() : -1;
 			if (cnt != size) {
-				if (0 <= len) {
+				if (0 <= len || v == null) {
+					if (v != null)
+						v.unpin();
 					throw new EOFException(MessageFormat.format(
 						    DfsText.get().shortReadOfBlock,
 						    Long.valueOf(pos),
@@ -669,24 +746,16 @@ else if (size < cache.getBlockSize())
 						    Integer.valueOf(cnt)));
 				}
 
-				// Assume the entire thing was read in a single shot, compact
-				// the buffer to only the space required.
-				byte[] n = new byte[cnt];
-				System.arraycopy(buf, 0, n, 0, n.length);
-				buf = n;
+				// Assume the entire thing was read in a single shot; the
+				// block was already compacted to only the space required.
 			} else if (len < 0) {
 				// With no length at the start of the read, the channel should
 				// have the length available at the end.
 				length = len = rc.size();
 			}
-
-			DfsBlock v = new DfsBlock(key, pos, buf);
-			if (v.end < len)
-				close = !cache.readAhead(rc, key, size, v.end, len, ctx);
 			return v;
 		} finally {
-			if (close)
-				rc.close();
+			rc.close();
 		}
 	}
 
@@ -45,16 +45,26 @@
 
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.eclipse.jgit.util.StripedCounter;
+
 final class DfsPackKey {
 	final int hash;
 
 	final AtomicLong cachedSize;
 
+	/** Requests {@link DfsBlockCache} answered for this pack from memory. */
+	final StripedCounter cacheHits;
+
+	/** Requests {@link DfsBlockCache} had to read from this pack. */
+	final StripedCounter cacheMisses;
+
 	DfsPackKey() {
 		// Multiply by 31 here so we can more directly combine with another
 		// value without doing the multiply there.
 		//
 		hash = System.identityHashCode(this) * 31;
 		cachedSize = new AtomicLong();
+		cacheHits = new StripedCounter();
+		cacheMisses = new StripedCounter();
 	}
 }
@@ -58,12 +58,15 @@
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -84,6 +87,8 @@
 import org.eclipse.jgit.revwalk.ObjectWalk;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.PackBitmapIndex;
+import org.eclipse.jgit.storage.pack.BitmapIndexSupport;
 import org.eclipse.jgit.storage.pack.CachedPack;
 import org.eclipse.jgit.storage.pack.ObjectReuseAsIs;
 import org.eclipse.jgit.storage.pack.ObjectToPack;
@@ -97,7 +102,8 @@
  * See the base {@link ObjectReader} documentation for details. Notably, a
  * reader is not thread safe.
  */
-public final class DfsReader extends ObjectReader implements ObjectReuseAsIs {
+public final class DfsReader extends ObjectReader implements ObjectReuseAsIs,
+		BitmapIndexSupport {
 	/** Temporary buffer large enough for at least one raw object id. */
 	final byte[] tempId = new byte[OBJECT_ID_LENGTH];
 
@@ -106,16 +112,26 @@ public final class DfsReader extends ObjectReader implements ObjectReuseAsIs {
 
 	private Inflater inf;
 
+	/** Block pinned by this reader; released when replaced. */
 	private DfsBlock block;
 
+	/** Buffer off-heap blocks copy their data through. */
+	private byte[] stride;
+
 	private DeltaBaseCache baseCache;
 
 	private DfsPackFile last;
 
 	private boolean wantReadAhead;
 
+	/** True while data is copied out once, such as to serve a clone. */
+	private boolean streaming;
+
 	private List<ReadAheadTask.BlockFuture> pendingReadAhead;
 
+	/** Sequential access detection, per pack read by this reader. */
+	private Map<DfsPackKey, ReadAheadWindow> readAheadWindows;
+
 	DfsReader(DfsObjDatabase db) {
 		this.db = db;
 	}
@@ -124,6 +140,13 @@ DfsReaderOptions getOptions() {
 		return db.getReaderOptions();
 	}
 
+	/** @return buffer to pass off-heap block data through the heap. */
+	byte[] getStrideBuffer() {
+		if (stride == null)
+			stride = new byte[DfsBlock.STRIDE_BUFFER_SIZE];
+		return stride;
+	}
+
 	DeltaBaseCache getDeltaBaseCache() {
 		if (baseCache == null)
 			baseCache = new DeltaBaseCache(this);
@@ -207,7 +230,7 @@ public int compare(FoundObject<?> a, FoundObject<?> b) {
 		}
 	};
 
-	private static class FoundObject<T extends ObjectId> {
+	static class FoundObject<T extends ObjectId> {
 		final T id;
 		final DfsPackFile pack;
 		final long offset;
@@ -228,7 +251,7 @@ public int compare(FoundObject<?> a, FoundObject<?> b) {
 		}
 	}
 
-	private <T extends ObjectId> Iterable<FoundObject<T>> findAll(
+	private <T extends ObjectId> List<FoundObject<T>> findAll(
 			Iterable<T> objectIds) throws IOException {
 		ArrayList<FoundObject<T>> r = new ArrayList<FoundObject<T>>();
 		DfsPackFile[] packList = db.getPacks();
@@ -280,9 +303,7 @@ private <T extends ObjectId> Iterable<FoundObject<T>> findAll(
 	@Override
 	public <T extends ObjectId> AsyncObjectLoaderQueue<T> open(
 			Iterable<T> objectIds, final boolean reportMissing) {
-		wantReadAhead = true;
-
-		Iterable<FoundObject<T>> order;
+		List<FoundObject<T>> order;
 		IOException error = null;
 		try {
 			order = findAll(objectIds);
@@ -291,6 +312,15 @@ public <T extends ObjectId> AsyncObjectLoaderQueue<T> open(
 			error = e;
 		}
 
+		ExecutorService svc = DfsBlockCache.getInstance().getAsyncReadService();
+		if (svc != null && error == null) {
+			DfsAsyncObjectLoaderQueue<T> q = new DfsAsyncObjectLoaderQueue<T>(
+					this, order, svc);
+			q.start();
+			return q;
+		}
+
+		wantReadAhead = true;
 		final Iterator<FoundObject<T>> idItr = order.iterator();
 		final IOException findAllError = error;
 		return new AsyncObjectLoaderQueue<T>() {
@@ -546,9 +576,11 @@ public void writeObjects(PackOutputStream out, List<ObjectToPack> list)
 
 		try {
 			wantReadAhead = true;
+			streaming = true;
 			for (ObjectToPack otp : list)
 				out.writeObject(otp);
 		} finally {
+			streaming = false;
 			cancelReadAhead();
 		}
 	}
@@ -564,6 +596,15 @@ public Collection<CachedPack> getCachedPacks() throws IOException {
 		return cached;
 	}
 
+	public PackBitmapIndex getBitmapIndex() throws IOException {
+		for (DfsPackFile pack : db.getPacks()) {
+			PackBitmapIndex bitmapIndex = pack.getBitmapIndex(this);
+			if (bitmapIndex != null)
+				return bitmapIndex;
+		}
+		return null;
+	}
+
 	private static boolean canBeCachedPack(DfsPackDescription desc) {
 		return desc.getTips() != null && !desc.getTips().isEmpty();
 	}
@@ -572,8 +613,10 @@ public void copyPackAsIs(PackOutputStream out, CachedPack pack,
 			boolean validate) throws IOException {
 		try {
 			wantReadAhead = true;
+			streaming = true;
 			((DfsCachedPack) pack).copyAsIs(out, validate, this);
 		} finally {
+			streaming = false;
 			cancelReadAhead();
 		}
 	}
@@ -693,7 +736,7 @@ int inflate(DfsPackFile pack, long position, byte[] dstbuf,
 		pin(pack, position);
 		int dstoff = 0;
 		for (;;) {
-			dstoff = block.inflate(inf, position, dstbuf, dstoff);
+			dstoff = block.inflate(inf, position, dstbuf, dstoff, this);
 
 			if (headerOnly && dstoff == dstbuf.length)
 				return dstoff;
@@ -733,9 +776,11 @@ void pin(DfsPackFile pack, long position) throws IOException {
 			// If memory is low, we may need what is in our window field to
 			// be cleaned up by the GC during the get for the next window.
 			// So we always clear it, even though we are just going to set
-			// it again.
+			// it again. Unpinning lets an off-heap block's slot be reused.
 			//
 			block = null;
+			if (b != null)
+				b.unpin();
 
 			if (pendingReadAhead != null)
 				waitForBlock(pack.key, position);
@@ -747,6 +792,25 @@ boolean wantReadAhead() {
 		return wantReadAhead;
 	}
 
+	/**
+	 * @return true if blocks are being read only to be copied out once, and
+	 *         should not displace more valuable blocks from the cache.
+	 */
+	boolean isStreaming() {
+		return streaming;
+	}
+
+	ReadAheadWindow getReadAheadWindow(DfsPackKey key) {
+		if (readAheadWindows == null)
+			readAheadWindows = new HashMap<DfsPackKey, ReadAheadWindow>();
+		ReadAheadWindow w = readAheadWindows.get(key);
+		if (w == null) {
+			w = new ReadAheadWindow();
+			readAheadWindows.put(key, w);
+		}
+		return w;
+	}
+
 	void startedReadAhead(List<ReadAheadTask.BlockFuture> blocks) {
 		if (pendingReadAhead == null)
 			pendingReadAhead = new LinkedList<ReadAheadTask.BlockFuture>();
@@ -759,6 +823,7 @@ private void cancelReadAhead() {
 				f.cancel(true);
 			pendingReadAhead = null;
 		}
+		readAheadWindows = null;
 		wantReadAhead = false;
 	}
 
@@ -789,7 +854,11 @@ private void waitForBlock(DfsPackKey key, long position)
 	public void release() {
 		cancelReadAhead();
 		last = null;
-		block = null;
+		if (block != null) {
+			block.unpin();
+			block = null;
+		}
+		stride = null;
 		baseCache = null;
 		try {
 			InflaterCache.release(inf);
@@ -53,7 +53,6 @@
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import org.eclipse.jgit.util.IO;
 
 final class ReadAheadTask implements Callable<Void> {
 	private final DfsBlockCache cache;
@@ -93,11 +92,14 @@ public Void call() {
 					channel.position(f.start);
 
 				int size = (int) (f.end - f.start);
-				byte[] buf = new byte[size];
-				if (IO.read(channel, buf, 0, size) != size)
+				DfsBlock v = cache.read(f.pack, f.start, size, channel);
+				if (v == null || v.size() != size) {
+					if (v != null)
+						v.unpin();
 					throw new EOFException();
+				}
 
-				cache.put(new DfsBlock(f.pack, f.start, buf));
+				cache.put(v, true);
 				f.done();
 				position = f.end;
 			}
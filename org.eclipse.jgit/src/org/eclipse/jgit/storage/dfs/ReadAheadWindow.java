@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.dfs;
+
+/**
+ * Sizes read-ahead of one {@link DfsReader} in one {@link DfsPackFile}.
+ * <p>
+ * Read-ahead starts once a reader moves to the block directly following the
+ * previous one. Each time the reader gets within half a window of the end of
+ * the data already read ahead, the window doubles, up to the cache's
+ * read-ahead limit. Any other access is treated as random and resets the
+ * window, so scattered reads do not load blocks nobody asked for.
+ * <p>
+ * Each reader keeps its own window for each pack, so readers scanning
+ * different parts of the same pack do not reset each other. Like the reader,
+ * a window is not thread-safe.
+ */
+final class ReadAheadWindow {
+	/** Position following the last block accessed. */
+	private long next = -1;
+
+	/** Number of bytes to keep read ahead of the reader; 0 if random. */
+	private long window;
+
+	/** End of the data requested by read-ahead so far. */
+	private long aheadEnd;
+
+	/** @return current size of the window in bytes; 0 while access is random. */
+	long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Record the access of a block, starting read-ahead if it is sequential.
+	 *
+	 * @param pack
+	 *            the pack the block belongs to.
+	 * @param b
+	 *            the block accessed.
+	 * @param limit
+	 *            maximum size of the window, in bytes.
+	 * @param ctx
+	 *            the reader accessing the block.
+	 */
+	void accessed(DfsPackFile pack, DfsBlock b, int limit, DfsReader ctx) {
+		long len = pack.length;
+		if (b.start != next) {
+			next = b.end;
+			window = 0;
+			aheadEnd = 0;
+			return;
+		}
+
+		next = b.end;
+		if (window == 0) {
+			window = b.size();
+			aheadEnd = b.end;
+		}
+		if (len < 0 || len <= aheadEnd || b.end + window / 2 < aheadEnd)
+			return;
+
+		window = Math.min(window * 2, limit);
+		long start = Math.max(aheadEnd, b.end);
+		long end = Math.min(b.end + window, len);
+		if (end <= start)
+			return;
+		aheadEnd = end;
+		pack.readAhead(start, end, ctx);
+	}
+}
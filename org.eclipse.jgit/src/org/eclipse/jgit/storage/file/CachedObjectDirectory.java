@@ -51,6 +51,7 @@
 
 import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitGraph;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectDatabase;
@@ -151,6 +152,16 @@ Collection<? extends CachedPack> getCachedPacks() throws IOException {
 		return wrapped.getCachedPacks();
 	}
 
+	@Override
+	PackBitmapIndex getBitmapIndex() throws IOException {
+		return wrapped.getBitmapIndex();
+	}
+
+	@Override
+	CommitGraph getCommitGraph() throws IOException {
+		return wrapped.getCommitGraph();
+	}
+
 	@Override
 	AlternateHandle[] myAlternates() {
 		if (alts == null) {
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitGraph;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.MutableObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * Support for the commit-graph v1 format.
+ * <p>
+ * The file is a header, a table of contents, and the chunks it names: the
+ * name fan-out table, the sorted commit names, the commit data and, if any
+ * commit has more than two parents, the extra edge list. The last 20 bytes
+ * are the SHA-1 of everything before them.
+ *
+ * @see CommitGraph
+ */
+class CommitGraphV1 extends CommitGraph {
+	static final byte[] SIGNATURE = { 'C', 'G', 'P', 'H' };
+
+	static final int VERSION = 1;
+
+	static final int HASH_VERSION_SHA1 = 1;
+
+	static final int HEADER_LENGTH = 8;
+
+	static final int CHUNK_LOOKUP_WIDTH = 12;
+
+	static final int CHUNK_ID_OID_FANOUT = 0x4f494446; /* "OIDF" */
+
+	static final int CHUNK_ID_OID_LOOKUP = 0x4f49444c; /* "OIDL" */
+
+	static final int CHUNK_ID_COMMIT_DATA = 0x43444154; /* "CDAT" */
+
+	static final int CHUNK_ID_EXTRA_EDGE_LIST = 0x45444745; /* "EDGE" */
+
+	static final int FANOUT_LENGTH = 256 * 4;
+
+	/** Tree, two parents, generation and commit time. */
+	static final int COMMIT_DATA_WIDTH = Constants.OBJECT_ID_LENGTH + 16;
+
+	static final int PARENT_NONE = 0x70000000;
+
+	static final int EXTRA_EDGES_NEEDED = 0x80000000;
+
+	static final int LAST_EDGE = 0x80000000;
+
+	private final byte[] data;
+
+	private final int[] fanout;
+
+	private final int commitCount;
+
+	private final int oidLookup;
+
+	private final int commitData;
+
+	private final int extraEdges;
+
+	CommitGraphV1(InputStream fd) throws IOException {
+		ByteBuffer buf = IO.readWholeStream(fd, 0);
+		data = buf.array();
+		final int len = buf.limit();
+		if (len < HEADER_LENGTH + Constants.OBJECT_ID_LENGTH)
+			throw new CorruptObjectException(JGitText.get().corruptCommitGraph);
+
+		final byte[] sig = new byte[SIGNATURE.length];
+		System.arraycopy(data, 0, sig, 0, sig.length);
+		if (!Arrays.equals(SIGNATURE, sig))
+			throw new CorruptObjectException(MessageFormat.format(
+					JGitText.get().expectedGot, Arrays.toString(SIGNATURE),
+					Arrays.toString(sig)));
+
+		final int version = data[4] & 0xff;
+		if (version != VERSION)
+			throw new IOException(MessageFormat.format(
+					JGitText.get().unsupportedCommitGraphVersion,
+					Integer.valueOf(version)));
+		final int hashVersion = data[5] & 0xff;
+		if (hashVersion != HASH_VERSION_SHA1)
+			throw new IOException(MessageFormat.format(
+					JGitText.get().unsupportedCommitGraphVersion,
+					Integer.valueOf(hashVersion)));
+
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(data, 0, len - Constants.OBJECT_ID_LENGTH);
+		final byte[] sum = md.digest();
+		for (int i = 0; i < sum.length; i++) {
+			if (sum[i] != data[len - Constants.OBJECT_ID_LENGTH + i])
+				throw new CorruptObjectException(
+						JGitText.get().corruptCommitGraph);
+		}
+
+		final int chunkCount = data[6] & 0xff;
+		final int end = len - Constants.OBJECT_ID_LENGTH;
+		int fanoutPos = -1, lookupPos = -1, dataPos = -1, edgePos = -1;
+		int ptr = HEADER_LENGTH;
+		for (int i = 0; i < chunkCount; i++, ptr += CHUNK_LOOKUP_WIDTH) {
+			if (end < ptr + 2 * CHUNK_LOOKUP_WIDTH)
+				throw new CorruptObjectException(
+						JGitText.get().corruptCommitGraph);
+			final int id = NB.decodeInt32(data, ptr);
+			final long off = NB.decodeUInt64(data, ptr + 4);
+			if (off < HEADER_LENGTH || end < off)
+				throw new CorruptObjectException(
+						JGitText.get().corruptCommitGraph);
+			switch (id) {
+			case CHUNK_ID_OID_FANOUT:
+				fanoutPos = (int) off;
+				break;
+			case CHUNK_ID_OID_LOOKUP:
+				lookupPos = (int) off;
+				break;
+			case CHUNK_ID_COMMIT_DATA:
+				dataPos = (int) off;
+				break;
+			case CHUNK_ID_EXTRA_EDGE_LIST:
+				edgePos = (int) off;
+				break;
+			default:
+				// Unknown chunks are optional, and may be ignored.
+				break;
+			}
+		}
+		if (fanoutPos < 0 || lookupPos < 0 || dataPos < 0
+				|| end < fanoutPos + FANOUT_LENGTH)
+			throw new CorruptObjectException(JGitText.get().corruptCommitGraph);
+
+		fanout = new int[256];
+		for (int k = 0; k < 256; k++)
+			fanout[k] = NB.decodeInt32(data, fanoutPos + k * 4);
+		commitCount = fanout[255];
+		if (commitCount < 0
+				|| end < lookupPos + (long) commitCount
+						* Constants.OBJECT_ID_LENGTH
+				|| end < dataPos + (long) commitCount * COMMIT_DATA_WIDTH)
+			throw new CorruptObjectException(JGitText.get().corruptCommitGraph);
+
+		oidLookup = lookupPos;
+		commitData = dataPos;
+		extraEdges = edgePos;
+	}
+
+	@Override
+	public int findGraphPosition(AnyObjectId commitId) {
+		final int levelOne = commitId.getFirstByte();
+		int low = levelOne == 0 ? 0 : fanout[levelOne - 1];
+		int high = fanout[levelOne];
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = commitId.compareTo(data, oidLookup + mid
+					* Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	@Override
+	public ObjectId getObjectId(int position) {
+		return ObjectId.fromRaw(data, oidLookup + checkPosition(position)
+				* Constants.OBJECT_ID_LENGTH);
+	}
+
+	@Override
+	public void getObjectId(int position, MutableObjectId dst) {
+		dst.fromRaw(data, oidLookup + checkPosition(position)
+				* Constants.OBJECT_ID_LENGTH);
+	}
+
+	@Override
+	public void getTree(int position, MutableObjectId dst) {
+		dst.fromRaw(data, entry(position));
+	}
+
+	@Override
+	public int getParentCount(int position) {
+		final int ptr = entry(position) + Constants.OBJECT_ID_LENGTH;
+		if (NB.decodeInt32(data, ptr) == PARENT_NONE)
+			return 0;
+		final int p2 = NB.decodeInt32(data, ptr + 4);
+		if (p2 == PARENT_NONE)
+			return 1;
+		if ((p2 & EXTRA_EDGES_NEEDED) == 0)
+			return 2;
+		int cnt = 2;
+		int edge = edge(p2 & ~EXTRA_EDGES_NEEDED);
+		while ((NB.decodeInt32(data, edge) & LAST_EDGE) == 0) {
+			edge += 4;
+			cnt++;
+		}
+		return cnt;
+	}
+
+	@Override
+	public int getParent(int position, int nth) {
+		final int ptr = entry(position) + Constants.OBJECT_ID_LENGTH;
+		if (nth == 0)
+			return NB.decodeInt32(data, ptr);
+		final int p2 = NB.decodeInt32(data, ptr + 4);
+		if ((p2 & EXTRA_EDGES_NEEDED) == 0)
+			return p2;
+		final int edge = edge((p2 & ~EXTRA_EDGES_NEEDED) + nth - 1);
+		return NB.decodeInt32(data, edge) & ~LAST_EDGE;
+	}
+
+	@Override
+	public long getCommitTime(int position) {
+		final int ptr = entry(position) + Constants.OBJECT_ID_LENGTH + 8;
+		final long high = NB.decodeInt32(data, ptr) & 0x3;
+		return (high << 32) | NB.decodeUInt32(data, ptr + 4);
+	}
+
+	@Override
+	public int getGeneration(int position) {
+		final int ptr = entry(position) + Constants.OBJECT_ID_LENGTH + 8;
+		return NB.decodeInt32(data, ptr) >>> 2;
+	}
+
+	@Override
+	public int getCommitCount() {
+		return commitCount;
+	}
+
+	private int checkPosition(int position) {
+		if (position < 0 || commitCount <= position)
+			throw new ArrayIndexOutOfBoundsException(position);
+		return position;
+	}
+
+	private int entry(int position) {
+		return commitData + checkPosition(position) * COMMIT_DATA_WIDTH;
+	}
+
+	private int edge(int index) {
+		if (extraEdges < 0)
+			throw new ArrayIndexOutOfBoundsException(index);
+		return extraEdges + index * 4;
+	}
+}
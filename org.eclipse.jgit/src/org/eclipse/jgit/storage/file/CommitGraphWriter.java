@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitGraph;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.NB;
+import org.eclipse.jgit.util.io.SafeBufferedOutputStream;
+
+/**
+ * Creates the version 1 commit-graph file.
+ *
+ * @see CommitGraphV1
+ */
+public class CommitGraphWriter {
+	private final DigestOutputStream out;
+
+	private final byte[] buf;
+
+	private ObjectIdOwnerMap<Node> nodes;
+
+	private List<Node> sorted;
+
+	private int extraEdgeCount;
+
+	/**
+	 * Creates the version 1 commit-graph file.
+	 *
+	 * @param dst
+	 *            the output stream to which the graph will be written. If not
+	 *            already buffered it will be automatically wrapped in a
+	 *            buffered stream.
+	 */
+	public CommitGraphWriter(final OutputStream dst) {
+		out = new DigestOutputStream(dst instanceof BufferedOutputStream ? dst
+				: new SafeBufferedOutputStream(dst),
+				Constants.newMessageDigest());
+		buf = new byte[CommitGraphV1.COMMIT_DATA_WIDTH];
+	}
+
+	/**
+	 * Write the graph of all commits reachable from the given tips.
+	 * <p>
+	 * Tips that do not exist are skipped, and annotated tags are peeled. Tips
+	 * which are not commits once peeled are ignored.
+	 * <p>
+	 * After writing the stream passed to the factory is flushed but remains
+	 * open. Callers are always responsible for closing the output stream.
+	 *
+	 * @param pm
+	 *            progress monitor to report the number of commits written.
+	 * @param reader
+	 *            reader to parse the commits with.
+	 * @param tips
+	 *            the commits to start the traversal from.
+	 * @return number of commits written to the graph.
+	 * @throws IOException
+	 *             a commit could not be read, or an error occurred while
+	 *             writing to the output stream.
+	 */
+	public int write(ProgressMonitor pm, ObjectReader reader,
+			Collection<? extends ObjectId> tips) throws IOException {
+		findCommits(reader, tips);
+
+		pm.beginTask(JGitText.get().writingCommitGraph, sorted.size());
+		writeHeader();
+		writeFanout();
+		for (Node n : sorted)
+			n.copyRawTo(out);
+		writeCommitData(pm);
+		writeExtraEdges();
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+		pm.endTask();
+		return sorted.size();
+	}
+
+	private void findCommits(ObjectReader reader,
+			Collection<? extends ObjectId> tips) throws IOException {
+		final RevWalk rw = new RevWalk(reader);
+		rw.setRetainBody(false);
+		rw.sort(RevSort.TOPO);
+		rw.sort(RevSort.REVERSE, true);
+		for (ObjectId id : tips) {
+			final RevObject o;
+			try {
+				o = rw.peel(rw.parseAny(id));
+			} catch (MissingObjectException notFound) {
+				continue;
+			}
+			if (o instanceof RevCommit)
+				rw.markStart((RevCommit) o);
+		}
+
+		// Parents are always produced before their children, so the
+		// generation of every parent is known when the child is reached.
+		nodes = new ObjectIdOwnerMap<Node>();
+		sorted = new ArrayList<Node>();
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			final RevCommit[] parents = c.getParents();
+			final Node[] p = new Node[parents.length];
+			int generation = 0;
+			for (int i = 0; i < parents.length; i++) {
+				p[i] = nodes.get(parents[i]);
+				generation = Math.max(generation, p[i].generation);
+			}
+			final Node n = new Node(c, c.getTree(), p);
+			n.commitTime = c.getCommitTime() & 0xffffffffL;
+			n.generation = Math.min(generation + 1,
+					CommitGraph.GENERATION_NUMBER_MAX);
+			nodes.add(n);
+			sorted.add(n);
+			if (2 < p.length)
+				extraEdgeCount += p.length - 1;
+		}
+
+		Collections.sort(sorted, new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return a.compareTo(b);
+			}
+		});
+		for (int i = 0; i < sorted.size(); i++)
+			sorted.get(i).position = i;
+	}
+
+	private void writeHeader() throws IOException {
+		final int chunkCount = 0 < extraEdgeCount ? 4 : 3;
+		out.write(CommitGraphV1.SIGNATURE);
+		out.write(CommitGraphV1.VERSION);
+		out.write(CommitGraphV1.HASH_VERSION_SHA1);
+		out.write(chunkCount);
+		out.write(0); // no base graphs
+
+		final int n = sorted.size();
+		long off = CommitGraphV1.HEADER_LENGTH + (chunkCount + 1)
+				* CommitGraphV1.CHUNK_LOOKUP_WIDTH;
+		writeChunk(CommitGraphV1.CHUNK_ID_OID_FANOUT, off);
+		off += CommitGraphV1.FANOUT_LENGTH;
+		writeChunk(CommitGraphV1.CHUNK_ID_OID_LOOKUP, off);
+		off += (long) n * Constants.OBJECT_ID_LENGTH;
+		writeChunk(CommitGraphV1.CHUNK_ID_COMMIT_DATA, off);
+		off += (long) n * CommitGraphV1.COMMIT_DATA_WIDTH;
+		if (0 < extraEdgeCount) {
+			writeChunk(CommitGraphV1.CHUNK_ID_EXTRA_EDGE_LIST, off);
+			off += extraEdgeCount * 4L;
+		}
+		writeChunk(0, off);
+	}
+
+	private void writeChunk(int id, long offset) throws IOException {
+		NB.encodeInt32(buf, 0, id);
+		NB.encodeInt64(buf, 4, offset);
+		out.write(buf, 0, CommitGraphV1.CHUNK_LOOKUP_WIDTH);
+	}
+
+	private void writeFanout() throws IOException {
+		final byte[] tmp = new byte[4];
+		int i = 0;
+		for (int k = 0; k < 256; k++) {
+			while (i < sorted.size() && sorted.get(i).getFirstByte() == k)
+				i++;
+			NB.encodeInt32(tmp, 0, i);
+			out.write(tmp, 0, 4);
+		}
+	}
+
+	private void writeCommitData(ProgressMonitor pm) throws IOException {
+		int edge = 0;
+		for (Node n : sorted) {
+			n.tree.copyRawTo(buf, 0);
+			final int ptr = Constants.OBJECT_ID_LENGTH;
+			final Node[] p = n.parents;
+			if (p.length == 0) {
+				NB.encodeInt32(buf, ptr, CommitGraphV1.PARENT_NONE);
+				NB.encodeInt32(buf, ptr + 4, CommitGraphV1.PARENT_NONE);
+			} else if (p.length == 1) {
+				NB.encodeInt32(buf, ptr, p[0].position);
+				NB.encodeInt32(buf, ptr + 4, CommitGraphV1.PARENT_NONE);
+			} else if (p.length == 2) {
+				NB.encodeInt32(buf, ptr, p[0].position);
+				NB.encodeInt32(buf, ptr + 4, p[1].position);
+			} else {
+				NB.encodeInt32(buf, ptr, p[0].position);
+				NB.encodeInt32(buf, ptr + 4, CommitGraphV1.EXTRA_EDGES_NEEDED
+						| edge);
+				edge += p.length - 1;
+			}
+			NB.encodeInt32(buf, ptr + 8, (n.generation << 2)
+					| (int) ((n.commitTime >>> 32) & 0x3));
+			NB.encodeInt32(buf, ptr + 12, (int) n.commitTime);
+			out.write(buf, 0, CommitGraphV1.COMMIT_DATA_WIDTH);
+			pm.update(1);
+		}
+	}
+
+	private void writeExtraEdges() throws IOException {
+		final byte[] tmp = new byte[4];
+		for (Node n : sorted) {
+			final Node[] p = n.parents;
+			if (p.length <= 2)
+				continue;
+			for (int i = 1; i < p.length; i++) {
+				int v = p[i].position;
+				if (i == p.length - 1)
+					v |= CommitGraphV1.LAST_EDGE;
+				NB.encodeInt32(tmp, 0, v);
+				out.write(tmp, 0, 4);
+			}
+		}
+	}
+
+	private static final class Node extends ObjectIdOwnerMap.Entry {
+		final ObjectId tree;
+
+		final Node[] parents;
+
+		long commitTime;
+
+		int generation;
+
+		int position;
+
+		Node(AnyObjectId id, ObjectId tree, Node[] parents) {
+			super(id);
+			this.tree = tree;
+			this.parents = parents;
+		}
+	}
+}
@@ -44,121 +44,194 @@
 package org.eclipse.jgit.storage.file;
 
 import java.lang.ref.SoftReference;
-
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches inflated delta bases, shared by all {@link WindowCursor}s.
+ * <p>
+ * Bases are keyed by the {@link PackFile} and the offset of the base within
+ * it, so readers resolving deltas against the same popular bases share one
+ * copy instead of each inflating their own.
+ * <p>
+ * The cache is split into segments, each with its own lock, hash table and
+ * LRU list; a key always maps to the same segment. The byte limit applies to
+ * the cache as a whole. Requests and insertions are counted in a
+ * {@link FrequencySketch}. Once the cache is full a new base is only admitted
+ * if it was requested at least as often as the base it would displace, so a
+ * burst of bases used once does not flush the popular ones.
+ * Bases are held through {@link SoftReference}s and may still be discarded by
+ * the garbage collector when memory runs low.
+ */
 class DeltaBaseCache {
-	private static final int CACHE_SZ = 1024;
+	private static final int SEGMENTS = 16;
+
+	/** Returned by {@link Segment#lruHash()} for an empty segment. */
+	private static final long NO_HASH = Long.MIN_VALUE;
 
-	private static final SoftReference<Entry> DEAD;
+	/** Expected size of an average base, to size the frequency sketch. */
+	private static final int AVG_BASE_SIZE = 1024;
 
-	private static int hash(final long position) {
-		return (((int) position) << 22) >>> 22;
+	private static volatile DeltaBaseCache cache;
+
+	static {
+		reconfigure(new WindowCacheConfig());
 	}
 
-	private static volatile int defaultMaxByteCount;
+	static void reconfigure(WindowCacheConfig cfg) {
+		final DeltaBaseCache nc = new DeltaBaseCache(cfg);
+		cache = nc;
+		if (cfg.isExposeStatsViaJmx())
+			nc.stats.publish();
+	}
 
-	private final int maxByteCount;
+	static DeltaBaseCache getInstance() {
+		return cache;
+	}
 
-	private final Slot[] cache;
+	static void purge(final PackFile pack) {
+		cache.removeAll(pack);
+	}
 
-	private Slot lruHead;
+	private final long maxByteCount;
 
-	private Slot lruTail;
+	private final Segment[] segments;
 
-	private int openByteCount;
+	private final FrequencySketch sketch;
 
-	static {
-		DEAD = new SoftReference<Entry>(null);
-		reconfigure(new WindowCacheConfig());
-	}
+	private final AtomicLong openByteCount;
 
-	static void reconfigure(WindowCacheConfig cfg) {
-		defaultMaxByteCount = cfg.getDeltaBaseCacheLimit();
-	}
+	/** Segment the next eviction starts from, when the own one is empty. */
+	private final AtomicInteger evictFrom;
+
+	final DeltaBaseCacheStats stats;
 
-	DeltaBaseCache() {
-		maxByteCount = defaultMaxByteCount;
-		cache = new Slot[CACHE_SZ];
+	private DeltaBaseCache(WindowCacheConfig cfg) {
+		maxByteCount = cfg.getDeltaBaseCacheLimit();
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment();
+		sketch = new FrequencySketch(maxByteCount / AVG_BASE_SIZE);
+		openByteCount = new AtomicLong();
+		evictFrom = new AtomicInteger();
+		stats = new DeltaBaseCacheStats(this);
 	}
 
 	Entry get(final PackFile pack, final long position) {
-		Slot e = cache[hash(position)];
-		if (e == null)
-			return null;
-		if (e.provider == pack && e.position == position) {
-			final Entry buf = e.data.get();
-			if (buf != null) {
-				moveToHead(e);
-				return buf;
-			}
-		}
-		return null;
+		final int h = hash(pack, position);
+		sketch.increment(h);
+		final Entry e = segment(h).get(pack, position, h);
+		if (e != null)
+			stats.hit();
+		else
+			stats.miss();
+		return e;
 	}
 
 	void store(final PackFile pack, final long position,
 			final byte[] data, final int objectType) {
 		if (data.length > maxByteCount)
 			return; // Too large to cache.
-
-		Slot e = cache[hash(position)];
-		if (e == null) {
-			e = new Slot();
-			cache[hash(position)] = e;
-		} else {
-			clearEntry(e);
+		if (pack.closed())
+			return; // Already purged, the base would never be used.
+
+		// Reserve the space before the admission check, so concurrent
+		// stores each see the bytes the others are about to add.
+		//
+		final int h = hash(pack, position);
+		final Segment s = segment(h);
+		final long reserved = openByteCount.addAndGet(data.length);
+		if (maxByteCount < reserved && !admit(h, s)) {
+			openByteCount.addAndGet(-data.length);
+			stats.rejected();
+			return;
 		}
+		final int added = s.put(pack, position, h, new Entry(data, objectType));
+		long open = openByteCount.addAndGet(added - data.length);
+
+		// close() may have purged the pack while the base was inserted.
+		if (pack.closed())
+			open = openByteCount.addAndGet(-s.remove(pack, position, h));
+		if (open > maxByteCount)
+			releaseMemory(s);
+	}
 
-		openByteCount += data.length;
-		releaseMemory();
+	long getOpenByteCount() {
+		return openByteCount.get();
+	}
 
-		e.provider = pack;
-		e.position = position;
-		e.sz = data.length;
-		e.data = new SoftReference<Entry>(new Entry(data, objectType));
-		moveToHead(e);
+	long getEntryCount() {
+		long n = 0;
+		for (Segment s : segments)
+			n += s.count();
+		return n;
 	}
 
-	private void releaseMemory() {
-		while (openByteCount > maxByteCount && lruTail != null) {
-			final Slot currOldest = lruTail;
-			final Slot nextOldest = currOldest.lruPrev;
+	/**
+	 * Sum the bytes cached for each pack.
+	 *
+	 * @param dst
+	 *            map to add the sizes to.
+	 */
+	void getOpenBytes(Map<PackFile, Long> dst) {
+		for (Segment s : segments)
+			s.getOpenBytes(dst);
+	}
 
-			clearEntry(currOldest);
-			currOldest.lruPrev = null;
-			currOldest.lruNext = null;
+	private void removeAll(final PackFile pack) {
+		for (Segment s : segments)
+			openByteCount.addAndGet(-s.removeAll(pack));
+	}
 
-			if (nextOldest == null)
-				lruHead = null;
-			else
-				nextOldest.lruNext = null;
-			lruTail = nextOldest;
+	/**
+	 * Check whether a base may displace the base evicted to make room.
+	 * <p>
+	 * The victim is chosen as {@link #releaseMemory(Segment)} does: the least
+	 * recently used base of the segment, or of the next segment that has one.
+	 *
+	 * @return true if the base was requested at least as often as the base
+	 *         that would be evicted for it.
+	 */
+	private boolean admit(final int h, final Segment own) {
+		long victim = own.lruHash();
+		int i = evictFrom.get();
+		for (int n = 0; victim == NO_HASH && n < SEGMENTS; n++) {
+			i = (i + 1) % SEGMENTS;
+			victim = segments[i].lruHash();
 		}
+		return victim == NO_HASH
+				|| sketch.frequency((int) victim) <= sketch.frequency(h);
 	}
 
-	private void moveToHead(final Slot e) {
-		unlink(e);
-		e.lruPrev = null;
-		e.lruNext = lruHead;
-		if (lruHead != null)
-			lruHead.lruPrev = e;
-		else
-			lruTail = e;
-		lruHead = e;
+	private void releaseMemory(final Segment own) {
+		// Evict from the segment that grew first; if it has nothing left
+		// to give, take the least recently used bases of the others.
+		//
+		while (openByteCount.get() > maxByteCount) {
+			int freed = own.evictOne();
+			if (freed == 0) {
+				int i = evictFrom.get();
+				for (int n = 0; freed == 0 && n < SEGMENTS; n++) {
+					i = (i + 1) % SEGMENTS;
+					freed = segments[i].evictOne();
+				}
+				evictFrom.set(i);
+				if (freed == 0)
+					return;
+			}
+			openByteCount.addAndGet(-freed);
+			stats.evicted();
+		}
 	}
 
-	private void unlink(final Slot e) {
-		final Slot prev = e.lruPrev;
-		final Slot next = e.lruNext;
-		if (prev != null)
-			prev.lruNext = next;
-		if (next != null)
-			next.lruPrev = prev;
+	private Segment segment(final int h) {
+		return segments[(h >>> 28) % SEGMENTS];
 	}
 
-	private void clearEntry(final Slot e) {
-		openByteCount -= e.sz;
-		e.provider = null;
-		e.data = DEAD;
-		e.sz = 0;
+	private static int hash(final PackFile pack, final long position) {
+		final int h = pack.hash + (int) position + (int) (position >>> 32);
+		return h * 0x9e3779b9;
 	}
 
 	static class Entry {
@@ -172,17 +245,193 @@ static class Entry {
 		}
 	}
 
-	private static class Slot {
-		Slot lruPrev;
+	/** One lock's worth of the cache: a chained hash table and LRU list. */
+	private static final class Segment {
+		private static final int INITIAL_SIZE = 64;
 
-		Slot lruNext;
+		private Slot[] table = new Slot[INITIAL_SIZE];
+
+		private int count;
+
+		private Slot lruHead;
+
+		private Slot lruTail;
+
+		synchronized Entry get(PackFile pack, long position, int h) {
+			final Slot e = find(pack, position, h);
+			if (e == null)
+				return null;
+			final Entry buf = e.data.get();
+			if (buf == null)
+				return null;
+			moveToHead(e);
+			return buf;
+		}
+
+		/**
+		 * Insert a base.
+		 *
+		 * @return change of the segment's size in bytes.
+		 */
+		synchronized int put(PackFile pack, long position, int h, Entry v) {
+			Slot e = find(pack, position, h);
+			if (e != null) {
+				int delta = v.data.length - e.sz;
+				e.sz = v.data.length;
+				e.data = new SoftReference<Entry>(v);
+				moveToHead(e);
+				return delta;
+			}
+
+			if (count >= table.length * 2)
+				grow();
+			e = new Slot(pack, position, h, v);
+			final int idx = h & (table.length - 1);
+			e.next = table[idx];
+			table[idx] = e;
+			count++;
+			moveToHead(e);
+			return e.sz;
+		}
 
-		PackFile provider;
+		/**
+		 * @return hash of the least recently used base; {@link #NO_HASH} if
+		 *         the segment is empty.
+		 */
+		synchronized long lruHash() {
+			return lruTail != null ? lruTail.hash : NO_HASH;
+		}
 
-		long position;
+		/** @return bytes released; 0 if the segment is empty. */
+		synchronized int evictOne() {
+			final Slot e = lruTail;
+			if (e == null)
+				return 0;
+			remove(e);
+			return e.sz;
+		}
+
+		/** @return bytes released; 0 if the base is not cached. */
+		synchronized int remove(PackFile pack, long position, int h) {
+			final Slot e = find(pack, position, h);
+			if (e == null)
+				return 0;
+			remove(e);
+			return e.sz;
+		}
+
+		synchronized long removeAll(PackFile pack) {
+			long freed = 0;
+			for (Slot e = lruHead; e != null;) {
+				final Slot next = e.lruNext;
+				if (e.pack == pack) {
+					remove(e);
+					freed += e.sz;
+				}
+				e = next;
+			}
+			return freed;
+		}
+
+		synchronized int count() {
+			return count;
+		}
+
+		synchronized void getOpenBytes(Map<PackFile, Long> dst) {
+			for (Slot e = lruHead; e != null; e = e.lruNext) {
+				final Long n = dst.get(e.pack);
+				final long sz = n != null ? n.longValue() + e.sz : e.sz;
+				dst.put(e.pack, Long.valueOf(sz));
+			}
+		}
+
+		private Slot find(PackFile pack, long position, int h) {
+			for (Slot e = table[h & (table.length - 1)]; e != null; e = e.next) {
+				if (e.hash == h && e.pack == pack && e.position == position)
+					return e;
+			}
+			return null;
+		}
+
+		private void remove(Slot e) {
+			final int idx = e.hash & (table.length - 1);
+			if (table[idx] == e)
+				table[idx] = e.next;
+			else {
+				Slot p = table[idx];
+				while (p.next != e)
+					p = p.next;
+				p.next = e.next;
+			}
+			count--;
+			unlink(e);
+		}
+
+		private void grow() {
+			final Slot[] old = table;
+			table = new Slot[old.length * 2];
+			for (Slot e : old) {
+				while (e != null) {
+					final Slot next = e.next;
+					final int idx = e.hash & (table.length - 1);
+					e.next = table[idx];
+					table[idx] = e;
+					e = next;
+				}
+			}
+		}
+
+		private void moveToHead(final Slot e) {
+			if (lruHead == e)
+				return;
+			unlink(e);
+			e.lruNext = lruHead;
+			if (lruHead != null)
+				lruHead.lruPrev = e;
+			else
+				lruTail = e;
+			lruHead = e;
+		}
+
+		private void unlink(final Slot e) {
+			final Slot prev = e.lruPrev;
+			final Slot next = e.lruNext;
+			if (prev != null)
+				prev.lruNext = next;
+			else if (lruHead == e)
+				lruHead = next;
+			if (next != null)
+				next.lruPrev = prev;
+			else if (lruTail == e)
+				lruTail = prev;
+			e.lruPrev = null;
+			e.lruNext = null;
+		}
+	}
+
+	private static final class Slot {
+		final PackFile pack;
+
+		final long position;
+
+		final int hash;
+
+		Slot next;
+
+		Slot lruPrev;
+
+		Slot lruNext;
 
 		int sz;
 
-		SoftReference<Entry> data = DEAD;
+		SoftReference<Entry> data;
+
+		Slot(PackFile pack, long position, int hash, Entry v) {
+			this.pack = pack;
+			this.position = position;
+			this.hash = hash;
+			this.sz = v.data.length;
+			this.data = new SoftReference<Entry>(v);
+		}
 	}
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.storage.pack.CacheStats;
+import org.eclipse.jgit.storage.pack.PackExt;
+import org.eclipse.jgit.util.StripedCounter;
+
+/**
+ * Statistics of the shared {@link DeltaBaseCache}, published as
+ * {@code DeltaBaseCache}.
+ * <p>
+ * Bases rejected by the admission policy were never in the cache, and are
+ * counted by {@link #getRejectedCount()} rather than as evictions.
+ */
+final class DeltaBaseCacheStats extends CacheStats {
+	private final DeltaBaseCache cache;
+
+	private final StripedCounter rejected;
+
+	DeltaBaseCacheStats(DeltaBaseCache cache) {
+		this.cache = cache;
+		this.rejected = new StripedCounter();
+	}
+
+	void publish() {
+		register("DeltaBaseCache", this); //$NON-NLS-1$
+	}
+
+	void hit() {
+		recordHit(PackExt.PACK);
+	}
+
+	void miss() {
+		recordMiss(PackExt.PACK);
+	}
+
+	void evicted() {
+		recordEviction(PackExt.PACK);
+	}
+
+	void rejected() {
+		rejected.increment();
+	}
+
+	/** @return number of bases not admitted into the full cache. */
+	long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getOpenFileCount() {
+		return 0;
+	}
+
+	public long getOpenByteCount() {
+		return cache.getOpenByteCount();
+	}
+
+	public Map<String, Long> getOpenByteCountByExt() {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		add(r, PackExt.PACK, cache.getOpenByteCount());
+		return r;
+	}
+
+	public Map<String, Long> getHitCountByPack() {
+		return Collections.emptyMap();
+	}
+
+	public Map<String, Long> getMissCountByPack() {
+		return Collections.emptyMap();
+	}
+
+	public Map<String, Long> getOpenByteCountByPack() {
+		Map<PackFile, Long> bytes = new HashMap<PackFile, Long>();
+		cache.getOpenBytes(bytes);
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for (Map.Entry<PackFile, Long> e : bytes.entrySet())
+			add(r, e.getKey().getPackFile().getName(), e.getValue().longValue());
+		return r;
+	}
+
+	@Override
+	public void resetCounters() {
+		super.resetCounters();
+		rejected.reset();
+	}
+}
@@ -50,6 +50,7 @@
 
 import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitGraph;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectDatabase;
 import org.eclipse.jgit.lib.ObjectId;
@@ -265,6 +266,10 @@ abstract void selectObjectRepresentation(PackWriter packer,
 	abstract Collection<? extends CachedPack> getCachedPacks()
 			throws IOException;
 
+	abstract PackBitmapIndex getBitmapIndex() throws IOException;
+
+	abstract CommitGraph getCommitGraph() throws IOException;
+
 	abstract AlternateHandle[] myAlternates();
 
 	abstract boolean tryAgain1();
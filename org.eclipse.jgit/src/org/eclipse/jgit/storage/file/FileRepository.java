@@ -102,7 +102,7 @@ public class FileRepository extends Repository {
 
 	private final FileBasedConfig repoConfig;
 
-	private final RefDatabase refs;
+	private RefDatabase refs;
 
 	private final ObjectDirectory objectDatabase;
 
@@ -174,7 +174,10 @@ public void onConfigChanged(ConfigChangedEvent event) {
 			}
 		});
 
-		refs = new RefDirectory(this);
+		if (useReftable())
+			refs = new ReftableDatabase(this);
+		else
+			refs = new RefDirectory(this);
 		objectDatabase = new ObjectDirectory(repoConfig, //
 				options.getObjectDirectory(), //
 				options.getAlternateObjectDirectories(), //
@@ -185,16 +188,58 @@ public void onConfigChanged(ConfigChangedEvent event) {
 			final long repositoryFormatVersion = getConfig().getLong(
 					ConfigConstants.CONFIG_CORE_SECTION, null,
 					ConfigConstants.CONFIG_KEY_REPO_FORMAT_VERSION, 0);
-			if (repositoryFormatVersion > 0)
+			if (repositoryFormatVersion > 1)
 				throw new IOException(MessageFormat.format(
 						JGitText.get().unknownRepositoryFormat2,
 						Long.valueOf(repositoryFormatVersion)));
+			if (repositoryFormatVersion == 1)
+				checkExtensions();
 		}
 
 		if (!isBare())
 			snapshot = FileSnapshot.save(getIndexFile());
 	}
 
+	/**
+	 * Check if refs are stored in tables rather than loose files.
+	 * <p>
+	 * An existing repository uses tables if {@code extensions.refStorage} is
+	 * {@link ReftableDatabase#REFTABLE}. New repositories only use them if
+	 * created by {@link #createWithRefTables(boolean)}.
+	 */
+	private boolean useReftable() {
+		return repoConfig.getFile().exists()
+				&& ReftableDatabase.REFTABLE.equals(repoConfig.getString(
+						ConfigConstants.CONFIG_EXTENSIONS_SECTION, null,
+						ConfigConstants.CONFIG_KEY_REFSTORAGE));
+	}
+
+	/**
+	 * Verify a version 1 repository uses only extensions we implement.
+	 * <p>
+	 * The only version 1 repositories supported are those storing refs in
+	 * tables, which is the one extension known.
+	 *
+	 * @throws IOException
+	 *             an extension is not known, or refs are not in tables.
+	 */
+	private void checkExtensions() throws IOException {
+		for (String name : repoConfig
+				.getNames(ConfigConstants.CONFIG_EXTENSIONS_SECTION)) {
+			String value = repoConfig.getString(
+					ConfigConstants.CONFIG_EXTENSIONS_SECTION, null, name);
+			if (!ConfigConstants.CONFIG_KEY_REFSTORAGE.equalsIgnoreCase(name)
+					|| !ReftableDatabase.REFTABLE.equals(value))
+				throw new IOException(MessageFormat.format(
+						JGitText.get().unknownRepositoryExtension, name,
+						value));
+		}
+		if (!(refs instanceof ReftableDatabase))
+			throw new IOException(MessageFormat.format(
+					JGitText.get().unknownRepositoryFormat2,
+					Long.valueOf(1)));
+	}
+
 	private void loadSystemConfig() throws IOException {
 		try {
 			systemConfig.load();
@@ -272,8 +317,12 @@ public void create(boolean bare) throws IOException {
 			fileMode = false;
 		}
 
+		// Tools not knowing JGit's ref tables must not look for loose refs,
+		// so they need version 1 and an extension value only JGit knows.
+		boolean reftable = refs instanceof ReftableDatabase;
 		cfg.setInt(ConfigConstants.CONFIG_CORE_SECTION, null,
-				ConfigConstants.CONFIG_KEY_REPO_FORMAT_VERSION, 0);
+				ConfigConstants.CONFIG_KEY_REPO_FORMAT_VERSION, reftable ? 1
+						: 0);
 		cfg.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null,
 				ConfigConstants.CONFIG_KEY_FILEMODE, fileMode);
 		if (bare)
@@ -281,6 +330,10 @@ public void create(boolean bare) throws IOException {
 					ConfigConstants.CONFIG_KEY_BARE, true);
 		cfg.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null,
 				ConfigConstants.CONFIG_KEY_LOGALLREFUPDATES, !bare);
+		if (reftable)
+			cfg.setString(ConfigConstants.CONFIG_EXTENSIONS_SECTION, null,
+					ConfigConstants.CONFIG_KEY_REFSTORAGE,
+					ReftableDatabase.REFTABLE);
 		if (SystemReader.getInstance().isMacOS())
 			// Java has no other way
 			cfg.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null,
@@ -288,6 +341,27 @@ public void create(boolean bare) throws IOException {
 		cfg.save();
 	}
 
+	/**
+	 * Create a new Git repository storing its refs in a
+	 * {@link ReftableDatabase}.
+	 * <p>
+	 * The repository can only be opened by JGit versions knowing these ref
+	 * tables; other Git implementations refuse its extension.
+	 *
+	 * @param bare
+	 *            if true, a bare repository is created.
+	 * @throws IOException
+	 *             in case of IO problem
+	 */
+	public void createWithRefTables(boolean bare) throws IOException {
+		if (getConfig().getFile().exists()) {
+			throw new IllegalStateException(MessageFormat.format(
+					JGitText.get().repositoryAlreadyExists, getDirectory()));
+		}
+		refs = new ReftableDatabase(this);
+		create(bare);
+	}
+
 	/**
 	 * @return the directory containing the objects owned by this repository.
 	 */
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+/**
+ * Estimates how often each cached item was requested recently.
+ * <p>
+ * This is a count-min sketch of 4 bit counters, packed 8 to an int. Each
+ * item is counted in 4 counters chosen by different hash functions, and
+ * its frequency is the smallest of them. All counters are halved after a
+ * number of increments proportional to the cache size, so items that
+ * were popular long ago are eventually forgotten.
+ * <p>
+ * Updates are not synchronized. A lost increment only makes an estimate
+ * slightly lower, which is cheaper than a lock or a CAS on every access.
+ */
+final class FrequencySketch {
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	private static final int MAX_COUNT = 15;
+
+	private final int[] counters;
+
+	private final int mask;
+
+	private final int sampleSize;
+
+	private int additions;
+
+	FrequencySketch(final long items) {
+		final int n = (int) Math.min(Math.max(items, 16), 1 << 24);
+		final int len = Integer.highestOneBit(n - 1) << 1;
+		counters = new int[len];
+		mask = len * 8 - 1;
+		sampleSize = 10 * len;
+	}
+
+	int frequency(final int item) {
+		int f = MAX_COUNT;
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int p = position(item, i);
+			f = Math.min(f, (counters[p >>> 3] >>> ((p & 7) << 2)) & 0xf);
+		}
+		return f;
+	}
+
+	void increment(final int item) {
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			final int p = position(item, i);
+			final int shift = (p & 7) << 2;
+			final int w = counters[p >>> 3];
+			if (((w >>> shift) & 0xf) < MAX_COUNT) {
+				counters[p >>> 3] = w + (1 << shift);
+				added = true;
+			}
+		}
+		if (added && sampleSize <= ++additions)
+			reset();
+	}
+
+	private void reset() {
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = (counters[i] >>> 1) & 0x77777777;
+		additions = sampleSize / 2;
+	}
+
+	private int position(final int item, final int i) {
+		long h = (item + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int) h & mask;
+	}
+}
@@ -46,6 +46,7 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
@@ -54,6 +55,7 @@
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -63,10 +65,18 @@
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.eclipse.jgit.dircache.DirCacheIterator;
 import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.LockFailedException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.errors.NoWorkTreeException;
 import org.eclipse.jgit.internal.JGitText;
@@ -76,13 +86,20 @@
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Ref.Storage;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.ObjectFilter;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.storage.pack.PackExt;
 import org.eclipse.jgit.storage.pack.PackWriter;
 import org.eclipse.jgit.storage.pack.PackWriter.ObjectIdSet;
 import org.eclipse.jgit.treewalk.TreeWalk;
@@ -108,6 +125,19 @@ public class GC {
 
 	private Date expire;
 
+	private boolean incremental;
+
+	private int geometricFactor = 2;
+
+	private int threads = 1;
+
+	/**
+	 * Pool shared by the phases of the current operation; null if serial.
+	 * A pool supplied by {@link #setExecutor(ExecutorService)} is kept across
+	 * operations and never shut down by this class.
+	 */
+	private ExecutorService executor;
+
 	/**
 	 * the refs which existed during the last call to {@link #repack()}. This is
 	 * needed during {@link #prune(Set)} where we can optimize by looking at the
@@ -142,7 +172,14 @@ public GC(FileRepository repo) {
 	 * <li>repack all reachable objects into new pack files and delete the old
 	 * pack files</li>
 	 * <li>prune all loose objects which are now reachable by packs</li>
+	 * <li>write the commit-graph of all reachable commits</li>
 	 * </ul>
+	 * If {@link #setIncremental(boolean)} was set, the second and third steps
+	 * are replaced by {@link #repackIncremental()}.
+	 * <p>
+	 * When more than one thread is set, or a pool was supplied through
+	 * {@link #setExecutor(ExecutorService)}, the loose object directories are
+	 * scanned for prune candidates while the new packs are being written.
 	 *
 	 * @return the collection of {@link PackFile}'s which are newly created
 	 * @throws IOException
@@ -151,13 +188,50 @@ public GC(FileRepository repo) {
 	 *             parsed
 	 */
 	public Collection<PackFile> gc() throws IOException, ParseException {
-		pm.start(6 /* tasks */);
-		packRefs();
-		// TODO: implement reflog_expire(pm, repo);
-		Collection<PackFile> newPacks = repack();
-		prune(Collections.<ObjectId> emptySet());
-		// TODO: implement rerere_gc(pm);
-		return newPacks;
+		pm.start(7 /* tasks */);
+		ExecutorService pool = startPool();
+		try {
+			packRefs();
+			// TODO: implement reflog_expire(pm, repo);
+			Collection<PackFile> newPacks;
+			if (incremental)
+				newPacks = repackIncremental();
+			else {
+				List<Future<Map<ObjectId, File>>> loose = scanLooseObjects(
+						getExpireDate());
+				newPacks = repack();
+				prune(Collections.<ObjectId> emptySet(), loose);
+			}
+			writeCommitGraph();
+			// TODO: implement rerere_gc(pm);
+			return newPacks;
+		} finally {
+			stopPool(pool);
+		}
+	}
+
+	private ExecutorService startPool() {
+		if (executor != null)
+			return null; // Nested in gc(), or supplied by the caller.
+		int n = threads;
+		if (n == 0)
+			n = Runtime.getRuntime().availableProcessors();
+		if (n <= 1)
+			return null;
+		executor = Executors.newFixedThreadPool(n);
+		return executor;
+	}
+
+	private void stopPool(ExecutorService pool) {
+		if (pool != null) {
+			pool.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private int parallelism() {
+		return 1 < threads ? threads : Runtime.getRuntime()
+				.availableProcessors();
 	}
 
 	/**
@@ -192,8 +266,9 @@ private void deleteOldPacks(Collection<PackFile> oldPacks,
 
 			if (!oldPack.shouldBeKept()) {
 				oldPack.close();
-				FileUtils.delete(nameFor(oldName, ".pack"), deleteOptions); //$NON-NLS-1$
-				FileUtils.delete(nameFor(oldName, ".idx"), deleteOptions); //$NON-NLS-1$
+				for (PackExt ext : PackExt.values())
+					FileUtils.delete(nameFor(oldName, "." + ext.getExtension()), //$NON-NLS-1$
+							deleteOptions);
 			}
 		}
 		// close the complete object database. Thats my only chance to force
@@ -268,6 +343,15 @@ public void prunePacked() throws IOException {
 	 */
 	public void prune(Set<ObjectId> objectsToKeep) throws IOException,
 			ParseException {
+		ExecutorService pool = startPool();
+		try {
+			prune(objectsToKeep, scanLooseObjects(getExpireDate()));
+		} finally {
+			stopPool(pool);
+		}
+	}
+
+	private long getExpireDate() throws ParseException {
 		long expireDate = Long.MAX_VALUE;
 
 		if (expire == null && expireAgeMillis == -1) {
@@ -283,50 +367,97 @@ public void prune(Set<ObjectId> objectsToKeep) throws IOException,
 			expireDate = expire.getTime();
 		if (expireAgeMillis != -1)
 			expireDate = System.currentTimeMillis() - expireAgeMillis;
+		return expireDate;
+	}
+
+	/**
+	 * Start listing the loose objects last modified before a given time.
+	 * <p>
+	 * The fan-out directories are divided among the threads of
+	 * {@link #executor}. Without an executor the directories are listed before
+	 * this method returns.
+	 *
+	 * @param expireDate
+	 *            objects modified at or after this time are not listed.
+	 * @return the listings; each maps the objects found to their files.
+	 */
+	private List<Future<Map<ObjectId, File>>> scanLooseObjects(
+			final long expireDate) {
+		final File objects = repo.getObjectsDirectory();
+		String[] fanout = objects.list();
+		if (fanout == null)
+			fanout = new String[0];
+
+		int tasks = executor != null ? Math.min(4 * parallelism(),
+				fanout.length) : 1;
+		List<Future<Map<ObjectId, File>>> r = new ArrayList<Future<Map<ObjectId, File>>>(
+				tasks);
+		for (int t = 0; t < tasks; t++) {
+			final List<String> dirs = new ArrayList<String>();
+			for (int i = t; i < fanout.length; i += tasks)
+				dirs.add(fanout[i]);
+			Callable<Map<ObjectId, File>> scan = new Callable<Map<ObjectId, File>>() {
+				public Map<ObjectId, File> call() {
+					return listLooseObjects(objects, dirs, expireDate);
+				}
+			};
+			if (executor != null)
+				r.add(executor.submit(scan));
+			else {
+				FutureTask<Map<ObjectId, File>> task = new FutureTask<Map<ObjectId, File>>(
+						scan);
+				task.run();
+				r.add(task);
+			}
+		}
+		return r;
+	}
 
+	private static Map<ObjectId, File> listLooseObjects(File objects,
+			List<String> fanout, long expireDate) {
+		Map<ObjectId, File> ret = new HashMap<ObjectId, File>();
+		for (String d : fanout) {
+			if (d.length() != 2)
+				continue;
+			File[] entries = new File(objects, d).listFiles();
+			if (entries == null)
+				continue;
+			for (File f : entries) {
+				String fName = f.getName();
+				if (fName.length() != Constants.OBJECT_ID_STRING_LENGTH - 2)
+					continue;
+				if (f.lastModified() >= expireDate)
+					continue;
+				try {
+					ret.put(ObjectId.fromString(d + fName), f);
+				} catch (IllegalArgumentException notAnObject) {
+					// ignoring the file that does not represent loose
+					// object
+					continue;
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void prune(Set<ObjectId> objectsToKeep,
+			List<Future<Map<ObjectId, File>>> loose) throws IOException {
 		// Collect all loose objects which are old enough, not referenced from
 		// the index and not in objectsToKeep
 		Map<ObjectId, File> deletionCandidates = new HashMap<ObjectId, File>();
-		Set<ObjectId> indexObjects = null;
-		File objects = repo.getObjectsDirectory();
-		String[] fanout = objects.list();
-		if (fanout != null && fanout.length > 0) {
-			pm.beginTask(JGitText.get().pruneLooseUnreferencedObjects,
-					fanout.length);
-			try {
-				for (String d : fanout) {
-					pm.update(1);
-					if (d.length() != 2)
-						continue;
-					File[] entries = new File(objects, d).listFiles();
-					if (entries == null)
-						continue;
-					for (File f : entries) {
-						String fName = f.getName();
-						if (fName.length() != Constants.OBJECT_ID_STRING_LENGTH - 2)
-							continue;
-						if (f.lastModified() >= expireDate)
-							continue;
-						try {
-							ObjectId id = ObjectId.fromString(d + fName);
-							if (objectsToKeep.contains(id))
-								continue;
-							if (indexObjects == null)
-								indexObjects = listNonHEADIndexObjects();
-							if (indexObjects.contains(id))
-								continue;
-							deletionCandidates.put(id, f);
-						} catch (IllegalArgumentException notAnObject) {
-							// ignoring the file that does not represent loose
-							// object
-							continue;
-						}
-					}
-				}
-			} finally {
-				pm.endTask();
+		pm.beginTask(JGitText.get().pruneLooseUnreferencedObjects,
+				loose.size());
+		try {
+			for (Future<Map<ObjectId, File>> f : loose) {
+				deletionCandidates.putAll(get(f));
+				pm.update(1);
 			}
+		} finally {
+			pm.endTask();
 		}
+		deletionCandidates.keySet().removeAll(objectsToKeep);
+		if (!deletionCandidates.isEmpty())
+			deletionCandidates.keySet().removeAll(listNonHEADIndexObjects());
 		if (deletionCandidates.isEmpty())
 			return;
 
@@ -354,17 +485,10 @@ public void prune(Set<ObjectId> objectsToKeep) throws IOException,
 			// Remove these loose objects
 			// from the deletionCandidates. When the last candidate is removed
 			// leave this method.
-			ObjectWalk w = new ObjectWalk(repo);
-			try {
-				for (Ref cr : newRefs.values())
-					w.markStart(w.parseAny(cr.getObjectId()));
-				if (lastPackedRefs != null)
-					for (Ref lpr : lastPackedRefs.values())
-						w.markUninteresting(w.parseAny(lpr.getObjectId()));
-				removeReferenced(deletionCandidates, w);
-			} finally {
-				w.dispose();
-			}
+			List<ObjectId> tips = new ArrayList<ObjectId>(newRefs.size());
+			for (Ref cr : newRefs.values())
+				tips.add(cr.getObjectId());
+			removeReferenced(deletionCandidates, tips);
 		}
 
 		if (deletionCandidates.isEmpty())
@@ -375,18 +499,10 @@ public void prune(Set<ObjectId> objectsToKeep) throws IOException,
 		// that they are referenced by reflog entries. Even refs which currently
 		// point to the same object as during last repack() may have
 		// additional reflog entries not handled during last repack()
-		ObjectWalk w = new ObjectWalk(repo);
-		try {
-			for (Ref ar : getAllRefs().values())
-				for (ObjectId id : listRefLogObjects(ar, lastRepackTime))
-					w.markStart(w.parseAny(id));
-			if (lastPackedRefs != null)
-				for (Ref lpr : lastPackedRefs.values())
-					w.markUninteresting(w.parseAny(lpr.getObjectId()));
-			removeReferenced(deletionCandidates, w);
-		} finally {
-			w.dispose();
-		}
+		Set<ObjectId> reflogTips = new HashSet<ObjectId>();
+		for (Ref ar : getAllRefs().values())
+			reflogTips.addAll(listRefLogObjects(ar, lastRepackTime));
+		removeReferenced(deletionCandidates, reflogTips);
 
 		if (deletionCandidates.isEmpty())
 			return;
@@ -399,6 +515,147 @@ public void prune(Set<ObjectId> objectsToKeep) throws IOException,
 		repo.getObjectDatabase().close();
 	}
 
+	/**
+	 * Remove all entries from a map which key is the id of an object reachable
+	 * from the given tips but not from the refs of the last {@link #repack()}.
+	 * <p>
+	 * With an {@link #executor} the tips are divided among several walks. The
+	 * walks claim every commit and tree they reach in a shared table, and
+	 * skip what another walk has already claimed, so history shared by the
+	 * tips is traversed only once.
+	 *
+	 * @param id2File
+	 * @param tips
+	 * @throws IOException
+	 */
+	private void removeReferenced(Map<ObjectId, File> id2File,
+			Collection<ObjectId> tips) throws IOException {
+		if (tips.isEmpty())
+			return;
+		int n = executor != null ? Math.min(parallelism(), tips.size()) : 1;
+		if (n <= 1) {
+			ObjectWalk w = newPruneWalk(tips);
+			try {
+				removeReferenced(id2File, w);
+			} finally {
+				w.dispose();
+			}
+			return;
+		}
+
+		final Map<ObjectId, File> candidates = new ConcurrentHashMap<ObjectId, File>(
+				id2File);
+		final ConcurrentHashMap<ObjectId, Boolean> claimed = new ConcurrentHashMap<ObjectId, Boolean>();
+		List<List<ObjectId>> groups = new ArrayList<List<ObjectId>>(n);
+		for (int i = 0; i < n; i++)
+			groups.add(new ArrayList<ObjectId>());
+		int next = 0;
+		for (ObjectId id : tips)
+			groups.get(next++ % n).add(id);
+
+		List<Future<Void>> walks = new ArrayList<Future<Void>>(n);
+		for (final List<ObjectId> group : groups) {
+			walks.add(executor.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					ObjectWalk w = newPruneWalk(group);
+					try {
+						w.setRevFilter(new ClaimCommits(claimed));
+						w.setObjectFilter(new ClaimTrees(claimed));
+						removeReferenced(candidates, w);
+					} finally {
+						w.release();
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> f : walks)
+			get(f);
+		id2File.keySet().retainAll(candidates.keySet());
+	}
+
+	private ObjectWalk newPruneWalk(Collection<ObjectId> tips)
+			throws IOException {
+		ObjectWalk w = new ObjectWalk(repo);
+		boolean ok = false;
+		try {
+			for (ObjectId id : tips)
+				w.markStart(w.parseAny(id));
+			if (lastPackedRefs != null)
+				for (Ref lpr : lastPackedRefs.values())
+					w.markUninteresting(w.parseAny(lpr.getObjectId()));
+			ok = true;
+			return w;
+		} finally {
+			if (!ok)
+				w.release();
+		}
+	}
+
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			IOException err = new IOException(cause.getMessage());
+			err.initCause(cause);
+			throw err;
+		}
+	}
+
+	/** Lets a walk produce only the commits no other walk has claimed. */
+	private static class ClaimCommits extends RevFilter {
+		private final ConcurrentHashMap<ObjectId, Boolean> claimed;
+
+		ClaimCommits(ConcurrentHashMap<ObjectId, Boolean> claimed) {
+			this.claimed = claimed;
+		}
+
+		@Override
+		public boolean include(RevWalk walker, RevCommit c) {
+			if (claimed.putIfAbsent(c.copy(), Boolean.TRUE) == null)
+				return true;
+			// The claiming walk also visits the parents.
+			for (RevCommit p : c.getParents())
+				p.add(RevFlag.SEEN);
+			return false;
+		}
+
+		@Override
+		public RevFilter clone() {
+			return this;
+		}
+
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+	}
+
+	/** Lets a walk enter only the trees no other walk has claimed. */
+	private static class ClaimTrees extends ObjectFilter {
+		private final ConcurrentHashMap<ObjectId, Boolean> claimed;
+
+		ClaimTrees(ConcurrentHashMap<ObjectId, Boolean> claimed) {
+			this.claimed = claimed;
+		}
+
+		@Override
+		public boolean include(ObjectWalk walker, AnyObjectId o) {
+			if (!(o instanceof RevTree))
+				return true;
+			return claimed.putIfAbsent(o.copy(), Boolean.TRUE) == null;
+		}
+	}
+
 	/**
 	 * Remove all entries from a map which key is the id of an object referenced
 	 * by the given ObjectWalk
@@ -442,12 +699,76 @@ private static boolean equals(Ref r1, Ref r2) {
 		}
 	}
 
+	/**
+	 * Writes the commit-graph of all commits reachable from any ref into
+	 * {@code objects/info/commit-graph}, replacing the existing one.
+	 * <p>
+	 * Shallow repositories are skipped: the graph would record their shallow
+	 * commits as root commits, which is no longer true once they are deepened.
+	 *
+	 * @return the number of commits written to the commit-graph
+	 * @throws IOException
+	 *             when the commits cannot be read or the commit-graph cannot
+	 *             be written
+	 */
+	public int writeCommitGraph() throws IOException {
+		File infoDir = new File(repo.getObjectsDirectory(), "info"); //$NON-NLS-1$
+		File graphFile = new File(infoDir, CommitGraphFile.FILE_NAME);
+		ObjectReader reader = repo.newObjectReader();
+		try {
+			if (!reader.getShallowCommits().isEmpty())
+				return 0;
+
+			Set<ObjectId> tips = new HashSet<ObjectId>();
+			for (Ref ref : getAllRefs().values()) {
+				if (ref.getObjectId() != null)
+					tips.add(ref.getObjectId());
+				if (ref.getPeeledObjectId() != null)
+					tips.add(ref.getPeeledObjectId());
+			}
+
+			LockFile lck = new LockFile(graphFile, repo.getFS());
+			if (!lck.lock())
+				throw new LockFailedException(graphFile);
+			try {
+				int cnt;
+				OutputStream out = lck.getOutputStream();
+				try {
+					cnt = new CommitGraphWriter(out).write(pm, reader, tips);
+				} finally {
+					out.close();
+				}
+				if (!lck.commit())
+					throw new IOException(MessageFormat.format(
+							JGitText.get().cannotCommitWriteTo, graphFile));
+				return cnt;
+			} finally {
+				lck.unlock();
+			}
+		} finally {
+			reader.release();
+		}
+	}
+
 	/**
 	 * Packs all non-symbolic, loose refs into packed-refs.
+	 * <p>
+	 * If the repository stores its refs in a {@link ReftableDatabase} its
+	 * tables are compacted into one instead.
 	 *
 	 * @throws IOException
 	 */
 	public void packRefs() throws IOException {
+		if (repo.getRefDatabase() instanceof ReftableDatabase) {
+			pm.beginTask(JGitText.get().packRefs, ProgressMonitor.UNKNOWN);
+			try {
+				((ReftableDatabase) repo.getRefDatabase()).compact();
+			} finally {
+				pm.endTask();
+			}
+			return;
+		}
+
 		Collection<Ref> refs = repo.getAllRefs().values();
 		List<String> refsToBePacked = new ArrayList<String>(refs.size());
 		pm.beginTask(JGitText.get().packRefs, refs.size());
@@ -531,6 +852,170 @@ public Collection<PackFile> repack() throws IOException {
 		return ret;
 	}
 
+	/**
+	 * Packs loose objects and the smallest pack files together, keeping the
+	 * larger pack files as they are.
+	 * <p>
+	 * The pack files not marked to be kept are sorted by their number of
+	 * objects. The largest ones are kept as long as each of them has at least
+	 * {@link #setGeometricFactor(int) factor} times as many objects as the
+	 * next smaller one. All loose objects and the remaining packs are written
+	 * into one new pack, which also absorbs a kept pack if that pack has fewer
+	 * than factor times the objects written so far. Repeated runs therefore
+	 * leave a geometric progression of pack sizes, and each run rewrites an
+	 * amount of data proportional to what was added since the last one.
+	 * <p>
+	 * Objects are not checked for reachability. Unreachable objects in the
+	 * rolled up packs or loose objects are carried into the new pack, and are
+	 * only removed by the next {@link #repack()}.
+	 *
+	 * @return a collection containing the newly created pack file, or an empty
+	 *         collection if there was nothing to combine
+	 * @throws IOException
+	 *             when during reading of packfiles, objects or during writing
+	 *             to the packfile {@link IOException} occurs
+	 */
+	public Collection<PackFile> repackIncremental() throws IOException {
+		ObjectDirectory odb = repo.getObjectDatabase();
+		List<PackFile> packs = new ArrayList<PackFile>();
+		List<ObjectIdSet> excluded = new LinkedList<ObjectIdSet>();
+		for (PackFile p : odb.getPacks()) {
+			if (p.shouldBeKept())
+				excluded.add(objectIdSet(p.getIndex()));
+			else
+				packs.add(p);
+		}
+		final Map<PackFile, Long> sizes = new HashMap<PackFile, Long>();
+		for (PackFile p : packs)
+			sizes.put(p, Long.valueOf(p.getObjectCount()));
+		Collections.sort(packs, new Comparator<PackFile>() {
+			public int compare(PackFile a, PackFile b) {
+				return sizes.get(a).compareTo(sizes.get(b));
+			}
+		});
+
+		List<ObjectId> loose = listLooseObjects();
+		long[] counts = new long[packs.size()];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = sizes.get(packs.get(i)).longValue();
+		int split = geometricSplit(counts, loose.size(), geometricFactor);
+		if (loose.isEmpty() && split < 2)
+			return Collections.emptyList();
+
+		List<PackFile> rollUp = packs.subList(0, split);
+		for (PackFile p : packs.subList(split, packs.size()))
+			excluded.add(objectIdSet(p.getIndex()));
+
+		PackWriter pw = new PackWriter(repo);
+		RevWalk rw = new RevWalk(repo);
+		WindowCursor curs = new WindowCursor(odb);
+		PackFile pack;
+		try {
+			pw.setDeltaBaseAsOffset(true);
+			pw.setReuseDeltaCommits(false);
+			for (ObjectIdSet idx : excluded)
+				pw.excludeObjects(idx);
+			List<RevObject> objects = new ArrayList<RevObject>();
+			for (PackFile p : rollUp)
+				listPackedObjects(p, curs, rw, objects);
+			for (ObjectId id : loose) {
+				if (rw.lookupOrNull(id) != null)
+					continue;
+				int type = curs.open(id).getType();
+				objects.add(rw.lookupAny(id, type));
+			}
+			pw.preparePack(objects.iterator());
+			pack = writePack(pw);
+		} finally {
+			curs.release();
+			rw.release();
+			pw.release();
+		}
+
+		List<PackFile> ret = new ArrayList<PackFile>(1);
+		if (pack != null)
+			ret.add(pack);
+		deleteOldPacks(rollUp, ret, true);
+		prunePacked();
+		return ret;
+	}
+
+	/**
+	 * Decide how many of the smallest packs to combine.
+	 *
+	 * @param counts
+	 *            number of objects in each pack, in ascending order.
+	 * @param loose
+	 *            number of loose objects.
+	 * @param factor
+	 *            minimum ratio between the object counts of two packs kept
+	 *            next to each other.
+	 * @return number of packs, starting with the smallest, to combine with the
+	 *         loose objects into one new pack.
+	 */
+	static int geometricSplit(long[] counts, long loose, int factor) {
+		int split = counts.length - 1;
+		while (0 < split && factor * counts[split - 1] <= counts[split])
+			split--;
+		if (split < 0)
+			split = 0;
+
+		long rolled = loose;
+		for (int i = 0; i < split; i++)
+			rolled += counts[i];
+		while (split < counts.length && counts[split] < factor * rolled)
+			rolled += counts[split++];
+		return split;
+	}
+
+	private static void listPackedObjects(PackFile p, WindowCursor curs,
+			RevWalk rw, List<RevObject> objects) throws IOException {
+		// Keep the objects in pack order, which roughly follows recency.
+		List<PackIndex.MutableEntry> entries = new ArrayList<PackIndex.MutableEntry>();
+		for (PackIndex.MutableEntry e : p)
+			entries.add(e.cloneEntry());
+		Collections.sort(entries, new Comparator<PackIndex.MutableEntry>() {
+			public int compare(PackIndex.MutableEntry a,
+					PackIndex.MutableEntry b) {
+				long ao = a.getOffset();
+				long bo = b.getOffset();
+				return ao < bo ? -1 : (ao == bo ? 0 : 1);
+			}
+		});
+		for (PackIndex.MutableEntry e : entries) {
+			ObjectId id = e.toObjectId();
+			if (rw.lookupOrNull(id) != null)
+				continue;
+			int type = p.getObjectType(curs, e.getOffset());
+			objects.add(rw.lookupAny(id, type));
+		}
+	}
+
+	private List<ObjectId> listLooseObjects() {
+		List<ObjectId> ret = new ArrayList<ObjectId>();
+		File objects = repo.getObjectsDirectory();
+		String[] fanout = objects.list();
+		if (fanout == null)
+			return ret;
+		for (String d : fanout) {
+			if (d.length() != 2)
+				continue;
+			String[] entries = new File(objects, d).list();
+			if (entries == null)
+				continue;
+			for (String e : entries) {
+				if (e.length() != Constants.OBJECT_ID_STRING_LENGTH - 2)
+					continue;
+				try {
+					ret.add(ObjectId.fromString(d + e));
+				} catch (IllegalArgumentException notAnObject) {
+					// ignoring the file that does not represent loose object
+				}
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * @param ref
 	 *            the ref which log should be inspected
@@ -637,8 +1122,6 @@ private Set<ObjectId> listNonHEADIndexObjects()
 	private PackFile writePack(Set<? extends ObjectId> want,
 			Set<? extends ObjectId> have, Set<ObjectId> tagTargets,
 			List<ObjectIdSet> excludeObjects) throws IOException {
-		File tmpPack = null;
-		File tmpIdx = null;
 		PackWriter pw = new PackWriter(repo);
 		try {
 			// prepare the PackWriter
@@ -650,8 +1133,21 @@ private PackFile writePack(Set<? extends ObjectId> want,
 				for (ObjectIdSet idx : excludeObjects)
 					pw.excludeObjects(idx);
 			pw.preparePack(pm, want, have);
-			if (pw.getObjectCount() == 0)
-				return null;
+			return writePack(pw);
+		} finally {
+			pw.release();
+		}
+	}
+
+	private PackFile writePack(PackWriter pw) throws IOException {
+		if (pw.getObjectCount() == 0)
+			return null;
+
+		File tmpPack = null;
+		File tmpIdx = null;
+		File tmpBitmapIdx = null;
+		File tmpRevIdx = null;
+		try {
 
 			// create temporary files
 			String id = pw.computeName().getName();
@@ -689,6 +1185,41 @@ private PackFile writePack(Set<? extends ObjectId> want,
 				idxChannel.close();
 			}
 
+			// write the reverse index
+			tmpRevIdx = new File(packdir, tmpPack.getName().substring(0,
+					tmpPack.getName().lastIndexOf('.'))
+					+ ".rev_tmp"); //$NON-NLS-1$
+			@SuppressWarnings("resource")
+			FileChannel revChannel = new FileOutputStream(tmpRevIdx)
+					.getChannel();
+			OutputStream revStream = Channels.newOutputStream(revChannel);
+			try {
+				pw.writeReverseIndex(revStream);
+			} finally {
+				revChannel.force(true);
+				revStream.close();
+				revChannel.close();
+			}
+
+			// write the bitmap index, if the pack is eligible for one
+			if (pw.prepareBitmapIndex(pm)) {
+				tmpBitmapIdx = new File(packdir, tmpPack.getName().substring(0,
+						tmpPack.getName().lastIndexOf('.'))
+						+ ".bitmap_tmp"); //$NON-NLS-1$
+				@SuppressWarnings("resource")
+				FileChannel bitmapChannel = new FileOutputStream(tmpBitmapIdx)
+						.getChannel();
+				OutputStream bitmapStream = Channels
+						.newOutputStream(bitmapChannel);
+				try {
+					pw.writeBitmapIndex(bitmapStream);
+				} finally {
+					bitmapChannel.force(true);
+					bitmapStream.close();
+					bitmapChannel.close();
+				}
+			}
+
 			// rename the temporary files to real files
 			File realPack = nameFor(id, ".pack"); //$NON-NLS-1$
 			tmpPack.setReadOnly();
@@ -699,6 +1230,17 @@ private PackFile writePack(Set<? extends ObjectId> want,
 				if (!tmpPack.renameTo(realPack))
 					return null;
 				delete = false;
+				if (tmpBitmapIdx != null) {
+					// The bitmap only speeds up packing; if it cannot be
+					// renamed the pack is still usable without it.
+					File realBitmapIdx = nameFor(id, ".bitmap"); //$NON-NLS-1$
+					if (tmpBitmapIdx.renameTo(realBitmapIdx))
+						realBitmapIdx.setReadOnly();
+				}
+				// Likewise the reverse index can be computed from the index.
+				File realRevIdx = nameFor(id, ".rev"); //$NON-NLS-1$
+				if (tmpRevIdx.renameTo(realRevIdx))
+					realRevIdx.setReadOnly();
 				if (!tmpIdx.renameTo(realIdx)) {
 					File newIdx = new File(realIdx.getParentFile(),
 							realIdx.getName() + ".new"); //$NON-NLS-1$
@@ -716,11 +1258,14 @@ private PackFile writePack(Set<? extends ObjectId> want,
 			}
 			return repo.getObjectDatabase().openPack(realPack);
 		} finally {
-			pw.release();
 			if (tmpPack != null && tmpPack.exists())
 				tmpPack.delete();
 			if (tmpIdx != null && tmpIdx.exists())
 				tmpIdx.delete();
+			if (tmpBitmapIdx != null && tmpBitmapIdx.exists())
+				tmpBitmapIdx.delete();
+			if (tmpRevIdx != null && tmpRevIdx.exists())
+				tmpRevIdx.delete();
 		}
 	}
 
@@ -859,6 +1404,74 @@ public void setExpire(Date expire) {
 		expireAgeMillis = -1;
 	}
 
+	/**
+	 * Set the number of threads used to scan the loose objects and to walk
+	 * the history from the refs while pruning.
+	 *
+	 * <p>
+	 * A pool of this many threads is started and shut down again by each call
+	 * of {@link #gc()} or {@link #prune(Set)}. Callers running GC often should
+	 * rather share one pool through {@link #setExecutor(ExecutorService)}.
+	 *
+	 * @param threads
+	 *            number of threads; 1 (the default) runs every phase on the
+	 *            calling thread and 0 uses one thread per processor.
+	 * @return this
+	 */
+	public GC setThreads(int threads) {
+		this.threads = Math.max(threads, 0);
+		return this;
+	}
+
+	/**
+	 * Set the pool used to scan the loose objects and to walk the history
+	 * from the refs while pruning.
+	 * <p>
+	 * The pool is used instead of one started for {@link #setThreads(int)}
+	 * threads, and is not shut down when the operation completes. The work is
+	 * divided among {@link #setThreads(int)} tasks if more than one thread was
+	 * set, else among one task per processor.
+	 *
+	 * @param executor
+	 *            the pool; null to start one for each operation, if more than
+	 *            one thread was set.
+	 * @return this
+	 */
+	public GC setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Whether {@link #gc()} combines only loose objects and small pack files.
+	 *
+	 * @param incremental
+	 *            true to run {@link #repackIncremental()} instead of
+	 *            {@link #repack()} and {@link #prune(Set)}.
+	 * @return this
+	 */
+	public GC setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
+
+	/**
+	 * Set the ratio of object counts {@link #repackIncremental()} keeps
+	 * between pack files. The default is 2.
+	 *
+	 * @param factor
+	 *            the ratio, at least 2.
+	 * @return this
+	 */
+	public GC setGeometricFactor(int factor) {
+		if (factor < 2)
+			throw new IllegalArgumentException(MessageFormat.format(
+					JGitText.get().invalidGeometricFactor,
+					Integer.valueOf(factor)));
+		this.geometricFactor = factor;
+		return this;
+	}
+
 	private static ObjectIdSet objectIdSet(final PackIndex idx) {
 		return new ObjectIdSet() {
 			public boolean contains(AnyObjectId objectId) {
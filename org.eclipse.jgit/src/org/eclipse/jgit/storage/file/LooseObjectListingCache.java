@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.util.StripedCounter;
+
+/**
+ * Caches the listings of the 256 loose object fan-out directories.
+ * <p>
+ * Without the cache every read of an object that is not stored loose opens a
+ * file that does not exist, and pays for the {@code FileNotFoundException}.
+ * With the cache the lookup is answered from the remembered listing of the
+ * fan-out directory, after comparing the directory's modification time
+ * against the {@link FileSnapshot} taken when the listing was read. The
+ * directory is listed again only if it has changed.
+ * <p>
+ * Only negative answers are taken from the cache, and only after that check,
+ * so objects written by other processes are never reported absent. Objects
+ * this process writes are added to the listings as they are inserted.
+ */
+class LooseObjectListingCache {
+	private static final String[] NO_NAMES = {};
+
+	private final File objects;
+
+	private final AtomicReferenceArray<Listing> listings;
+
+	/** Lookups answered without opening the object's file. */
+	private final StripedCounter savedSyscalls;
+
+	/** Directory modification times compared against a snapshot. */
+	private final StripedCounter validations;
+
+	/** Fan-out directories listed. */
+	private final StripedCounter directoryReads;
+
+	/**
+	 * @param objects
+	 *            the {@code objects} directory.
+	 */
+	LooseObjectListingCache(File objects) {
+		this.objects = objects;
+		this.listings = new AtomicReferenceArray<Listing>(256);
+		this.savedSyscalls = new StripedCounter();
+		this.validations = new StripedCounter();
+		this.directoryReads = new StripedCounter();
+	}
+
+	/**
+	 * Check if a loose object may exist.
+	 *
+	 * @param objectId
+	 *            the object.
+	 * @param objectName
+	 *            the object's name in hex.
+	 * @return false if the object is known not to be stored loose; true if it
+	 *         may be, and the caller must look at the filesystem.
+	 */
+	boolean mayContain(AnyObjectId objectId, String objectName) {
+		final int idx = objectId.getFirstByte();
+		final Listing l = listings.get(idx);
+		if (l != null && l.contains(objectName))
+			return true;
+
+		// Another process may have written the object since the listing
+		// was read, so confirm the directory is unchanged before saying
+		// the object is absent.
+		//
+		if (get(idx, l).contains(objectName))
+			return true;
+		savedSyscalls.increment();
+		return false;
+	}
+
+	/**
+	 * Record an object written into its fan-out directory.
+	 *
+	 * @param id
+	 *            the object inserted.
+	 */
+	void added(AnyObjectId id) {
+		final String name = id.name();
+		final int idx = id.getFirstByte();
+		for (;;) {
+			Listing l = listings.get(idx);
+			if (l == null || l.contains(name))
+				return;
+			if (listings.compareAndSet(idx, l, l.add(name.substring(2))))
+				return;
+		}
+	}
+
+	/**
+	 * Forget the listing of a fan-out directory.
+	 *
+	 * @param objectId
+	 *            an object whose listing is known to be stale.
+	 */
+	void invalidate(AnyObjectId objectId) {
+		listings.set(objectId.getFirstByte(), null);
+	}
+
+	/** Forget all listings. */
+	void clear() {
+		for (int i = 0; i < listings.length(); i++)
+			listings.set(i, null);
+	}
+
+	/** @return lookups answered without opening the object's file. */
+	long getSavedSyscalls() {
+		return savedSyscalls.get();
+	}
+
+	/** @return number of times a listing was validated against its directory. */
+	long getValidationCount() {
+		return validations.get();
+	}
+
+	/** @return number of times a fan-out directory was listed. */
+	long getDirectoryReadCount() {
+		return directoryReads.get();
+	}
+
+	private Listing get(int idx, Listing l) {
+		final File dir = new File(objects, fanOutName(idx));
+		if (l != null) {
+			validations.increment();
+			if (!l.snapshot.isModified(dir))
+				return l;
+		}
+
+		// Save the snapshot before listing, so a concurrent insert is
+		// either in the listing or makes the next validation fail.
+		//
+		FileSnapshot snapshot = FileSnapshot.save(dir);
+		String[] names = dir.list();
+		directoryReads.increment();
+		if (names == null)
+			names = NO_NAMES;
+		else
+			Arrays.sort(names);
+
+		// If another thread replaced the listing meanwhile, possibly adding
+		// an object it inserted, keep theirs but answer from this one.
+		//
+		Listing n = new Listing(snapshot, names);
+		listings.compareAndSet(idx, l, n);
+		return n;
+	}
+
+	private static String fanOutName(int idx) {
+		final String hex = Integer.toHexString(idx);
+		return idx < 16 ? "0" + hex : hex; //$NON-NLS-1$
+	}
+
+	private static class Listing {
+		final FileSnapshot snapshot;
+
+		/** Sorted file names, without the two fan-out digits. */
+		final String[] names;
+
+		Listing(FileSnapshot snapshot, String[] names) {
+			this.snapshot = snapshot;
+			this.names = names;
+		}
+
+		boolean contains(String objectName) {
+			return 0 <= Arrays.binarySearch(names, objectName.substring(2));
+		}
+
+		Listing add(String name) {
+			int pos = -(Arrays.binarySearch(names, name) + 1);
+			String[] n = new String[names.length + 1];
+			System.arraycopy(names, 0, n, 0, pos);
+			n[pos] = name;
+			System.arraycopy(names, pos, n, pos + 1, names.length - pos);
+			return new Listing(snapshot, n);
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * Support for the pack index v2 format, searched in place in a mapped file.
+ * <p>
+ * Unlike {@link PackIndexV2} no table is copied onto the heap. Lookups
+ * binary search the name table directly within the {@link ByteBuffer}, which
+ * is usually a read-only memory mapping of the complete {@code .idx} file.
+ */
+class MappedPackIndexV2 extends PackIndex {
+	private static final long IS_O64 = 1L << 31;
+
+	private static final int FANOUT = 256;
+
+	private static final int ID_INTS = Constants.OBJECT_ID_LENGTH / 4;
+
+	private final ByteBuffer buf;
+
+	private final int[] fanoutTable;
+
+	private final int objectCnt;
+
+	private final int namesPos;
+
+	private final int crc32Pos;
+
+	private final int offset32Pos;
+
+	private final int offset64Pos;
+
+	private final int offset64Cnt;
+
+	/**
+	 * @param buf
+	 *            the complete index file, including the version 2 header. The
+	 *            buffer must not be modified while the index is in use.
+	 * @throws IOException
+	 *             the buffer is not a valid version 2 index.
+	 */
+	MappedPackIndexV2(final ByteBuffer buf) throws IOException {
+		this.buf = buf;
+
+		final int hdrLen = PackIndexWriter.TOC.length + 4;
+		fanoutTable = new int[FANOUT];
+		if (buf.limit() < hdrLen + 4 * FANOUT)
+			throw new CorruptObjectException(
+					JGitText.get().corruptPackIndex);
+		long prior = 0;
+		for (int k = 0; k < FANOUT; k++) {
+			final long n = buf.getInt(hdrLen + k * 4) & 0xffffffffL;
+			if (n < prior)
+				throw new CorruptObjectException(
+						JGitText.get().corruptPackIndex);
+			fanoutTable[k] = (int) n;
+			prior = n;
+		}
+		if ((Integer.MAX_VALUE - hdrLen) / 28 < prior)
+			throw new IOException(JGitText.get().indexFileIsTooLargeForJgit);
+		objectCnt = (int) prior;
+
+		namesPos = hdrLen + 4 * FANOUT;
+		crc32Pos = namesPos + objectCnt * Constants.OBJECT_ID_LENGTH;
+		offset32Pos = crc32Pos + objectCnt * 4;
+		offset64Pos = offset32Pos + objectCnt * 4;
+
+		final int tail = buf.limit() - offset64Pos - 2
+				* Constants.OBJECT_ID_LENGTH;
+		if (tail < 0 || tail % 8 != 0)
+			throw new CorruptObjectException(
+					JGitText.get().corruptPackIndex);
+		offset64Cnt = tail / 8;
+
+		packChecksum = new byte[Constants.OBJECT_ID_LENGTH];
+		final int sumPos = offset64Pos + tail;
+		for (int i = 0; i < packChecksum.length; i++)
+			packChecksum[i] = buf.get(sumPos + i);
+	}
+
+	@Override
+	public long getObjectCount() {
+		return objectCnt;
+	}
+
+	@Override
+	public long getOffset64Count() {
+		return offset64Cnt;
+	}
+
+	@Override
+	public ObjectId getObjectId(final long nthPosition) {
+		final int[] tmp = new int[ID_INTS];
+		readName(checkPosition(nthPosition), tmp);
+		return ObjectId.fromRaw(tmp);
+	}
+
+	@Override
+	public long getOffset(final long nthPosition) {
+		return offsetAt(checkPosition(nthPosition));
+	}
+
+	@Override
+	public long findOffset(final AnyObjectId objId) {
+		final int p = find(objId);
+		if (p < 0)
+			return -1;
+		return offsetAt(p);
+	}
+
+	@Override
+	public long findCRC32(AnyObjectId objId) throws MissingObjectException {
+		final int p = find(objId);
+		if (p < 0)
+			throw new MissingObjectException(objId.copy(), "unknown"); //$NON-NLS-1$
+		return buf.getInt(crc32Pos + p * 4) & 0xffffffffL;
+	}
+
+	@Override
+	public boolean hasCRC32Support() {
+		return true;
+	}
+
+	@Override
+	public Iterator<MutableEntry> iterator() {
+		return new EntriesIteratorMapped();
+	}
+
+	@Override
+	public void resolve(Set<ObjectId> matches, AbbreviatedObjectId id,
+			int matchLimit) throws IOException {
+		final int levelOne = id.getFirstByte();
+		final int[] tmp = new int[ID_INTS];
+		int low = levelOne == 0 ? 0 : fanoutTable[levelOne - 1];
+		final int max = fanoutTable[levelOne];
+		int high = max;
+		while (low < high) {
+			int p = (low + high) >>> 1;
+			readName(p, tmp);
+			final int cmp = id.prefixCompare(tmp, 0);
+			if (cmp < 0)
+				high = p;
+			else if (cmp == 0) {
+				// We may have landed in the middle of the matches.  Move
+				// backwards to the start of matches, then walk forwards.
+				//
+				while (0 < p && prefixMatches(id, p - 1, tmp))
+					p--;
+				for (; p < max && prefixMatches(id, p, tmp); p++) {
+					matches.add(ObjectId.fromRaw(tmp));
+					if (matches.size() > matchLimit)
+						break;
+				}
+				return;
+			} else
+				low = p + 1;
+		}
+	}
+
+	private boolean prefixMatches(AbbreviatedObjectId id, int p, int[] tmp) {
+		readName(p, tmp);
+		return id.prefixCompare(tmp, 0) == 0;
+	}
+
+	private int find(final AnyObjectId objId) {
+		final int levelOne = objId.getFirstByte();
+		int low = levelOne == 0 ? 0 : fanoutTable[levelOne - 1];
+		int high = fanoutTable[levelOne];
+		if (low == high)
+			return -1;
+		final int w1 = word(objId, 0);
+		do {
+			final int mid = (low + high) >>> 1;
+			final int cmp = compareName(objId, w1, mid);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		} while (low < high);
+		return -1;
+	}
+
+	private int compareName(AnyObjectId objId, int w1, int p) {
+		// Most probes differ in the first word; avoid reading the rest.
+		final int pos = namesPos + p * Constants.OBJECT_ID_LENGTH;
+		final int n1 = buf.getInt(pos);
+		if (w1 != n1)
+			return NB.compareUInt32(w1, n1);
+		for (int i = 1; i < ID_INTS; i++) {
+			final int k = word(objId, i);
+			final int w = buf.getInt(pos + i * 4);
+			if (k != w)
+				return NB.compareUInt32(k, w);
+		}
+		return 0;
+	}
+
+	private static int word(AnyObjectId objId, int i) {
+		final int b = i * 4;
+		return objId.getByte(b) << 24 | objId.getByte(b + 1) << 16
+				| objId.getByte(b + 2) << 8 | objId.getByte(b + 3);
+	}
+
+	private void readName(int p, int[] dst) {
+		final int pos = namesPos + p * Constants.OBJECT_ID_LENGTH;
+		for (int i = 0; i < ID_INTS; i++)
+			dst[i] = buf.getInt(pos + i * 4);
+	}
+
+	private long offsetAt(int p) {
+		final long ofs = buf.getInt(offset32Pos + p * 4) & 0xffffffffL;
+		if ((ofs & IS_O64) != 0) {
+			final long n = ofs & ~IS_O64;
+			if (offset64Cnt <= n)
+				throw new CorruptOffsetException();
+			return buf.getLong(offset64Pos + 8 * (int) n);
+		}
+		return ofs;
+	}
+
+	private int checkPosition(long nthPosition) {
+		if (nthPosition < 0 || objectCnt <= nthPosition)
+			throw new IndexOutOfBoundsException(String.valueOf(nthPosition));
+		return (int) nthPosition;
+	}
+
+	/**
+	 * An offset refers past the end of the 64 bit offset table.
+	 * <p>
+	 * The lookups of {@link PackIndex} cannot throw checked exceptions, so
+	 * the {@link CorruptObjectException} is carried as the cause.
+	 */
+	static class CorruptOffsetException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		CorruptOffsetException() {
+			super(JGitText.get().corruptPackIndex, new CorruptObjectException(
+					JGitText.get().corruptPackIndex));
+		}
+
+		@Override
+		public CorruptObjectException getCause() {
+			return (CorruptObjectException) super.getCause();
+		}
+	}
+
+	private class EntriesIteratorMapped extends EntriesIterator {
+		private final int[] tmp = new int[ID_INTS];
+
+		private int position;
+
+		@Override
+		protected MutableEntry initEntry() {
+			return new MutableEntry() {
+				protected void ensureId() {
+					readName(position - 1, tmp);
+					idBuffer.fromRaw(tmp);
+				}
+			};
+		}
+
+		public MutableEntry next() {
+			if (objectCnt <= position)
+				throw new NoSuchElementException();
+			entry.offset = offsetAt(position);
+			position++;
+			returnedNumber++;
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.eclipse.jgit.lib.Constants.OBJECT_ID_STRING_LENGTH;
+import static org.eclipse.jgit.lib.Ref.Storage.PACKED;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefComparator;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.eclipse.jgit.util.RefList;
+
+/**
+ * A {@code packed-refs} file searched in place in a read-only mapping.
+ * <p>
+ * The records of the file are sorted by name, so one ref, or the refs
+ * starting with a prefix, are found by a binary search over the lines of the
+ * file. Only the records returned are parsed; nothing else is copied onto the
+ * heap.
+ * <p>
+ * The sort order is trusted if the header declares the {@code sorted} trait.
+ * Otherwise it is checked once when the file is opened, without parsing the
+ * records, and an unsorted or malformed file is not mapped at all.
+ */
+class MappedPackedRefs implements RefDirectory.PackedRefs {
+	/** Length of the id and the space preceding the name of a record. */
+	private static final int NAME_OFFSET = OBJECT_ID_STRING_LENGTH + 1;
+
+	/**
+	 * Map a packed-refs file.
+	 *
+	 * @param file
+	 *            the file.
+	 * @return the mapped file; null if it does not exist, is too large to map,
+	 *         or its records are not sorted by name.
+	 * @throws IOException
+	 *             the file cannot be read.
+	 */
+	static MappedPackedRefs open(File file) throws IOException {
+		FileSnapshot snapshot = FileSnapshot.save(file);
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+		} catch (FileNotFoundException noPackedRefs) {
+			return null;
+		}
+		ByteBuffer buf;
+		try {
+			long len = raf.length();
+			if (Integer.MAX_VALUE < len)
+				return null;
+			buf = raf.getChannel().map(MapMode.READ_ONLY, 0, len);
+		} finally {
+			raf.close();
+		}
+
+		MappedPackedRefs refs = new MappedPackedRefs(snapshot, buf);
+		if (!refs.sorted && !refs.checkSorted())
+			return null;
+		return refs;
+	}
+
+	/** State of the file when it was mapped. */
+	final FileSnapshot snapshot;
+
+	private final ByteBuffer buf;
+
+	private final int end;
+
+	/** Start of the first record, after the header. */
+	private final int start;
+
+	private final boolean peeled;
+
+	private final boolean sorted;
+
+	private MappedPackedRefs(FileSnapshot snapshot, ByteBuffer buf) {
+		this.snapshot = snapshot;
+		this.buf = buf;
+		this.end = buf.limit();
+
+		int p = 0;
+		boolean isPeeled = false;
+		boolean isSorted = false;
+		while (p < end && buf.get(p) == '#') {
+			int eol = nextLF(p);
+			String line = decode(p, eol);
+			if (line.startsWith(RefDirectory.PACKED_REFS_HEADER)) {
+				line = line.substring(RefDirectory.PACKED_REFS_HEADER.length());
+				isPeeled = line.contains(RefDirectory.PACKED_REFS_PEELED);
+				isSorted = line.contains(RefDirectory.PACKED_REFS_SORTED);
+			}
+			p = eol;
+		}
+		this.start = p;
+		this.peeled = isPeeled;
+		this.sorted = isSorted;
+	}
+
+	/**
+	 * Look up one ref.
+	 *
+	 * @param name
+	 *            full name of the ref.
+	 * @return the ref; null if the file does not contain it.
+	 */
+	public Ref get(String name) {
+		byte[] key = Constants.encode(name);
+		int p = lowerBound(key);
+		if (p < end && compareName(p, key, false) == 0)
+			return parse(p);
+		return null;
+	}
+
+	/**
+	 * Check for refs starting with a prefix.
+	 *
+	 * @param prefix
+	 *            the prefix.
+	 * @return true if any ref name starts with {@code prefix}.
+	 */
+	public boolean hasPrefix(String prefix) {
+		byte[] key = Constants.encode(prefix);
+		int p = lowerBound(key);
+		return p < end && compareName(p, key, true) == 0;
+	}
+
+	/**
+	 * Parse the refs starting with a prefix.
+	 *
+	 * @param prefix
+	 *            the prefix; "" to parse all refs.
+	 * @return the refs, sorted by name.
+	 */
+	public RefList<Ref> scan(String prefix) {
+		byte[] key = Constants.encode(prefix);
+		RefList.Builder<Ref> refs = new RefList.Builder<Ref>();
+		Ref last = null;
+		boolean needSort = false;
+		for (int p = lowerBound(key); p < end; p = nextRecord(p)) {
+			if (compareName(p, key, true) != 0)
+				break;
+			Ref cur = parse(p);
+			if (last != null && RefComparator.compareTo(last, cur) > 0)
+				needSort = true;
+			refs.add(cur);
+			last = cur;
+		}
+		if (needSort)
+			refs.sort();
+		return refs.toRefList();
+	}
+
+	/** @return position of the first record whose name is not below key. */
+	private int lowerBound(byte[] key) {
+		int lo = start;
+		int hi = end;
+		while (lo < hi) {
+			int p = recordStart((lo + hi) >>> 1);
+			if (compareName(p, key, false) < 0)
+				lo = nextRecord(p);
+			else
+				hi = p;
+		}
+		return lo;
+	}
+
+	/**
+	 * Compare the name of a record to a key.
+	 *
+	 * @param p
+	 *            start of the record.
+	 * @param key
+	 *            encoded name or prefix.
+	 * @param prefix
+	 *            if true, names starting with {@code key} compare equal.
+	 * @return &lt; 0, 0 or &gt; 0 as the name is below, equal to or above key.
+	 */
+	private int compareName(int p, byte[] key, boolean prefix) {
+		int n = p + NAME_OFFSET;
+		for (int i = 0; i < key.length; i++, n++) {
+			int c = n < end ? buf.get(n) & 0xff : '\n';
+			if (c == '\n')
+				return -1;
+			int cmp = c - (key[i] & 0xff);
+			if (cmp != 0)
+				return cmp;
+		}
+		if (prefix || end <= n || buf.get(n) == '\n')
+			return 0;
+		return 1;
+	}
+
+	/** @return start of the record containing position p. */
+	private int recordStart(int p) {
+		while (start < p && buf.get(p - 1) != '\n')
+			p--;
+		if (start < p && buf.get(p) == '^') {
+			p--;
+			while (start < p && buf.get(p - 1) != '\n')
+				p--;
+		}
+		return p;
+	}
+
+	/** @return start of the record following the one starting at p. */
+	private int nextRecord(int p) {
+		p = nextLF(p);
+		if (p < end && buf.get(p) == '^')
+			p = nextLF(p);
+		return p;
+	}
+
+	private int nextLF(int p) {
+		while (p < end && buf.get(p++) != '\n') {
+			// Skip the line.
+		}
+		return p;
+	}
+
+	private Ref parse(int p) {
+		int eol = nextLF(p);
+		int nameEnd = eol;
+		if (p < nameEnd && buf.get(nameEnd - 1) == '\n')
+			nameEnd--;
+		ObjectId id = ObjectId.fromString(bytes(p, OBJECT_ID_STRING_LENGTH), 0);
+		String name = decode(p + NAME_OFFSET, nameEnd);
+		if (eol < end && buf.get(eol) == '^') {
+			ObjectId peeledId = ObjectId.fromString(bytes(eol + 1,
+					OBJECT_ID_STRING_LENGTH), 0);
+			return new ObjectIdRef.PeeledTag(PACKED, name, id, peeledId);
+		}
+		if (peeled)
+			return new ObjectIdRef.PeeledNonTag(PACKED, name, id);
+		return new ObjectIdRef.Unpeeled(PACKED, name, id);
+	}
+
+	/**
+	 * Verify the records are well formed and sorted, without parsing them.
+	 *
+	 * @return true if the file can be binary searched.
+	 */
+	private boolean checkSorted() {
+		int prior = -1;
+		for (int p = start; p < end;) {
+			int eol = nextLF(p);
+			int len = eol - p - (buf.get(eol - 1) == '\n' ? 1 : 0);
+			if (buf.get(p) == '^') {
+				if (prior < 0 || len != OBJECT_ID_STRING_LENGTH + 1)
+					return false;
+			} else {
+				if (len <= NAME_OFFSET
+						|| buf.get(p + OBJECT_ID_STRING_LENGTH) != ' ')
+					return false;
+				if (0 <= prior && compareNames(prior, p) >= 0)
+					return false;
+				prior = p;
+			}
+			p = eol;
+		}
+		return true;
+	}
+
+	private int compareNames(int a, int b) {
+		a += NAME_OFFSET;
+		b += NAME_OFFSET;
+		for (;; a++, b++) {
+			int ca = a < end ? buf.get(a) & 0xff : '\n';
+			int cb = b < end ? buf.get(b) & 0xff : '\n';
+			if (ca == '\n' || cb == '\n')
+				return (ca == '\n' ? 0 : 1) - (cb == '\n' ? 0 : 1);
+			if (ca != cb)
+				return ca - cb;
+		}
+	}
+
+	private byte[] bytes(int p, int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++)
+			b[i] = buf.get(p + i);
+		return b;
+	}
+
+	private String decode(int p, int e) {
+		return RawParseUtils.decode(bytes(p, e - p));
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.eclipse.jgit.storage.file.ReftableWriter.compare;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Merges a stack of ref tables into one view.
+ * <p>
+ * A record in a newer table replaces records of the same name in older ones,
+ * and a deletion hides the ref entirely.
+ */
+class MergedReftable {
+	/** Tables, oldest first. */
+	private final ReftableReader[] tables;
+
+	/**
+	 * @param tables
+	 *            the tables of the stack, oldest first.
+	 */
+	MergedReftable(List<ReftableReader> tables) {
+		this.tables = tables.toArray(new ReftableReader[tables.size()]);
+	}
+
+	/** @return the tables, oldest first. */
+	List<ReftableReader> getTables() {
+		return Arrays.asList(tables);
+	}
+
+	/**
+	 * Look up one ref, without resolving symbolic refs.
+	 *
+	 * @param name
+	 *            full name of the ref.
+	 * @return the ref; null if it does not exist.
+	 * @throws IOException
+	 *             a table cannot be read.
+	 */
+	Ref exactRef(String name) throws IOException {
+		byte[] key = Constants.encode(name);
+		for (int i = tables.length - 1; 0 <= i; i--) {
+			RefCursor c = tables[i].seek(key);
+			if (c.next() && Arrays.equals(key, c.getNameBytes()))
+				return c.wasDeleted() ? null : c.getRef();
+		}
+		return null;
+	}
+
+	/**
+	 * Iterate over the refs whose names start with a prefix.
+	 *
+	 * @param prefix
+	 *            prefix of the names; "" for all refs.
+	 * @param includeDeletes
+	 *            if true deletions are returned as records of their own.
+	 * @return cursor over the merged records.
+	 */
+	RefCursor seek(String prefix, boolean includeDeletes) {
+		return new MergedCursor(Constants.encode(prefix), includeDeletes);
+	}
+
+	private final class MergedCursor extends RefCursor {
+		private final byte[] prefix;
+
+		private final boolean includeDeletes;
+
+		private PriorityQueue<Entry> queue;
+
+		private byte[] name;
+
+		private Ref ref;
+
+		MergedCursor(byte[] prefix, boolean includeDeletes) {
+			this.prefix = prefix;
+			this.includeDeletes = includeDeletes;
+		}
+
+		@Override
+		boolean next() throws IOException {
+			if (queue == null) {
+				queue = new PriorityQueue<Entry>(Math.max(1, tables.length));
+				for (int i = 0; i < tables.length; i++)
+					add(new Entry(tables[i].seek(prefix), i));
+			}
+
+			for (;;) {
+				Entry e = queue.poll();
+				if (e == null) {
+					name = null;
+					ref = null;
+					return false;
+				}
+
+				// Older records of the same name are hidden by this one.
+				while (!queue.isEmpty()
+						&& compare(queue.peek().cursor.getNameBytes(),
+								e.cursor.getNameBytes()) == 0)
+					add(queue.poll());
+
+				boolean deleted = e.cursor.wasDeleted();
+				if (!deleted || includeDeletes) {
+					name = e.cursor.getNameBytes();
+					ref = deleted ? null : e.cursor.getRef();
+					add(e);
+					return true;
+				}
+				add(e);
+			}
+		}
+
+		private void add(Entry e) throws IOException {
+			if (e.cursor.next())
+				queue.add(e);
+		}
+
+		@Override
+		byte[] getNameBytes() {
+			return name;
+		}
+
+		@Override
+		Ref getRef() {
+			return ref;
+		}
+
+		@Override
+		boolean wasDeleted() {
+			return ref == null;
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final RefCursor cursor;
+
+		/** Position of the table in the stack; newer tables are higher. */
+		final int table;
+
+		Entry(RefCursor cursor, int table) {
+			this.cursor = cursor;
+			this.table = table;
+		}
+
+		public int compareTo(Entry o) {
+			int cmp = compare(cursor.getNameBytes(), o.cursor.getNameBytes());
+			if (cmp != 0)
+				return cmp;
+			return o.table - table;
+		}
+	}
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * Combined index of all packs known to an {@link ObjectDirectory}.
+ * <p>
+ * Every object of every pack is listed in a single table sorted by object
+ * name, so an object can be located with one binary search instead of one
+ * search per pack. Objects stored in more than one pack appear once per pack,
+ * in the order the packs are listed by the directory, which is the order in
+ * which they would otherwise have been probed.
+ * <p>
+ * Instances are immutable. Packs are added and removed by creating a new index
+ * from the prior one, which merges the tables rather than rereading every
+ * pack's own index.
+ */
+class MultiPackIndex {
+	private static final int ID_INTS = Constants.OBJECT_ID_LENGTH / 4;
+
+	private static final int MAX_OBJECTS = Integer.MAX_VALUE / ID_INTS;
+
+	/**
+	 * Build the index of the given packs.
+	 *
+	 * @param packs
+	 *            packs to index, most preferred first.
+	 * @return the index; null if the packs contain too many objects to be
+	 *         combined into one table.
+	 * @throws IOException
+	 *             the index of one of the packs cannot be read.
+	 */
+	static MultiPackIndex create(PackFile[] packs) throws IOException {
+		final Cursor[] src = new Cursor[packs.length];
+		long cnt = 0;
+		for (int i = 0; i < packs.length; i++) {
+			final PackIndex idx = packs[i].getIndex();
+			cnt += idx.getObjectCount();
+			src[i] = new IndexCursor(i, idx);
+		}
+		if (MAX_OBJECTS < cnt)
+			return null;
+		return merge(packs, src, (int) cnt);
+	}
+
+	private final PackFile[] packs;
+
+	private final int[] fanout;
+
+	private final int[] names;
+
+	private final int[] packIds;
+
+	private final long[] offsets;
+
+	private final int objectCnt;
+
+	private MultiPackIndex(PackFile[] packs, int objectCnt) {
+		this.packs = packs;
+		this.objectCnt = objectCnt;
+		fanout = new int[256];
+		names = new int[objectCnt * ID_INTS];
+		packIds = new int[objectCnt];
+		offsets = new long[objectCnt];
+	}
+
+	/** @return number of entries in the table, including duplicates. */
+	int getObjectCount() {
+		return objectCnt;
+	}
+
+	/** @return the packs covered by this index, most preferred first. */
+	PackFile[] getPacks() {
+		return packs;
+	}
+
+	/**
+	 * Create an index that also covers a new pack.
+	 *
+	 * @param pack
+	 *            the new pack, which is preferred over all current packs.
+	 * @return the new index; null if the combined table would be too large.
+	 * @throws IOException
+	 *             the index of the new pack cannot be read.
+	 */
+	MultiPackIndex add(PackFile pack) throws IOException {
+		final PackIndex idx = pack.getIndex();
+		final long cnt = objectCnt + idx.getObjectCount();
+		if (MAX_OBJECTS < cnt)
+			return null;
+
+		final PackFile[] newPacks = new PackFile[packs.length + 1];
+		newPacks[0] = pack;
+		System.arraycopy(packs, 0, newPacks, 1, packs.length);
+		final int[] newIds = new int[packs.length];
+		for (int i = 0; i < packs.length; i++)
+			newIds[i] = i + 1;
+		return merge(newPacks, new Cursor[] { new IndexCursor(0, idx),
+				new TableCursor(this, newIds) }, (int) cnt);
+	}
+
+	/**
+	 * Create an index of a new list of packs.
+	 * <p>
+	 * The entries of packs this index already covers are copied from its
+	 * table; only the indexes of packs new to the list are read.
+	 *
+	 * @param newPacks
+	 *            the packs to index, most preferred first. Packs covered by
+	 *            this index but missing from the list are dropped.
+	 * @return the new index; null if the combined table would be too large.
+	 * @throws IOException
+	 *             the index of a new pack cannot be read.
+	 */
+	MultiPackIndex update(PackFile[] newPacks) throws IOException {
+		final int[] newIds = new int[packs.length];
+		Arrays.fill(newIds, -1);
+		final List<Cursor> src = new ArrayList<Cursor>(newPacks.length);
+		long cnt = 0;
+		int last = -1;
+		for (int i = 0; i < newPacks.length; i++) {
+			final int old = indexOf(newPacks[i]);
+			if (old < 0) {
+				final PackIndex idx = newPacks[i].getIndex();
+				cnt += idx.getObjectCount();
+				src.add(new IndexCursor(i, idx));
+			} else if (old < last) {
+				// Copied entries must keep their order by preference.
+				return create(newPacks);
+			} else {
+				newIds[old] = i;
+				last = old;
+			}
+		}
+		for (int i = 0; i < objectCnt; i++) {
+			if (0 <= newIds[packIds[i]])
+				cnt++;
+		}
+		if (MAX_OBJECTS < cnt)
+			return null;
+		src.add(new TableCursor(this, newIds));
+		return merge(newPacks, src.toArray(new Cursor[src.size()]), (int) cnt);
+	}
+
+	private int indexOf(PackFile pack) {
+		for (int i = 0; i < packs.length; i++) {
+			if (packs[i] == pack)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Create an index that no longer covers a pack.
+	 *
+	 * @param pack
+	 *            the pack to remove.
+	 * @return the new index; {@code this} if the pack was not covered.
+	 */
+	MultiPackIndex remove(PackFile pack) {
+		int dead = -1;
+		for (int i = 0; i < packs.length; i++) {
+			if (packs[i] == pack) {
+				dead = i;
+				break;
+			}
+		}
+		if (dead < 0)
+			return this;
+
+		final PackFile[] newPacks = new PackFile[packs.length - 1];
+		System.arraycopy(packs, 0, newPacks, 0, dead);
+		System.arraycopy(packs, dead + 1, newPacks, dead, newPacks.length
+				- dead);
+		int cnt = 0;
+		for (int i = 0; i < objectCnt; i++) {
+			if (packIds[i] != dead)
+				cnt++;
+		}
+		final int[] newIds = new int[packs.length];
+		for (int i = 0; i < packs.length; i++)
+			newIds[i] = i < dead ? i : i - 1;
+		newIds[dead] = -1;
+		return merge(newPacks, new Cursor[] { new TableCursor(this, newIds) },
+				cnt);
+	}
+
+	/**
+	 * Locate the first entry for an object.
+	 *
+	 * @param id
+	 *            the object to find.
+	 * @return position of the entry for the object in the most preferred pack
+	 *         that contains it; -1 if no pack contains the object.
+	 */
+	int find(AnyObjectId id) {
+		final int levelOne = id.getFirstByte();
+		int low = levelOne == 0 ? 0 : fanout[levelOne - 1];
+		final int end = fanout[levelOne];
+		int high = end;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (id.compareTo(names, mid * ID_INTS) <= 0)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		if (low < end && id.compareTo(names, low * ID_INTS) == 0)
+			return low;
+		return -1;
+	}
+
+	/**
+	 * Locate the next entry for the same object.
+	 *
+	 * @param pos
+	 *            position of an entry for the object.
+	 * @param id
+	 *            the object.
+	 * @return position of the entry for the object in the next preferred pack
+	 *         that contains it; -1 if no other pack contains the object.
+	 */
+	int next(int pos, AnyObjectId id) {
+		final int n = pos + 1;
+		if (n < objectCnt && id.compareTo(names, n * ID_INTS) == 0)
+			return n;
+		return -1;
+	}
+
+	/**
+	 * @param pos
+	 *            position of an entry.
+	 * @return the pack holding the object of the entry.
+	 */
+	PackFile getPack(int pos) {
+		return packs[packIds[pos]];
+	}
+
+	/**
+	 * @param pos
+	 *            position of an entry.
+	 * @return offset of the object within {@link #getPack(int)}.
+	 */
+	long getOffset(int pos) {
+		return offsets[pos];
+	}
+
+	private static MultiPackIndex merge(PackFile[] packs, Cursor[] src,
+			int cnt) {
+		final MultiPackIndex r = new MultiPackIndex(packs, cnt);
+
+		// Merge the sorted sources through a binary min-heap ordered by
+		// object name, then by pack preference.
+		Cursor[] heap = new Cursor[src.length];
+		int size = 0;
+		for (Cursor c : src) {
+			if (c.next()) {
+				heap[size] = c;
+				siftUp(heap, size++);
+			}
+		}
+
+		int n = 0;
+		int first = 0;
+		while (0 < size) {
+			final Cursor c = heap[0];
+			final int ptr = n * ID_INTS;
+			System.arraycopy(c.name, 0, r.names, ptr, ID_INTS);
+			r.packIds[n] = c.packId;
+			r.offsets[n] = c.offset;
+
+			final int b = c.name[0] >>> 24;
+			while (first < b)
+				r.fanout[first++] = n;
+			n++;
+
+			if (!c.next())
+				heap[0] = heap[--size];
+			siftDown(heap, size);
+		}
+		while (first < 256)
+			r.fanout[first++] = n;
+		return r;
+	}
+
+	private static void siftUp(Cursor[] heap, int i) {
+		final Cursor c = heap[i];
+		while (0 < i) {
+			final int parent = (i - 1) >>> 1;
+			if (compare(heap[parent], c) <= 0)
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = c;
+	}
+
+	private static void siftDown(Cursor[] heap, int size) {
+		if (size == 0)
+			return;
+		final Cursor c = heap[0];
+		int i = 0;
+		for (;;) {
+			int child = 2 * i + 1;
+			if (size <= child)
+				break;
+			if (child + 1 < size && compare(heap[child + 1], heap[child]) < 0)
+				child++;
+			if (compare(c, heap[child]) <= 0)
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = c;
+	}
+
+	private static int compare(Cursor a, Cursor b) {
+		for (int i = 0; i < ID_INTS; i++) {
+			if (a.name[i] != b.name[i])
+				return NB.compareUInt32(a.name[i], b.name[i]);
+		}
+		return a.packId - b.packId;
+	}
+
+	/** Sorted source of entries for {@link #merge}. */
+	private static abstract class Cursor {
+		final int[] name = new int[ID_INTS];
+
+		int packId;
+
+		long offset;
+
+		/** @return true if the cursor moved to another entry. */
+		abstract boolean next();
+	}
+
+	private static class IndexCursor extends Cursor {
+		private final Iterator<PackIndex.MutableEntry> itr;
+
+		IndexCursor(int packId, PackIndex idx) {
+			this.packId = packId;
+			this.itr = idx.iterator();
+		}
+
+		@Override
+		boolean next() {
+			if (!itr.hasNext())
+				return false;
+			final PackIndex.MutableEntry e = itr.next();
+			e.ensureId();
+			e.idBuffer.copyRawTo(name, 0);
+			offset = e.getOffset();
+			return true;
+		}
+	}
+
+	/**
+	 * Walks an existing table, skipping dropped packs and renumbering the
+	 * others to their position in the new pack list.
+	 */
+	private static class TableCursor extends Cursor {
+		private final MultiPackIndex src;
+
+		private final int[] newIds;
+
+		private int pos;
+
+		/**
+		 * @param src
+		 *            the table to walk.
+		 * @param newIds
+		 *            new position of each pack of {@code src}; -1 to skip
+		 *            the pack's entries.
+		 */
+		TableCursor(MultiPackIndex src, int[] newIds) {
+			this.src = src;
+			this.newIds = newIds;
+		}
+
+		@Override
+		boolean next() {
+			while (pos < src.objectCnt) {
+				final int p = pos++;
+				final int id = newIds[src.packIds[p]];
+				if (id < 0)
+					continue;
+				System.arraycopy(src.names, p * ID_INTS, name, 0, ID_INTS);
+				packId = id;
+				offset = src.offsets[p];
+				return true;
+			}
+			return false;
+		}
+	}
+}
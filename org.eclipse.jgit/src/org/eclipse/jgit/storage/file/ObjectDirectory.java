@@ -68,6 +68,7 @@
 import org.eclipse.jgit.internal.JGitText;
 import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitGraph;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectDatabase;
@@ -103,6 +104,9 @@
  * considered.
  */
 public class ObjectDirectory extends FileObjectDatabase {
+	/** Fewest packs worth searching through a {@link MultiPackIndex}. */
+	private static final int MULTI_PACK_INDEX_MIN_PACKS = 2;
+
 	private static final PackList NO_PACKS = new PackList(
 			FileSnapshot.DIRTY, new PackFile[0]);
 
@@ -121,16 +125,33 @@ public class ObjectDirectory extends FileObjectDatabase {
 
 	private final File cachedPacksFile;
 
+	private final File commitGraphFile;
+
 	private final AtomicReference<PackList> packList;
 
+	/**
+	 * Search packs through a {@link MultiPackIndex}. Off by default, as
+	 * building it reads every pack index even if only a few objects are
+	 * ever looked up.
+	 */
+	private final boolean useMultiPackIndex;
+
+	/** Reports changes to {@link #packDirectory}; null if not enabled. */
+	private final PackDirectoryWatcher packDirectoryWatcher;
+
 	private final AtomicReference<CachedPackList> cachedPacks;
 
+	private final AtomicReference<CommitGraphSnapshot> commitGraph;
+
 	private final FS fs;
 
 	private final AtomicReference<AlternateHandle[]> alternates;
 
 	private final UnpackedObjectCache unpackedObjectCache;
 
+	/** Listings of the fan-out directories; null if not enabled. */
+	private final LooseObjectListingCache looseListings;
+
 	private final File shallowFile;
 
 	private FileSnapshot shallowFileSnapshot = FileSnapshot.DIRTY;
@@ -164,8 +185,20 @@ public ObjectDirectory(final Config cfg, final File dir,
 		alternatesFile = new File(infoDirectory, "alternates"); //$NON-NLS-1$
 		cachedPacksFile = new File(infoDirectory, "cached-packs"); //$NON-NLS-1$
 		packList = new AtomicReference<PackList>(NO_PACKS);
+		useMultiPackIndex = cfg.getBoolean("core", "multipackindex", false); //$NON-NLS-1$ //$NON-NLS-2$
+		if (cfg.getBoolean("core", "watchpackdirectory", false) //$NON-NLS-1$ //$NON-NLS-2$
+				&& PackDirectoryWatcher.isAvailable())
+			packDirectoryWatcher = new PackDirectoryWatcher(packDirectory);
+		else
+			packDirectoryWatcher = null;
 		cachedPacks = new AtomicReference<CachedPackList>();
+		commitGraphFile = new File(infoDirectory, CommitGraphFile.FILE_NAME);
+		commitGraph = new AtomicReference<CommitGraphSnapshot>();
 		unpackedObjectCache = new UnpackedObjectCache();
+		if (cfg.getBoolean("core", "looseobjectlistingcache", false)) //$NON-NLS-1$ //$NON-NLS-2$
+			looseListings = new LooseObjectListingCache(objects);
+		else
+			looseListings = null;
 		this.fs = fs;
 		this.shallowFile = shallowFile;
 
@@ -204,9 +237,28 @@ public ObjectDirectoryInserter newInserter() {
 		return new ObjectDirectoryInserter(this, config);
 	}
 
+	/**
+	 * Create an inserter that writes new objects into a single pack file.
+	 * <p>
+	 * Objects become visible to other readers only when the inserter is
+	 * flushed. This avoids creating a loose file for each object during bulk
+	 * imports.
+	 *
+	 * @return a new pack inserter.
+	 */
+	public PackInserter newPackInserter() {
+		return new PackInserter(this, config);
+	}
+
 	@Override
 	public void close() {
 		unpackedObjectCache.clear();
+		if (looseListings != null)
+			looseListings.clear();
+		commitGraph.set(null);
+
+		if (packDirectoryWatcher != null)
+			packDirectoryWatcher.close();
 
 		final PackList packs = packList.get();
 		packList.set(NO_PACKS);
@@ -234,6 +286,33 @@ public File fileFor(final AnyObjectId objectId) {
 		return super.fileFor(objectId);
 	}
 
+	/**
+	 * Get the number of loose object reads answered without opening a file.
+	 * <p>
+	 * Reads are answered from cached fan-out directory listings only if
+	 * {@code core.looseObjectListingCache} is enabled. Each such read saved
+	 * the {@code open()} of a missing file, and the exception reporting it.
+	 *
+	 * @return system calls saved by the loose object listing cache; 0 if the
+	 *         cache is not enabled.
+	 */
+	public long getLooseObjectListingSavedSyscalls() {
+		return looseListings != null ? looseListings.getSavedSyscalls() : 0;
+	}
+
+	/**
+	 * Get the number of system calls spent keeping the listings current.
+	 *
+	 * @return {@code stat()} calls made to validate cached fan-out directory
+	 *         listings plus directories listed; 0 if the cache is not enabled.
+	 */
+	public long getLooseObjectListingSpentSyscalls() {
+		if (looseListings == null)
+			return 0;
+		return looseListings.getValidationCount()
+				+ looseListings.getDirectoryReadCount();
+	}
+
 	/**
 	 * @return unmodifiable collection of all known pack files local to this
 	 *         directory. Most recent packs are presented first. Packs most
@@ -249,6 +328,35 @@ public Collection<PackFile> getPacks() {
 		return Collections.unmodifiableCollection(Arrays.asList(packs));
 	}
 
+	@Override
+	PackBitmapIndex getBitmapIndex() throws IOException {
+		for (PackFile pack : getPacks()) {
+			PackBitmapIndex index = pack.getBitmapIndex();
+			if (index != null)
+				return index;
+		}
+		return null;
+	}
+
+	@Override
+	CommitGraph getCommitGraph() throws IOException {
+		CommitGraphSnapshot g = commitGraph.get();
+		if (g == null || g.snapshot.isModified(commitGraphFile)) {
+			FileSnapshot s = FileSnapshot.save(commitGraphFile);
+			CommitGraph graph;
+			try {
+				graph = CommitGraphFile.open(commitGraphFile);
+			} catch (IOException e) {
+				// The graph only caches data found in the commits. If it is
+				// missing or damaged, callers read the commits instead.
+				graph = null;
+			}
+			g = new CommitGraphSnapshot(s, graph);
+			commitGraph.set(g);
+		}
+		return g.graph;
+	}
+
 	@Override
 	Collection<? extends CachedPack> getCachedPacks() throws IOException {
 		CachedPackList list = cachedPacks.get();
@@ -368,7 +476,17 @@ public String toString() {
 	boolean hasObject1(final AnyObjectId objectId) {
 		if (unpackedObjectCache.isUnpacked(objectId))
 			return true;
-		for (final PackFile p : packList.get().packs) {
+		final PackList pList = packList.get();
+		final MultiPackIndex midx = getMultiPackIndex(pList);
+		if (midx != null) {
+			int i = midx.find(objectId);
+			for (; 0 <= i; i = midx.next(i, objectId)) {
+				if (!midx.getPack(i).isCorrupt(midx.getOffset(i)))
+					return true;
+			}
+			return false;
+		}
+		for (final PackFile p : pList.packs) {
 			try {
 				if (p.hasObject(objectId)) {
 					return true;
@@ -451,6 +569,29 @@ ObjectLoader openObject1(final WindowCursor curs,
 
 		PackList pList = packList.get();
 		SEARCH: for (;;) {
+			final MultiPackIndex midx = getMultiPackIndex(pList);
+			if (midx != null) {
+				for (int i = midx.find(objectId); 0 <= i; i = midx.next(i,
+						objectId)) {
+					final PackFile p = midx.getPack(i);
+					final long pos = midx.getOffset(i);
+					try {
+						if (!p.isCorrupt(pos))
+							return p.load(curs, pos);
+					} catch (PackMismatchException e) {
+						// Pack was modified; refresh the entire pack list.
+						//
+						pList = scanPacks(pList);
+						continue SEARCH;
+					} catch (IOException e) {
+						// Assume the pack is corrupted.
+						//
+						removePack(p);
+					}
+				}
+				return null;
+			}
+
 			for (final PackFile p : pList.packs) {
 				try {
 					final ObjectLoader ldr = p.get(curs, objectId);
@@ -475,6 +616,27 @@ long getObjectSize1(final WindowCursor curs, final AnyObjectId objectId)
 			throws IOException {
 		PackList pList = packList.get();
 		SEARCH: for (;;) {
+			final MultiPackIndex midx = getMultiPackIndex(pList);
+			if (midx != null) {
+				for (int i = midx.find(objectId); 0 <= i; i = midx.next(i,
+						objectId)) {
+					final PackFile p = midx.getPack(i);
+					try {
+						return p.getObjectSize(curs, midx.getOffset(i));
+					} catch (PackMismatchException e) {
+						// Pack was modified; refresh the entire pack list.
+						//
+						pList = scanPacks(pList);
+						continue SEARCH;
+					} catch (IOException e) {
+						// Assume the pack is corrupted.
+						//
+						removePack(p);
+					}
+				}
+				return -1;
+			}
+
 			for (final PackFile p : pList.packs) {
 				try {
 					long sz = p.getObjectSize(curs, objectId);
@@ -498,6 +660,9 @@ long getObjectSize1(final WindowCursor curs, final AnyObjectId objectId)
 	@Override
 	long getObjectSize2(WindowCursor curs, String objectName,
 			AnyObjectId objectId) throws IOException {
+		if (looseListings != null
+				&& !looseListings.mayContain(objectId, objectName))
+			return -1;
 		try {
 			File path = fileFor(objectName);
 			FileInputStream in = new FileInputStream(path);
@@ -507,6 +672,8 @@ long getObjectSize2(WindowCursor curs, String objectName,
 				in.close();
 			}
 		} catch (FileNotFoundException noFile) {
+			if (looseListings != null)
+				looseListings.invalidate(objectId);
 			return -1;
 		}
 	}
@@ -546,6 +713,9 @@ boolean hasObject2(final String objectName) {
 	ObjectLoader openObject2(final WindowCursor curs,
 			final String objectName, final AnyObjectId objectId)
 			throws IOException {
+		if (looseListings != null
+				&& !looseListings.mayContain(objectId, objectName))
+			return null;
 		try {
 			File path = fileFor(objectName);
 			FileInputStream in = new FileInputStream(path);
@@ -557,6 +727,8 @@ ObjectLoader openObject2(final WindowCursor curs,
 			}
 		} catch (FileNotFoundException noFile) {
 			unpackedObjectCache.remove(objectId);
+			if (looseListings != null)
+				looseListings.invalidate(objectId);
 			return null;
 		}
 	}
@@ -587,6 +759,8 @@ InsertLooseObjectResult insertUnpackedObject(File tmp, ObjectId id,
 		if (tmp.renameTo(dst)) {
 			dst.setReadOnly();
 			unpackedObjectCache.add(id);
+			if (looseListings != null)
+				looseListings.added(id);
 			return InsertLooseObjectResult.INSERTED;
 		}
 
@@ -598,6 +772,8 @@ InsertLooseObjectResult insertUnpackedObject(File tmp, ObjectId id,
 		if (tmp.renameTo(dst)) {
 			dst.setReadOnly();
 			unpackedObjectCache.add(id);
+			if (looseListings != null)
+				looseListings.added(id);
 			return InsertLooseObjectResult.INSERTED;
 		}
 
@@ -617,6 +793,13 @@ InsertLooseObjectResult insertUnpackedObject(File tmp, ObjectId id,
 
 	boolean tryAgain1() {
 		final PackList old = packList.get();
+
+		// An event of the watcher proves a change, even one too recent for
+		// the snapshot to tell. Events arrive asynchronously, so without one
+		// the snapshot still decides.
+		//
+		if (packDirectoryWatcher != null && packDirectoryWatcher.hasChanged())
+			return old != scanPacks(old);
 		if (old.snapshot.isModified(packDirectory))
 			return old != scanPacks(old);
 		return false;
@@ -677,6 +860,19 @@ private void insertPack(final PackFile pf) {
 			newList[0] = pf;
 			System.arraycopy(oldList, 0, newList, 1, oldList.length);
 			n = new PackList(o.snapshot, newList);
+
+			// Merge the new pack into the combined index, rather than
+			// discarding it and reading every pack's index again.
+			//
+			final MultiPackIndex midx = o.multiPackIndex;
+			if (midx != null) {
+				try {
+					n.multiPackIndex = midx.add(pf);
+				} catch (IOException e) {
+					// Leave the index to be rebuilt on next use, which
+					// will find and remove the unreadable pack.
+				}
+			}
 		} while (!packList.compareAndSet(o, n));
 	}
 
@@ -694,10 +890,47 @@ private void removePack(final PackFile deadPack) {
 			System.arraycopy(oldList, 0, newList, 0, j);
 			System.arraycopy(oldList, j + 1, newList, j, newList.length - j);
 			n = new PackList(o.snapshot, newList);
+			if (o.multiPackIndex != null)
+				n.multiPackIndex = o.multiPackIndex.remove(deadPack);
 		} while (!packList.compareAndSet(o, n));
 		deadPack.close();
 	}
 
+	/**
+	 * Get the combined index of a pack list, building it on first use.
+	 *
+	 * @param list
+	 *            the pack list.
+	 * @return the combined index; null if the list should be searched one
+	 *         pack at a time.
+	 */
+	private MultiPackIndex getMultiPackIndex(final PackList list) {
+		if (!useMultiPackIndex
+				|| list.packs.length < MULTI_PACK_INDEX_MIN_PACKS)
+			return null;
+		MultiPackIndex midx = list.multiPackIndex;
+		if (midx != null || list.multiPackIndexUnavailable)
+			return midx;
+		synchronized (list) {
+			midx = list.multiPackIndex;
+			if (midx == null && !list.multiPackIndexUnavailable) {
+				try {
+					midx = MultiPackIndex.create(list.packs);
+				} catch (IOException e) {
+					// A pack index is unreadable. Searching the packs one
+					// at a time removes the broken pack from the list, and
+					// the next list builds its own combined index.
+					//
+					return null;
+				}
+				if (midx == null)
+					list.multiPackIndexUnavailable = true;
+				list.multiPackIndex = midx;
+			}
+			return midx;
+		}
+	}
+
 	private static int indexOf(final PackFile[] list, final PackFile pack) {
 		for (int i = 0; i < list.length; i++) {
 			if (list[i] == pack)
@@ -783,7 +1016,22 @@ private PackList scanPacksImpl(final PackList old) {
 
 		final PackFile[] r = list.toArray(new PackFile[list.size()]);
 		Arrays.sort(r, PackFile.SORT);
-		return new PackList(snapshot, r);
+		final PackList n = new PackList(snapshot, r);
+
+		// Merge the new packs into the combined index, rather than
+		// discarding it and reading every pack's index again.
+		//
+		final MultiPackIndex midx = old.multiPackIndex;
+		if (midx != null && MULTI_PACK_INDEX_MIN_PACKS <= r.length) {
+			try {
+				n.multiPackIndex = midx.update(r);
+				n.multiPackIndexUnavailable = n.multiPackIndex == null;
+			} catch (IOException e) {
+				// Leave the index to be rebuilt on next use, which will
+				// find and remove the unreadable pack.
+			}
+		}
+		return n;
 	}
 
 	private static Map<String, PackFile> reuseMap(final PackList old) {
@@ -886,12 +1134,29 @@ private static final class PackList {
 		/** All known packs, sorted by {@link PackFile#SORT}. */
 		final PackFile[] packs;
 
+		/** Combined index of {@link #packs}, null until first needed. */
+		volatile MultiPackIndex multiPackIndex;
+
+		/** True if {@link #packs} have too many objects to combine. */
+		volatile boolean multiPackIndexUnavailable;
+
 		PackList(final FileSnapshot monitor, final PackFile[] packs) {
 			this.snapshot = monitor;
 			this.packs = packs;
 		}
 	}
 
+	private static final class CommitGraphSnapshot {
+		final FileSnapshot snapshot;
+
+		final CommitGraph graph;
+
+		CommitGraphSnapshot(FileSnapshot snapshot, CommitGraph graph) {
+			this.snapshot = snapshot;
+			this.graph = graph;
+		}
+	}
+
 	private static final class CachedPackList {
 		final FileSnapshot snapshot;
 
@@ -127,7 +127,9 @@ public class ObjectDirectoryPackParser extends PackParser {
 		this.crc = new CRC32();
 		this.tailDigest = Constants.newMessageDigest();
 
-		indexVersion = db.getConfig().get(CoreConfig.KEY).getPackIndexVersion();
+		CoreConfig core = db.getConfig().get(CoreConfig.KEY);
+		indexVersion = core.getPackIndexVersion();
+		setThreads(core.getPackIndexThreads());
 	}
 
 	/**
@@ -416,10 +418,11 @@ private PackLock renameAndOpenPack(final String lockMessage)
 			return null;
 		}
 
+		// Name the pack by its sorted object names, so the name does not
+		// depend on the order in which deltas were resolved.
 		final MessageDigest d = Constants.newMessageDigest();
 		final byte[] oeBytes = new byte[Constants.OBJECT_ID_LENGTH];
-		for (int i = 0; i < getObjectCount(); i++) {
-			final PackedObjectInfo oe = getObject(i);
+		for (PackedObjectInfo oe : getSortedObjectList(null /* by ObjectId */)) {
 			oe.copyRawTo(oeBytes, 0);
 			d.update(oeBytes);
 		}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.util.EWAHCompressedBitmap;
+import org.eclipse.jgit.util.IO;
+
+/**
+ * Support for the pack bitmap index v1 format.
+ *
+ * @see PackBitmapIndex
+ */
+class PackBitmapIndexV1 extends PackBitmapIndex {
+	static final byte[] MAGIC = { 'B', 'I', 'T', 'M' };
+
+	static final int OPT_FULL = 1;
+
+	/** Upper bound on the length of a chain of XOR compressed bitmaps. */
+	static final int MAX_XOR_OFFSET = 160;
+
+	private final PackIndex packIndex;
+
+	private final PackReverseIndex reverseIndex;
+
+	private final EWAHCompressedBitmap commits;
+
+	private final EWAHCompressedBitmap trees;
+
+	private final EWAHCompressedBitmap blobs;
+
+	private final EWAHCompressedBitmap tags;
+
+	private final ObjectIdOwnerMap<StoredBitmap> bitmaps;
+
+	PackBitmapIndexV1(final InputStream fd, PackIndex packIndex,
+			PackReverseIndex reverseIndex) throws IOException {
+		this.packIndex = packIndex;
+		this.reverseIndex = reverseIndex;
+		this.bitmaps = new ObjectIdOwnerMap<StoredBitmap>();
+
+		final MessageDigest md = Constants.newMessageDigest();
+		final DigestInputStream digestIn = new DigestInputStream(fd, md);
+		final DataInput dataInput = new DataInputStream(digestIn);
+
+		final byte[] hdr = new byte[MAGIC.length];
+		dataInput.readFully(hdr);
+		if (!Arrays.equals(MAGIC, hdr))
+			throw new CorruptObjectException(MessageFormat.format(
+					JGitText.get().expectedGot, Arrays.toString(MAGIC),
+					Arrays.toString(hdr)));
+
+		final int version = dataInput.readUnsignedShort();
+		if (version != 1)
+			throw new IOException(MessageFormat.format(
+					JGitText.get().unsupportedPackIndexVersion,
+					Integer.valueOf(version)));
+
+		final int opts = dataInput.readUnsignedShort();
+		if ((opts & OPT_FULL) == 0)
+			throw new IOException(MessageFormat.format(
+					JGitText.get().expectedGot,
+					Integer.toHexString(OPT_FULL),
+					Integer.toHexString(opts)));
+
+		final long numEntries = dataInput.readInt() & 0xffffffffL;
+		if (numEntries > Integer.MAX_VALUE)
+			throw new IOException(JGitText.get().indexFileIsTooLargeForJgit);
+
+		packChecksum = new byte[20];
+		dataInput.readFully(packChecksum);
+
+		commits = EWAHCompressedBitmap.readFrom(dataInput);
+		trees = EWAHCompressedBitmap.readFrom(dataInput);
+		blobs = EWAHCompressedBitmap.readFrom(dataInput);
+		tags = EWAHCompressedBitmap.readFrom(dataInput);
+
+		final StoredBitmap[] recent = new StoredBitmap[MAX_XOR_OFFSET];
+		for (int i = 0; i < (int) numEntries; i++) {
+			final long nthObjectId = dataInput.readInt() & 0xffffffffL;
+			final int xorOffset = dataInput.readUnsignedByte();
+			dataInput.readUnsignedByte(); // flags, not needed to read
+			final EWAHCompressedBitmap bitmap = EWAHCompressedBitmap
+					.readFrom(dataInput);
+
+			if (nthObjectId >= packIndex.getObjectCount())
+				throw new CorruptObjectException(MessageFormat.format(
+						JGitText.get().invalidId,
+						String.valueOf(nthObjectId)));
+			if (xorOffset > MAX_XOR_OFFSET || xorOffset > i)
+				throw new IOException(MessageFormat.format(
+						JGitText.get().invalidBitmapXorOffset,
+						Integer.valueOf(xorOffset)));
+
+			final ObjectId objectId = packIndex.getObjectId(nthObjectId);
+			final StoredBitmap base = xorOffset == 0 ? null
+					: recent[(i - xorOffset) % MAX_XOR_OFFSET];
+			final StoredBitmap sb = new StoredBitmap(objectId, bitmap, base);
+			bitmaps.add(sb);
+			recent[i % MAX_XOR_OFFSET] = sb;
+		}
+
+		final byte[] computed = md.digest();
+		final byte[] readChecksum = new byte[20];
+		IO.readFully(fd, readChecksum, 0, readChecksum.length);
+		if (!Arrays.equals(computed, readChecksum))
+			throw new CorruptObjectException(
+					JGitText.get().bitmapIndexChecksumMismatch);
+	}
+
+	@Override
+	public int findPosition(AnyObjectId objectId) {
+		final long offset = packIndex.findOffset(objectId);
+		if (offset == -1)
+			return -1;
+		return reverseIndex.findPosition(offset);
+	}
+
+	@Override
+	public ObjectId getObject(int position) throws IllegalArgumentException {
+		if (position < 0 || getObjectCount() <= position)
+			throw new IllegalArgumentException(MessageFormat.format(
+					JGitText.get().invalidBitmapPosition,
+					Integer.valueOf(position)));
+		return reverseIndex.findObjectByPosition(position);
+	}
+
+	@Override
+	public EWAHCompressedBitmap ofObjectType(int type) {
+		switch (type) {
+		case Constants.OBJ_COMMIT:
+			return commits;
+		case Constants.OBJ_TREE:
+			return trees;
+		case Constants.OBJ_BLOB:
+			return blobs;
+		case Constants.OBJ_TAG:
+			return tags;
+		default:
+			return EWAHCompressedBitmap.EMPTY;
+		}
+	}
+
+	@Override
+	public EWAHCompressedBitmap getBitmap(AnyObjectId objectId) {
+		final StoredBitmap sb = bitmaps.get(objectId);
+		return sb != null ? sb.getBitmap() : null;
+	}
+
+	@Override
+	public int getObjectCount() {
+		return (int) packIndex.getObjectCount();
+	}
+
+	@Override
+	public int getBitmapCount() {
+		return bitmaps.size();
+	}
+
+	/**
+	 * A bitmap stored in the index, possibly XOR compressed against the bitmap
+	 * of another entry. The uncompressed form is computed on first use and
+	 * remembered.
+	 */
+	private static final class StoredBitmap extends ObjectIdOwnerMap.Entry {
+		private volatile EWAHCompressedBitmap resolved;
+
+		private EWAHCompressedBitmap xorBitmap;
+
+		private StoredBitmap xorBase;
+
+		StoredBitmap(AnyObjectId objectId, EWAHCompressedBitmap bitmap,
+				StoredBitmap xorBase) {
+			super(objectId);
+			if (xorBase == null)
+				this.resolved = bitmap;
+			else {
+				this.xorBitmap = bitmap;
+				this.xorBase = xorBase;
+			}
+		}
+
+		EWAHCompressedBitmap getBitmap() {
+			EWAHCompressedBitmap r = resolved;
+			if (r != null)
+				return r;
+			synchronized (this) {
+				if (resolved == null) {
+					EWAHCompressedBitmap base = xorBase.getBitmap();
+					int size = Math.max(base.sizeInBits(),
+							xorBitmap.sizeInBits());
+					long[] words = new long[(size + 63) >>> 6];
+					base.or(words);
+					xorBitmap.xor(words);
+					resolved = EWAHCompressedBitmap.compress(words, size);
+					xorBitmap = null;
+					xorBase = null;
+				}
+				return resolved;
+			}
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tells when a pack directory changed, without listing it.
+ * <p>
+ * The watcher registers the directory with a {@code java.nio.file.WatchService}
+ * shared by all watchers of the JVM, and counts the events that arrive for
+ * it. Asking if the directory changed only drains the service's queue of
+ * signalled keys; it does not make a system call.
+ * <p>
+ * Events arrive asynchronously and may be lost, for example for changes made
+ * by another host on a network file system. An event proves a change, but the
+ * lack of one does not prove the directory is unmodified, so callers still
+ * compare a {@link FileSnapshot} when no event was seen.
+ * <p>
+ * The watch service is only available on Java 7 and later, and is therefore
+ * accessed through reflection. It is only used if it is backed by the
+ * operating system; a polling service reports events seconds late. If it is
+ * not available, fails, or the directory could not be registered, the watcher
+ * reports no changes and callers rely on the snapshots alone.
+ */
+class PackDirectoryWatcher {
+	private static final Method toPath;
+
+	private static final Method register;
+
+	private static final Method poll;
+
+	private static final Method pollEvents;
+
+	private static final Method reset;
+
+	private static final Method cancel;
+
+	private static final Method isValid;
+
+	/** The shared {@code WatchService}; null if not available. */
+	private static final Object service;
+
+	/** Set once a call on the watch service failed, e.g. it was closed. */
+	private static volatile boolean failed;
+
+	/** {@code ENTRY_CREATE} and {@code ENTRY_DELETE}. */
+	private static final Object kinds;
+
+	/** Held while draining the service or changing registrations. */
+	private static final ReentrantLock lock = new ReentrantLock();
+
+	/** Registrations by their {@code WatchKey}; guarded by {@link #lock}. */
+	private static final Map<Object, Registration> registrations = new HashMap<Object, Registration>();
+
+	/** Watchers that were garbage collected without being closed. */
+	private static final ReferenceQueue<PackDirectoryWatcher> collected = new ReferenceQueue<PackDirectoryWatcher>();
+
+	static {
+		Method mToPath = null;
+		Method mRegister = null;
+		Method mPoll = null;
+		Method mPollEvents = null;
+		Method mReset = null;
+		Method mCancel = null;
+		Method mIsValid = null;
+		Object svc = null;
+		Object k = null;
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path"); //$NON-NLS-1$
+			Class<?> serviceClass = Class
+					.forName("java.nio.file.WatchService"); //$NON-NLS-1$
+			Class<?> keyClass = Class.forName("java.nio.file.WatchKey"); //$NON-NLS-1$
+			Class<?> kindClass = Class
+					.forName("java.nio.file.WatchEvent$Kind"); //$NON-NLS-1$
+			Class<?> kindsClass = Class
+					.forName("java.nio.file.StandardWatchEventKinds"); //$NON-NLS-1$
+
+			mToPath = File.class.getMethod("toPath"); //$NON-NLS-1$
+			mRegister = pathClass.getMethod("register", serviceClass, //$NON-NLS-1$
+					Array.newInstance(kindClass, 0).getClass());
+			mPoll = serviceClass.getMethod("poll"); //$NON-NLS-1$
+			mPollEvents = keyClass.getMethod("pollEvents"); //$NON-NLS-1$
+			mReset = keyClass.getMethod("reset"); //$NON-NLS-1$
+			mCancel = keyClass.getMethod("cancel"); //$NON-NLS-1$
+			mIsValid = keyClass.getMethod("isValid"); //$NON-NLS-1$
+
+			k = Array.newInstance(kindClass, 2);
+			Array.set(k, 0, kindsClass.getField("ENTRY_CREATE").get(null)); //$NON-NLS-1$
+			Array.set(k, 1, kindsClass.getField("ENTRY_DELETE").get(null)); //$NON-NLS-1$
+
+			Object fs = Class.forName("java.nio.file.FileSystems") //$NON-NLS-1$
+					.getMethod("getDefault").invoke(null); //$NON-NLS-1$
+			svc = Class.forName("java.nio.file.FileSystem") //$NON-NLS-1$
+					.getMethod("newWatchService").invoke(fs); //$NON-NLS-1$
+			if (svc.getClass().getName().endsWith("PollingWatchService")) { //$NON-NLS-1$
+				serviceClass.getMethod("close").invoke(svc); //$NON-NLS-1$
+				svc = null;
+			}
+		} catch (Exception notAvailable) {
+			svc = null;
+		}
+		toPath = mToPath;
+		register = mRegister;
+		poll = mPoll;
+		pollEvents = mPollEvents;
+		reset = mReset;
+		cancel = mCancel;
+		isValid = mIsValid;
+		kinds = k;
+		service = svc;
+	}
+
+	/** @return true if directories can be watched in this JVM. */
+	static boolean isAvailable() {
+		return service != null && !failed;
+	}
+
+	private final File directory;
+
+	/** Registration of the directory; null if not registered. */
+	private volatile Registration registration;
+
+	/** Reference releasing the registration; guarded by {@link #lock}. */
+	private WatcherRef ref;
+
+	/** Events of {@link #registration} as of the last report of a change. */
+	private long seenEvents;
+
+	/**
+	 * @param directory
+	 *            the directory to watch.
+	 */
+	PackDirectoryWatcher(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Check if the directory certainly changed since the last call.
+	 * <p>
+	 * The first call registers the directory, and returns false as changes
+	 * made before the registration are unknown. So does every call made while
+	 * the directory cannot be watched, or while another thread is draining
+	 * the watch service.
+	 *
+	 * @return true if events show entries were created or deleted since the
+	 *         previous call; false if no event was seen yet, which does not
+	 *         mean the directory is unmodified.
+	 */
+	synchronized boolean hasChanged() {
+		if (!isAvailable())
+			return false;
+
+		Registration r = registration;
+		if (r == null) {
+			register();
+			return false;
+		}
+
+		if (!drain())
+			return false;
+		if (!isValid(r.key)) {
+			close();
+			return false;
+		}
+
+		long events = r.events;
+		if (events != seenEvents) {
+			seenEvents = events;
+			return true;
+		}
+		return false;
+	}
+
+	/** Stop watching the directory. */
+	void close() {
+		lock.lock();
+		try {
+			if (ref != null) {
+				ref.clear();
+				release(ref);
+				ref = null;
+			}
+			registration = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void register() {
+		lock.lock();
+		try {
+			expunge();
+			Object path = toPath.invoke(directory);
+			Object k = register.invoke(path, service, kinds);
+
+			// Registering a directory again returns its existing key.
+			Registration r = registrations.get(k);
+			if (r == null) {
+				r = new Registration(k);
+				registrations.put(k, r);
+			}
+			ref = new WatcherRef(this, r);
+			r.watchers.add(ref);
+			seenEvents = r.events;
+			registration = r;
+		} catch (Exception e) {
+			// The directory may not exist yet. Try again next time.
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Count the events signalled since the last drain.
+	 *
+	 * @return true if the events were counted; false if another thread is
+	 *         already counting them.
+	 */
+	private static boolean drain() {
+		if (!lock.tryLock())
+			return false;
+		try {
+			expunge();
+			for (;;) {
+				Object k = invoke(poll, service);
+				if (k == null)
+					return !failed;
+
+				invoke(pollEvents, k);
+				Registration r = registrations.get(k);
+				if (r != null)
+					r.events++;
+				invoke(reset, k);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Release the registrations of collected watchers; needs the lock. */
+	private static void expunge() {
+		WatcherRef r;
+		while ((r = (WatcherRef) collected.poll()) != null)
+			release(r);
+	}
+
+	/** Release one watcher's registration; needs the lock. */
+	private static void release(WatcherRef r) {
+		Registration reg = r.registration;
+		if (reg.watchers.remove(r) && reg.watchers.isEmpty()) {
+			registrations.remove(reg.key);
+			invoke(cancel, reg.key);
+		}
+	}
+
+	private static boolean isValid(Object k) {
+		return Boolean.TRUE.equals(invoke(isValid, k));
+	}
+
+	/**
+	 * Call the watch service through reflection.
+	 *
+	 * @return the method's result; null if it failed, in which case the
+	 *         watch service is not used anymore.
+	 */
+	private static Object invoke(Method m, Object on, Object... args) {
+		try {
+			return m.invoke(on, args);
+		} catch (IllegalAccessException e) {
+			failed = true;
+			return null;
+		} catch (InvocationTargetException e) {
+			// E.g. ClosedWatchServiceException or an IOException.
+			failed = true;
+			return null;
+		}
+	}
+
+	/** A registered {@code WatchKey}, shared by watchers of one directory. */
+	private static final class Registration {
+		final Object key;
+
+		/** Watchers using the key; the key is cancelled when none is left. */
+		final Set<WatcherRef> watchers = new HashSet<WatcherRef>();
+
+		/** Number of times the key was signalled; written under the lock. */
+		volatile long events;
+
+		Registration(Object key) {
+			this.key = key;
+		}
+	}
+
+	/** Releases a registration if its watcher is not closed. */
+	private static final class WatcherRef extends
+			WeakReference<PackDirectoryWatcher> {
+		final Registration registration;
+
+		WatcherRef(PackDirectoryWatcher w, Registration registration) {
+			super(w, collected);
+			this.registration = registration;
+		}
+	}
+}
@@ -45,7 +45,9 @@
 
 package org.eclipse.jgit.storage.file;
 
+import static org.eclipse.jgit.storage.pack.PackExt.BITMAP_INDEX;
 import static org.eclipse.jgit.storage.pack.PackExt.INDEX;
+import static org.eclipse.jgit.storage.pack.PackExt.REVERSE_INDEX;
 
 import java.io.EOFException;
 import java.io.File;
@@ -81,6 +83,7 @@
 import org.eclipse.jgit.util.LongList;
 import org.eclipse.jgit.util.NB;
 import org.eclipse.jgit.util.RawParseUtils;
+import org.eclipse.jgit.util.StripedCounter;
 
 /**
  * A Git version 2 pack file representation. A pack file contains Git objects in
@@ -97,12 +100,20 @@ public int compare(final PackFile a, final PackFile b) {
 
 	private final File packFile;
 
+	private final int extensions;
+
 	private File keepFile;
 
 	private volatile String packName;
 
 	final int hash;
 
+	/** Requests {@link WindowCache} answered for this pack from memory. */
+	final StripedCounter cacheHits = new StripedCounter();
+
+	/** Requests {@link WindowCache} had to read from this pack. */
+	final StripedCounter cacheMisses = new StripedCounter();
+
 	private RandomAccessFile fd;
 
 	/** Serializes reads performed against {@link #fd}. */
@@ -118,12 +129,20 @@ public int compare(final PackFile a, final PackFile b) {
 
 	private volatile boolean invalid;
 
+	private volatile boolean closed;
+
 	private byte[] packChecksum;
 
 	private PackIndex loadedIdx;
 
 	private PackReverseIndex reverseIdx;
 
+	private PackBitmapIndex bitmapIdx;
+
+	private boolean invalidBitmap;
+
+	private boolean invalidReverseIdx;
+
 	/**
 	 * Objects we have tried to read, and discovered to be corrupt.
 	 * <p>
@@ -143,6 +162,7 @@ public int compare(final PackFile a, final PackFile b) {
 	 */
 	public PackFile(final File packFile, int extensions) {
 		this.packFile = packFile;
+		this.extensions = extensions;
 		this.packLastModified = (int) (packFile.lastModified() >> 10);
 
 		// Multiply by 31 here so we can more directly combine with another
@@ -158,7 +178,11 @@ private synchronized PackIndex idx() throws IOException {
 				throw new PackInvalidException(packFile);
 
 			try {
-				final PackIndex idx = PackIndex.open(extFile(INDEX));
+				final PackIndex idx;
+				if (WindowCache.isPackedIndexMMAP())
+					idx = PackIndex.openMapped(extFile(INDEX));
+				else
+					idx = PackIndex.open(extFile(INDEX));
 
 				if (packChecksum == null)
 					packChecksum = idx.packChecksum;
@@ -174,6 +198,15 @@ else if (!Arrays.equals(packChecksum, idx.packChecksum))
 		return loadedIdx;
 	}
 
+	private long findOffset(AnyObjectId id) throws IOException {
+		try {
+			return idx().findOffset(id);
+		} catch (MappedPackIndexV2.CorruptOffsetException e) {
+			invalid = true;
+			throw e.getCause();
+		}
+	}
+
 	/** @return the File object which locates this pack on disk. */
 	public File getPackFile() {
 		return packFile;
@@ -215,7 +248,7 @@ public String getPackName() {
 	 *             the index file cannot be loaded into memory.
 	 */
 	public boolean hasObject(final AnyObjectId id) throws IOException {
-		final long offset = idx().findOffset(id);
+		final long offset = findOffset(id);
 		return 0 < offset && !isCorrupt(offset);
 	}
 
@@ -244,7 +277,7 @@ public boolean shouldBeKept() {
 	 */
 	ObjectLoader get(final WindowCursor curs, final AnyObjectId id)
 			throws IOException {
-		final long offset = idx().findOffset(id);
+		final long offset = findOffset(id);
 		return 0 < offset && !isCorrupt(offset) ? load(curs, offset) : null;
 	}
 
@@ -257,10 +290,13 @@ void resolve(Set<ObjectId> matches, AbbreviatedObjectId id, int matchLimit)
 	 * Close the resources utilized by this repository
 	 */
 	public void close() {
+		closed = true;
 		WindowCache.purge(this);
+		DeltaBaseCache.purge(this);
 		synchronized (this) {
 			loadedIdx = null;
 			reverseIdx = null;
+			bitmapIdx = null;
 		}
 	}
 
@@ -307,7 +343,12 @@ long getObjectCount() throws IOException {
 	 *             the index file cannot be loaded into memory.
 	 */
 	ObjectId findObjectForOffset(final long offset) throws IOException {
-		return getReverseIdx().findObject(offset);
+		try {
+			return getReverseIdx().findObject(offset);
+		} catch (PackReverseIndexV1.CorruptPositionException e) {
+			discardReverseIdx();
+			return getReverseIdx().findObject(offset);
+		}
 	}
 
 	private final byte[] decompress(final long position, final int sz,
@@ -541,6 +582,11 @@ void setInvalid() {
 		invalid = true;
 	}
 
+	/** @return true once {@link #close()} was called. */
+	boolean closed() {
+		return closed;
+	}
+
 	private void readFully(final long position, final byte[] dstbuf,
 			int dstoff, final int cnt, final WindowCursor curs)
 			throws IOException {
@@ -837,7 +883,7 @@ else if (delta.next == null)
 
 	private long findDeltaBase(ObjectId baseId) throws IOException,
 			MissingObjectException {
-		long ofs = idx().findOffset(baseId);
+		long ofs = findOffset(baseId);
 		if (ofs < 0)
 			throw new MissingObjectException(baseId,
 					JGitText.get().missingDeltaBase);
@@ -942,7 +988,7 @@ int getObjectType(final WindowCursor curs, long pos) throws IOException {
 
 	long getObjectSize(final WindowCursor curs, final AnyObjectId id)
 			throws IOException {
-		final long offset = idx().findOffset(id);
+		final long offset = findOffset(id);
 		return 0 < offset ? getObjectSize(curs, offset) : -1;
 	}
 
@@ -996,7 +1042,7 @@ long getObjectSize(final WindowCursor curs, final long pos)
 
 	LocalObjectRepresentation representation(final WindowCursor curs,
 			final AnyObjectId objectId) throws IOException {
-		final long pos = idx().findOffset(objectId);
+		final long pos = findOffset(objectId);
 		if (pos < 0)
 			return null;
 
@@ -1047,16 +1093,72 @@ LocalObjectRepresentation representation(final WindowCursor curs,
 	private long findEndOffset(final long startOffset)
 			throws IOException, CorruptObjectException {
 		final long maxOffset = length - 20;
-		return getReverseIdx().findNextOffset(startOffset, maxOffset);
+		try {
+			return getReverseIdx().findNextOffset(startOffset, maxOffset);
+		} catch (PackReverseIndexV1.CorruptPositionException e) {
+			discardReverseIdx();
+			return getReverseIdx().findNextOffset(startOffset, maxOffset);
+		}
+	}
+
+	/**
+	 * @return the bitmap index for this pack file, or null if the pack has
+	 *         no usable bitmap index.
+	 * @throws IOException
+	 *             the pack index cannot be read.
+	 */
+	synchronized PackBitmapIndex getBitmapIndex() throws IOException {
+		if (invalid || invalidBitmap)
+			return null;
+		if (bitmapIdx == null && hasExt(BITMAP_INDEX)) {
+			final PackBitmapIndex idx;
+			try {
+				idx = PackBitmapIndex.open(extFile(BITMAP_INDEX), idx(),
+						getReverseIdx());
+			} catch (IOException e) {
+				// The bitmap was removed by a concurrent repack, or is
+				// damaged. Either way it only makes packing faster, so
+				// ignore it rather than failing the operation.
+				invalidBitmap = true;
+				return null;
+			}
+
+			// At this point, idx() will have set packChecksum.
+			if (Arrays.equals(packChecksum, idx.packChecksum))
+				bitmapIdx = idx;
+			else
+				invalidBitmap = true;
+		}
+		return bitmapIdx;
 	}
 
 	private synchronized PackReverseIndex getReverseIdx() throws IOException {
-		if (reverseIdx == null)
-			reverseIdx = new PackReverseIndex(idx());
+		if (reverseIdx == null) {
+			final PackIndex idx = idx();
+			if (hasExt(REVERSE_INDEX) && !invalidReverseIdx) {
+				try {
+					reverseIdx = PackReverseIndex.open(
+							extFile(REVERSE_INDEX), idx);
+				} catch (IOException e) {
+					// The .rev file only caches data found in the index;
+					// compute it again below.
+				}
+			}
+			if (reverseIdx == null)
+				reverseIdx = new PackReverseIndex(idx);
+		}
 		return reverseIdx;
 	}
 
-	private boolean isCorrupt(long offset) {
+	/** Stop using a damaged {@code .rev} file, and compute the index instead. */
+	private synchronized void discardReverseIdx() {
+		if (reverseIdx instanceof PackReverseIndexV1) {
+			invalidReverseIdx = true;
+			reverseIdx = null;
+		}
+	}
+
+	boolean isCorrupt(long offset) {
 		LongList list = corruptObjects;
 		if (list == null)
 			return false;
@@ -1081,6 +1183,10 @@ private void setCorrupt(long offset) {
 		}
 	}
 
+	private boolean hasExt(PackExt ext) {
+		return (extensions & ext.getBit()) != 0;
+	}
+
 	private File extFile(PackExt ext) {
 		String p = packFile.getName();
 		int dot = p.lastIndexOf('.');
@@ -49,6 +49,8 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel.MapMode;
 import java.text.MessageFormat;
 import java.util.Iterator;
 import java.util.Set;
@@ -109,6 +111,51 @@ public static PackIndex open(final File idxFile) throws IOException {
 		}
 	}
 
+	/**
+	 * Open an existing pack <code>.idx</code> file by mapping it into memory.
+	 * <p>
+	 * Version 2 indexes are searched in place within the mapping, so their
+	 * name and offset tables do not occupy the Java heap. Version 1 indexes,
+	 * and indexes too large to be mapped, are read as by {@link #open(File)}.
+	 * On some platforms a mapped file cannot be deleted until the returned
+	 * index has been garbage collected.
+	 *
+	 * @param idxFile
+	 *            existing pack .idx to read.
+	 * @return access implementation for the requested file.
+	 * @throws FileNotFoundException
+	 *             the file does not exist.
+	 * @throws IOException
+	 *             the file exists but could not be read due to security errors,
+	 *             unrecognized data version, or unexpected data corruption.
+	 */
+	public static PackIndex openMapped(final File idxFile) throws IOException {
+		final RandomAccessFile fd = new RandomAccessFile(idxFile, "r"); //$NON-NLS-1$
+		try {
+			final long len = fd.length();
+			final byte[] hdr = new byte[8];
+			if (hdr.length <= len && len <= Integer.MAX_VALUE) {
+				fd.readFully(hdr);
+				if (isTOC(hdr) && NB.decodeInt32(hdr, 4) == 2)
+					return new MappedPackIndexV2(fd.getChannel().map(
+							MapMode.READ_ONLY, 0, len));
+			}
+		} catch (IOException ioe) {
+			final String path = idxFile.getAbsolutePath();
+			final IOException err;
+			err = new IOException(MessageFormat.format(JGitText.get().unreadablePackIndex, path));
+			err.initCause(ioe);
+			throw err;
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore
+			}
+		}
+		return open(idxFile);
+	}
+
 	/**
 	 * Read an existing pack index file from a buffered stream.
 	 * <p>
@@ -244,6 +291,29 @@ public final ObjectId getObjectId(final int nthPosition) {
 		return getObjectId(((long) u31) << 1 | one);
 	}
 
+	/**
+	 * Get the offset of the n-th object entry returned by {@link #iterator()}.
+	 * <p>
+	 * The default implementation walks {@link #iterator()}; implementations
+	 * able to seek to the entry directly should override it.
+	 *
+	 * @param nthPosition
+	 *            position within the traversal of {@link #iterator()} that the
+	 *            caller needs the offset for. The first returned
+	 *            {@link MutableEntry} is 0, the second is 1, etc.
+	 * @return offset of the object's header within the pack file.
+	 * @throws IndexOutOfBoundsException
+	 *             the index has fewer than {@code nthPosition + 1} entries.
+	 */
+	public long getOffset(long nthPosition) {
+		long n = 0;
+		for (MutableEntry e : this) {
+			if (n++ == nthPosition)
+				return e.getOffset();
+		}
+		throw new IndexOutOfBoundsException(String.valueOf(nthPosition));
+	}
+
 	/**
 	 * Locate the file offset position for the requested object.
 	 *
@@ -115,6 +115,20 @@ public long getOffset64Count() {
 
 	@Override
 	public ObjectId getObjectId(final long nthPosition) {
+		final int levelOne = findLevelOne(nthPosition);
+		final int p = getLevelTwo(nthPosition, levelOne);
+		final int dataIdx = idOffset(p);
+		return ObjectId.fromRaw(idxdata[levelOne], dataIdx);
+	}
+
+	@Override
+	public long getOffset(long nthPosition) {
+		final int levelOne = findLevelOne(nthPosition);
+		final int p = getLevelTwo(nthPosition, levelOne);
+		return NB.decodeUInt32(idxdata[levelOne], idOffset(p) - 4);
+	}
+
+	private int findLevelOne(final long nthPosition) {
 		int levelOne = Arrays.binarySearch(idxHeader, nthPosition + 1);
 		long base;
 		if (levelOne >= 0) {
@@ -130,10 +144,12 @@ public ObjectId getObjectId(final long nthPosition) {
 			levelOne = -(levelOne + 1);
 		}
 
-		base = levelOne > 0 ? idxHeader[levelOne - 1] : 0;
-		final int p = (int) (nthPosition - base);
-		final int dataIdx = idOffset(p);
-		return ObjectId.fromRaw(idxdata[levelOne], dataIdx);
+		return levelOne;
+	}
+
+	private int getLevelTwo(final long nthPosition, final int levelOne) {
+		final long base = levelOne > 0 ? idxHeader[levelOne - 1] : 0;
+		return (int) (nthPosition - base);
 	}
 
 	@Override
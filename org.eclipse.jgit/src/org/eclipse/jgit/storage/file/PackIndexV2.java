@@ -172,6 +172,20 @@ public long getOffset64Count() {
 
 	@Override
 	public ObjectId getObjectId(final long nthPosition) {
+		final int levelOne = findLevelOne(nthPosition);
+		final int p = getLevelTwo(nthPosition, levelOne);
+		final int p4 = p << 2;
+		return ObjectId.fromRaw(names[levelOne], p4 + p); // p * 5
+	}
+
+	@Override
+	public long getOffset(long nthPosition) {
+		final int levelOne = findLevelOne(nthPosition);
+		final int levelTwo = getLevelTwo(nthPosition, levelOne);
+		return getOffset(levelOne, levelTwo);
+	}
+
+	private int findLevelOne(final long nthPosition) {
 		int levelOne = Arrays.binarySearch(fanoutTable, nthPosition + 1);
 		long base;
 		if (levelOne >= 0) {
@@ -187,10 +201,12 @@ public ObjectId getObjectId(final long nthPosition) {
 			levelOne = -(levelOne + 1);
 		}
 
-		base = levelOne > 0 ? fanoutTable[levelOne - 1] : 0;
-		final int p = (int) (nthPosition - base);
-		final int p4 = p << 2;
-		return ObjectId.fromRaw(names[levelOne], p4 + p); // p * 5
+		return levelOne;
+	}
+
+	private int getLevelTwo(final long nthPosition, final int levelOne) {
+		final long base = levelOne > 0 ? fanoutTable[levelOne - 1] : 0;
+		return (int) (nthPosition - base);
 	}
 
 	@Override
@@ -199,6 +215,10 @@ public long findOffset(final AnyObjectId objId) {
 		final int levelTwo = binarySearchLevelTwo(objId, levelOne);
 		if (levelTwo == -1)
 			return -1;
+		return getOffset(levelOne, levelTwo);
+	}
+
+	private long getOffset(final int levelOne, final int levelTwo) {
 		final long p = NB.decodeUInt32(offset32[levelOne], levelTwo << 2);
 		if ((p & IS_O64) != 0)
 			return NB.decodeUInt64(offset64, (8 * (int) (p & ~IS_O64)));
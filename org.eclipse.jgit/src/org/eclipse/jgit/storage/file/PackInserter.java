@@ -0,0 +1,659 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.InflaterCache;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+import org.eclipse.jgit.util.BlockList;
+import org.eclipse.jgit.util.FileUtils;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.NB;
+
+/**
+ * Creates a pack file in a {@link ObjectDirectory}.
+ * <p>
+ * Unlike the default inserter, which writes one loose file per object, this
+ * inserter appends every new object to a single temporary pack. On
+ * {@link #flush()} the pack is completed, an index is written, and both are
+ * moved into {@code objects/pack} where other readers can see them. Until
+ * then pending objects can only be read through {@link #newReader()}.
+ * <p>
+ * This is intended for bulk imports that create a very large number of
+ * objects. Objects are stored whole (no deltas), so the resulting pack is
+ * larger than one created by a repack.
+ */
+public class PackInserter extends ObjectInserter {
+	/** Always produce version 2 indexes, to get CRC data. */
+	private static final int INDEX_VERSION = 2;
+
+	private final ObjectDirectory db;
+
+	private final WriteConfig config;
+
+	private List<PackedObjectInfo> objectList;
+
+	private ObjectIdOwnerMap<PackedObjectInfo> objectMap;
+
+	private File tmpPack;
+
+	private PackStream packOut;
+
+	/** Opened on demand to read back pending objects. */
+	private RandomAccessFile pendingIn;
+
+	private Deflater deflate;
+
+	PackInserter(ObjectDirectory db, Config cfg) {
+		this.db = db;
+		this.config = cfg.get(WriteConfig.KEY);
+	}
+
+	@Override
+	public ObjectId insert(int type, byte[] data, int off, int len)
+			throws IOException {
+		ObjectId id = idFor(type, data, off, len);
+		if (objectMap != null && objectMap.contains(id))
+			return id;
+		if (db.has(id))
+			return id;
+
+		long offset = beginObject(type, len);
+		packOut.compress.write(data, off, len);
+		packOut.compress.finish();
+		return endObject(id, offset);
+	}
+
+	@Override
+	public ObjectId insert(int type, long len, InputStream in)
+			throws IOException {
+		byte[] buf = buffer();
+		if (len <= buf.length) {
+			IO.readFully(in, buf, 0, (int) len);
+			return insert(type, buf, 0, (int) len);
+		}
+
+		long offset = beginObject(type, len);
+		MessageDigest md = digest();
+		md.update(Constants.encodedTypeString(type));
+		md.update((byte) ' ');
+		md.update(Constants.encodeASCII(len));
+		md.update((byte) 0);
+
+		while (0 < len) {
+			int n = in.read(buf, 0, (int) Math.min(buf.length, len));
+			if (n <= 0)
+				throw new EOFException();
+			md.update(buf, 0, n);
+			packOut.compress.write(buf, 0, n);
+			len -= n;
+		}
+		packOut.compress.finish();
+
+		ObjectId id = ObjectId.fromRaw(md.digest());
+		if (objectMap.contains(id) || db.has(id)) {
+			// The object was only known after it was streamed.
+			// Discard the copy so the pack holds it at most once.
+			packOut.truncate(offset);
+			return id;
+		}
+		return endObject(id, offset);
+	}
+
+	@Override
+	public PackParser newPackParser(InputStream in) throws IOException {
+		return new ObjectDirectoryPackParser(db, in);
+	}
+
+	/**
+	 * Create a reader that can also see objects not yet flushed.
+	 * <p>
+	 * The reader must be released before this inserter is.
+	 *
+	 * @return reader for the repository and this inserter's pending objects.
+	 */
+	public ObjectReader newReader() {
+		return new Reader();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (packOut == null)
+			return;
+
+		try {
+			packOut.close();
+			packOut = null;
+			closePendingIn();
+
+			byte[] packHash = writePackFooter();
+			Collections.sort(objectList);
+			File tmpIdx = new File(tmpPack.getPath() + ".idx_tmp"); //$NON-NLS-1$
+			try {
+				writeIdx(tmpIdx, packHash);
+				renameAndOpenPack(tmpIdx);
+			} finally {
+				if (tmpIdx.exists())
+					FileUtils.delete(tmpIdx);
+			}
+		} finally {
+			if (tmpPack.exists())
+				FileUtils.delete(tmpPack);
+			clear();
+		}
+	}
+
+	@Override
+	public void release() {
+		try {
+			if (packOut != null) {
+				try {
+					packOut.close();
+				} catch (IOException err) {
+					// Ignore a close failure, the pack is removed.
+				} finally {
+					packOut = null;
+				}
+			}
+			closePendingIn();
+			if (tmpPack != null && !tmpPack.delete() && tmpPack.exists())
+				tmpPack.deleteOnExit();
+			clear();
+		} finally {
+			if (deflate != null) {
+				try {
+					deflate.end();
+				} finally {
+					deflate = null;
+				}
+			}
+		}
+	}
+
+	private void clear() {
+		objectList = null;
+		objectMap = null;
+		tmpPack = null;
+	}
+
+	private void closePendingIn() {
+		if (pendingIn != null) {
+			try {
+				pendingIn.close();
+			} catch (IOException err) {
+				// Ignore a close failure, the file was only read.
+			} finally {
+				pendingIn = null;
+			}
+		}
+	}
+
+	private long beginObject(int type, long len) throws IOException {
+		if (packOut == null)
+			beginPack();
+		long offset = packOut.getCount();
+		packOut.beginObject(type, len);
+		return offset;
+	}
+
+	private ObjectId endObject(ObjectId id, long offset) {
+		PackedObjectInfo obj = new PackedObjectInfo(id);
+		obj.setOffset(offset);
+		obj.setCRC((int) packOut.crc32.getValue());
+		objectList.add(obj);
+		objectMap.addIfAbsent(obj);
+		return id;
+	}
+
+	private void beginPack() throws IOException {
+		objectList = new BlockList<PackedObjectInfo>();
+		objectMap = new ObjectIdOwnerMap<PackedObjectInfo>();
+		tmpPack = File.createTempFile("insert_", ".pack", packDir()); //$NON-NLS-1$ //$NON-NLS-2$
+
+		if (deflate == null)
+			deflate = new Deflater(config.getCompression());
+		packOut = new PackStream(new FileOutputStream(tmpPack), deflate);
+
+		// The object count is not known yet, writePackFooter fixes it.
+		byte[] buf = packOut.hdrBuf;
+		System.arraycopy(Constants.PACK_SIGNATURE, 0, buf, 0, 4);
+		NB.encodeInt32(buf, 4, 2); // Always use pack version 2.
+		NB.encodeInt32(buf, 8, 0);
+		packOut.write(buf, 0, 12);
+	}
+
+	private File packDir() {
+		return new File(db.getDirectory(), "pack"); //$NON-NLS-1$
+	}
+
+	private byte[] writePackFooter() throws IOException {
+		RandomAccessFile out = new RandomAccessFile(tmpPack, "rw"); //$NON-NLS-1$
+		try {
+			byte[] buf = buffer();
+			out.readFully(buf, 0, 12);
+			NB.encodeInt32(buf, 8, objectList.size());
+			out.seek(0);
+			out.write(buf, 0, 12);
+
+			MessageDigest md = digest();
+			out.seek(0);
+			for (;;) {
+				int n = out.read(buf);
+				if (n < 0)
+					break;
+				md.update(buf, 0, n);
+			}
+
+			byte[] packHash = md.digest();
+			out.write(packHash);
+			out.getChannel().force(true);
+			return packHash;
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeIdx(File tmpIdx, byte[] packHash) throws IOException {
+		FileOutputStream os = new FileOutputStream(tmpIdx);
+		try {
+			PackIndexWriter iw = PackIndexWriter.createVersion(os,
+					INDEX_VERSION);
+			iw.write(objectList, packHash);
+			os.getChannel().force(true);
+		} finally {
+			os.close();
+		}
+	}
+
+	private void renameAndOpenPack(File tmpIdx) throws IOException {
+		MessageDigest d = digest();
+		byte[] oeBytes = new byte[Constants.OBJECT_ID_LENGTH];
+		for (PackedObjectInfo oe : objectList) {
+			oe.copyRawTo(oeBytes, 0);
+			d.update(oeBytes);
+		}
+
+		String name = ObjectId.fromRaw(d.digest()).name();
+		File packDir = packDir();
+		File finalPack = new File(packDir, "pack-" + name + ".pack"); //$NON-NLS-1$ //$NON-NLS-2$
+		File finalIdx = new File(packDir, "pack-" + name + ".idx"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		if (finalPack.exists()) {
+			// The same set of objects is already packed.
+			return;
+		}
+
+		if (!tmpPack.renameTo(finalPack))
+			throw new IOException(MessageFormat.format(
+					JGitText.get().cannotMovePackTo, finalPack));
+
+		if (!tmpIdx.renameTo(finalIdx)) {
+			if (!finalPack.delete())
+				finalPack.deleteOnExit();
+			throw new IOException(MessageFormat.format(
+					JGitText.get().cannotMoveIndexTo, finalIdx));
+		}
+
+		try {
+			db.openPack(finalPack);
+		} catch (IOException err) {
+			if (finalPack.exists())
+				FileUtils.delete(finalPack);
+			if (finalIdx.exists())
+				FileUtils.delete(finalIdx);
+			throw err;
+		}
+	}
+
+	private RandomAccessFile pendingIn() throws IOException {
+		packOut.flushBuffer();
+		if (pendingIn == null)
+			pendingIn = new RandomAccessFile(tmpPack, "r"); //$NON-NLS-1$
+		return pendingIn;
+	}
+
+	private ObjectLoader openPending(PackedObjectInfo obj, int typeHint)
+			throws IOException {
+		RandomAccessFile in = pendingIn();
+		in.seek(obj.getOffset());
+		int c = in.readUnsignedByte();
+		int type = (c >> 4) & 7;
+		long sz = c & 15;
+		int shift = 4;
+		while ((c & 0x80) != 0) {
+			c = in.readUnsignedByte();
+			sz += ((long) (c & 0x7f)) << shift;
+			shift += 7;
+		}
+
+		if (typeHint != ObjectReader.OBJ_ANY && type != typeHint)
+			throw new IncorrectObjectTypeException(obj.copy(), typeHint);
+
+		long dataOffset = in.getFilePointer();
+		if (sz < WindowCache.getStreamFileThreshold())
+			return new ObjectLoader.SmallObject(type, inflate(in, obj,
+					(int) sz));
+		return new LargeObject(type, sz, tmpPack, dataOffset, obj);
+	}
+
+	private byte[] inflate(RandomAccessFile in, AnyObjectId id, int size)
+			throws IOException {
+		byte[] dst = new byte[size];
+		byte[] buf = buffer();
+		Inflater inf = InflaterCache.get();
+		try {
+			int n = 0;
+			while (n < size) {
+				if (inf.needsInput()) {
+					int r = in.read(buf);
+					if (r <= 0)
+						throw new EOFException();
+					inf.setInput(buf, 0, r);
+				}
+				int p = inf.inflate(dst, n, size - n);
+				if (p == 0 && inf.finished())
+					throw new EOFException();
+				n += p;
+			}
+			return dst;
+		} catch (DataFormatException e) {
+			throw new CorruptObjectException(id.copy(),
+					JGitText.get().corruptObjectBadStream);
+		} finally {
+			InflaterCache.release(inf);
+		}
+	}
+
+	private class Reader extends ObjectReader {
+		private final ObjectReader ctx;
+
+		Reader() {
+			ctx = db.newReader();
+		}
+
+		@Override
+		public ObjectReader newReader() {
+			return new Reader();
+		}
+
+		@Override
+		public Collection<ObjectId> resolve(AbbreviatedObjectId id)
+				throws IOException {
+			Collection<ObjectId> stored = ctx.resolve(id);
+			if (objectList == null)
+				return stored;
+
+			Set<ObjectId> r = new HashSet<ObjectId>(stored);
+			for (PackedObjectInfo obj : objectList) {
+				if (id.prefixCompare(obj) == 0)
+					r.add(obj.copy());
+			}
+			return r;
+		}
+
+		@Override
+		public boolean has(AnyObjectId objectId) throws IOException {
+			if (objectMap != null && objectMap.contains(objectId))
+				return true;
+			return ctx.has(objectId);
+		}
+
+		@Override
+		public ObjectLoader open(AnyObjectId objectId, int typeHint)
+				throws MissingObjectException, IncorrectObjectTypeException,
+				IOException {
+			PackedObjectInfo obj = objectMap != null ? objectMap.get(objectId)
+					: null;
+			if (obj == null)
+				return ctx.open(objectId, typeHint);
+			return openPending(obj, typeHint);
+		}
+
+		@Override
+		public Set<ObjectId> getShallowCommits() throws IOException {
+			return ctx.getShallowCommits();
+		}
+
+		@Override
+		public void release() {
+			ctx.release();
+		}
+	}
+
+	private class LargeObject extends ObjectLoader {
+		private final int type;
+
+		private final long size;
+
+		private final File pack;
+
+		private final long dataOffset;
+
+		private final ObjectId id;
+
+		LargeObject(int type, long size, File pack, long dataOffset,
+				AnyObjectId id) {
+			this.type = type;
+			this.size = size;
+			this.pack = pack;
+			this.dataOffset = dataOffset;
+			this.id = id.copy();
+		}
+
+		@Override
+		public int getType() {
+			return type;
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public boolean isLarge() {
+			return true;
+		}
+
+		@Override
+		public byte[] getCachedBytes() throws LargeObjectException {
+			throw new LargeObjectException(id);
+		}
+
+		@Override
+		public ObjectStream openStream() throws MissingObjectException,
+				IOException {
+			FileInputStream fd;
+			try {
+				fd = new FileInputStream(pack);
+			} catch (FileNotFoundException gone) {
+				// The pending pack was flushed in the mean time.
+				// Try again to locate the object in the repository.
+				//
+				return db.open(id, type).openStream();
+			}
+
+			try {
+				fd.getChannel().position(dataOffset);
+			} catch (IOException err) {
+				fd.close();
+				throw err;
+			}
+			InputStream in = new InflaterInputStream(fd);
+			return new ObjectStream.Filter(type, size,
+					new BufferedInputStream(in, 8192));
+		}
+	}
+
+	private static class PackStream extends OutputStream {
+		private final FileOutputStream out;
+
+		private final byte[] buf;
+
+		private long bufPos; // Position of buf[0] in the output file.
+
+		private int bufPtr; // Number of bytes in buf.
+
+		final byte[] hdrBuf;
+
+		final Deflater deflater;
+
+		final CRC32 crc32;
+
+		final DeflaterOutputStream compress;
+
+		PackStream(FileOutputStream out, Deflater deflater) {
+			this.out = out;
+			this.buf = new byte[64 * 1024];
+			this.hdrBuf = new byte[32];
+			this.deflater = deflater;
+			this.crc32 = new CRC32();
+			this.compress = new DeflaterOutputStream(this, deflater, 8192);
+		}
+
+		long getCount() {
+			return bufPos + bufPtr;
+		}
+
+		void beginObject(int objectType, long length) throws IOException {
+			crc32.reset();
+			deflater.reset();
+			write(hdrBuf, 0, encodeTypeSize(objectType, length));
+		}
+
+		private int encodeTypeSize(int type, long rawLength) {
+			long nextLength = rawLength >>> 4;
+			hdrBuf[0] = (byte) ((nextLength > 0 ? 0x80 : 0x00) | (type << 4) | (rawLength & 0x0F));
+			rawLength = nextLength;
+			int n = 1;
+			while (rawLength > 0) {
+				nextLength >>>= 7;
+				hdrBuf[n++] = (byte) ((nextLength > 0 ? 0x80 : 0x00) | (rawLength & 0x7F));
+				rawLength = nextLength;
+			}
+			return n;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			hdrBuf[0] = (byte) b;
+			write(hdrBuf, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+			crc32.update(data, off, len);
+			while (0 < len) {
+				int n = Math.min(len, buf.length - bufPtr);
+				if (n == 0) {
+					flushBuffer();
+					continue;
+				}
+				System.arraycopy(data, off, buf, bufPtr, n);
+				off += n;
+				len -= n;
+				bufPtr += n;
+			}
+		}
+
+		void flushBuffer() throws IOException {
+			if (bufPtr != 0) {
+				out.write(buf, 0, bufPtr);
+				bufPos += bufPtr;
+				bufPtr = 0;
+			}
+		}
+
+		void truncate(long pos) throws IOException {
+			flushBuffer();
+			out.getChannel().truncate(pos);
+			bufPos = pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushBuffer();
+			out.close();
+		}
+	}
+}
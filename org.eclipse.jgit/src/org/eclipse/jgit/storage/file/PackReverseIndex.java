@@ -43,6 +43,10 @@
 
 package org.eclipse.jgit.storage.file;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel.MapMode;
 import java.text.MessageFormat;
 import java.util.Arrays;
 
@@ -57,13 +61,62 @@
  * instead of object id. Such offset-based reverse lookups are performed in
  * O(log n) time.
  * </p>
+ * <p>
+ * The reverse index can be computed in memory from the forward index, or read
+ * from a {@code .rev} file written alongside the pack by
+ * {@link PackReverseIndexWriter}.
+ * </p>
  *
  * @see PackIndex
  * @see PackFile
  */
 public class PackReverseIndex {
+	/**
+	 * Open an existing reverse index file for reading.
+	 * <p>
+	 * The file is memory mapped, and searched in place. Unlike the reverse
+	 * index computed by {@link #PackReverseIndex(PackIndex)} no table is
+	 * sorted or copied onto the heap.
+	 *
+	 * @param revFile
+	 *            existing reverse index file to read.
+	 * @param packIndex
+	 *            forward index of the same pack.
+	 * @return the reverse index.
+	 * @throws java.io.FileNotFoundException
+	 *             the file does not exist.
+	 * @throws IOException
+	 *             the file exists but could not be read, is corrupt, or does
+	 *             not describe the same pack as {@code packIndex}.
+	 */
+	public static PackReverseIndex open(final File revFile,
+			final PackIndex packIndex) throws IOException {
+		final RandomAccessFile fd = new RandomAccessFile(revFile, "r"); //$NON-NLS-1$
+		try {
+			final long len = fd.length();
+			if (Integer.MAX_VALUE < len)
+				throw new IOException(
+						JGitText.get().indexFileIsTooLargeForJgit);
+			return new PackReverseIndexV1(fd.getChannel().map(
+					MapMode.READ_ONLY, 0, len), packIndex);
+		} catch (IOException ioe) {
+			final String path = revFile.getAbsolutePath();
+			final IOException err;
+			err = new IOException(MessageFormat.format(
+					JGitText.get().unreadablePackReverseIndex, path));
+			err.initCause(ioe);
+			throw err;
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore
+			}
+		}
+	}
+
 	/** Index we were created from, and that has our ObjectId data. */
-	private final PackIndex index;
+	final PackIndex index;
 
 	/**
 	 * (offset31, truly) Offsets accommodating in 31 bits.
@@ -89,7 +142,27 @@ public class PackReverseIndex {
 	 *            forward index - entries to (reverse) index.
 	 */
 	public PackReverseIndex(final PackIndex packIndex) {
+		this(packIndex, true);
+	}
+
+	/**
+	 * Create a reverse index for a forward index.
+	 *
+	 * @param packIndex
+	 *            forward index - entries to (reverse) index.
+	 * @param computeTables
+	 *            if false the offset tables are left empty, for subclasses
+	 *            which override every lookup method.
+	 */
+	PackReverseIndex(final PackIndex packIndex, final boolean computeTables) {
 		index = packIndex;
+		if (!computeTables) {
+			offsets32 = new int[0];
+			offsets64 = new long[0];
+			nth32 = offsets32;
+			nth64 = nth32;
+			return;
+		}
 
 		final long cnt = index.getObjectCount();
 		final long n64 = index.getOffset64Count();
@@ -193,4 +266,37 @@ public long findNextOffset(final long offset, final long maxOffset)
 			return offsets64[i64 + 1];
 		}
 	}
+
+	/**
+	 * Find the position of an object in pack order.
+	 * <p>
+	 * Positions are assigned to objects in ascending order of their offset
+	 * within the pack, the first object in the pack has position 0.
+	 *
+	 * @param offset
+	 *            start offset of the object.
+	 * @return position of the object, or -1 if no object starts at offset.
+	 */
+	public int findPosition(final long offset) {
+		if (offset <= Integer.MAX_VALUE) {
+			final int i32 = Arrays.binarySearch(offsets32, (int) offset);
+			return i32 < 0 ? -1 : i32;
+		} else {
+			final int i64 = Arrays.binarySearch(offsets64, offset);
+			return i64 < 0 ? -1 : offsets32.length + i64;
+		}
+	}
+
+	/**
+	 * Get the object at a position in pack order.
+	 *
+	 * @param nthPosition
+	 *            position of the object, see {@link #findPosition(long)}.
+	 * @return object id of the object at that position.
+	 */
+	public ObjectId findObjectByPosition(final int nthPosition) {
+		if (nthPosition < offsets32.length)
+			return index.getObjectId(nth32[nthPosition]);
+		return index.getObjectId(nth64[nthPosition - offsets32.length]);
+	}
 }
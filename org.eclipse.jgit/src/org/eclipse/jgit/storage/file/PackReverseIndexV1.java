@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.errors.PackMismatchException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Support for the reverse index v1 format, searched in place in a mapped file.
+ * <p>
+ * The file is compatible with the {@code .rev} files written by C Git. After
+ * a 12 byte header it lists, for every object in the order it appears in the
+ * pack, the position of the object in the forward index. The file ends with
+ * the checksum of the pack it describes and a checksum of its own content.
+ * <p>
+ * Positions are checked when they are read. A position past the end of the
+ * forward index fails the lookup with a {@link CorruptPositionException}.
+ *
+ * @see PackReverseIndexWriter
+ */
+class PackReverseIndexV1 extends PackReverseIndex {
+	static final byte[] SIGNATURE = { 'R', 'I', 'D', 'X' };
+
+	static final int VERSION = 1;
+
+	static final int HASH_VERSION_SHA1 = 1;
+
+	static final int HEADER_LENGTH = 12;
+
+	private final ByteBuffer buf;
+
+	private final int objectCnt;
+
+	/**
+	 * @param buf
+	 *            the complete reverse index file. The buffer must not be
+	 *            modified while the index is in use.
+	 * @param packIndex
+	 *            forward index of the same pack.
+	 * @throws IOException
+	 *             the buffer is not a valid version 1 reverse index of the
+	 *             pack described by {@code packIndex}.
+	 */
+	PackReverseIndexV1(ByteBuffer buf, PackIndex packIndex) throws IOException {
+		super(packIndex, false);
+		this.buf = buf;
+
+		final long cnt = packIndex.getObjectCount();
+		if ((Integer.MAX_VALUE - HEADER_LENGTH - 2 * Constants.OBJECT_ID_LENGTH)
+				/ 4 < cnt)
+			throw new IOException(JGitText.get().indexFileIsTooLargeForJgit);
+		objectCnt = (int) cnt;
+		if (buf.limit() != HEADER_LENGTH + 4 * objectCnt + 2
+				* Constants.OBJECT_ID_LENGTH)
+			throw new CorruptObjectException(
+					JGitText.get().corruptPackReverseIndex);
+		for (int i = 0; i < SIGNATURE.length; i++) {
+			if (buf.get(i) != SIGNATURE[i])
+				throw new CorruptObjectException(
+						JGitText.get().corruptPackReverseIndex);
+		}
+		final int v = buf.getInt(4);
+		if (v != VERSION)
+			throw new IOException(MessageFormat.format(
+					JGitText.get().unsupportedPackReverseIndexVersion,
+					Integer.valueOf(v)));
+		if (buf.getInt(8) != HASH_VERSION_SHA1)
+			throw new CorruptObjectException(
+					JGitText.get().corruptPackReverseIndex);
+
+		final int sumPos = HEADER_LENGTH + 4 * objectCnt;
+		if (packIndex.packChecksum != null) {
+			for (int i = 0; i < Constants.OBJECT_ID_LENGTH; i++) {
+				if (buf.get(sumPos + i) != packIndex.packChecksum[i])
+					throw new PackMismatchException(
+							JGitText.get().packChecksumMismatch);
+			}
+		}
+	}
+
+	@Override
+	public ObjectId findObject(final long offset) {
+		final int p = findPosition(offset);
+		if (p < 0)
+			return null;
+		return index.getObjectId(indexPosition(p));
+	}
+
+	@Override
+	public long findNextOffset(final long offset, final long maxOffset)
+			throws CorruptObjectException {
+		final int p = findPosition(offset);
+		if (p < 0)
+			throw new CorruptObjectException(
+					MessageFormat.format(
+							JGitText.get().cantFindObjectInReversePackIndexForTheSpecifiedOffset,
+							Long.valueOf(offset)));
+		if (p + 1 == objectCnt)
+			return maxOffset;
+		return offsetAt(p + 1);
+	}
+
+	@Override
+	public int findPosition(final long offset) {
+		int low = 0;
+		int high = objectCnt;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final long o = offsetAt(mid);
+			if (offset < o)
+				high = mid;
+			else if (offset == o)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	@Override
+	public ObjectId findObjectByPosition(final int nthPosition) {
+		return index.getObjectId(indexPosition(nthPosition));
+	}
+
+	private long indexPosition(int packPosition) {
+		final int ptr = HEADER_LENGTH + 4 * packPosition;
+		final long p = buf.getInt(ptr) & 0xffffffffL;
+		if (objectCnt <= p)
+			throw new CorruptPositionException();
+		return p;
+	}
+
+	private long offsetAt(int packPosition) {
+		return index.getOffset(indexPosition(packPosition));
+	}
+
+	/**
+	 * A record refers past the end of the forward index.
+	 * <p>
+	 * The lookups of {@link PackReverseIndex} cannot throw checked exceptions,
+	 * so the {@link CorruptObjectException} is carried as the cause.
+	 */
+	static class CorruptPositionException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		CorruptPositionException() {
+			super(JGitText.get().corruptPackReverseIndex,
+					new CorruptObjectException(
+							JGitText.get().corruptPackReverseIndex));
+		}
+
+		@Override
+		public CorruptObjectException getCause() {
+			return (CorruptObjectException) super.getCause();
+		}
+	}
+}
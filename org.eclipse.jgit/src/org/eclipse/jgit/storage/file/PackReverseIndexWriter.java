@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+import org.eclipse.jgit.util.NB;
+import org.eclipse.jgit.util.io.SafeBufferedOutputStream;
+
+/**
+ * Creates the version 1 reverse index file for a pack.
+ * <p>
+ * A reverse index (the {@code .rev} suffix next to a pack file pair) lists the
+ * objects of the pack in the order they appear in the pack, so that
+ * {@link PackFile} can map it instead of sorting every offset of the pack
+ * index each time the pack is opened.
+ *
+ * @see PackReverseIndexV1
+ */
+public class PackReverseIndexWriter {
+	private final DigestOutputStream out;
+
+	private final byte[] tmp;
+
+	/**
+	 * Create a new writer instance.
+	 *
+	 * @param dst
+	 *            the stream the reverse index will be written to. If not
+	 *            already buffered it will be automatically wrapped in a
+	 *            buffered stream.
+	 */
+	public PackReverseIndexWriter(final OutputStream dst) {
+		out = new DigestOutputStream(dst instanceof BufferedOutputStream ? dst
+				: new SafeBufferedOutputStream(dst),
+				Constants.newMessageDigest());
+		tmp = new byte[PackReverseIndexV1.HEADER_LENGTH];
+	}
+
+	/**
+	 * Write the reverse index of the objects to the stream.
+	 * <p>
+	 * After writing the stream passed to the factory is flushed but remains
+	 * open. Callers are always responsible for closing the output stream.
+	 *
+	 * @param toStore
+	 *            the objects of the pack, sorted in the same order as the
+	 *            pack index, using {@link PackedObjectInfo}'s native
+	 *            {@link Comparable} implementation.
+	 * @param packDataChecksum
+	 *            checksum signature of the entire pack data content. This is
+	 *            traditionally the last 20 bytes of the pack file's own stream.
+	 * @throws IOException
+	 *             an error occurred while writing to the output stream.
+	 */
+	public void write(final List<? extends PackedObjectInfo> toStore,
+			final byte[] packDataChecksum) throws IOException {
+		final int cnt = toStore.size();
+		final long[] offsets = new long[cnt];
+		for (int i = 0; i < cnt; i++)
+			offsets[i] = toStore.get(i).getOffset();
+		Arrays.sort(offsets);
+		final int[] nth = new int[cnt];
+		for (int i = 0; i < cnt; i++)
+			nth[Arrays.binarySearch(offsets, toStore.get(i).getOffset())] = i;
+
+		System.arraycopy(PackReverseIndexV1.SIGNATURE, 0, tmp, 0, 4);
+		NB.encodeInt32(tmp, 4, PackReverseIndexV1.VERSION);
+		NB.encodeInt32(tmp, 8, PackReverseIndexV1.HASH_VERSION_SHA1);
+		out.write(tmp, 0, PackReverseIndexV1.HEADER_LENGTH);
+		for (int i = 0; i < cnt; i++) {
+			NB.encodeInt32(tmp, 0, nth[i]);
+			out.write(tmp, 0, 4);
+		}
+		out.write(packDataChecksum, 0, Constants.OBJECT_ID_LENGTH);
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+	}
+}
@@ -79,6 +79,7 @@
 import org.eclipse.jgit.errors.ObjectWritingException;
 import org.eclipse.jgit.events.RefsChangedEvent;
 import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.ConfigConstants;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
@@ -98,6 +99,7 @@
 import org.eclipse.jgit.util.RawParseUtils;
 import org.eclipse.jgit.util.RefList;
 import org.eclipse.jgit.util.RefMap;
+import org.eclipse.jgit.util.SystemReader;
 
 /**
  * Traditional file system based {@link RefDatabase}.
@@ -124,6 +126,9 @@ public class RefDirectory extends RefDatabase {
 	/** If in the header, denotes the file has peeled data. */
 	public static final String PACKED_REFS_PEELED = " peeled"; //$NON-NLS-1$
 
+	/** If in the header, denotes the file's records are sorted by name. */
+	public static final String PACKED_REFS_SORTED = " sorted"; //$NON-NLS-1$
+
 	/** The names of the additional refs supported by this class */
 	private static final String[] additionalRefsNames = new String[] {
 			Constants.MERGE_HEAD, Constants.FETCH_HEAD, Constants.ORIG_HEAD,
@@ -152,6 +157,18 @@ public class RefDirectory extends RefDatabase {
 	/** Immutable sorted list of packed references. */
 	private final AtomicReference<PackedRefList> packedRefs = new AtomicReference<PackedRefList>();
 
+	/**
+	 * If true single refs and prefixes are looked up in a mapping of the
+	 * packed-refs file, and {@link #packedRefs} is only read for all refs.
+	 * <p>
+	 * Never set on Windows, where a mapped file cannot be replaced until the
+	 * mapping is garbage collected, so packed-refs could not be updated.
+	 */
+	private final boolean mmapPackedRefs;
+
+	/** Mapped packed-refs file, used if {@link #mmapPackedRefs} is set. */
+	private final AtomicReference<MappedPackedRefs> mappedPackedRefs = new AtomicReference<MappedPackedRefs>();
+
 	/**
 	 * Number of modifications made to this database.
 	 * <p>
@@ -178,6 +195,10 @@ public class RefDirectory extends RefDatabase {
 
 		looseRefs.set(RefList.<LooseRef> emptyList());
 		packedRefs.set(PackedRefList.NO_PACKED_REFS);
+		mmapPackedRefs = !SystemReader.getInstance().isWindows()
+				&& db.getConfig().getBoolean(
+						ConfigConstants.CONFIG_CORE_SECTION,
+						ConfigConstants.CONFIG_KEY_PACKED_REFS_MMAP, false);
 	}
 
 	Repository getRepository() {
@@ -203,6 +224,7 @@ public void close() {
 	void rescan() {
 		looseRefs.set(RefList.<LooseRef> emptyList());
 		packedRefs.set(PackedRefList.NO_PACKED_REFS);
+		mappedPackedRefs.set(null);
 	}
 
 	@Override
@@ -213,14 +235,14 @@ public void refresh() {
 
 	@Override
 	public boolean isNameConflicting(String name) throws IOException {
-		RefList<Ref> packed = getPackedRefs();
+		PackedRefs packed = getPackedLookup();
 		RefList<LooseRef> loose = getLooseRefs();
 
 		// Cannot be nested within an existing reference.
 		int lastSlash = name.lastIndexOf('/');
 		while (0 < lastSlash) {
 			String needle = name.substring(0, lastSlash);
-			if (loose.contains(needle) || packed.contains(needle))
+			if (loose.contains(needle) || packed.get(needle) != null)
 				return true;
 			lastSlash = name.lastIndexOf('/', lastSlash - 1);
 		}
@@ -229,8 +251,7 @@ public boolean isNameConflicting(String name) throws IOException {
 		String prefix = name + '/';
 		int idx;
 
-		idx = -(packed.find(prefix) + 1);
-		if (idx < packed.size() && packed.get(idx).getName().startsWith(prefix))
+		if (packed.hasPrefix(prefix))
 			return true;
 
 		idx = -(loose.find(prefix) + 1);
@@ -258,7 +279,7 @@ private RefList<LooseRef> getLooseRefs() {
 
 	@Override
 	public Ref getRef(final String needle) throws IOException {
-		final RefList<Ref> packed = getPackedRefs();
+		final PackedRefs packed = getPackedLookup();
 		Ref ref = null;
 		for (String prefix : SEARCH_PATH) {
 			try {
@@ -280,7 +301,8 @@ public Ref getRef(final String needle) throws IOException {
 
 	@Override
 	public Map<String, Ref> getRefs(String prefix) throws IOException {
-		final RefList<Ref> packed = getPackedRefs();
+		final PackedRefs packed = ALL.equals(prefix) ? getPackedRefs()
+				: getPackedLookup();
 		final RefList<LooseRef> oldLoose = looseRefs.get();
 
 		LooseScanner scan = new LooseScanner(oldLoose);
@@ -315,7 +337,8 @@ public Map<String, Ref> getRefs(String prefix) throws IOException {
 		}
 		symbolic.sort();
 
-		return new RefMap(prefix, packed, upcast(loose), symbolic.toRefList());
+		return new RefMap(prefix, packed.scan(prefix), upcast(loose),
+				symbolic.toRefList());
 	}
 
 	@Override
@@ -509,7 +532,7 @@ void storedSymbolicRef(RefDirectoryUpdate u, FileSnapshot snapshot,
 	public RefDirectoryUpdate newUpdate(String name, boolean detach)
 			throws IOException {
 		boolean detachingSymbolicRef = false;
-		final RefList<Ref> packed = getPackedRefs();
+		final PackedRefs packed = getPackedLookup();
 		Ref ref = readRef(name, packed);
 		if (ref != null)
 			ref = resolve(ref, 0, null, null, packed);
@@ -557,8 +580,9 @@ void delete(RefDirectoryUpdate update) throws IOException {
 		// Write the packed-refs file using an atomic update. We might
 		// wind up reading it twice, before and after the lock, to ensure
 		// we don't miss an edit made externally.
-		final PackedRefList packed = getPackedRefs();
-		if (packed.contains(name)) {
+		final PackedRefs lookup = getPackedLookup();
+		final PackedRefList packed = packedRefs.get();
+		if (lookup.get(name) != null) {
 			LockFile lck = new LockFile(packedRefsFile,
 					update.getRepository().getFS());
 			if (!lck.lock())
@@ -621,7 +645,8 @@ public void pack(List<String> refs) throws IOException {
 
 			// Iterate over all refs to be packed
 			for (String refName : refs) {
-				Ref ref = readRef(refName, cur);
+				Ref ref = readRef(refName, new PackedRefList(cur,
+						FileSnapshot.DIRTY, ObjectId.zeroId()));
 				if (ref.isSymbolic())
 					continue; // can't pack symbolic refs
 				// Add/Update it to packed-refs
@@ -705,7 +730,7 @@ void log(final RefUpdate update, final String msg, final boolean deref)
 	}
 
 	private Ref resolve(final Ref ref, int depth, String prefix,
-			RefList<LooseRef> loose, RefList<Ref> packed) throws IOException {
+			RefList<LooseRef> loose, PackedRefs packed) throws IOException {
 		if (ref.isSymbolic()) {
 			Ref dst = ref.getTarget();
 
@@ -715,12 +740,11 @@ private Ref resolve(final Ref ref, int depth, String prefix,
 			// If the cached value can be assumed to be current due to a
 			// recent scan of the loose directory, use it.
 			if (loose != null && dst.getName().startsWith(prefix)) {
+				String name = dst.getName();
 				int idx;
-				if (0 <= (idx = loose.find(dst.getName())))
+				if (0 <= (idx = loose.find(name)))
 					dst = loose.get(idx);
-				else if (0 <= (idx = packed.find(dst.getName())))
-					dst = packed.get(idx);
-				else
+				else if ((dst = packed.get(name)) == null)
 					return ref;
 			} else {
 				dst = readRef(dst.getName(), packed);
@@ -736,6 +760,36 @@ else if (0 <= (idx = packed.find(dst.getName())))
 		return ref;
 	}
 
+	/**
+	 * Get the packed refs for looking up single names or prefixes.
+	 * <p>
+	 * If the complete list is current it is used. Otherwise, if
+	 * {@code core.packedRefsMmap} is set, the file is mapped and searched in
+	 * place rather than parsed into a new list.
+	 */
+	private PackedRefs getPackedLookup() throws IOException {
+		if (!mmapPackedRefs)
+			return getPackedRefs();
+
+		final PackedRefList curList = packedRefs.get();
+		if (!curList.snapshot.isModified(packedRefsFile))
+			return curList;
+
+		final MappedPackedRefs curMap = mappedPackedRefs.get();
+		if (curMap != null && !curMap.snapshot.isModified(packedRefsFile))
+			return curMap;
+
+		final MappedPackedRefs newMap = MappedPackedRefs.open(packedRefsFile);
+		if (newMap == null) {
+			// Missing or not sorted; fall back to the complete list.
+			mappedPackedRefs.compareAndSet(curMap, null);
+			return getPackedRefs();
+		}
+		if (mappedPackedRefs.compareAndSet(curMap, newMap))
+			modCnt.incrementAndGet();
+		return newMap;
+	}
+
 	private PackedRefList getPackedRefs() throws IOException {
 		final PackedRefList curList = packedRefs.get();
 		if (!curList.snapshot.isModified(packedRefsFile))
@@ -850,7 +904,7 @@ protected void writeFile(String name, byte[] content)
 		}.writePackedRefs();
 	}
 
-	private Ref readRef(String name, RefList<Ref> packed) throws IOException {
+	private Ref readRef(String name, PackedRefs packed) throws IOException {
 		final RefList<LooseRef> curList = looseRefs.get();
 		final int idx = curList.find(name);
 		if (0 <= idx) {
@@ -1021,7 +1075,33 @@ static void delete(final File file, final int depth) throws IOException {
 		}
 	}
 
-	private static class PackedRefList extends RefList<Ref> {
+	/** Packed references, searched by name. */
+	static interface PackedRefs {
+		/**
+		 * @param name
+		 *            full name of the reference.
+		 * @return the packed reference; null if there is none.
+		 */
+		Ref get(String name);
+
+		/**
+		 * @param prefix
+		 *            prefix of reference names.
+		 * @return true if a packed reference starts with {@code prefix}.
+		 */
+		boolean hasPrefix(String prefix);
+
+		/**
+		 * @param prefix
+		 *            prefix of reference names.
+		 * @return sorted list holding at least the packed references starting
+		 *         with {@code prefix}.
+		 */
+		RefList<Ref> scan(String prefix);
+	}
+
+	private static class PackedRefList extends RefList<Ref> implements
+			PackedRefs {
 		static final PackedRefList NO_PACKED_REFS = new PackedRefList(
 				RefList.emptyList(), FileSnapshot.MISSING_FILE,
 				ObjectId.zeroId());
@@ -1035,6 +1115,15 @@ private static class PackedRefList extends RefList<Ref> {
 			snapshot = s;
 			id = i;
 		}
+
+		public boolean hasPrefix(String prefix) {
+			int idx = -(find(prefix) + 1);
+			return idx < size() && get(idx).getName().startsWith(prefix);
+		}
+
+		public RefList<Ref> scan(String prefix) {
+			return this;
+		}
 	}
 
 	private static LooseSymbolicRef newSymbolicRef(FileSnapshot snapshot,
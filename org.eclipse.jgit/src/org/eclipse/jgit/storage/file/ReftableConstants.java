@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+/**
+ * Layout of a ref table file.
+ * <p>
+ * The format is specific to JGit and is not Git's reftable format, so it uses
+ * its own magic, file names and repository extension value.
+ * <p>
+ * A table starts with an 8 byte header: the magic {@code JGRT}, a version byte
+ * and the block size as a 24 bit integer. Ref blocks follow. Each block begins
+ * with the type {@code 'r'} and its length as a 24 bit integer, holds ref
+ * records sorted by name, and ends with a restart table: the 24 bit offsets of
+ * the restart records followed by their number as a 16 bit integer.
+ * <p>
+ * A ref record is the length of the prefix shared with the previous record's
+ * name, the length of the remaining suffix shifted left by 3 and or'ed with
+ * the value type, the suffix, and the value. Restart records share no prefix
+ * and can be decoded on their own, so a block is searched by a binary search
+ * over its restarts and a short scan. Lengths are encoded as varints.
+ * <p>
+ * After the last ref block the index holds, for every block, the name of the
+ * last ref in the block and the block's offset; it is read into memory when
+ * the table is opened. The 40 byte footer stores the offset of the index, the
+ * number of records, the range of update indexes the table covers, the magic
+ * and a CRC-32 of the footer.
+ */
+final class ReftableConstants {
+	static final byte[] MAGIC = { 'J', 'G', 'R', 'T' };
+
+	static final byte VERSION = 1;
+
+	static final int HEADER_LEN = 8;
+
+	static final int FOOTER_LEN = 40;
+
+	static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	/** Largest block size that fits the 24 bit length fields. */
+	static final int MAX_BLOCK_SIZE = (1 << 24) - 1;
+
+	static final byte REF_BLOCK = 'r';
+
+	static final byte INDEX_BLOCK = 'i';
+
+	/** Type byte and 24 bit length at the start of a ref block. */
+	static final int BLOCK_HEADER_LEN = 4;
+
+	/** Type byte and 32 bit length at the start of the index. */
+	static final int INDEX_HEADER_LEN = 5;
+
+	/** Records between two restart points. */
+	static final int RESTART_INTERVAL = 16;
+
+	static final int VALUE_DELETION = 0;
+
+	static final int VALUE_UNPEELED = 1;
+
+	static final int VALUE_PEELED_NON_TAG = 2;
+
+	static final int VALUE_PEELED_TAG = 3;
+
+	static final int VALUE_SYMREF = 4;
+
+	static final int VALUE_TYPE_MASK = 7;
+
+	static final int VALUE_TYPE_BITS = 3;
+
+	private ReftableConstants() {
+		// Static constants only.
+	}
+}
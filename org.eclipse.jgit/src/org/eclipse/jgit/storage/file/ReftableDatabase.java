@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.eclipse.jgit.lib.Ref.Storage.NEW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefRename;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.FileUtils;
+import org.eclipse.jgit.util.RefList;
+import org.eclipse.jgit.util.RefMap;
+
+/**
+ * Reference database storing refs in sorted, block based binary tables.
+ * <p>
+ * Refs are kept in a {@link ReftableStack} under
+ * {@code $GIT_DIR/jgit-reftable}. The table format is specific to JGit, it is
+ * not Git's reftable format.
+ * Each table is sorted by name and split into blocks of prefix compressed
+ * records, with an index of the last name of each block at the end of the
+ * file. A single ref is found by a binary search of the index and of one
+ * block's restart points, and a prefix is scanned by reading only the blocks
+ * holding it, so neither requires loading all refs into memory.
+ * <p>
+ * Updates append a new table holding only the changed refs, and are atomic
+ * across processes through a lock on the table list. Tables are compacted
+ * geometrically as updates are added, and fully by {@link #compact()}.
+ * <p>
+ * Reflogs are written to {@code $GIT_DIR/logs}, as by {@link RefDirectory}.
+ */
+public class ReftableDatabase extends RefDatabase {
+	/** Name of the directory holding the tables, within the repository. */
+	public static final String REFTABLE_DIR = "jgit-reftable"; //$NON-NLS-1$
+
+	/** Value of {@code extensions.refStorage} marking this database. */
+	public static final String REFTABLE = "jgit-reftable"; //$NON-NLS-1$
+
+	/** Attempts to read a stack whose tables are replaced concurrently. */
+	private static final int MAX_RETRIES = 5;
+
+	private final FileRepository parent;
+
+	private final ReftableStack stack;
+
+	private final ReflogWriter logWriter;
+
+	/**
+	 * Create a database for a repository.
+	 *
+	 * @param repo
+	 *            the repository the refs belong to.
+	 */
+	public ReftableDatabase(FileRepository repo) {
+		this.parent = repo;
+		this.stack = new ReftableStack(
+				new File(repo.getDirectory(), REFTABLE_DIR), repo.getFS());
+		this.logWriter = new ReflogWriter(repo);
+	}
+
+	FileRepository getRepository() {
+		return parent;
+	}
+
+	ReflogWriter getLogWriter() {
+		return logWriter;
+	}
+
+	@Override
+	public void create() throws IOException {
+		stack.create();
+		logWriter.create();
+
+		// Keep the layout recognized as a repository by tools looking for
+		// refs/ and HEAD. The real HEAD is stored in the tables.
+		File gitDir = parent.getDirectory();
+		FileUtils.mkdir(new File(gitDir, Constants.R_REFS), true);
+		File head = new File(gitDir, Constants.HEAD);
+		if (!head.exists()) {
+			LockFile lck = new LockFile(head, parent.getFS());
+			if (lck.lock()) {
+				lck.write(Constants.encode("ref: refs/heads/.invalid\n")); //$NON-NLS-1$
+				lck.commit();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		stack.close();
+	}
+
+	@Override
+	public void refresh() {
+		// Every read checks the table list for modifications.
+	}
+
+	/**
+	 * Merge all tables of the stack into one, dropping deleted refs.
+	 *
+	 * @return true if the stack was compacted; false if it is locked by
+	 *         another writer.
+	 * @throws IOException
+	 *             the tables cannot be read or written.
+	 */
+	public boolean compact() throws IOException {
+		return stack.compact();
+	}
+
+	/**
+	 * @return number of tables in the stack, as of the last read or update.
+	 */
+	public int getTableCount() {
+		return stack.getTableCount();
+	}
+
+	@Override
+	public boolean isNameConflicting(String refName) throws IOException {
+		for (int retries = 0;; retries++) {
+			try {
+				return isNameConflicting(stack.getMerged(), refName, null);
+			} catch (ClosedChannelException e) {
+				if (MAX_RETRIES <= retries)
+					throw e;
+			}
+		}
+	}
+
+	private static boolean isNameConflicting(MergedReftable merged,
+			String refName, String ignore) throws IOException {
+		// Cannot be nested within an existing reference.
+		int lastSlash = refName.lastIndexOf('/');
+		while (0 < lastSlash) {
+			String needle = refName.substring(0, lastSlash);
+			if (!needle.equals(ignore) && merged.exactRef(needle) != null)
+				return true;
+			lastSlash = refName.lastIndexOf('/', lastSlash - 1);
+		}
+
+		// Cannot be the container of an existing reference.
+		RefCursor c = merged.seek(refName + '/', false);
+		while (c.next()) {
+			if (!c.getRef().getName().equals(ignore))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public ReftableRefUpdate newUpdate(String refName, boolean detach)
+			throws IOException {
+		boolean detachingSymbolicRef = false;
+		Ref ref = exactRef(refName);
+		if (ref == null)
+			ref = new ObjectIdRef.Unpeeled(NEW, refName, null);
+		else
+			detachingSymbolicRef = detach && ref.isSymbolic();
+
+		if (detachingSymbolicRef)
+			ref = new ObjectIdRef.Unpeeled(NEW, refName, ref.getObjectId());
+
+		ReftableRefUpdate update = new ReftableRefUpdate(this, ref);
+		if (detachingSymbolicRef)
+			update.setDetachingSymbolicRef();
+		return update;
+	}
+
+	@Override
+	public RefRename newRename(String fromName, String toName)
+			throws IOException {
+		ReftableRefUpdate src = newUpdate(fromName, true);
+		ReftableRefUpdate dst = newUpdate(toName, true);
+		return new ReftableRefRename(src, dst);
+	}
+
+	@Override
+	public Ref getRef(String needle) throws IOException {
+		for (int retries = 0;; retries++) {
+			try {
+				MergedReftable merged = stack.getMerged();
+				for (String prefix : SEARCH_PATH) {
+					Ref ref = merged.exactRef(prefix + needle);
+					if (ref != null)
+						return resolve(merged, ref, 0);
+				}
+				return null;
+			} catch (ClosedChannelException e) {
+				if (MAX_RETRIES <= retries)
+					throw e;
+			}
+		}
+	}
+
+	private Ref exactRef(String name) throws IOException {
+		for (int retries = 0;; retries++) {
+			try {
+				MergedReftable merged = stack.getMerged();
+				Ref ref = merged.exactRef(name);
+				return ref != null ? resolve(merged, ref, 0) : null;
+			} catch (ClosedChannelException e) {
+				if (MAX_RETRIES <= retries)
+					throw e;
+			}
+		}
+	}
+
+	@Override
+	public Map<String, Ref> getRefs(String prefix) throws IOException {
+		for (int retries = 0;; retries++) {
+			try {
+				return scan(stack.getMerged(), prefix);
+			} catch (ClosedChannelException e) {
+				if (MAX_RETRIES <= retries)
+					throw e;
+			}
+		}
+	}
+
+	private Map<String, Ref> scan(MergedReftable merged, String prefix)
+			throws IOException {
+		RefList.Builder<Ref> all = new RefList.Builder<Ref>();
+		RefList.Builder<Ref> sym = new RefList.Builder<Ref>();
+		RefCursor c = merged.seek(prefix, false);
+		while (c.next()) {
+			Ref ref = c.getRef();
+			if (ref.isSymbolic()) {
+				ref = resolve(merged, ref, 0);
+				if (ref == null || ref.getObjectId() == null) {
+					// A broken symbolic reference is not returned.
+					continue;
+				}
+				sym.add(ref);
+			}
+			all.add(ref);
+		}
+
+		// Tables are sorted by UTF-8 encoding, RefList by String.
+		all.sort();
+		sym.sort();
+		RefList<Ref> none = RefList.emptyList();
+		return new RefMap(prefix, none, all.toRefList(), sym.toRefList());
+	}
+
+	private Ref resolve(MergedReftable merged, Ref ref, int depth)
+			throws IOException {
+		if (!ref.isSymbolic())
+			return ref;
+
+		if (MAX_SYMBOLIC_REF_DEPTH <= depth)
+			return null; // claim it doesn't exist
+
+		Ref dst = merged.exactRef(ref.getTarget().getName());
+		if (dst == null)
+			return ref;
+
+		dst = resolve(merged, dst, depth + 1);
+		if (dst == null)
+			return null;
+		return new SymbolicRef(ref.getName(), dst);
+	}
+
+	@Override
+	public List<Ref> getAdditionalRefs() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public Ref peel(Ref ref) throws IOException {
+		final Ref oldLeaf = ref.getLeaf();
+		if (oldLeaf.isPeeled() || oldLeaf.getObjectId() == null)
+			return ref;
+		return recreate(ref, doPeel(oldLeaf));
+	}
+
+	private Ref doPeel(final Ref leaf) throws MissingObjectException,
+			IOException {
+		RevWalk rw = new RevWalk(parent);
+		try {
+			RevObject obj = rw.parseAny(leaf.getObjectId());
+			if (obj instanceof RevTag) {
+				return new ObjectIdRef.PeeledTag(
+						leaf.getStorage(),
+						leaf.getName(),
+						leaf.getObjectId(),
+						rw.peel(obj).copy());
+			} else {
+				return new ObjectIdRef.PeeledNonTag(
+						leaf.getStorage(),
+						leaf.getName(),
+						leaf.getObjectId());
+			}
+		} finally {
+			rw.release();
+		}
+	}
+
+	private static Ref recreate(Ref old, Ref leaf) {
+		if (old.isSymbolic()) {
+			Ref dst = recreate(old.getTarget(), leaf);
+			return new SymbolicRef(old.getName(), dst);
+		}
+		return leaf;
+	}
+
+	/**
+	 * Compare a reference, and put if it matches.
+	 *
+	 * @param oldRef
+	 *            old value to compare to. If the reference is expected to not
+	 *            exist the old value has a storage of
+	 *            {@link org.eclipse.jgit.lib.Ref.Storage#NEW} and an ObjectId
+	 *            value of {@code null}.
+	 * @param newRef
+	 *            new reference to store.
+	 * @return true if the put was successful; false otherwise.
+	 * @throws IOException
+	 *             the reference cannot be put due to a system error.
+	 */
+	boolean compareAndPut(final Ref oldRef, final Ref newRef)
+			throws IOException {
+		return stack.add(new ReftableStack.Update() {
+			@Override
+			boolean check(MergedReftable current) throws IOException {
+				return matches(current, oldRef);
+			}
+
+			@Override
+			void write(ReftableWriter w) throws IOException {
+				w.writeRef(newRef);
+			}
+		});
+	}
+
+	/**
+	 * Compare a reference, and delete if it matches.
+	 *
+	 * @param oldRef
+	 *            the old reference information that was previously read.
+	 * @return true if the remove was successful; false otherwise.
+	 * @throws IOException
+	 *             the reference could not be removed due to a system error.
+	 */
+	boolean compareAndRemove(final Ref oldRef) throws IOException {
+		return stack.add(new ReftableStack.Update() {
+			@Override
+			boolean check(MergedReftable current) throws IOException {
+				return matches(current, oldRef);
+			}
+
+			@Override
+			void write(ReftableWriter w) throws IOException {
+				w.deleteRef(oldRef.getName());
+			}
+		});
+	}
+
+	/**
+	 * Rename a reference in one update of the stack.
+	 * <p>
+	 * The source is deleted and the destination created in the same table,
+	 * so no reader sees both or neither of them.
+	 *
+	 * @param src
+	 *            the source as previously read; must not be symbolic.
+	 * @param dst
+	 *            the destination to create, with the source's value.
+	 * @param updateHead
+	 *            true to also link {@code HEAD}, which must currently point
+	 *            to {@code src}, to {@code dst}.
+	 * @return true if the rename was successful; false if the source was
+	 *         modified, the destination exists or conflicts with another
+	 *         reference, or the stack is locked.
+	 * @throws IOException
+	 *             the stack cannot be read or written.
+	 */
+	boolean compareAndRename(final Ref src, final Ref dst,
+			final boolean updateHead) throws IOException {
+		return stack.add(new ReftableStack.Update() {
+			@Override
+			boolean check(MergedReftable current) throws IOException {
+				if (!matches(current, src)
+						|| current.exactRef(dst.getName()) != null
+						|| isNameConflicting(current, dst.getName(),
+								src.getName()))
+					return false;
+				if (!updateHead)
+					return true;
+				Ref head = current.exactRef(Constants.HEAD);
+				return head != null && head.isSymbolic()
+						&& head.getTarget().getName().equals(src.getName());
+			}
+
+			@Override
+			void write(ReftableWriter w) throws IOException {
+				// Records are written in name order; null deletes a name.
+				Map<String, Ref> refs = new TreeMap<String, Ref>(
+						new Comparator<String>() {
+							public int compare(String a, String b) {
+								return ReftableWriter.compare(
+										Constants.encode(a),
+										Constants.encode(b));
+							}
+						});
+				refs.put(src.getName(), null);
+				refs.put(dst.getName(), dst);
+				if (updateHead)
+					refs.put(Constants.HEAD, new SymbolicRef(Constants.HEAD,
+							new ObjectIdRef.Unpeeled(NEW, dst.getName(),
+									null)));
+				for (Map.Entry<String, Ref> e : refs.entrySet()) {
+					if (e.getValue() != null)
+						w.writeRef(e.getValue());
+					else
+						w.deleteRef(e.getKey());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Append to the reflog of an updated reference.
+	 *
+	 * @param update
+	 *            the update that was stored.
+	 * @param msg
+	 *            message of the log record.
+	 * @param deref
+	 *            true to also log the leaf of a symbolic reference.
+	 * @throws IOException
+	 *             the log cannot be written.
+	 */
+	void log(RefUpdate update, String msg, boolean deref) throws IOException {
+		logWriter.log(update, msg, deref);
+	}
+
+	/**
+	 * Append a record to the reflog of one reference.
+	 *
+	 * @param name
+	 *            the reference.
+	 * @param oldId
+	 *            value before the change.
+	 * @param newId
+	 *            value after the change.
+	 * @param ident
+	 *            who made the change; null for the repository's default.
+	 * @param msg
+	 *            message of the log record.
+	 * @throws IOException
+	 *             the log cannot be written.
+	 */
+	void log(String name, ObjectId oldId, ObjectId newId, PersonIdent ident,
+			String msg) throws IOException {
+		if (ident == null)
+			ident = new PersonIdent(parent);
+		else
+			ident = new PersonIdent(ident);
+		logWriter.log(name, oldId, newId, ident, msg);
+	}
+
+	/**
+	 * Delete the reflog of a reference.
+	 *
+	 * @param name
+	 *            the reference.
+	 * @throws IOException
+	 *             the log cannot be deleted.
+	 */
+	void deleteLog(String name) throws IOException {
+		RefDirectory.delete(logWriter.logFor(name),
+				RefDirectory.levelsIn(name) - 2);
+	}
+
+	private boolean matches(MergedReftable current, Ref oldRef)
+			throws IOException {
+		Ref cur = current.exactRef(oldRef.getName());
+		if (oldRef.isSymbolic()) {
+			return cur != null && cur.isSymbolic()
+					&& cur.getTarget().getName().equals(
+							oldRef.getTarget().getName());
+		}
+		if (oldRef.getObjectId() == null)
+			return cur == null;
+		if (cur == null || (cur.isSymbolic() && oldRef.getStorage() != NEW))
+			return false;
+
+		// A detached symbolic ref is compared by the id it pointed to.
+		cur = resolve(current, cur, 0);
+		return cur != null && oldRef.getObjectId().equals(cur.getObjectId());
+	}
+
+	@Override
+	public String toString() {
+		return "ReftableDatabase[" + stack.getDirectory() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
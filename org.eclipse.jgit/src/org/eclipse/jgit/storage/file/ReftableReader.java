@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.eclipse.jgit.lib.Ref.Storage.NEW;
+import static org.eclipse.jgit.lib.Ref.Storage.PACKED;
+import static org.eclipse.jgit.storage.file.ReftableConstants.FOOTER_LEN;
+import static org.eclipse.jgit.storage.file.ReftableConstants.HEADER_LEN;
+import static org.eclipse.jgit.storage.file.ReftableConstants.INDEX_BLOCK;
+import static org.eclipse.jgit.storage.file.ReftableConstants.INDEX_HEADER_LEN;
+import static org.eclipse.jgit.storage.file.ReftableConstants.MAGIC;
+import static org.eclipse.jgit.storage.file.ReftableConstants.REF_BLOCK;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_DELETION;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_PEELED_NON_TAG;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_PEELED_TAG;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_SYMREF;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_TYPE_BITS;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_TYPE_MASK;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_UNPEELED;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VERSION;
+import static org.eclipse.jgit.storage.file.ReftableWriter.compare;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.SymbolicRef;
+import org.eclipse.jgit.util.LongList;
+import org.eclipse.jgit.util.NB;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * Reads a ref table written by {@link ReftableWriter}.
+ * <p>
+ * Opening a table reads only its footer and index. Looking up a ref then
+ * costs a binary search of the index held in memory, one read of the block
+ * that may hold the ref, a binary search over the block's restart points and
+ * a scan of at most one restart interval. Readers may be shared by threads.
+ */
+class ReftableReader {
+	private final File file;
+
+	/** The table's file, positioned and read while holding its lock. */
+	private final RandomAccessFile raf;
+
+	/** Set under the lock of {@link #raf} once the file is closed. */
+	private boolean closed;
+
+	private final long size;
+
+	private final long recordCount;
+
+	private final long minUpdateIndex;
+
+	private final long maxUpdateIndex;
+
+	/** Offset of the index, which is also the end of the last block. */
+	private final long indexOffset;
+
+	/** Name of the last ref of each block. */
+	private final byte[][] lastNames;
+
+	/** Offset of each block. */
+	private final long[] blockOffsets;
+
+	/**
+	 * Open a table.
+	 *
+	 * @param file
+	 *            the table.
+	 * @throws IOException
+	 *             the table cannot be read, or is not a valid table.
+	 */
+	ReftableReader(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+		boolean ok = false;
+		try {
+			this.size = raf.length();
+			if (size < HEADER_LEN + INDEX_HEADER_LEN + FOOTER_LEN)
+				throw invalid();
+
+			byte[] hdr = read(0, HEADER_LEN);
+			if (!isMagic(hdr, 0) || hdr[4] != VERSION)
+				throw invalid();
+
+			byte[] ftr = read(size - FOOTER_LEN, FOOTER_LEN);
+			CRC32 crc = new CRC32();
+			crc.update(ftr, 0, 36);
+			if (!isMagic(ftr, 32)
+					|| NB.decodeInt32(ftr, 36) != (int) crc.getValue())
+				throw invalid();
+			indexOffset = NB.decodeUInt64(ftr, 0);
+			recordCount = NB.decodeUInt64(ftr, 8);
+			minUpdateIndex = NB.decodeUInt64(ftr, 16);
+			maxUpdateIndex = NB.decodeUInt64(ftr, 24);
+			if (indexOffset < HEADER_LEN
+					|| size - FOOTER_LEN - INDEX_HEADER_LEN < indexOffset)
+				throw invalid();
+
+			byte[] idx = read(indexOffset, (int) (size - FOOTER_LEN
+					- indexOffset));
+			if (idx[0] != INDEX_BLOCK
+					|| NB.decodeInt32(idx, 1) != idx.length - INDEX_HEADER_LEN)
+				throw invalid();
+			List<byte[]> names = new ArrayList<byte[]>();
+			LongList offsets = new LongList();
+			byte[] prior = null;
+			int[] ptr = { INDEX_HEADER_LEN };
+			while (ptr[0] < idx.length) {
+				int prefix = (int) readVarint(idx, ptr);
+				int suffix = (int) readVarint(idx, ptr);
+				byte[] name = new byte[prefix + suffix];
+				if (prefix > 0)
+					System.arraycopy(prior, 0, name, 0, prefix);
+				System.arraycopy(idx, ptr[0], name, prefix, suffix);
+				ptr[0] += suffix;
+				names.add(name);
+				offsets.add(readVarint(idx, ptr));
+				prior = name;
+			}
+			lastNames = names.toArray(new byte[names.size()][]);
+			blockOffsets = new long[offsets.size()];
+			for (int i = 0; i < blockOffsets.length; i++)
+				blockOffsets[i] = offsets.get(i);
+			ok = true;
+		} catch (RuntimeException e) {
+			// Varints running past the end of the index, and the like.
+			IOException err = invalid();
+			err.initCause(e);
+			throw err;
+		} finally {
+			if (!ok)
+				raf.close();
+		}
+	}
+
+	/** @return the table's file. */
+	File getFile() {
+		return file;
+	}
+
+	/** @return size of the table in bytes. */
+	long getSize() {
+		return size;
+	}
+
+	/** @return number of records, including deletions. */
+	long getRecordCount() {
+		return recordCount;
+	}
+
+	/** @return first update index covered by the table. */
+	long getMinUpdateIndex() {
+		return minUpdateIndex;
+	}
+
+	/** @return last update index covered by the table. */
+	long getMaxUpdateIndex() {
+		return maxUpdateIndex;
+	}
+
+	/**
+	 * Position a cursor before the records starting with a prefix.
+	 *
+	 * @param prefix
+	 *            UTF-8 encoded prefix; an empty array for all records. A full
+	 *            ref name finds that ref, and others it is a prefix of.
+	 * @return a cursor; {@link RefCursor#next()} moves it to the first record
+	 *         starting with {@code prefix}.
+	 */
+	RefCursor seek(byte[] prefix) {
+		return new BlockCursor(prefix);
+	}
+
+	/**
+	 * Close the table's file.
+	 * <p>
+	 * Reads started later fail with {@link ClosedChannelException}.
+	 */
+	void close() {
+		synchronized (raf) {
+			closed = true;
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// Ignore a failure to close.
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ReftableReader[" + file.getName() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private byte[] read(long pos, int len) throws IOException {
+		// A FileChannel would be closed for all threads if any reading
+		// thread was interrupted, so seek and read under a lock instead.
+		byte[] dst = new byte[len];
+		synchronized (raf) {
+			if (closed)
+				throw new ClosedChannelException();
+			raf.seek(pos);
+			for (int off = 0; off < len;) {
+				int n = raf.read(dst, off, len - off);
+				if (n < 0)
+					throw new EOFException(JGitText.get().shortReadOfBlock);
+				off += n;
+			}
+		}
+		return dst;
+	}
+
+	private byte[] readBlock(int idx) throws IOException {
+		long pos = blockOffsets[idx];
+		long end = idx + 1 < blockOffsets.length ? blockOffsets[idx + 1]
+				: indexOffset;
+		byte[] b = read(pos, (int) (end - pos));
+		if (b.length < 6 || b[0] != REF_BLOCK || decode24(b, 1) != b.length)
+			throw invalid();
+		return b;
+	}
+
+	private IOException invalid() {
+		return new IOException(MessageFormat.format(
+				JGitText.get().invalidReftableFile, file));
+	}
+
+	private static boolean isMagic(byte[] buf, int pos) {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (buf[pos + i] != MAGIC[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean startsWith(byte[] name, byte[] prefix) {
+		if (name.length < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (name[i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	static long readVarint(byte[] buf, int[] ptr) {
+		long v = 0;
+		int shift = 0;
+		int p = ptr[0];
+		int c;
+		do {
+			c = buf[p++];
+			v |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		ptr[0] = p;
+		return v;
+	}
+
+	static int decode24(byte[] buf, int pos) {
+		return ((buf[pos] & 0xff) << 16) | ((buf[pos + 1] & 0xff) << 8)
+				| (buf[pos + 2] & 0xff);
+	}
+
+	/** Cursor over the records of this table. */
+	private final class BlockCursor extends RefCursor {
+		private final byte[] prefix;
+
+		/** Index of the loaded block; -1 before the first seek. */
+		private int blockIdx = -1;
+
+		private byte[] block;
+
+		/** End of the records of {@link #block}; its restart table follows. */
+		private int recordsEnd;
+
+		private final int[] ptr = new int[1];
+
+		private byte[] name;
+
+		private int type;
+
+		/** Offset of the current record's value in {@link #block}. */
+		private int valuePos;
+
+		private boolean done;
+
+		BlockCursor(byte[] prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		boolean next() throws IOException {
+			if (done)
+				return false;
+			if (blockIdx < 0 && !seekFirst())
+				return end();
+
+			for (;;) {
+				if (ptr[0] < recordsEnd) {
+					decode();
+					if (startsWith(name, prefix))
+						return true;
+					if (compare(name, prefix) > 0)
+						return end();
+					continue; // Before the prefix, within the first interval.
+				}
+				if (blockIdx + 1 == blockOffsets.length)
+					return end();
+				load(blockIdx + 1);
+				ptr[0] = 4;
+				name = null;
+			}
+		}
+
+		private boolean end() {
+			done = true;
+			name = null;
+			return false;
+		}
+
+		/** Position on the last restart not after {@link #prefix}. */
+		private boolean seekFirst() throws IOException {
+			int lo = 0;
+			int hi = lastNames.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(lastNames[mid], prefix) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			if (lo == lastNames.length)
+				return false;
+			load(lo);
+
+			int restartCnt = NB.decodeUInt16(block, block.length - 2);
+			int rlo = 0;
+			int rhi = restartCnt;
+			while (rlo < rhi) {
+				int mid = (rlo + rhi) >>> 1;
+				ptr[0] = decode24(block, recordsEnd + 3 * mid);
+				name = null;
+				decodeName();
+				if (compare(name, prefix) < 0)
+					rlo = mid + 1;
+				else
+					rhi = mid;
+			}
+			ptr[0] = rlo == 0 ? 4 : decode24(block, recordsEnd + 3
+					* (rlo - 1));
+			name = null;
+			return true;
+		}
+
+		private void load(int idx) throws IOException {
+			block = readBlock(idx);
+			blockIdx = idx;
+			int restartCnt = NB.decodeUInt16(block, block.length - 2);
+			recordsEnd = block.length - 2 - 3 * restartCnt;
+		}
+
+		private void decode() {
+			decodeName();
+			valuePos = ptr[0];
+			switch (type) {
+			case VALUE_DELETION:
+				break;
+			case VALUE_UNPEELED:
+			case VALUE_PEELED_NON_TAG:
+				ptr[0] += Constants.OBJECT_ID_LENGTH;
+				break;
+			case VALUE_PEELED_TAG:
+				ptr[0] += 2 * Constants.OBJECT_ID_LENGTH;
+				break;
+			case VALUE_SYMREF: {
+				int len = (int) readVarint(block, ptr);
+				ptr[0] += len;
+				break;
+			}
+			default:
+				throw new IllegalStateException(MessageFormat.format(
+						JGitText.get().invalidReftableFile, file));
+			}
+		}
+
+		private void decodeName() {
+			int prefixLen = (int) readVarint(block, ptr);
+			long t = readVarint(block, ptr);
+			int suffix = (int) (t >>> VALUE_TYPE_BITS);
+			type = (int) (t & VALUE_TYPE_MASK);
+			byte[] n = new byte[prefixLen + suffix];
+			if (prefixLen > 0)
+				System.arraycopy(name, 0, n, 0, prefixLen);
+			System.arraycopy(block, ptr[0], n, prefixLen, suffix);
+			ptr[0] += suffix;
+			name = n;
+		}
+
+		@Override
+		byte[] getNameBytes() {
+			return name;
+		}
+
+		@Override
+		boolean wasDeleted() {
+			return type == VALUE_DELETION;
+		}
+
+		@Override
+		Ref getRef() {
+			String n = RawParseUtils.decode(name);
+			switch (type) {
+			case VALUE_UNPEELED:
+				return new ObjectIdRef.Unpeeled(PACKED, n, id(valuePos));
+			case VALUE_PEELED_NON_TAG:
+				return new ObjectIdRef.PeeledNonTag(PACKED, n, id(valuePos));
+			case VALUE_PEELED_TAG:
+				return new ObjectIdRef.PeeledTag(PACKED, n, id(valuePos),
+						id(valuePos + Constants.OBJECT_ID_LENGTH));
+			case VALUE_SYMREF: {
+				int[] p = { valuePos };
+				int len = (int) readVarint(block, p);
+				String target = RawParseUtils.decode(block, p[0], p[0] + len);
+				return new SymbolicRef(n, new ObjectIdRef.Unpeeled(NEW,
+						target, null));
+			}
+			default:
+				return null;
+			}
+		}
+
+		private ObjectId id(int pos) {
+			return ObjectId.fromRaw(block, pos);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefRename;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+
+/**
+ * Renames a ref stored in a {@link ReftableDatabase}.
+ * <p>
+ * The source is deleted, the destination created and {@code HEAD} relinked
+ * in a single table, so the rename is atomic. The source's reflog is moved
+ * to the destination, which also logs the rename.
+ */
+final class ReftableRefRename extends RefRename {
+	private final ReftableDatabase refdb;
+
+	ReftableRefRename(ReftableRefUpdate src, ReftableRefUpdate dst) {
+		super(src, dst);
+		refdb = src.getRefDatabase();
+	}
+
+	@Override
+	protected Result doRename() throws IOException {
+		Ref src = source.getRef();
+		if (src.isSymbolic() || src.getObjectId() == null)
+			return Result.IO_FAILURE; // not supported
+
+		boolean updateHEAD = needToUpdateHEAD();
+		ObjectId id = src.getObjectId();
+		Ref dst = renamed(src, destination.getName());
+
+		// Move the log first, so it is never lost; put it back if the
+		// rename fails.
+		if (!renameLog(source.getName(), destination.getName()))
+			return Result.IO_FAILURE;
+		if (!refdb.compareAndRename(src, dst, updateHEAD)) {
+			renameLog(destination.getName(), source.getName());
+			return Result.LOCK_FAILURE;
+		}
+
+		String msg = getRefLogMessage();
+		if (msg != null) {
+			ObjectId zero = ObjectId.zeroId();
+			refdb.log(dst.getName(), zero, id, getRefLogIdent(), msg);
+			if (updateHEAD)
+				refdb.log(Constants.HEAD, zero, id, getRefLogIdent(), msg);
+		}
+		return Result.RENAMED;
+	}
+
+	private static Ref renamed(Ref src, String name) {
+		if (!src.isPeeled())
+			return new ObjectIdRef.Unpeeled(Ref.Storage.PACKED, name,
+					src.getObjectId());
+		if (src.getPeeledObjectId() != null)
+			return new ObjectIdRef.PeeledTag(Ref.Storage.PACKED, name,
+					src.getObjectId(), src.getPeeledObjectId());
+		return new ObjectIdRef.PeeledNonTag(Ref.Storage.PACKED, name,
+				src.getObjectId());
+	}
+
+	private boolean renameLog(String srcName, String dstName) {
+		File srcLog = refdb.getLogWriter().logFor(srcName);
+		File dstLog = refdb.getLogWriter().logFor(dstName);
+		if (!srcLog.exists())
+			return true;
+
+		if (!rename(srcLog, dstLog))
+			return false;
+		try {
+			RefDirectory.delete(srcLog, RefDirectory.levelsIn(srcName) - 2);
+			return true;
+		} catch (IOException e) {
+			rename(dstLog, srcLog);
+			return false;
+		}
+	}
+
+	private static boolean rename(File src, File dst) {
+		if (src.renameTo(dst))
+			return true;
+
+		File dir = dst.getParentFile();
+		if ((dir.exists() || !dir.mkdirs()) && !dir.isDirectory())
+			return false;
+		return src.renameTo(dst);
+	}
+}
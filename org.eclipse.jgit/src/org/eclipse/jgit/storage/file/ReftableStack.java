@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.eclipse.jgit.storage.file.ReftableConstants.DEFAULT_BLOCK_SIZE;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jgit.errors.LockFailedException;
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.FileUtils;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * A stack of ref tables in one directory.
+ * <p>
+ * The file {@code stack.list} names the tables of the stack, oldest first.
+ * Every update writes a new, usually tiny, table holding only the refs it
+ * changes, and then replaces {@code stack.list} under a {@link LockFile}.
+ * Readers merge the tables through a {@link MergedReftable}.
+ * <p>
+ * To keep lookups from touching many tables, the stack is compacted after
+ * each update so that every table is more than twice the size of all newer
+ * tables together. This keeps the number of tables logarithmic in the number
+ * of updates, while each compaction rewrites only the small tables at the
+ * top of the stack. Deletions are dropped once they are merged into the
+ * oldest table.
+ */
+class ReftableStack {
+	static final String TABLES_LIST = "stack.list"; //$NON-NLS-1$
+
+	private static final String TABLE_SUFFIX = ".table"; //$NON-NLS-1$
+
+	private static final Random RANDOM = new Random();
+
+	/** Attempts to open the tables of a list replaced concurrently. */
+	private static final int MAX_RETRIES = 5;
+
+	private final File dir;
+
+	private final File listFile;
+
+	private final FS fs;
+
+	private final int blockSize;
+
+	private volatile State state;
+
+	/**
+	 * @param dir
+	 *            directory holding the tables.
+	 * @param fs
+	 *            the file system abstraction.
+	 */
+	ReftableStack(File dir, FS fs) {
+		this.dir = dir;
+		this.listFile = new File(dir, TABLES_LIST);
+		this.fs = fs;
+		this.blockSize = DEFAULT_BLOCK_SIZE;
+		this.state = new State(FileSnapshot.DIRTY,
+				Collections.<ReftableReader> emptyList());
+	}
+
+	/** @return the directory holding the tables. */
+	File getDirectory() {
+		return dir;
+	}
+
+	/** @return true if the stack exists on disk. */
+	boolean exists() {
+		return listFile.exists();
+	}
+
+	/**
+	 * Create an empty stack.
+	 *
+	 * @throws IOException
+	 *             the directory or list cannot be created.
+	 */
+	void create() throws IOException {
+		FileUtils.mkdirs(dir, true);
+		if (!listFile.exists()) {
+			LockFile lck = new LockFile(listFile, fs);
+			if (!lck.lock())
+				throw new LockFailedException(listFile);
+			lck.write(new byte[0]);
+			if (!lck.commit())
+				throw new LockFailedException(listFile);
+		}
+	}
+
+	/**
+	 * Get the current view of the stack.
+	 *
+	 * @return merged view of the tables currently listed.
+	 * @throws IOException
+	 *             the list or a table cannot be read.
+	 */
+	MergedReftable getMerged() throws IOException {
+		State s = state;
+		if (s.snapshot.isModified(listFile))
+			s = reload(s);
+		return s.merged;
+	}
+
+	/** @return number of tables in the stack, as last read. */
+	int getTableCount() {
+		return state.tables.size();
+	}
+
+	/** Close all tables. */
+	synchronized void close() {
+		for (ReftableReader r : state.tables)
+			r.close();
+		state = new State(FileSnapshot.DIRTY,
+				Collections.<ReftableReader> emptyList());
+	}
+
+	/** A change to the stack, written as one new table. */
+	abstract static class Update {
+		/**
+		 * Verify the update can be applied.
+		 *
+		 * @param current
+		 *            the stack, read under the lock.
+		 * @return true to write the update; false to abort it.
+		 * @throws IOException
+		 *             the stack cannot be read.
+		 */
+		abstract boolean check(MergedReftable current) throws IOException;
+
+		/**
+		 * Write the records of the update, in name order.
+		 *
+		 * @param w
+		 *            writer of the new table.
+		 * @throws IOException
+		 *             the table cannot be written.
+		 */
+		abstract void write(ReftableWriter w) throws IOException;
+	}
+
+	/**
+	 * Add a table to the top of the stack.
+	 *
+	 * @param update
+	 *            the change to write.
+	 * @return true if the table was added; false if the lock is held by
+	 *         another process or the update's check failed.
+	 * @throws IOException
+	 *             the table or list cannot be written.
+	 */
+	synchronized boolean add(Update update) throws IOException {
+		LockFile lck = new LockFile(listFile, fs);
+		if (!lck.lock())
+			return false;
+		try {
+			State s = reload(state);
+			if (!update.check(s.merged))
+				return false;
+
+			long next = s.getMaxUpdateIndex() + 1;
+			File table = writeTable(update, next, next);
+			List<String> names = s.names();
+			names.add(table.getName());
+			if (!commit(lck, names)) {
+				FileUtils.delete(table, FileUtils.SKIP_MISSING);
+				return false;
+			}
+		} finally {
+			lck.unlock();
+		}
+		autoCompact();
+		return true;
+	}
+
+	/**
+	 * Merge all tables into one.
+	 *
+	 * @return true if the stack was compacted; false if the lock is held by
+	 *         another process.
+	 * @throws IOException
+	 *             the tables cannot be read or written.
+	 */
+	synchronized boolean compact() throws IOException {
+		return compact(true);
+	}
+
+	private void autoCompact() {
+		try {
+			compact(false);
+		} catch (IOException e) {
+			// The update was committed; compaction is tried again after
+			// the next one.
+		}
+	}
+
+	private boolean compact(boolean all) throws IOException {
+		LockFile lck = new LockFile(listFile, fs);
+		if (!lck.lock())
+			return false;
+		try {
+			State s = reload(state);
+			List<ReftableReader> tables = s.tables;
+			int n = tables.size();
+			int lo = all ? 0 : n - 1;
+			if (!all) {
+				long newer = n > 0 ? tables.get(n - 1).getSize() : 0;
+				while (0 < lo && tables.get(lo - 1).getSize() <= 2 * newer) {
+					lo--;
+					newer += tables.get(lo).getSize();
+				}
+			}
+			if (n - lo < 2 && !(all && n == 1 && hasDeletions(tables)))
+				return true;
+
+			final MergedReftable src = new MergedReftable(tables.subList(lo,
+					n));
+			final boolean keepDeletes = 0 < lo;
+			File table = writeTable(new Update() {
+				@Override
+				boolean check(MergedReftable current) {
+					return true;
+				}
+
+				@Override
+				void write(ReftableWriter w) throws IOException {
+					RefCursor c = src.seek("", keepDeletes); //$NON-NLS-1$
+					while (c.next()) {
+						if (c.wasDeleted())
+							w.deleteRef(RawParseUtils.decode(c
+									.getNameBytes()));
+						else
+							w.writeRef(c.getRef());
+					}
+				}
+			}, tables.get(lo).getMinUpdateIndex(), tables.get(n - 1)
+					.getMaxUpdateIndex());
+
+			List<String> names = s.names().subList(0, lo);
+			names = new ArrayList<String>(names);
+			names.add(table.getName());
+			if (!commit(lck, names)) {
+				FileUtils.delete(table, FileUtils.SKIP_MISSING);
+				return false;
+			}
+			for (ReftableReader r : tables.subList(lo, n))
+				FileUtils.delete(r.getFile(), FileUtils.SKIP_MISSING
+						| FileUtils.IGNORE_ERRORS);
+			return true;
+		} finally {
+			lck.unlock();
+		}
+	}
+
+	private static boolean hasDeletions(List<ReftableReader> tables)
+			throws IOException {
+		RefCursor c = new MergedReftable(tables).seek("", true); //$NON-NLS-1$
+		while (c.next()) {
+			if (c.wasDeleted())
+				return true;
+		}
+		return false;
+	}
+
+	private File writeTable(Update update, long min, long max)
+			throws IOException {
+		File tmp = File.createTempFile("tmp_", TABLE_SUFFIX, dir); //$NON-NLS-1$
+		boolean ok = false;
+		try {
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				OutputStream out = new BufferedOutputStream(fos, blockSize);
+				ReftableWriter w = new ReftableWriter(out, blockSize, min, max);
+				w.begin();
+				update.write(w);
+				w.finish();
+				fos.getChannel().force(true);
+			} finally {
+				fos.close();
+			}
+
+			// A table may still be listed, or read by another process that
+			// loaded an older list, so its name is never reused.
+			File table;
+			do {
+				table = new File(dir, tableName(min, max));
+			} while (table.exists());
+			if (!tmp.renameTo(table))
+				throw new IOException(MessageFormat.format(
+						JGitText.get().renameFileFailed, tmp, table));
+			ok = true;
+			return table;
+		} finally {
+			if (!ok)
+				FileUtils.delete(tmp, FileUtils.SKIP_MISSING);
+		}
+	}
+
+	private boolean commit(LockFile lck, List<String> names)
+			throws IOException {
+		StringBuilder b = new StringBuilder();
+		for (String name : names)
+			b.append(name).append('\n');
+		lck.setNeedSnapshot(true);
+		lck.write(Constants.encode(b.toString()));
+		if (!lck.commit())
+			return false;
+		reload(state);
+		return true;
+	}
+
+	private synchronized State reload(State old) throws IOException {
+		if (state != old)
+			return state;
+
+		Map<String, ReftableReader> open = new HashMap<String, ReftableReader>();
+		for (ReftableReader r : old.tables)
+			open.put(r.getFile().getName(), r);
+		for (int retries = 0;; retries++) {
+			FileSnapshot snapshot = FileSnapshot.save(listFile);
+			List<String> names = readList();
+			if (names.equals(old.names())) {
+				State s = new State(snapshot, old.tables);
+				state = s;
+				return s;
+			}
+
+			List<ReftableReader> tables = new ArrayList<ReftableReader>(
+					names.size());
+			try {
+				for (String name : names) {
+					ReftableReader r = open.get(name);
+					if (r == null)
+						r = new ReftableReader(new File(dir, name));
+					tables.add(r);
+				}
+			} catch (IOException e) {
+				for (ReftableReader r : tables) {
+					if (!old.tables.contains(r))
+						r.close();
+				}
+				// Another process may have compacted the stack after the
+				// list was read, deleting tables it named. Read the list
+				// again if it has changed since.
+				if (e instanceof FileNotFoundException
+						&& retries < MAX_RETRIES
+						&& !names.equals(readList()))
+					continue;
+				throw e;
+			}
+			for (ReftableReader r : tables)
+				open.remove(r.getFile().getName());
+
+			// Tables no longer listed are closed; a reader still using one
+			// fails with ClosedChannelException and retries on the new
+			// stack, which is installed before they are closed.
+			State s = new State(snapshot, tables);
+			state = s;
+			for (ReftableReader r : open.values())
+				r.close();
+			return s;
+		}
+	}
+
+	/**
+	 * Read the names of the tables listed in {@code stack.list}.
+	 *
+	 * @return names of the tables, oldest first; empty if there is no list.
+	 * @throws IOException
+	 *             the list cannot be read.
+	 */
+	List<String> readList() throws IOException {
+		byte[] buf;
+		try {
+			buf = IO.readFully(listFile);
+		} catch (FileNotFoundException notFound) {
+			return new ArrayList<String>();
+		}
+		List<String> names = new ArrayList<String>();
+		int p = 0;
+		while (p < buf.length) {
+			int lf = RawParseUtils.nextLF(buf, p);
+			int end = buf[lf - 1] == '\n' ? lf - 1 : lf;
+			if (p < end)
+				names.add(RawParseUtils.decode(buf, p, end));
+			p = lf;
+		}
+		return names;
+	}
+
+	private static String tableName(long min, long max) {
+		int r = RANDOM.nextInt();
+		return hex(min, 12) + "-" + hex(max, 12) + "-" //$NON-NLS-1$ //$NON-NLS-2$
+				+ hex(r & 0xffffffffL, 8) + TABLE_SUFFIX;
+	}
+
+	private static String hex(long v, int width) {
+		String s = Long.toHexString(v);
+		StringBuilder b = new StringBuilder(width);
+		for (int i = s.length(); i < width; i++)
+			b.append('0');
+		return b.append(s).toString();
+	}
+
+	private static final class State {
+		final FileSnapshot snapshot;
+
+		final List<ReftableReader> tables;
+
+		final MergedReftable merged;
+
+		State(FileSnapshot snapshot, List<ReftableReader> tables) {
+			this.snapshot = snapshot;
+			this.tables = tables;
+			this.merged = new MergedReftable(tables);
+		}
+
+		long getMaxUpdateIndex() {
+			int n = tables.size();
+			return n > 0 ? tables.get(n - 1).getMaxUpdateIndex() : 0;
+		}
+
+		List<String> names() {
+			List<String> r = new ArrayList<String>(tables.size());
+			for (ReftableReader t : tables)
+				r.add(t.getFile().getName());
+			return r;
+		}
+	}
+}
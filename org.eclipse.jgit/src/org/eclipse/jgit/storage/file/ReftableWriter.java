@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.file;
+
+import static org.eclipse.jgit.storage.file.ReftableConstants.BLOCK_HEADER_LEN;
+import static org.eclipse.jgit.storage.file.ReftableConstants.FOOTER_LEN;
+import static org.eclipse.jgit.storage.file.ReftableConstants.HEADER_LEN;
+import static org.eclipse.jgit.storage.file.ReftableConstants.INDEX_BLOCK;
+import static org.eclipse.jgit.storage.file.ReftableConstants.INDEX_HEADER_LEN;
+import static org.eclipse.jgit.storage.file.ReftableConstants.MAGIC;
+import static org.eclipse.jgit.storage.file.ReftableConstants.MAX_BLOCK_SIZE;
+import static org.eclipse.jgit.storage.file.ReftableConstants.REF_BLOCK;
+import static org.eclipse.jgit.storage.file.ReftableConstants.RESTART_INTERVAL;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_DELETION;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_PEELED_NON_TAG;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_PEELED_TAG;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_SYMREF;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_TYPE_BITS;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VALUE_UNPEELED;
+import static org.eclipse.jgit.storage.file.ReftableConstants.VERSION;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.zip.CRC32;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.util.NB;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * Writes a ref table.
+ * <p>
+ * Refs must be written in increasing order of their UTF-8 encoded names. See
+ * {@link ReftableConstants} for the file layout.
+ */
+class ReftableWriter {
+	private final OutputStream out;
+
+	private final int blockSize;
+
+	private final long minUpdateIndex;
+
+	private final long maxUpdateIndex;
+
+	/** Bytes written to {@link #out} so far. */
+	private long offset;
+
+	private long recordCount;
+
+	/** Current block, starting with room for its header. */
+	private byte[] block;
+
+	/** Bytes used in {@link #block}; 0 if the block holds no record. */
+	private int blockLen;
+
+	private int[] restarts;
+
+	private int restartCnt;
+
+	private int sinceRestart;
+
+	/** Name of the previous record; null before the first one. */
+	private byte[] lastName;
+
+	/** Value of the record being added. */
+	private final byte[] val;
+
+	private int valLen;
+
+	/** Index records: last name of each block and its offset. */
+	private final ByteArrayOutputStream index;
+
+	/** Last name added to {@link #index}. */
+	private byte[] indexLastName;
+
+	/**
+	 * Create a writer.
+	 *
+	 * @param out
+	 *            stream to write the table to.
+	 * @param blockSize
+	 *            preferred size of a ref block. A block only exceeds it if a
+	 *            single record is larger.
+	 * @param minUpdateIndex
+	 *            first update index covered by the table.
+	 * @param maxUpdateIndex
+	 *            last update index covered by the table.
+	 */
+	ReftableWriter(OutputStream out, int blockSize, long minUpdateIndex,
+			long maxUpdateIndex) {
+		if (blockSize < 64 || MAX_BLOCK_SIZE < blockSize)
+			throw new IllegalArgumentException(MessageFormat.format(
+					JGitText.get().invalidReftableBlockSize,
+					Integer.valueOf(blockSize)));
+		this.out = out;
+		this.blockSize = blockSize;
+		this.minUpdateIndex = minUpdateIndex;
+		this.maxUpdateIndex = maxUpdateIndex;
+		this.block = new byte[blockSize];
+		this.restarts = new int[blockSize / RESTART_INTERVAL + 1];
+		this.val = new byte[2 * Constants.OBJECT_ID_LENGTH];
+		this.index = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * Write the table header.
+	 *
+	 * @throws IOException
+	 *             the stream cannot be written to.
+	 */
+	void begin() throws IOException {
+		byte[] hdr = new byte[HEADER_LEN];
+		System.arraycopy(MAGIC, 0, hdr, 0, 4);
+		hdr[4] = VERSION;
+		encode24(hdr, 5, blockSize);
+		write(hdr, hdr.length);
+	}
+
+	/**
+	 * Write a ref.
+	 *
+	 * @param ref
+	 *            the ref. Symbolic refs are stored with the name of their
+	 *            target; other refs must have an object id.
+	 * @throws IOException
+	 *             the stream cannot be written to.
+	 */
+	void writeRef(Ref ref) throws IOException {
+		byte[] name = Constants.encode(ref.getName());
+		if (ref.isSymbolic()) {
+			byte[] target = Constants.encode(ref.getTarget().getName());
+			addRecord(name, VALUE_SYMREF, target);
+			return;
+		}
+
+		ObjectId id = ref.getObjectId();
+		if (id == null)
+			throw new IllegalArgumentException(MessageFormat.format(
+					JGitText.get().reftableRefHasNoObjectId, ref.getName()));
+		id.copyRawTo(val, 0);
+		valLen = Constants.OBJECT_ID_LENGTH;
+		if (!ref.isPeeled())
+			addRecord(name, VALUE_UNPEELED, null);
+		else if (ref.getPeeledObjectId() == null)
+			addRecord(name, VALUE_PEELED_NON_TAG, null);
+		else {
+			ref.getPeeledObjectId().copyRawTo(val, valLen);
+			valLen += Constants.OBJECT_ID_LENGTH;
+			addRecord(name, VALUE_PEELED_TAG, null);
+		}
+	}
+
+	/**
+	 * Record that a ref was deleted.
+	 * <p>
+	 * The deletion hides the ref in older tables of the same stack.
+	 *
+	 * @param refName
+	 *            name of the deleted ref.
+	 * @throws IOException
+	 *             the stream cannot be written to.
+	 */
+	void deleteRef(String refName) throws IOException {
+		valLen = 0;
+		addRecord(Constants.encode(refName), VALUE_DELETION, null);
+	}
+
+	/** @return number of records written. */
+	long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Write the last block, the index and the footer.
+	 *
+	 * @throws IOException
+	 *             the stream cannot be written to.
+	 */
+	void finish() throws IOException {
+		if (blockLen > 0)
+			flushBlock();
+
+		long indexOffset = offset;
+		byte[] hdr = new byte[INDEX_HEADER_LEN];
+		hdr[0] = INDEX_BLOCK;
+		NB.encodeInt32(hdr, 1, index.size());
+		write(hdr, hdr.length);
+		write(index.toByteArray(), index.size());
+
+		byte[] ftr = new byte[FOOTER_LEN];
+		NB.encodeInt64(ftr, 0, indexOffset);
+		NB.encodeInt64(ftr, 8, recordCount);
+		NB.encodeInt64(ftr, 16, minUpdateIndex);
+		NB.encodeInt64(ftr, 24, maxUpdateIndex);
+		System.arraycopy(MAGIC, 0, ftr, 32, 4);
+		CRC32 crc = new CRC32();
+		crc.update(ftr, 0, 36);
+		NB.encodeInt32(ftr, 36, (int) crc.getValue());
+		write(ftr, ftr.length);
+		out.flush();
+	}
+
+	/**
+	 * Append a record to the current block.
+	 *
+	 * @param name
+	 *            encoded name of the ref.
+	 * @param type
+	 *            value type.
+	 * @param target
+	 *            target of a symbolic ref; null to use {@link #val}.
+	 */
+	private void addRecord(byte[] name, int type, byte[] target)
+			throws IOException {
+		if (lastName != null && compare(lastName, name) >= 0)
+			throw new IllegalArgumentException(MessageFormat.format(
+					JGitText.get().reftableRecordsOutOfOrder,
+					RawParseUtils.decode(name)));
+
+		int valueSize = target != null
+				? varintLen(target.length) + target.length
+				: valLen;
+		boolean restart = blockLen == 0 || sinceRestart == RESTART_INTERVAL;
+		int prefix = restart ? 0 : commonPrefix(lastName, name);
+		int size = recordSize(name, prefix, valueSize);
+		int trailer = 3 * (restartCnt + (restart ? 1 : 0)) + 2;
+		if (blockLen > 0 && blockSize < blockLen + size + trailer) {
+			// Start a new block, in which the record is a restart point
+			// sharing no prefix with the previous name.
+			flushBlock();
+			restart = true;
+			prefix = 0;
+			size = recordSize(name, prefix, valueSize);
+		}
+
+		if (blockLen == 0)
+			blockLen = BLOCK_HEADER_LEN;
+		if (restart) {
+			if (restartCnt == restarts.length) {
+				int[] n = new int[restarts.length * 2];
+				System.arraycopy(restarts, 0, n, 0, restartCnt);
+				restarts = n;
+			}
+			restarts[restartCnt++] = blockLen;
+			sinceRestart = 0;
+		}
+		ensureBlock(blockLen + size + 3 * restartCnt + 2);
+
+		int suffix = name.length - prefix;
+		blockLen = putVarint(block, blockLen, prefix);
+		blockLen = putVarint(block, blockLen,
+				((long) suffix << VALUE_TYPE_BITS) | type);
+		System.arraycopy(name, prefix, block, blockLen, suffix);
+		blockLen += suffix;
+		if (target != null) {
+			blockLen = putVarint(block, blockLen, target.length);
+			System.arraycopy(target, 0, block, blockLen, target.length);
+			blockLen += target.length;
+		} else {
+			System.arraycopy(val, 0, block, blockLen, valLen);
+			blockLen += valLen;
+		}
+
+		sinceRestart++;
+		recordCount++;
+		lastName = name;
+	}
+
+	private void flushBlock() throws IOException {
+		for (int i = 0; i < restartCnt; i++) {
+			encode24(block, blockLen, restarts[i]);
+			blockLen += 3;
+		}
+		NB.encodeInt16(block, blockLen, restartCnt);
+		blockLen += 2;
+		block[0] = REF_BLOCK;
+		encode24(block, 1, blockLen);
+
+		byte[] tmp = new byte[10];
+		byte[] prior = indexLastName;
+		int prefix = prior != null ? commonPrefix(prior, lastName) : 0;
+		int n = putVarint(tmp, 0, prefix);
+		n = putVarint(tmp, n, lastName.length - prefix);
+		index.write(tmp, 0, n);
+		index.write(lastName, prefix, lastName.length - prefix);
+		n = putVarint(tmp, 0, offset);
+		index.write(tmp, 0, n);
+		indexLastName = lastName;
+
+		write(block, blockLen);
+		if (block.length > blockSize)
+			block = new byte[blockSize];
+		blockLen = 0;
+		restartCnt = 0;
+		sinceRestart = 0;
+	}
+
+	private void ensureBlock(int need) {
+		if (block.length < need) {
+			byte[] n = new byte[need];
+			System.arraycopy(block, 0, n, 0, blockLen);
+			block = n;
+		}
+	}
+
+	private void write(byte[] buf, int len) throws IOException {
+		out.write(buf, 0, len);
+		offset += len;
+	}
+
+	private static int recordSize(byte[] name, int prefix, int valueSize) {
+		int suffix = name.length - prefix;
+		return varintLen(prefix)
+				+ varintLen((long) suffix << VALUE_TYPE_BITS) + suffix
+				+ valueSize;
+	}
+
+	static int commonPrefix(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			if (a[i] != b[i])
+				return i;
+		}
+		return n;
+	}
+
+	static int compare(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return a.length - b.length;
+	}
+
+	static int varintLen(long v) {
+		int n = 1;
+		while ((v >>>= 7) != 0)
+			n++;
+		return n;
+	}
+
+	static int putVarint(byte[] buf, int pos, long v) {
+		while ((v & ~0x7fL) != 0) {
+			buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+		return pos;
+	}
+
+	static void encode24(byte[] buf, int pos, int v) {
+		buf[pos] = (byte) (v >>> 16);
+		buf[pos + 1] = (byte) (v >>> 8);
+		buf[pos + 2] = (byte) v;
+	}
+}
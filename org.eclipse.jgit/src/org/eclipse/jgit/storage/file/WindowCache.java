@@ -47,13 +47,18 @@
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.storage.pack.CacheStats;
+import org.eclipse.jgit.storage.file.WindowCacheConfig.CachePolicy;
 
 /**
  * Caches slices of a {@link PackFile} in memory for faster read access.
@@ -99,7 +104,8 @@
  * for a given <code>(PackFile,position)</code> tuple.</li>
  * <li>For every <code>load()</code> invocation there is exactly one
  * {@link #createRef(PackFile, long, ByteWindow)} invocation to wrap a
- * SoftReference around the cached entity.</li>
+ * SoftReference around the cached entity, unless the TinyLFU policy refuses
+ * to admit the entity, in which case the file is released immediately.</li>
  * <li>For every Reference created by <code>createRef()</code> there will be
  * exactly one call to {@link #clear(Ref)} to cleanup any resources associated
  * with the (now expired) cached entity.</li>
@@ -119,6 +125,19 @@
  * objects in parallel. This means that the cache can be temporarily over limit,
  * especially if the nominated eviction thread is being starved relative to the
  * other threads.
+ * <p>
+ * When configured with {@link WindowCacheConfig.CachePolicy#TINY_LFU} the lock
+ * table is replaced by a table of in-flight loads. A thread missing the cache
+ * publishes its load with a compare-and-swap, and threads that want the same
+ * window wait only for that load; loads of other windows never block each
+ * other. Every request is also counted in a small frequency sketch. Once the
+ * cache is full a new window is kept only if it has been requested more often
+ * than the window the CLOCK algorithm would evict to make room for it, so a
+ * single pass over a large pack cannot flush the frequently used windows.
+ * <p>
+ * Hits, misses, evictions and load times are counted by {@link #getStats()},
+ * which may also be registered with the platform MBean server, see
+ * {@link WindowCacheConfig#setExposeStatsViaJmx(boolean)}.
  */
 public class WindowCache {
 	private static final int bits(int newSize) {
@@ -135,6 +154,8 @@ private static final int bits(int newSize) {
 
 	private static volatile int streamFileThreshold;
 
+	private static volatile boolean packedIndexMMAP;
+
 	static {
 		reconfigure(new WindowCacheConfig());
 	}
@@ -186,7 +207,10 @@ public static void reconfigure(final WindowCacheConfig cfg) {
 		if (oc != null)
 			oc.removeAll();
 		cache = nc;
+		if (cfg.isExposeStatsViaJmx())
+			nc.stats.publish();
 		streamFileThreshold = cfg.getStreamFileThreshold();
+		packedIndexMMAP = cfg.isPackedIndexMMAP();
 		DeltaBaseCache.reconfigure(cfg);
 	}
 
@@ -194,10 +218,30 @@ static int getStreamFileThreshold() {
 		return streamFileThreshold;
 	}
 
+	static boolean isPackedIndexMMAP() {
+		return packedIndexMMAP;
+	}
+
 	static WindowCache getInstance() {
 		return cache;
 	}
 
+	/**
+	 * @return statistics of the current cache. The counters start again at 0
+	 *         each time the cache is reconfigured.
+	 */
+	public static CacheStats getStats() {
+		return cache.stats;
+	}
+
+	/**
+	 * @return statistics of the delta base cache shared by all readers. The
+	 *         counters start again at 0 each time the cache is reconfigured.
+	 */
+	public static CacheStats getDeltaBaseCacheStats() {
+		return DeltaBaseCache.getInstance().stats;
+	}
+
 	static final ByteWindow get(final PackFile pack, final long offset)
 			throws IOException {
 		final WindowCache c = cache;
@@ -229,9 +273,30 @@ static final void purge(final PackFile pack) {
 	/** Hash bucket directory; entries are chained below. */
 	private final AtomicReferenceArray<Entry> table;
 
-	/** Locks to prevent concurrent loads for same (PackFile,position). */
+	/**
+	 * Locks to prevent concurrent loads for same (PackFile,position); null
+	 * when {@link #loads} is used instead.
+	 */
 	private final Lock[] locks;
 
+	/** In-flight loads, hashed like {@link #locks}; null unless TinyLFU. */
+	private final AtomicReferenceArray<PendingEntry> loads;
+
+	/** Access frequency estimates for admission; null unless TinyLFU. */
+	private final FrequencySketch sketch;
+
+	/**
+	 * Pack kept open by the last window {@link #admit(int, ByteWindow)}
+	 * rejected; null when none is held. Only used with TinyLFU.
+	 */
+	private final AtomicReference<PackFile> rejectedPack;
+
+	/**
+	 * Next {@link #table} bucket the CLOCK hand inspects. Moved only under
+	 * {@link #evictLock}, but read without it by {@link #peekClockVictim()}.
+	 */
+	private int clockHand;
+
 	/** Lock to elect the eviction thread after a load occurs. */
 	private final ReentrantLock evictLock;
 
@@ -252,6 +317,8 @@ static final void purge(final PackFile pack) {
 
 	private final AtomicLong openBytes;
 
+	private final WindowCacheStats stats;
+
 	private WindowCache(final WindowCacheConfig cfg) {
 		tableSize = tableSize(cfg);
 		final int lockCount = lockCount(cfg);
@@ -263,9 +330,6 @@ private WindowCache(final WindowCacheConfig cfg) {
 		queue = new ReferenceQueue<ByteWindow>();
 		clock = new AtomicLong(1);
 		table = new AtomicReferenceArray<Entry>(tableSize);
-		locks = new Lock[lockCount];
-		for (int i = 0; i < locks.length; i++)
-			locks[i] = new Lock();
 		evictLock = new ReentrantLock();
 
 		int eb = (int) (tableSize * .1);
@@ -283,8 +347,22 @@ else if (eb < 4)
 		windowSizeShift = bits(cfg.getPackedGitWindowSize());
 		windowSize = 1 << windowSizeShift;
 
+		if (cfg.getPackedGitCachePolicy() == CachePolicy.TINY_LFU) {
+			locks = null;
+			loads = new AtomicReferenceArray<PendingEntry>(lockCount);
+			sketch = new FrequencySketch(maxBytes / windowSize);
+		} else {
+			locks = new Lock[lockCount];
+			for (int i = 0; i < locks.length; i++)
+				locks[i] = new Lock();
+			loads = null;
+			sketch = null;
+		}
+
+		rejectedPack = new AtomicReference<PackFile>();
 		openFiles = new AtomicInteger();
 		openBytes = new AtomicLong();
+		stats = new WindowCacheStats(this);
 
 		if (maxFiles < 1)
 			throw new IllegalArgumentException(JGitText.get().openFilesMustBeAtLeast1);
@@ -304,21 +382,50 @@ private int hash(final int packHash, final long off) {
 		return packHash + (int) (off >>> windowSizeShift);
 	}
 
+	/**
+	 * Sum the bytes cached for each pack.
+	 *
+	 * @param byPack
+	 *            map to add the bytes of each pack into.
+	 * @return the packs with at least one cached window.
+	 */
+	Set<PackFile> getOpenBytes(final Map<PackFile, Long> byPack) {
+		for (int s = 0; s < tableSize; s++) {
+			for (Entry e = table.get(s); e != null; e = e.next) {
+				if (e.dead)
+					continue;
+				final Long old = byPack.get(e.ref.pack);
+				final long n = old != null ? old.longValue() : 0;
+				byPack.put(e.ref.pack, Long.valueOf(n + e.ref.size));
+			}
+		}
+		return byPack.keySet();
+	}
+
 	private ByteWindow load(final PackFile pack, final long offset)
 			throws IOException {
+		stats.miss(pack);
+		final long start = System.nanoTime();
 		if (pack.beginWindowCache())
 			openFiles.incrementAndGet();
 		try {
+			final ByteWindow v;
 			if (mmap)
-				return pack.mmap(offset, windowSize);
-			return pack.read(offset, windowSize);
+				v = pack.mmap(offset, windowSize);
+			else
+				v = pack.read(offset, windowSize);
+			stats.loaded(System.nanoTime() - start);
+			return v;
 		} catch (IOException e) {
+			stats.loadFailed(System.nanoTime() - start);
 			close(pack);
 			throw e;
 		} catch (RuntimeException e) {
+			stats.loadFailed(System.nanoTime() - start);
 			close(pack);
 			throw e;
 		} catch (Error e) {
+			stats.loadFailed(System.nanoTime() - start);
 			close(pack);
 			throw e;
 		}
@@ -376,6 +483,9 @@ private static int lockCount(final WindowCacheConfig cfg) {
 	 */
 	private ByteWindow getOrLoad(final PackFile pack, final long position)
 			throws IOException {
+		if (sketch != null)
+			return getOrLoadLockFree(pack, position);
+
 		final int slot = slot(pack, position);
 		final Entry e1 = table.get(slot);
 		ByteWindow v = scan(e1, pack, position);
@@ -413,12 +523,144 @@ private ByteWindow getOrLoad(final PackFile pack, final long position)
 		return v;
 	}
 
+	private ByteWindow getOrLoadLockFree(final PackFile pack,
+			final long position) throws IOException {
+		final int slot = slot(pack, position);
+		final int loadSlot = (hash(pack.hash, position) >>> 1) % loads.length();
+		for (;;) {
+			final Entry e1 = table.get(slot);
+			ByteWindow v = scan(e1, pack, position);
+			if (v != null)
+				return v;
+
+			final PendingEntry p1 = loads.get(loadSlot);
+			final Loading other = PendingEntry.find(p1, pack, position);
+			if (other != null) {
+				v = other.await();
+				if (v != null) {
+					stats.hit(pack);
+					sketch.increment(hash(pack.hash, position));
+					return v;
+				}
+				continue; // The other thread failed; try the load ourselves.
+			}
+
+			final Loading mine = new Loading(pack, position);
+			if (!loads.compareAndSet(loadSlot, p1, new PendingEntry(p1, mine)))
+				continue;
+			try {
+				// A load may have completed between scanning the table and
+				// publishing ours, in which case the window is now cached.
+				final Entry e2 = table.get(slot);
+				if (e2 != e1)
+					v = scan(e2, pack, position);
+				if (v == null)
+					v = loadAndAdmit(pack, position, slot);
+			} finally {
+				unlink(loadSlot, mine);
+				mine.complete(v);
+			}
+			return v;
+		}
+	}
+
+	private ByteWindow loadAndAdmit(final PackFile pack, final long position,
+			final int slot) throws IOException {
+		final int h = hash(pack.hash, position);
+		sketch.increment(h);
+		final ByteWindow v = load(pack, position);
+		if (admit(h, v)) {
+			final Ref ref = createRef(pack, position, v);
+			ref.referenced = true;
+			for (;;) {
+				final Entry e2 = table.get(slot);
+				if (table.compareAndSet(slot, e2, new Entry(clean(e2), ref)))
+					break;
+			}
+		} else
+			holdOpen(pack);
+
+		// The thread holding evictLock may have finished its check before
+		// another window was added, so retry until the cache is within
+		// limits or another thread takes over.
+		while (isFull() && evictLock.tryLock()) {
+			try {
+				gc();
+				if (!evictClock())
+					break;
+			} finally {
+				evictLock.unlock();
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * Keep a pack open after its window was not admitted.
+	 * <p>
+	 * The reference the load took on the pack is held in place of the one
+	 * held for the previously rejected pack, so a run of rejected windows
+	 * from the same pack does not reopen the file for each of them.
+	 *
+	 * @param pack
+	 *            the pack whose window was just rejected.
+	 */
+	private void holdOpen(final PackFile pack) {
+		final PackFile old = rejectedPack.getAndSet(pack);
+		if (old != null)
+			close(old);
+	}
+
+	/**
+	 * Decide if a newly loaded window should enter the cache.
+	 *
+	 * @param h
+	 *            hash of the new window.
+	 * @param v
+	 *            the new window.
+	 * @return true if the cache has room for the window, or if the window has
+	 *         been requested more often than the window it would replace.
+	 */
+	private boolean admit(final int h, final ByteWindow v) {
+		if (openBytes.get() + v.size() <= maxBytes
+				&& openFiles.get() <= maxFiles)
+			return true;
+		// Only peek at the victim; a rejected window must not clear the
+		// referenced bits or move the hand past windows still in use.
+		final Entry victim;
+		if (evictLock.tryLock()) {
+			try {
+				victim = peekClockVictim();
+			} finally {
+				evictLock.unlock();
+			}
+		} else {
+			// Another thread is evicting; compare against the window its
+			// clock is about to reach instead of admitting unconditionally.
+			victim = peekClockVictim();
+		}
+		if (victim == null)
+			return true;
+		final Ref r = victim.ref;
+		return sketch.frequency(hash(r.pack.hash, r.position)) < sketch
+				.frequency(h);
+	}
+
+	private void unlink(final int loadSlot, final Loading done) {
+		for (;;) {
+			final PendingEntry p1 = loads.get(loadSlot);
+			if (loads.compareAndSet(loadSlot, p1, PendingEntry.remove(p1, done)))
+				return;
+		}
+	}
+
 	private ByteWindow scan(Entry n, final PackFile pack, final long position) {
 		for (; n != null; n = n.next) {
 			final Ref r = n.ref;
 			if (r.pack == pack && r.position == position) {
 				final ByteWindow v = r.get();
 				if (v != null) {
+					stats.hit(pack);
 					hit(r);
 					return v;
 				}
@@ -430,6 +672,12 @@ private ByteWindow scan(Entry n, final PackFile pack, final long position) {
 	}
 
 	private void hit(final Ref r) {
+		if (sketch != null) {
+			r.referenced = true;
+			sketch.increment(hash(r.pack.hash, r.position));
+			return;
+		}
+
 		// We don't need to be 100% accurate here. Its sufficient that at least
 		// one thread performs the increment. Any other concurrent access at
 		// exactly the same time can simply use the same clock value.
@@ -460,6 +708,7 @@ private void evict() {
 				}
 			}
 			if (old != null) {
+				stats.evicted();
 				old.kill();
 				gc();
 				final Entry e1 = table.get(slot);
@@ -468,6 +717,73 @@ private void evict() {
 		}
 	}
 
+	private boolean evictClock() {
+		while (isFull()) {
+			final Entry old = clockVictim();
+			if (old == null)
+				return false;
+			stats.evicted();
+			old.kill();
+			gc();
+			final int slot = slot(old.ref.pack, old.ref.position);
+			final Entry e1 = table.get(slot);
+			table.compareAndSet(slot, e1, clean(e1));
+		}
+		return true;
+	}
+
+	/**
+	 * Find the window the clock would evict next, without moving the hand.
+	 * <p>
+	 * Neither the hand nor the referenced bits are changed. Without
+	 * {@link #evictLock} both are read racily, and the result is only an
+	 * estimate for comparing frequencies.
+	 *
+	 * @return the first unreferenced window ahead of the hand; otherwise the
+	 *         first live window; null if the cache is empty.
+	 */
+	private Entry peekClockVictim() {
+		Entry first = null;
+		int hand = clockHand;
+		for (int n = tableSize; 0 < n; n--) {
+			if (tableSize <= hand)
+				hand = 0;
+			for (Entry e = table.get(hand); e != null; e = e.next) {
+				if (e.dead)
+					continue;
+				if (!e.ref.referenced)
+					return e;
+				if (first == null)
+					first = e;
+			}
+			hand++;
+		}
+		return first;
+	}
+
+	/**
+	 * Advance the CLOCK hand to the next entry not referenced since the hand
+	 * last passed it, clearing the reference bits of the entries it skips.
+	 * <p>
+	 * The caller must hold {@link #evictLock}.
+	 *
+	 * @return the entry to evict; null if the cache holds no live entries.
+	 */
+	private Entry clockVictim() {
+		for (int n = 2 * tableSize; 0 < n; n--) {
+			for (Entry e = table.get(clockHand); e != null; e = e.next) {
+				if (e.dead)
+					continue;
+				if (!e.ref.referenced)
+					return e;
+				e.ref.referenced = false;
+			}
+			if (++clockHand == tableSize)
+				clockHand = 0;
+		}
+		return null;
+	}
+
 	/**
 	 * Clear every entry from the cache.
 	 * <p>
@@ -487,6 +803,9 @@ private void removeAll() {
 					e.kill();
 			} while (!table.compareAndSet(s, e1, null));
 		}
+		final PackFile held = rejectedPack.getAndSet(null);
+		if (held != null)
+			close(held);
 		gc();
 	}
 
@@ -515,6 +834,8 @@ private void removeAll(final PackFile pack) {
 			if (hasDead)
 				table.compareAndSet(s, e1, clean(e1));
 		}
+		if (rejectedPack.compareAndSet(pack, null))
+			close(pack);
 		gc();
 	}
 
@@ -606,6 +927,12 @@ private static class Ref extends SoftReference<ByteWindow> {
 
 		long lastAccess;
 
+		/**
+		 * CLOCK reference bit. Updates are racy; a lost update only changes
+		 * which entry is evicted.
+		 */
+		boolean referenced;
+
 		private boolean cleared;
 
 		protected Ref(final PackFile pack, final long position,
@@ -627,4 +954,70 @@ final synchronized boolean canClear() {
 	private static final class Lock {
 		// Used only for its implicit monitor.
 	}
+
+	/** A window being loaded by one thread, awaited by others. */
+	private static final class Loading {
+		final PackFile pack;
+
+		final long position;
+
+		private boolean done;
+
+		private ByteWindow window;
+
+		Loading(final PackFile pack, final long position) {
+			this.pack = pack;
+			this.position = position;
+		}
+
+		synchronized void complete(final ByteWindow v) {
+			window = v;
+			done = true;
+			notifyAll();
+		}
+
+		/** @return the loaded window; null if the load failed. */
+		synchronized ByteWindow await() {
+			boolean interrupted = false;
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			return window;
+		}
+	}
+
+	/** Immutable chain of the loads pending in one {@link #loads} slot. */
+	private static final class PendingEntry {
+		static Loading find(PendingEntry n, PackFile pack, long position) {
+			for (; n != null; n = n.next) {
+				if (n.load.pack == pack && n.load.position == position)
+					return n.load;
+			}
+			return null;
+		}
+
+		static PendingEntry remove(PendingEntry top, Loading load) {
+			if (top == null)
+				return null;
+			if (top.load == load)
+				return top.next;
+			final PendingEntry n = remove(top.next, load);
+			return n == top.next ? top : new PendingEntry(n, top.load);
+		}
+
+		final PendingEntry next;
+
+		final Loading load;
+
+		PendingEntry(final PendingEntry n, final Loading l) {
+			next = n;
+			load = l;
+		}
+	}
 }
@@ -48,6 +48,23 @@
 
 /** Configuration parameters for {@link WindowCache}. */
 public class WindowCacheConfig {
+	/** Algorithm {@link WindowCache} uses to decide which windows to keep. */
+	public static enum CachePolicy {
+		/**
+		 * Evict the least recently used window of a randomly chosen tenth of
+		 * the cache. Loads are serialized through a fixed table of locks.
+		 */
+		SAMPLED_LRU,
+
+		/**
+		 * Keep a window only if it is accessed more often than the window it
+		 * would replace, as estimated by a TinyLFU frequency sketch, and pick
+		 * that window with the CLOCK algorithm. Loads of different windows
+		 * never wait on each other.
+		 */
+		TINY_LFU;
+	}
+
 	/** 1024 (number of bytes in one kibibyte/kilobyte) */
 	public static final int KB = 1024;
 
@@ -62,17 +79,25 @@ public class WindowCacheConfig {
 
 	private boolean packedGitMMAP;
 
+	private boolean packedIndexMMAP;
+
+	private CachePolicy packedGitCachePolicy;
+
 	private int deltaBaseCacheLimit;
 
 	private int streamFileThreshold;
 
+	private boolean exposeStatsViaJmx;
+
 	/** Create a default configuration. */
 	public WindowCacheConfig() {
 		packedGitOpenFiles = 128;
 		packedGitLimit = 10 * MB;
 		packedGitWindowSize = 8 * KB;
 		packedGitMMAP = false;
-		deltaBaseCacheLimit = 10 * MB;
+		packedIndexMMAP = false;
+		packedGitCachePolicy = CachePolicy.SAMPLED_LRU;
+		deltaBaseCacheLimit = 32 * MB;
 		streamFileThreshold = PackConfig.DEFAULT_BIG_FILE_THRESHOLD;
 	}
 
@@ -145,10 +170,48 @@ public void setPackedGitMMAP(final boolean usemmap) {
 		packedGitMMAP = usemmap;
 	}
 
+	/**
+	 * @return true searches pack indexes in place through a read-only memory
+	 *         mapping of the .idx file; false copies the index tables onto
+	 *         the heap when a pack is first accessed. <b>Default false.</b>
+	 */
+	public boolean isPackedIndexMMAP() {
+		return packedIndexMMAP;
+	}
+
+	/**
+	 * @param usemmap
+	 *            true searches pack indexes in place through a read-only
+	 *            memory mapping of the .idx file; false copies the index
+	 *            tables onto the heap when a pack is first accessed. Only
+	 *            packs opened after the cache is reconfigured are affected.
+	 */
+	public void setPackedIndexMMAP(final boolean usemmap) {
+		packedIndexMMAP = usemmap;
+	}
+
+	/**
+	 * @return algorithm used to choose the windows kept in the cache.
+	 *         <b>Default {@link CachePolicy#SAMPLED_LRU}.</b>
+	 */
+	public CachePolicy getPackedGitCachePolicy() {
+		return packedGitCachePolicy;
+	}
+
+	/**
+	 * @param policy
+	 *            algorithm used to choose the windows kept in the cache.
+	 */
+	public void setPackedGitCachePolicy(final CachePolicy policy) {
+		packedGitCachePolicy = policy;
+	}
+
 	/**
 	 * @return maximum number of bytes to cache in {@link DeltaBaseCache}
 	 *         for inflated, recently accessed objects, without delta chains.
-	 *         <b>Default 10 MB.</b>
+	 *         The limit applies to the one cache shared by all readers of
+	 *         the process, as {@code core.deltaBaseCacheLimit} does in C Git,
+	 *         not to each reader. <b>Default 32 MB.</b>
 	 */
 	public int getDeltaBaseCacheLimit() {
 		return deltaBaseCacheLimit;
@@ -158,7 +221,8 @@ public int getDeltaBaseCacheLimit() {
 	 * @param newLimit
 	 *            maximum number of bytes to cache in
 	 *            {@link DeltaBaseCache} for inflated, recently accessed
-	 *            objects, without delta chains.
+	 *            objects, without delta chains. The limit is shared by all
+	 *            readers of the process.
 	 */
 	public void setDeltaBaseCacheLimit(final int newLimit) {
 		deltaBaseCacheLimit = newLimit;
@@ -180,6 +244,27 @@ public void setStreamFileThreshold(final int newLimit) {
 		streamFileThreshold = newLimit;
 	}
 
+	/**
+	 * @return true if the statistics of the caches are registered with the
+	 *         platform MBean server when this configuration is applied.
+	 *         <b>Default is false.</b>
+	 */
+	public boolean isExposeStatsViaJmx() {
+		return exposeStatsViaJmx;
+	}
+
+	/**
+	 * @param expose
+	 *            true to register {@link WindowCache#getStats()} and the
+	 *            delta base cache statistics with the platform MBean server
+	 *            when this configuration is applied by
+	 *            {@link WindowCache#reconfigure(WindowCacheConfig)}. Nothing is
+	 *            registered if JMX is not available.
+	 */
+	public void setExposeStatsViaJmx(final boolean expose) {
+		exposeStatsViaJmx = expose;
+	}
+
 	/**
 	 * Update properties by setting fields from the configuration.
 	 * <p>
@@ -197,6 +282,10 @@ public void fromConfig(final Config rc) {
 				"core", null, "packedgitwindowsize", getPackedGitWindowSize())); //$NON-NLS-1$ //$NON-NLS-2$
 		setPackedGitMMAP(rc.getBoolean(
 				"core", null, "packedgitmmap", isPackedGitMMAP())); //$NON-NLS-1$ //$NON-NLS-2$
+		setPackedIndexMMAP(rc.getBoolean(
+				"core", null, "packedindexmmap", isPackedIndexMMAP())); //$NON-NLS-1$ //$NON-NLS-2$
+		setPackedGitCachePolicy(rc.getEnum(
+				"core", null, "packedgitcachepolicy", getPackedGitCachePolicy())); //$NON-NLS-1$ //$NON-NLS-2$
 		setDeltaBaseCacheLimit(rc.getInt(
 				"core", null, "deltabasecachelimit", getDeltaBaseCacheLimit())); //$NON-NLS-1$ //$NON-NLS-2$
 
@@ -62,12 +62,14 @@
 import org.eclipse.jgit.internal.JGitText;
 import org.eclipse.jgit.lib.AbbreviatedObjectId;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitGraph;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.InflaterCache;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.storage.pack.BitmapIndexSupport;
 import org.eclipse.jgit.storage.pack.CachedPack;
 import org.eclipse.jgit.storage.pack.ObjectReuseAsIs;
 import org.eclipse.jgit.storage.pack.ObjectToPack;
@@ -75,7 +77,8 @@
 import org.eclipse.jgit.storage.pack.PackWriter;
 
 /** Active handle to a ByteWindow. */
-final class WindowCursor extends ObjectReader implements ObjectReuseAsIs {
+final class WindowCursor extends ObjectReader implements ObjectReuseAsIs,
+		BitmapIndexSupport {
 	/** Temporary buffer large enough for at least one raw object id. */
 	final byte[] tempId = new byte[Constants.OBJECT_ID_LENGTH];
 
@@ -83,8 +86,6 @@ final class WindowCursor extends ObjectReader implements ObjectReuseAsIs {
 
 	private ByteWindow window;
 
-	private DeltaBaseCache baseCache;
-
 	final FileObjectDatabase db;
 
 	WindowCursor(FileObjectDatabase db) {
@@ -92,9 +93,7 @@ final class WindowCursor extends ObjectReader implements ObjectReuseAsIs {
 	}
 
 	DeltaBaseCache getDeltaBaseCache() {
-		if (baseCache == null)
-			baseCache = new DeltaBaseCache();
-		return baseCache;
+		return DeltaBaseCache.getInstance();
 	}
 
 	@Override
@@ -178,6 +177,15 @@ public Collection<CachedPack> getCachedPacks() throws IOException {
 		return (Collection<CachedPack>) db.getCachedPacks();
 	}
 
+	public PackBitmapIndex getBitmapIndex() throws IOException {
+		return db.getBitmapIndex();
+	}
+
+	@Override
+	public CommitGraph getCommitGraph() throws IOException {
+		return db.getCommitGraph();
+	}
+
 	/**
 	 * Copy bytes from the window to a caller supplied buffer.
 	 *
@@ -347,7 +355,6 @@ int getStreamFileThreshold() {
 	/** Release the current window cursor. */
 	public void release() {
 		window = null;
-		baseCache = null;
 		try {
 			InflaterCache.release(inf);
 		} finally {
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.pack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.storage.file.PackBitmapIndex;
+import org.eclipse.jgit.storage.pack.PackWriter.ObjectIdSet;
+import org.eclipse.jgit.util.EWAHCompressedBitmap;
+import org.eclipse.jgit.util.IntList;
+
+/**
+ * Assigns bitmap positions to objects while packing.
+ * <p>
+ * Objects of the bitmapped pack use the positions of its
+ * {@link PackBitmapIndex}. Objects found outside of that pack (for example
+ * loose objects created since the last repack) are appended after them, so
+ * every reachable object can be represented in a {@link Bitmap}.
+ */
+class BitmapIndex {
+	private static final int[] TYPES = { Constants.OBJ_COMMIT,
+			Constants.OBJ_TREE, Constants.OBJ_BLOB, Constants.OBJ_TAG };
+
+	private final PackBitmapIndex packIndex;
+
+	private final int packObjectCount;
+
+	private final ObjectIdOwnerMap<Position> addedPositions;
+
+	private final List<ObjectId> addedObjects;
+
+	private final IntList addedTypes;
+
+	private long[][] typeWords;
+
+	BitmapIndex(PackBitmapIndex packIndex) {
+		this.packIndex = packIndex;
+		this.packObjectCount = packIndex.getObjectCount();
+		this.addedPositions = new ObjectIdOwnerMap<Position>();
+		this.addedObjects = new ArrayList<ObjectId>();
+		this.addedTypes = new IntList();
+	}
+
+	/** @return the number of positions currently assigned. */
+	int size() {
+		return packObjectCount + addedObjects.size();
+	}
+
+	/** @return number of objects assigned a position outside of the pack. */
+	int addedCount() {
+		return addedObjects.size();
+	}
+
+	EWAHCompressedBitmap getBitmap(AnyObjectId objectId) {
+		return packIndex.getBitmap(objectId);
+	}
+
+	int findPosition(AnyObjectId objectId) {
+		int pos = packIndex.findPosition(objectId);
+		if (0 <= pos)
+			return pos;
+		Position p = addedPositions.get(objectId);
+		return p != null ? p.position : -1;
+	}
+
+	int findOrInsert(AnyObjectId objectId, int type) {
+		int pos = findPosition(objectId);
+		if (0 <= pos)
+			return pos;
+		pos = size();
+		addedPositions.add(new Position(objectId, pos));
+		addedObjects.add(objectId.copy());
+		addedTypes.add(type);
+		return pos;
+	}
+
+	ObjectId getObject(int position) {
+		if (position < packObjectCount)
+			return packIndex.getObject(position);
+		return addedObjects.get(position - packObjectCount);
+	}
+
+	int getType(int position) {
+		if (packObjectCount <= position)
+			return addedTypes.get(position - packObjectCount);
+		if (typeWords == null) {
+			typeWords = new long[TYPES.length][];
+			for (int i = 0; i < TYPES.length; i++)
+				typeWords[i] = packIndex.ofObjectType(TYPES[i]).decompress();
+		}
+		final int w = position >>> 6;
+		final long bit = 1L << (position & 63);
+		for (int i = 0; i < TYPES.length; i++) {
+			final long[] words = typeWords[i];
+			if (w < words.length && (words[w] & bit) != 0)
+				return TYPES[i];
+		}
+		return Constants.OBJ_BAD;
+	}
+
+	Bitmap newBitmap() {
+		return new Bitmap();
+	}
+
+	/** An uncompressed, growable bitmap over the positions of this index. */
+	final class Bitmap implements ObjectIdSet {
+		private long[] words = new long[(packObjectCount + 63) >>> 6];
+
+		public boolean contains(AnyObjectId objectId) {
+			int pos = findPosition(objectId);
+			return 0 <= pos && get(pos);
+		}
+
+		boolean get(int pos) {
+			final int w = pos >>> 6;
+			return w < words.length && (words[w] & (1L << (pos & 63))) != 0;
+		}
+
+		void set(int pos) {
+			final int w = pos >>> 6;
+			ensureWords(w + 1);
+			words[w] |= 1L << (pos & 63);
+		}
+
+		void add(AnyObjectId objectId, int type) {
+			set(findOrInsert(objectId, type));
+		}
+
+		void or(EWAHCompressedBitmap other) {
+			ensureWords(other.uncompressedWordLength());
+			other.or(words);
+		}
+
+		void or(Bitmap other) {
+			ensureWords(other.words.length);
+			for (int i = 0; i < other.words.length; i++)
+				words[i] |= other.words[i];
+		}
+
+		void andNot(Bitmap other) {
+			final int n = Math.min(words.length, other.words.length);
+			for (int i = 0; i < n; i++)
+				words[i] &= ~other.words[i];
+		}
+
+		/**
+		 * @param from
+		 *            first position to consider.
+		 * @return the first set position at or after {@code from}, or -1.
+		 */
+		int nextSetBit(int from) {
+			int w = from >>> 6;
+			if (words.length <= w)
+				return -1;
+			long word = words[w] & (~0L << (from & 63));
+			for (;;) {
+				if (word != 0)
+					return (w << 6) + Long.numberOfTrailingZeros(word);
+				if (++w == words.length)
+					return -1;
+				word = words[w];
+			}
+		}
+
+		int cardinality() {
+			int cnt = 0;
+			for (long w : words)
+				cnt += Long.bitCount(w);
+			return cnt;
+		}
+
+		EWAHCompressedBitmap compress() {
+			return EWAHCompressedBitmap.compress(words, size());
+		}
+
+		private void ensureWords(int n) {
+			if (words.length < n) {
+				long[] nw = new long[Math.max(n, words.length * 2)];
+				System.arraycopy(words, 0, nw, 0, words.length);
+				words = nw;
+			}
+		}
+	}
+
+	private static final class Position extends ObjectIdOwnerMap.Entry {
+		final int position;
+
+		Position(AnyObjectId objectId, int position) {
+			super(objectId);
+			this.position = position;
+		}
+	}
+}
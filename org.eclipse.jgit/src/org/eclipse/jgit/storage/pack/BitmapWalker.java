@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.pack;
+
+import java.io.IOException;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.ObjectFilter;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.storage.pack.BitmapIndex.Bitmap;
+import org.eclipse.jgit.util.EWAHCompressedBitmap;
+
+/**
+ * Helper class to do ObjectWalks with pack index bitmaps.
+ * <p>
+ * Commits with a stored bitmap are not walked; their bitmap is merged into
+ * the result instead, and traversal stops at their parents. Only the
+ * portion of history not covered by a bitmap is actually parsed.
+ */
+final class BitmapWalker {
+	private final ObjectReader reader;
+
+	private final BitmapIndex bitmapIndex;
+
+	private final ProgressMonitor pm;
+
+	private long countOfBitmapIndexMisses;
+
+	BitmapWalker(ObjectReader reader, BitmapIndex bitmapIndex,
+			ProgressMonitor pm) {
+		this.reader = reader;
+		this.bitmapIndex = bitmapIndex;
+		this.pm = pm;
+	}
+
+	/** @return number of commits that had to be walked without a bitmap. */
+	long getCountOfBitmapIndexMisses() {
+		return countOfBitmapIndexMisses;
+	}
+
+	/**
+	 * Compute the set of objects reachable from the start points.
+	 *
+	 * @param start
+	 *            objects to begin the traversal from.
+	 * @param seen
+	 *            objects already known to be reachable by the caller, and
+	 *            which need not be traversed again. May be null.
+	 * @param ignoreMissingStart
+	 *            if true, start objects that do not exist are silently
+	 *            skipped.
+	 * @return objects reachable from {@code start}. Objects contained in
+	 *         {@code seen} may or may not be included.
+	 * @throws MissingObjectException
+	 *             a reachable object is missing.
+	 * @throws IncorrectObjectTypeException
+	 *             an object has an unexpected type.
+	 * @throws IOException
+	 *             the repository cannot be read.
+	 */
+	Bitmap findObjects(Iterable<? extends ObjectId> start, Bitmap seen,
+			boolean ignoreMissingStart) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		final Bitmap result = bitmapIndex.newBitmap();
+		final ObjectWalk walker = new ObjectWalk(reader);
+		walker.setRetainBody(false);
+
+		boolean marked = false;
+		for (ObjectId id : start) {
+			EWAHCompressedBitmap bitmap = bitmapIndex.getBitmap(id);
+			if (bitmap != null) {
+				result.or(bitmap);
+				continue;
+			}
+			try {
+				walker.markStart(walker.parseAny(id));
+				marked = true;
+			} catch (MissingObjectException e) {
+				if (!ignoreMissingStart)
+					throw e;
+			}
+		}
+
+		if (marked) {
+			walker.setRevFilter(new BitmapRevFilter(result, seen));
+			walker.setObjectFilter(new BitmapObjectFilter(result, seen));
+
+			while (walker.next() != null) {
+				// Iterate through all of the commits. The BitmapRevFilter
+				// does the work of adding commits to the result.
+				pm.update(1);
+			}
+
+			RevObject ro;
+			while ((ro = walker.nextObject()) != null) {
+				result.add(ro, ro.getType());
+				pm.update(1);
+			}
+		}
+		return result;
+	}
+
+	private static boolean contains(Bitmap result, Bitmap seen,
+			AnyObjectId id) {
+		return result.contains(id) || (seen != null && seen.contains(id));
+	}
+
+	private class BitmapRevFilter extends RevFilter {
+		private final Bitmap result;
+
+		private final Bitmap seen;
+
+		BitmapRevFilter(Bitmap result, Bitmap seen) {
+			this.result = result;
+			this.seen = seen;
+		}
+
+		@Override
+		public boolean include(RevWalk walker, RevCommit c) {
+			if (!contains(result, seen, c)) {
+				EWAHCompressedBitmap bitmap = bitmapIndex.getBitmap(c);
+				if (bitmap == null) {
+					result.add(c, Constants.OBJ_COMMIT);
+					countOfBitmapIndexMisses++;
+					return true;
+				}
+				result.or(bitmap);
+			}
+
+			// Everything reachable from this commit is already known, so
+			// do not walk its parents.
+			for (RevCommit p : c.getParents())
+				p.add(RevFlag.SEEN);
+			return false;
+		}
+
+		@Override
+		public RevFilter clone() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean requiresCommitBody() {
+			return false;
+		}
+	}
+
+	private static class BitmapObjectFilter extends ObjectFilter {
+		private final Bitmap result;
+
+		private final Bitmap seen;
+
+		BitmapObjectFilter(Bitmap result, Bitmap seen) {
+			this.result = result;
+			this.seen = seen;
+		}
+
+		@Override
+		public boolean include(ObjectWalk walker, AnyObjectId objid) {
+			return !contains(result, seen, objid);
+		}
+	}
+}
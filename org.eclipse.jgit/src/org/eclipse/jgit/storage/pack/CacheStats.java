@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.eclipse.jgit.storage.pack;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.jgit.util.StripedCounter;
+
+/**
+ * Counters maintained by a cache of pack file data.
+ * <p>
+ * The cache implementation records every hit, miss, eviction and load through
+ * the protected methods of this class. Counters are {@link StripedCounter}s,
+ * so recording does not allocate and threads rarely contend. Sizes of the
+ * cache's current contents are supplied by the subclass when asked for.
+ */
+public abstract class CacheStats implements CacheStatsMXBean {
+	/** Number of entries in {@link #getLoadTimeHistogram()}. */
+	public static final int HISTOGRAM_SIZE = 24;
+
+	/** Upper bound of {@link PackExt#values()}. */
+	private static final int MAX_EXT = 32;
+
+	private final AtomicReferenceArray<StripedCounter> hits;
+
+	private final AtomicReferenceArray<StripedCounter> misses;
+
+	private final AtomicReferenceArray<StripedCounter> evictions;
+
+	private final StripedCounter loadSuccess;
+
+	private final StripedCounter loadFailure;
+
+	private final StripedCounter totalLoadTime;
+
+	private final StripedCounter[] loadTimes;
+
+	/** Initialize the counters. */
+	protected CacheStats() {
+		hits = new AtomicReferenceArray<StripedCounter>(MAX_EXT);
+		misses = new AtomicReferenceArray<StripedCounter>(MAX_EXT);
+		evictions = new AtomicReferenceArray<StripedCounter>(MAX_EXT);
+		for (PackExt ext : PackExt.values()) {
+			counter(hits, ext);
+			counter(misses, ext);
+			counter(evictions, ext);
+		}
+		loadSuccess = new StripedCounter();
+		loadFailure = new StripedCounter();
+		totalLoadTime = new StripedCounter();
+		loadTimes = new StripedCounter[HISTOGRAM_SIZE];
+		for (int i = 0; i < loadTimes.length; i++)
+			loadTimes[i] = new StripedCounter();
+	}
+
+	/**
+	 * Record a request answered from the cache.
+	 *
+	 * @param ext
+	 *            type of the file the request was for.
+	 */
+	protected void recordHit(PackExt ext) {
+		counter(hits, ext).increment();
+	}
+
+	/**
+	 * Record a request that was not found in the cache.
+	 *
+	 * @param ext
+	 *            type of the file the request was for.
+	 */
+	protected void recordMiss(PackExt ext) {
+		counter(misses, ext).increment();
+	}
+
+	/**
+	 * Record the eviction of an entry.
+	 *
+	 * @param ext
+	 *            type of the file the evicted entry was from.
+	 */
+	protected void recordEviction(PackExt ext) {
+		counter(evictions, ext).increment();
+	}
+
+	/**
+	 * Record a successful load.
+	 *
+	 * @param nanos
+	 *            time the load took, in nanoseconds.
+	 */
+	protected void recordLoadSuccess(long nanos) {
+		loadSuccess.increment();
+		recordLoadTime(nanos);
+	}
+
+	/**
+	 * Record a load that failed.
+	 *
+	 * @param nanos
+	 *            time until the load failed, in nanoseconds.
+	 */
+	protected void recordLoadFailure(long nanos) {
+		loadFailure.increment();
+		recordLoadTime(nanos);
+	}
+
+	private void recordLoadTime(long nanos) {
+		totalLoadTime.add(nanos);
+		long us = Math.max(nanos / 1000, 0);
+		int b = 64 - Long.numberOfLeadingZeros(us);
+		loadTimes[Math.min(b, HISTOGRAM_SIZE - 1)].increment();
+	}
+
+	public long getHitCount() {
+		return sum(hits);
+	}
+
+	public long getMissCount() {
+		return sum(misses);
+	}
+
+	public long getRequestCount() {
+		return getHitCount() + getMissCount();
+	}
+
+	public long getHitRatio() {
+		long hit = getHitCount();
+		long total = hit + getMissCount();
+		if (total == 0)
+			return 0;
+		return hit * 100 / total;
+	}
+
+	public long getEvictionCount() {
+		return sum(evictions);
+	}
+
+	public long getLoadSuccessCount() {
+		return loadSuccess.get();
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailure.get();
+	}
+
+	public long getTotalLoadTime() {
+		return totalLoadTime.get();
+	}
+
+	public long[] getLoadTimeHistogram() {
+		long[] r = new long[loadTimes.length];
+		for (int i = 0; i < r.length; i++)
+			r[i] = loadTimes[i].get();
+		return r;
+	}
+
+	public Map<String, Long> getHitCountByExt() {
+		return byExt(hits);
+	}
+
+	public Map<String, Long> getMissCountByExt() {
+		return byExt(misses);
+	}
+
+	public Map<String, Long> getEvictionCountByExt() {
+		return byExt(evictions);
+	}
+
+	public void resetCounters() {
+		for (int i = 0; i < MAX_EXT; i++) {
+			reset(hits, i);
+			reset(misses, i);
+			reset(evictions, i);
+		}
+		loadSuccess.reset();
+		loadFailure.reset();
+		totalLoadTime.reset();
+		for (StripedCounter c : loadTimes)
+			c.reset();
+	}
+
+	/**
+	 * Publish statistics through the platform MBean server.
+	 * <p>
+	 * Any bean previously registered under the same type is replaced. Failures
+	 * to register are ignored, as the statistics remain available through the
+	 * cache's own API. This includes runtimes lacking {@code javax.management}
+	 * entirely, which are only touched when this method is called.
+	 *
+	 * @param type
+	 *            value of the {@code type} key of the bean's name, in the
+	 *            {@code org.eclipse.jgit} domain.
+	 * @param stats
+	 *            the statistics to publish.
+	 */
+	protected static void register(String type, CacheStatsMXBean stats) {
+		try {
+			Jmx.register(type, stats);
+		} catch (LinkageError e) {
+			// Ignore, JMX is not available in this runtime.
+		} catch (RuntimeException e) {
+			// Ignore, JMX is only a convenience.
+		}
+	}
+
+	/**
+	 * Add a value to a map keyed by pack extension.
+	 *
+	 * @param map
+	 *            the map to update.
+	 * @param ext
+	 *            the extension.
+	 * @param value
+	 *            amount to add to the extension's entry.
+	 */
+	protected static void add(Map<String, Long> map, PackExt ext, long value) {
+		add(map, ext.getExtension(), value);
+	}
+
+	/**
+	 * Add a value to a map of statistics.
+	 *
+	 * @param map
+	 *            the map to update.
+	 * @param key
+	 *            the entry to update.
+	 * @param value
+	 *            amount to add to the entry.
+	 */
+	protected static void add(Map<String, Long> map, String key, long value) {
+		Long old = map.get(key);
+		map.put(key, Long.valueOf(old != null ? old.longValue() + value
+				: value));
+	}
+
+	private static StripedCounter counter(
+			AtomicReferenceArray<StripedCounter> counters, PackExt ext) {
+		int p = ext.getPosition();
+		StripedCounter c = counters.get(p);
+		if (c == null) {
+			counters.compareAndSet(p, null, new StripedCounter());
+			c = counters.get(p);
+		}
+		return c;
+	}
+
+	private static void reset(AtomicReferenceArray<StripedCounter> counters,
+			int p) {
+		StripedCounter c = counters.get(p);
+		if (c != null)
+			c.reset();
+	}
+
+	private static long sum(AtomicReferenceArray<StripedCounter> counters) {
+		long sum = 0;
+		for (int i = 0; i < MAX_EXT; i++) {
+			StripedCounter c = counters.get(i);
+			if (c != null)
+				sum += c.get();
+		}
+		return sum;
+	}
+
+	private static Map<String, Long> byExt(
+			AtomicReferenceArray<StripedCounter> counters) {
+		Map<String, Long> r = new TreeMap<String, Long>();
+		for (PackExt ext : PackExt.values()) {
+			StripedCounter c = counters.get(ext.getPosition());
+			r.put(ext.getExtension(), Long.valueOf(c != null ? c.get() : 0));
+		}
+		return r;
+	}
+
+	/** Loaded only when statistics are published, as JMX may be missing. */
+	private static class Jmx {
+		static void register(String type, CacheStatsMXBean stats) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(
+						"org.eclipse.jgit:type=" + type); //$NON-NLS-1$
+				synchronized (CacheStats.class) {
+					if (server.isRegistered(name))
+						server.unregisterMBean(name);
+					server.registerMBean(stats, name);
+				}
+			} catch (JMException e) {
+				// Ignore, JMX is only a convenience.
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.eclipse.jgit.storage.pack;
+
+import java.util.Map;
+
+/**
+ * Statistics of a cache holding pack file data, as published through JMX.
+ * <p>
+ * Counts are broken down by {@link PackExt}, using the extension as the map
+ * key, and by pack, using the pack's file name as the map key.
+ */
+public interface CacheStatsMXBean {
+	/** @return number of requests answered from the cache. */
+	long getHitCount();
+
+	/** @return number of requests that had to load data. */
+	long getMissCount();
+
+	/** @return number of hits plus number of misses. */
+	long getRequestCount();
+
+	/** @return 0..100, percentage of requests answered from the cache. */
+	long getHitRatio();
+
+	/** @return number of entries evicted to make room for others. */
+	long getEvictionCount();
+
+	/** @return number of loads that completed successfully. */
+	long getLoadSuccessCount();
+
+	/** @return number of loads that threw an exception. */
+	long getLoadFailureCount();
+
+	/** @return total time spent loading, in nanoseconds. */
+	long getTotalLoadTime();
+
+	/**
+	 * @return number of loads by duration. Entry {@code i} counts the loads
+	 *         that took less than {@code 2^i} microseconds, and more than the
+	 *         previous entry's bound. The last entry counts all longer loads.
+	 */
+	long[] getLoadTimeHistogram();
+
+	/** @return number of files currently held open by the cache. */
+	long getOpenFileCount();
+
+	/** @return number of bytes currently held by the cache. */
+	long getOpenByteCount();
+
+	/** @return hits by pack extension. */
+	Map<String, Long> getHitCountByExt();
+
+	/** @return misses by pack extension. */
+	Map<String, Long> getMissCountByExt();
+
+	/** @return evictions by pack extension. */
+	Map<String, Long> getEvictionCountByExt();
+
+	/** @return bytes currently held by the cache, by pack extension. */
+	Map<String, Long> getOpenByteCountByExt();
+
+	/** @return hits by pack, for packs currently known to the cache. */
+	Map<String, Long> getHitCountByPack();
+
+	/** @return misses by pack, for packs currently known to the cache. */
+	Map<String, Long> getMissCountByPack();
+
+	/** @return bytes currently held by the cache, by pack. */
+	Map<String, Long> getOpenByteCountByPack();
+
+	/** Reset all counters to 0. Open file and byte counts are not affected. */
+	void resetCounters();
+}
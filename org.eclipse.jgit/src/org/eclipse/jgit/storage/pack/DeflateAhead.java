@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.pack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.util.TemporaryBuffer;
+
+/**
+ * Compresses objects ahead of the thread writing the pack.
+ * <p>
+ * Worker threads walk the object list in pack order, claiming each object
+ * that cannot be copied as-is and deflating it (after computing its delta,
+ * if one was selected) into memory. The writing thread takes the finished
+ * bytes when it reaches the object, and compresses anything not yet claimed
+ * by itself, so the output stays in the order the writer chose.
+ * <p>
+ * Workers stop claiming objects once the compressed data waiting to be
+ * written exceeds {@link #PENDING_LIMIT}, bounding the memory used. A
+ * worker run by the writing thread itself, as an executor that runs tasks in
+ * the caller may do, stops instead of waiting for the writer.
+ */
+final class DeflateAhead {
+	/** Bytes of compressed data allowed to wait for the writing thread. */
+	private static final long PENDING_LIMIT = 16 * 1024 * 1024;
+
+	/** Compressed form of one object, prepared by a worker. */
+	static final class Deflated {
+		final ObjectId baseId;
+
+		boolean done;
+
+		/** Inflated size of the object or delta; its pack header size. */
+		long size;
+
+		byte[] data;
+
+		Deflated(ObjectId baseId) {
+			this.baseId = baseId;
+		}
+	}
+
+	private final PackConfig config;
+
+	private final ObjectReader templateReader;
+
+	private final List<ObjectToPack> list;
+
+	/** Thread writing the pack; it must never wait for itself. */
+	private final Thread writer;
+
+	private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+	/** Claimed objects not yet taken by the writer. Guarded by this. */
+	private final Map<ObjectToPack, Deflated> claimed = new HashMap<ObjectToPack, Deflated>();
+
+	/** Objects the writer handled before a worker reached them. */
+	private final Set<ObjectToPack> skipped = new HashSet<ObjectToPack>();
+
+	/** Index of the next object in {@link #list} a worker may claim. */
+	private int next;
+
+	/** Bytes held by finished entries of {@link #claimed}. */
+	private long pending;
+
+	private boolean closed;
+
+	DeflateAhead(PackConfig config, ObjectReader reader,
+			List<ObjectToPack> list) {
+		this.config = config;
+		this.templateReader = reader;
+		this.list = list;
+		this.writer = Thread.currentThread();
+	}
+
+	void start(Executor executor, int threads) {
+		for (int i = 0; i < threads; i++) {
+			FutureTask<Object> task = new FutureTask<Object>(
+					new Callable<Object>() {
+						public Object call() {
+							run();
+							return null;
+						}
+					});
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException full) {
+				// The writer compresses whatever is left by itself.
+				return;
+			}
+			futures.add(task);
+		}
+	}
+
+	/**
+	 * Take the compressed form of an object about to be written.
+	 * <p>
+	 * Waits if a worker is still compressing the object. If no worker has
+	 * claimed it yet, the object is withdrawn so the caller can compress it
+	 * inline.
+	 *
+	 * @param otp
+	 *            the object the writer is about to write.
+	 * @return the compressed object, or null if the caller must compress the
+	 *         object itself.
+	 * @throws IOException
+	 *             the writing thread was interrupted while waiting.
+	 */
+	synchronized Deflated take(ObjectToPack otp) throws IOException {
+		Deflated d = claimed.remove(otp);
+		if (d == null) {
+			skipped.add(otp);
+			return null;
+		}
+
+		try {
+			while (!d.done)
+				wait();
+		} catch (InterruptedException e) {
+			throw new IOException(
+					JGitText.get().packingCancelledDuringObjectsWriting);
+		}
+		if (d.data == null)
+			return null;
+		pending -= d.data.length;
+		notifyAll();
+		return d;
+	}
+
+	/**
+	 * Stop the workers and wait for them to finish.
+	 *
+	 * @throws IOException
+	 *             the writing thread was interrupted while waiting.
+	 */
+	void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			claimed.clear();
+			skipped.clear();
+			notifyAll();
+		}
+		try {
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException failed) {
+					// Failures are reported by the writing thread, which
+					// compresses the object again itself.
+				}
+			}
+		} catch (InterruptedException ie) {
+			for (Future<?> f : futures)
+				f.cancel(true);
+			throw new IOException(
+					JGitText.get().packingCancelledDuringObjectsWriting);
+		}
+	}
+
+	private void run() {
+		ObjectReader or = templateReader.newReader();
+		Deflater deflater = new Deflater(config.getCompressionLevel());
+		try {
+			for (;;) {
+				ObjectToPack otp;
+				Deflated d;
+				synchronized (this) {
+					otp = claim();
+					if (otp == null)
+						return;
+					d = claimed.get(otp);
+				}
+
+				byte[] data = null;
+				try {
+					data = deflate(or, deflater, otp, d);
+				} catch (IOException err) {
+					// The writer retries the object and reports the error.
+				} catch (RuntimeException err) {
+					// The writer retries the object and reports the error.
+				} finally {
+					synchronized (this) {
+						if (data != null && claimed.get(otp) == d) {
+							d.data = data;
+							pending += data.length;
+						}
+						d.done = true;
+						notifyAll();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Writer gave up on the pack; there is nothing left to do.
+		} finally {
+			deflater.end();
+			or.release();
+		}
+	}
+
+	private ObjectToPack claim() throws InterruptedException {
+		while (!closed && PENDING_LIMIT <= pending) {
+			if (Thread.currentThread() == writer)
+				return null;
+			wait();
+		}
+
+		while (!closed && next < list.size()) {
+			ObjectToPack otp = list.get(next++);
+			if (skipped.remove(otp) || otp.isReuseAsIs()
+					|| otp.hasCachedDelta())
+				continue;
+
+			ObjectId baseId = otp.getDeltaBaseId();
+			if (baseId != null)
+				baseId = baseId.copy();
+			claimed.put(otp, new Deflated(baseId));
+			return otp;
+		}
+		return null;
+	}
+
+	private byte[] deflate(ObjectReader or, Deflater deflater,
+			ObjectToPack otp, Deflated d) throws IOException {
+		byte[] raw;
+		if (d.baseId != null) {
+			DeltaIndex index = new DeltaIndex(PackWriter.buffer(config, or,
+					d.baseId));
+			byte[] res = PackWriter.buffer(config, or, otp);
+			TemporaryBuffer.Heap delta = new TemporaryBuffer.Heap(res.length);
+			index.encode(delta, res);
+			raw = delta.toByteArray();
+		} else {
+			ObjectLoader ldr = or.open(otp, otp.getType());
+			if (ldr.isLarge())
+				return null; // Leave streaming large objects to the writer.
+			raw = ldr.getCachedBytes();
+		}
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(
+				Math.max(raw.length / 2, 64));
+		deflater.reset();
+		DeflaterOutputStream dst = new DeflaterOutputStream(buf, deflater);
+		dst.write(raw);
+		dst.finish();
+		d.size = raw.length;
+		return buf.toByteArray();
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.pack;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory limit shared by all threads of one delta search.
+ * <p>
+ * Each {@link DeltaWindow} charges the object buffers and indexes it loads
+ * against the budget. A window that cannot fit a new object evicts its own
+ * oldest entries, and skips the object if that is not enough, so the total
+ * held across all threads stays near the limit however many threads run.
+ */
+final class DeltaBudget {
+	private final long limit;
+
+	private final AtomicLong used = new AtomicLong();
+
+	/**
+	 * Create a budget.
+	 *
+	 * @param limit
+	 *            maximum number of bytes all windows may load together; 0 or
+	 *            less for no limit.
+	 */
+	DeltaBudget(long limit) {
+		this.limit = limit;
+	}
+
+	/** @return true if the budget restricts memory usage. */
+	boolean isLimited() {
+		return 0 < limit;
+	}
+
+	/** @return maximum number of bytes all windows may load together. */
+	long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Check whether more memory may be loaded.
+	 * <p>
+	 * The answer is only a hint, other windows may charge the budget before
+	 * the caller does. Use {@link #tryCharge(long)} to claim the memory.
+	 *
+	 * @param need
+	 *            estimated number of bytes about to be loaded.
+	 * @return true if {@code need} bytes fit within the remaining budget.
+	 */
+	boolean fits(long need) {
+		return limit <= 0 || used.get() + need <= limit;
+	}
+
+	/**
+	 * Claim memory if it fits within the remaining budget.
+	 *
+	 * @param size
+	 *            number of bytes about to be loaded.
+	 * @return true if the memory was charged; false if it does not fit and
+	 *         the budget is unchanged.
+	 */
+	boolean tryCharge(long size) {
+		for (;;) {
+			long u = used.get();
+			if (0 < limit && limit < u + size)
+				return false;
+			if (used.compareAndSet(u, u + size))
+				return true;
+		}
+	}
+
+	/**
+	 * Adjust the charge without checking the limit.
+	 *
+	 * @param size
+	 *            number of bytes to add; negative to return memory.
+	 */
+	void charge(long size) {
+		used.addAndGet(size);
+	}
+
+	void credit(long size) {
+		used.addAndGet(-size);
+	}
+}
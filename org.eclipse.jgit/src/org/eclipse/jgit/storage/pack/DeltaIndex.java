@@ -118,6 +118,9 @@ public static long estimateIndexSize(int sourceLength) {
 	 */
 	private final long[] entries;
 
+	/** Number of valid positions in {@link #entries}, including index 0. */
+	private final int entriesEnd;
+
 	/** Mask to make block hashes into an array index for {@link #table}. */
 	private final int tableMask;
 
@@ -130,9 +133,23 @@ public static long estimateIndexSize(int sourceLength) {
 	 *            be modified by the caller.
 	 */
 	public DeltaIndex(byte[] sourceBuffer) {
+		this(sourceBuffer, null);
+	}
+
+	/**
+	 * Construct an index, taking its arrays from a pool.
+	 *
+	 * @param sourceBuffer
+	 *            the source file's raw contents.
+	 * @param pool
+	 *            pool to allocate the tables from, or null. The arrays
+	 *            should be returned by {@link #release(DeltaIndexPool)} once
+	 *            the index is no longer used.
+	 */
+	DeltaIndex(byte[] sourceBuffer, DeltaIndexPool pool) {
 		src = sourceBuffer;
 
-		DeltaIndexScanner scan = new DeltaIndexScanner(src, src.length);
+		DeltaIndexScanner scan = new DeltaIndexScanner(src, src.length, pool);
 
 		// Reuse the same table the scanner made. We will replace the
 		// values at each position, but we want the same-length array.
@@ -143,10 +160,27 @@ public DeltaIndex(byte[] sourceBuffer) {
 		// Because entry index 0 means there are no entries for the
 		// slot in the table, we have to allocate one extra position.
 		//
-		entries = new long[1 + countEntries(scan)];
+		entriesEnd = 1 + countEntries(scan);
+		if (pool != null)
+			entries = pool.allocEntries(entriesEnd);
+		else
+			entries = new long[entriesEnd];
 		copyEntries(scan);
 	}
 
+	/**
+	 * Return this index's tables to a pool.
+	 * <p>
+	 * The index must not be used after being released.
+	 *
+	 * @param pool
+	 *            the pool the index was constructed from.
+	 */
+	void release(DeltaIndexPool pool) {
+		pool.free(table);
+		pool.free(entries);
+	}
+
 	private int countEntries(DeltaIndexScanner scan) {
 		// Figure out exactly how many entries we need. As we do the
 		// enumeration truncate any delta chains longer than what we
@@ -338,7 +372,7 @@ public boolean encode(OutputStream out, byte[] res, int deltaSizeLimit)
 					}
 				} else if ((keyOf(ent) & tableMask) != tableIdx)
 					break;
-			} while (bestLen < 4096 && entryIdx < entries.length);
+			} while (bestLen < 4096 && entryIdx < entriesEnd);
 
 			if (bestLen < BLKSZ) {
 				// All of the locations were false positives, or the copy
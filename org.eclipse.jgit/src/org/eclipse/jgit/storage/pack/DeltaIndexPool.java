@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.pack;
+
+import java.util.Arrays;
+
+/**
+ * Recycles the arrays of {@link DeltaIndex} instances built by one thread.
+ * <p>
+ * Delta search creates and discards an index for nearly every object it
+ * considers. Building an index also needs two scratch arrays as large as the
+ * index itself. Reusing these arrays, rather than allocating new ones for
+ * every object, greatly reduces the garbage produced by large searches.
+ * <p>
+ * Tables are kept by power of two size class. At most {@code maxFree} arrays
+ * of each kind are retained, so the pool never holds more arrays than the
+ * delta search window it serves. The pool is not thread-safe.
+ * <p>
+ * Memory held by the pool is reported by {@link #getRetainedBytes()}, so the
+ * owner can account for it and {@link #clear()} the pool when memory is
+ * short.
+ */
+final class DeltaIndexPool {
+	private final int maxFree;
+
+	private final int[][][] freeTables = new int[32][][];
+
+	private final int[] freeTableCnt = new int[32];
+
+	private final long[][][] freeEntries = new long[32][][];
+
+	private final int[] freeEntriesCnt = new int[32];
+
+	private int freeTablesTotal;
+
+	private int freeEntriesTotal;
+
+	private long[] scanEntries;
+
+	private int[] scanNext;
+
+	/** Bytes held by the free lists and scratch arrays. */
+	private long retained;
+
+	DeltaIndexPool(int maxFree) {
+		this.maxFree = maxFree;
+	}
+
+	/**
+	 * Obtain a zero filled table.
+	 *
+	 * @param size
+	 *            length of the table, a power of 2.
+	 * @return the table.
+	 */
+	int[] allocTable(int size) {
+		int c = sizeClass(size);
+		int n = freeTableCnt[c];
+		if (n == 0)
+			return new int[size];
+
+		int[] t = freeTables[c][--n];
+		freeTables[c][n] = null;
+		freeTableCnt[c] = n;
+		freeTablesTotal--;
+		retained -= sizeOf(t);
+		Arrays.fill(t, 0);
+		return t;
+	}
+
+	/**
+	 * Obtain an entries array of at least the given length.
+	 * <p>
+	 * The returned array may be longer than requested, and may hold values
+	 * from a prior use.
+	 *
+	 * @param length
+	 *            minimum length required.
+	 * @return the array.
+	 */
+	long[] allocEntries(int length) {
+		int c = sizeClass(length);
+		int n = freeEntriesCnt[c];
+		if (n == 0)
+			return new long[capacity(length)];
+
+		long[] e = freeEntries[c][--n];
+		freeEntries[c][n] = null;
+		freeEntriesCnt[c] = n;
+		freeEntriesTotal--;
+		retained -= sizeOf(e);
+		return e;
+	}
+
+	void free(int[] table) {
+		if (table.length == 0 || maxFree <= freeTablesTotal)
+			return;
+		int c = sizeClass(table.length);
+		if (table.length != 1 << c)
+			return;
+		freeTables[c] = push(freeTables[c], freeTableCnt[c], table);
+		freeTableCnt[c]++;
+		freeTablesTotal++;
+		retained += sizeOf(table);
+	}
+
+	void free(long[] entries) {
+		if (entries.length == 0 || maxFree <= freeEntriesTotal)
+			return;
+		int c = sizeClass(entries.length);
+		if (entries.length != 1 << c)
+			return;
+		freeEntries[c] = push(freeEntries[c], freeEntriesCnt[c], entries);
+		freeEntriesCnt[c]++;
+		freeEntriesTotal++;
+		retained += sizeOf(entries);
+	}
+
+	/**
+	 * Scratch array for {@link DeltaIndexScanner#entries}.
+	 *
+	 * @param length
+	 *            minimum length required.
+	 * @return array of at least {@code length}, with undefined contents.
+	 */
+	long[] scanEntries(int length) {
+		if (scanEntries == null || scanEntries.length < length) {
+			if (scanEntries != null)
+				retained -= sizeOf(scanEntries);
+			scanEntries = new long[capacity(length)];
+			retained += sizeOf(scanEntries);
+		}
+		return scanEntries;
+	}
+
+	/**
+	 * Scratch array for {@link DeltaIndexScanner#next}.
+	 *
+	 * @param length
+	 *            minimum length required.
+	 * @return array of at least {@code length}, with undefined contents.
+	 */
+	int[] scanNext(int length) {
+		if (scanNext == null || scanNext.length < length) {
+			if (scanNext != null)
+				retained -= sizeOf(scanNext);
+			scanNext = new int[capacity(length)];
+			retained += sizeOf(scanNext);
+		}
+		return scanNext;
+	}
+
+	/** @return approximate number of bytes held by the pool. */
+	long getRetainedBytes() {
+		return retained;
+	}
+
+	/** Drop all retained arrays. */
+	void clear() {
+		Arrays.fill(freeTables, null);
+		Arrays.fill(freeTableCnt, 0);
+		Arrays.fill(freeEntries, null);
+		Arrays.fill(freeEntriesCnt, 0);
+		freeTablesTotal = 0;
+		freeEntriesTotal = 0;
+		scanEntries = null;
+		scanNext = null;
+		retained = 0;
+	}
+
+	private static long sizeOf(int[] a) {
+		return 4L * a.length;
+	}
+
+	private static long sizeOf(long[] a) {
+		return 8L * a.length;
+	}
+
+	private static int sizeClass(int length) {
+		return 32 - Integer.numberOfLeadingZeros(length - 1);
+	}
+
+	private static int capacity(int length) {
+		return 1 << sizeClass(length);
+	}
+
+	private int[][] push(int[][] list, int n, int[] a) {
+		if (list == null)
+			list = new int[maxFree][];
+		list[n] = a;
+		return list;
+	}
+
+	private long[][] push(long[][] list, int n, long[] a) {
+		if (list == null)
+			list = new long[maxFree][];
+		list[n] = a;
+		return list;
+	}
+}
@@ -62,6 +62,10 @@ class DeltaIndexScanner {
 	private int entryCnt;
 
 	DeltaIndexScanner(byte[] raw, int len) {
+		this(raw, len, null);
+	}
+
+	DeltaIndexScanner(byte[] raw, int len, DeltaIndexPool pool) {
 		// Clip the length so it falls on a block boundary. We won't
 		// bother to scan the final partial block.
 		//
@@ -76,14 +80,19 @@ class DeltaIndexScanner {
 			next = new int[] {};
 
 		} else {
-			table = new int[tableSize(worstCaseBlockCnt)];
-			tableMask = table.length - 1;
-
 			// As we insert blocks we preincrement so that 0 is never a
 			// valid entry. Therefore we have to allocate one extra space.
 			//
-			entries = new long[1 + worstCaseBlockCnt];
-			next = new int[entries.length];
+			if (pool != null) {
+				table = pool.allocTable(tableSize(worstCaseBlockCnt));
+				entries = pool.scanEntries(1 + worstCaseBlockCnt);
+				next = pool.scanNext(1 + worstCaseBlockCnt);
+			} else {
+				table = new int[tableSize(worstCaseBlockCnt)];
+				entries = new long[1 + worstCaseBlockCnt];
+				next = new int[entries.length];
+			}
+			tableMask = table.length - 1;
 
 			scan(raw, len);
 		}
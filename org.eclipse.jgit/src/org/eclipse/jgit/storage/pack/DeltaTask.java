@@ -43,48 +43,138 @@
 
 package org.eclipse.jgit.storage.pack;
 
+import java.util.List;
 import java.util.concurrent.Callable;
 
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.ThreadSafeProgressMonitor;
 
 final class DeltaTask implements Callable<Object> {
-	private final PackConfig config;
+	/** State shared by all tasks of one delta search. */
+	static final class Block {
+		final List<DeltaTask> tasks;
 
-	private final ObjectReader templateReader;
+		final PackConfig config;
 
-	private final DeltaCache dc;
+		final ObjectReader templateReader;
 
-	private final ThreadSafeProgressMonitor pm;
+		final DeltaCache dc;
 
-	private final int batchSize;
+		final DeltaBudget budget;
 
-	private final int start;
+		final ThreadSafeProgressMonitor pm;
 
-	private final ObjectToPack[] list;
+		final ObjectToPack[] list;
 
-	DeltaTask(PackConfig config, ObjectReader reader, DeltaCache dc,
-			ThreadSafeProgressMonitor pm, int batchSize, int start,
-			ObjectToPack[] list) {
-		this.config = config;
-		this.templateReader = reader;
-		this.dc = dc;
-		this.pm = pm;
-		this.batchSize = batchSize;
-		this.start = start;
-		this.list = list;
+		/** Smallest range worth splitting off another thread's work. */
+		final int minSliceSize;
+
+		Block(List<DeltaTask> tasks, PackConfig config, ObjectReader reader,
+				DeltaCache dc, DeltaBudget budget,
+				ThreadSafeProgressMonitor pm, ObjectToPack[] list) {
+			this.tasks = tasks;
+			this.config = config;
+			this.templateReader = reader;
+			this.dc = dc;
+			this.budget = budget;
+			this.pm = pm;
+			this.list = list;
+			this.minSliceSize = 2 * config.getDeltaSearchWindowSize();
+		}
+
+		/**
+		 * Take part of the remaining work of the busiest other task.
+		 *
+		 * @param forThread
+		 *            the task looking for more work.
+		 * @return the range taken, or null if no task has enough remaining
+		 *         work to be worth splitting.
+		 */
+		synchronized Slice stealWork(DeltaTask forThread) {
+			DeltaTask victim = null;
+			int victimWork = 0;
+			for (DeltaTask t : tasks) {
+				if (t == forThread)
+					continue;
+				int w = t.remaining();
+				if (victimWork < w) {
+					victim = t;
+					victimWork = w;
+				}
+			}
+			if (victim == null)
+				return null;
+			return victim.stealWork();
+		}
+	}
+
+	/** A range of the object list searched by one window. */
+	static final class Slice {
+		final int beginIndex;
+
+		final int endIndex;
+
+		Slice(int beginIndex, int endIndex) {
+			this.beginIndex = beginIndex;
+			this.endIndex = endIndex;
+		}
+	}
+
+	private final Block block;
+
+	private final Slice firstSlice;
+
+	private final PackWriter.Statistics.DeltaSearchThread stats;
+
+	/** Window searching the current slice; guarded by this. */
+	private DeltaWindow dw;
+
+	DeltaTask(Block b, int beginIndex, int endIndex) {
+		this.block = b;
+		this.firstSlice = new Slice(beginIndex, endIndex);
+		this.stats = new PackWriter.Statistics.DeltaSearchThread();
+	}
+
+	PackWriter.Statistics.DeltaSearchThread getStatistics() {
+		return stats;
 	}
 
 	public Object call() throws Exception {
-		final ObjectReader or = templateReader.newReader();
+		final long start = System.currentTimeMillis();
+		final ObjectReader or = block.templateReader.newReader();
 		try {
-			DeltaWindow dw;
-			dw = new DeltaWindow(config, dc, or);
-			dw.search(pm, list, start, batchSize);
+			Slice s = firstSlice;
+			while (s != null) {
+				DeltaWindow w = new DeltaWindow(block.config, block.dc, or,
+						block.budget);
+				setWindow(w);
+				stats.slices++;
+				w.search(block.pm, block.list, s.beginIndex, s.endIndex
+						- s.beginIndex);
+				stats.objects += w.getSearched();
+				setWindow(null);
+				s = block.stealWork(this);
+			}
 		} finally {
+			setWindow(null);
 			or.release();
-			pm.endWorker();
+			stats.timeBusy = System.currentTimeMillis() - start;
+			block.pm.endWorker();
 		}
 		return null;
 	}
+
+	private synchronized void setWindow(DeltaWindow w) {
+		dw = w;
+	}
+
+	synchronized int remaining() {
+		return dw != null ? dw.remaining() : 0;
+	}
+
+	synchronized Slice stealWork() {
+		if (dw == null)
+			return null;
+		return dw.stealWork(block.list, block.minSliceSize);
+	}
 }
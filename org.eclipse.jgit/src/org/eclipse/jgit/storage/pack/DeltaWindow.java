@@ -71,12 +71,36 @@ class DeltaWindow {
 	/** Maximum number of bytes to admit to the window at once. */
 	private final long maxMemory;
 
+	/** Memory limit shared with the other windows of this search. */
+	private final DeltaBudget budget;
+
+	/** True if {@link #loaded} must be tracked to enforce a limit. */
+	private final boolean trackMemory;
+
+	/** Recycles the arrays of indexes dropped from the window. */
+	private final DeltaIndexPool indexPool;
+
 	/** Maximum depth we should create for any delta chain. */
 	private final int maxDepth;
 
 	/** Amount of memory we have loaded right now. */
 	private long loaded;
 
+	/** Part of {@link #loaded} claimed by a check but not yet loaded. */
+	private long reserved;
+
+	/** Part of {@link #loaded} held by {@link #indexPool}. */
+	private long pooled;
+
+	/** Index of the next object to search; guarded by this. */
+	private int cur;
+
+	/** End of the range to search; guarded by this, other tasks steal it. */
+	private int end;
+
+	/** Number of objects taken from the list so far. */
+	private int searched;
+
 	// The object we are currently considering needs a lot of state:
 
 	/** Position of {@link #res} within {@link #window} array. */
@@ -101,10 +125,12 @@ class DeltaWindow {
 	/** Used to compress cached deltas. */
 	private Deflater deflater;
 
-	DeltaWindow(PackConfig pc, DeltaCache dc, ObjectReader or) {
+	DeltaWindow(PackConfig pc, DeltaCache dc, ObjectReader or,
+			DeltaBudget db) {
 		config = pc;
 		deltaCache = dc;
 		reader = or;
+		budget = db;
 
 		// C Git increases the window size supplied by the user by 1.
 		// We don't know why it does this, but if the user asks for
@@ -123,23 +149,37 @@ class DeltaWindow {
 
 		maxMemory = config.getDeltaSearchMemoryLimit();
 		maxDepth = config.getMaxDeltaDepth();
+		trackMemory = 0 < maxMemory || budget.isLimited();
+		indexPool = new DeltaIndexPool(window.length);
 	}
 
 	void search(ProgressMonitor monitor, ObjectToPack[] toSearch, int off,
 			int cnt) throws IOException {
+		synchronized (this) {
+			cur = off;
+			end = off + cnt;
+		}
 		try {
-			for (int end = off + cnt; off < end; off++) {
+			for (;;) {
+				ObjectToPack next;
+				synchronized (this) {
+					if (end <= cur)
+						break;
+					next = toSearch[cur++];
+				}
+				searched++;
+
 				res = window[resSlot];
-				if (0 < maxMemory) {
-					clear(res);
+				clear(res);
+				if (trackMemory) {
 					int tail = next(resSlot);
-					final long need = estimateSize(toSearch[off]);
-					while (maxMemory < loaded + need && tail != resSlot) {
+					final long need = estimateSize(next);
+					while (overLimit(need) && tail != resSlot) {
 						clear(window[tail]);
 						tail = next(tail);
 					}
 				}
-				res.set(toSearch[off]);
+				res.set(next);
 
 				if (res.object.isEdge() || res.object.doNotAttemptDelta()) {
 					// We don't actually want to make a delta for
@@ -153,13 +193,63 @@ void search(ProgressMonitor monitor, ObjectToPack[] toSearch, int off,
 					monitor.update(1);
 					search();
 				}
+				releaseReservation();
 			}
 		} finally {
+			// Return the memory to the shared budget, the other
+			// windows of this search may still be running.
+			for (DeltaWindowEntry ent : window)
+				clear(ent);
+			releaseReservation();
+			indexPool.clear();
+			chargePool();
 			if (deflater != null)
 				deflater.end();
 		}
 	}
 
+	/** @return number of objects not yet taken from the range. */
+	synchronized int remaining() {
+		return end - cur;
+	}
+
+	/** @return number of objects taken from the range so far. */
+	int getSearched() {
+		return searched;
+	}
+
+	/**
+	 * Give the second half of the remaining range to another thread.
+	 * <p>
+	 * The split point is moved forward to the end of a path, so objects of
+	 * the same path stay in one window and can still delta against each
+	 * other.
+	 *
+	 * @param list
+	 *            the list being searched.
+	 * @param minSize
+	 *            minimum number of objects to leave in, and to take from,
+	 *            this window.
+	 * @return the range removed from this window, or null if the remaining
+	 *         range is too small to split.
+	 */
+	synchronized DeltaTask.Slice stealWork(ObjectToPack[] list, int minSize) {
+		int rem = end - cur;
+		if (rem < 2 * minSize)
+			return null;
+
+		int split = cur + rem / 2;
+		while (split < end
+				&& list[split - 1].getPathHash() == list[split].getPathHash())
+			split++;
+		if (end - split < minSize)
+			return null;
+
+		DeltaTask.Slice s = new DeltaTask.Slice(split, end);
+		end = split;
+		return s;
+	}
+
 	private static long estimateSize(ObjectToPack ent) {
 		return DeltaIndex.estimateIndexSize(ent.getWeight());
 	}
@@ -173,13 +263,74 @@ private static long estimateIndexSize(DeltaWindowEntry ent) {
 	}
 
 	private void clear(DeltaWindowEntry ent) {
-		if (ent.index != null)
-			loaded -= ent.index.getIndexSize();
-		else if (ent.buffer != null)
-			loaded -= ent.buffer.length;
+		if (ent.index != null) {
+			credit(ent.index.getIndexSize());
+			ent.index.release(indexPool);
+			chargePool();
+		} else if (ent.buffer != null)
+			credit(ent.buffer.length);
 		ent.set(null);
 	}
 
+	/**
+	 * Account for memory just loaded, first from the reservation made by
+	 * {@link #checkLoadable(DeltaWindowEntry, long)}.
+	 */
+	private void charge(long size) {
+		if (trackMemory) {
+			long r = Math.min(size, reserved);
+			reserved -= r;
+			account(size - r);
+		}
+	}
+
+	private void credit(long size) {
+		if (trackMemory)
+			account(-size);
+	}
+
+	/** Charge the memory retained by the pool, or return what it released. */
+	private void chargePool() {
+		if (trackMemory) {
+			long p = indexPool.getRetainedBytes();
+			account(p - pooled);
+			pooled = p;
+		}
+	}
+
+	private void account(long size) {
+		loaded += size;
+		if (budget.isLimited())
+			budget.charge(size);
+	}
+
+	private boolean overLimit(long need) {
+		if (0 < maxMemory && maxMemory < loaded + need)
+			return true;
+		return !budget.fits(need);
+	}
+
+	/**
+	 * Claim memory for a load, checking and charging the shared budget in
+	 * one step so other windows cannot claim the same memory.
+	 */
+	private boolean reserve(long need) {
+		if (0 < maxMemory && maxMemory < loaded + need)
+			return false;
+		if (budget.isLimited() && !budget.tryCharge(need))
+			return false;
+		loaded += need;
+		reserved += need;
+		return true;
+	}
+
+	private void releaseReservation() {
+		if (0 < reserved) {
+			account(-reserved);
+			reserved = 0;
+		}
+	}
+
 	private void search() throws IOException {
 		// TODO(spearce) If the object is used as a base for other
 		// objects in this pack we should limit the depth we create
@@ -431,15 +582,16 @@ private DeltaIndex index(DeltaWindowEntry ent)
 			checkLoadable(ent, estimateIndexSize(ent));
 
 			try {
-				idx = new DeltaIndex(buffer(ent));
+				idx = new DeltaIndex(buffer(ent), indexPool);
 			} catch (OutOfMemoryError noMemory) {
 				LargeObjectException.OutOfMemory e;
 				e = new LargeObjectException.OutOfMemory(noMemory);
 				e.setObjectId(ent.object);
 				throw e;
 			}
-			if (0 < maxMemory)
-				loaded += idx.getIndexSize() - idx.getSourceSize();
+			chargePool();
+			charge(idx.getIndexSize() - idx.getSourceSize());
+			releaseReservation();
 			ent.index = idx;
 		}
 		return idx;
@@ -452,24 +604,35 @@ private byte[] buffer(DeltaWindowEntry ent) throws MissingObjectException,
 			checkLoadable(ent, ent.size());
 
 			buf = PackWriter.buffer(config, reader, ent.object);
-			if (0 < maxMemory)
-				loaded += buf.length;
+			charge(buf.length);
 			ent.buffer = buf;
 		}
 		return buf;
 	}
 
 	private void checkLoadable(DeltaWindowEntry ent, long need) {
-		if (maxMemory <= 0)
+		if (!trackMemory || need <= reserved)
 			return;
 
+		releaseReservation();
 		int tail = next(resSlot);
-		while (maxMemory < loaded + need) {
+		while (!reserve(need)) {
+			// Recycled arrays are the cheapest memory to give up.
+			if (0 < pooled) {
+				indexPool.clear();
+				chargePool();
+				continue;
+			}
+
 			DeltaWindowEntry cur = window[tail];
 			clear(cur);
-			if (cur == ent)
+			if (cur == ent) {
+				if (0 < maxMemory && maxMemory < loaded + need)
+					throw new LargeObjectException.ExceedsLimit(
+							maxMemory, loaded + need);
 				throw new LargeObjectException.ExceedsLimit(
-						maxMemory, loaded + need);
+						budget.getLimit(), need);
+			}
 			tail = next(tail);
 		}
 	}
@@ -158,6 +158,10 @@ void setCachedDelta(DeltaCache.Ref data){
 		cachedDelta = data;
 	}
 
+	boolean hasCachedDelta() {
+		return cachedDelta != null;
+	}
+
 	DeltaCache.Ref popCachedDelta() {
 		DeltaCache.Ref r = cachedDelta;
 		if (r != null)
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.storage.pack;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.storage.file.PackBitmapIndex;
+import org.eclipse.jgit.util.EWAHCompressedBitmap;
+
+/**
+ * Helper for constructing {@link PackBitmapIndex}es.
+ * <p>
+ * The builder is created from the objects of a pack that was just written,
+ * and collects the bitmaps computed for selected commits. While the bitmaps
+ * are being computed the builder also acts as the index of the new pack, so
+ * later bitmaps can be derived from earlier ones.
+ */
+public class PackBitmapIndexBuilder extends PackBitmapIndex {
+	/** Number of preceding bitmaps tried as base for XOR compression. */
+	private static final int MAX_XOR_OFFSET_SEARCH = 10;
+
+	private final ObjectIdOwnerMap<PositionEntry> positionEntries;
+
+	private final ObjectToPack[] byOffset;
+
+	private final EWAHCompressedBitmap commits;
+
+	private final EWAHCompressedBitmap trees;
+
+	private final EWAHCompressedBitmap blobs;
+
+	private final EWAHCompressedBitmap tags;
+
+	private final ObjectIdOwnerMap<BitmapEntry> bitmaps;
+
+	private final List<BitmapEntry> bitmapsInOrder;
+
+	private List<StoredEntry> compressed;
+
+	/**
+	 * Creates a PackBitmapIndex used for building the contents of an index
+	 * file.
+	 *
+	 * @param byName
+	 *            objects the bitmap index will map to, sorted by name as they
+	 *            appear in the pack's <code>.idx</code> file. Every object
+	 *            must already have been written, so its offset is known.
+	 */
+	public PackBitmapIndexBuilder(List<ObjectToPack> byName) {
+		final int cnt = byName.size();
+		positionEntries = new ObjectIdOwnerMap<PositionEntry>();
+		bitmaps = new ObjectIdOwnerMap<BitmapEntry>();
+		bitmapsInOrder = new ArrayList<BitmapEntry>();
+
+		byOffset = byName.toArray(new ObjectToPack[cnt]);
+		Arrays.sort(byOffset, new Comparator<ObjectToPack>() {
+			public int compare(ObjectToPack a, ObjectToPack b) {
+				return a.getOffset() < b.getOffset() ? -1
+						: a.getOffset() == b.getOffset() ? 0 : 1;
+			}
+		});
+
+		final int words = (cnt + 63) >>> 6;
+		final long[] c = new long[words];
+		final long[] t = new long[words];
+		final long[] b = new long[words];
+		final long[] g = new long[words];
+		for (int pos = 0; pos < cnt; pos++) {
+			final ObjectToPack otp = byOffset[pos];
+			positionEntries.add(new PositionEntry(otp, pos));
+
+			final long bit = 1L << (pos & 63);
+			switch (otp.getType()) {
+			case Constants.OBJ_COMMIT:
+				c[pos >>> 6] |= bit;
+				break;
+			case Constants.OBJ_TREE:
+				t[pos >>> 6] |= bit;
+				break;
+			case Constants.OBJ_BLOB:
+				b[pos >>> 6] |= bit;
+				break;
+			case Constants.OBJ_TAG:
+				g[pos >>> 6] |= bit;
+				break;
+			default:
+				throw new IllegalArgumentException(MessageFormat.format(
+						JGitText.get().badObjectType,
+						Integer.valueOf(otp.getType())));
+			}
+		}
+		for (int idx = 0; idx < cnt; idx++)
+			positionEntries.get(byName.get(idx)).idxPosition = idx;
+
+		commits = EWAHCompressedBitmap.compress(c, cnt);
+		trees = EWAHCompressedBitmap.compress(t, cnt);
+		blobs = EWAHCompressedBitmap.compress(b, cnt);
+		tags = EWAHCompressedBitmap.compress(g, cnt);
+	}
+
+	/**
+	 * Stores the bitmap for the objectId.
+	 *
+	 * @param objectId
+	 *            the object id key for the bitmap.
+	 * @param bitmap
+	 *            the bitmap, with one bit per object of this pack.
+	 * @param flags
+	 *            the flags to be stored with the bitmap, such as
+	 *            {@link PackBitmapIndex#FLAG_REUSE}.
+	 */
+	public void addBitmap(AnyObjectId objectId, EWAHCompressedBitmap bitmap,
+			int flags) {
+		final int idxPosition = positionEntries.get(objectId).idxPosition;
+		final BitmapEntry e = new BitmapEntry(objectId, bitmap, idxPosition,
+				flags);
+		bitmaps.add(e);
+		bitmapsInOrder.add(e);
+		compressed = null;
+	}
+
+	@Override
+	public int findPosition(AnyObjectId objectId) {
+		final PositionEntry entry = positionEntries.get(objectId);
+		return entry != null ? entry.offsetPosition : -1;
+	}
+
+	@Override
+	public ObjectId getObject(int position) throws IllegalArgumentException {
+		if (position < 0 || byOffset.length <= position)
+			throw new IllegalArgumentException(MessageFormat.format(
+					JGitText.get().invalidBitmapPosition,
+					Integer.valueOf(position)));
+		return byOffset[position];
+	}
+
+	@Override
+	public EWAHCompressedBitmap ofObjectType(int type) {
+		switch (type) {
+		case Constants.OBJ_COMMIT:
+			return commits;
+		case Constants.OBJ_TREE:
+			return trees;
+		case Constants.OBJ_BLOB:
+			return blobs;
+		case Constants.OBJ_TAG:
+			return tags;
+		default:
+			return EWAHCompressedBitmap.EMPTY;
+		}
+	}
+
+	@Override
+	public EWAHCompressedBitmap getBitmap(AnyObjectId objectId) {
+		final BitmapEntry e = bitmaps.get(objectId);
+		return e != null ? e.bitmap : null;
+	}
+
+	@Override
+	public int getObjectCount() {
+		return byOffset.length;
+	}
+
+	@Override
+	public int getBitmapCount() {
+		return bitmapsInOrder.size();
+	}
+
+	/** @return the commit object bitmap. */
+	public EWAHCompressedBitmap getCommits() {
+		return commits;
+	}
+
+	/** @return the tree object bitmap. */
+	public EWAHCompressedBitmap getTrees() {
+		return trees;
+	}
+
+	/** @return the blob object bitmap. */
+	public EWAHCompressedBitmap getBlobs() {
+		return blobs;
+	}
+
+	/** @return the tag object bitmap. */
+	public EWAHCompressedBitmap getTags() {
+		return tags;
+	}
+
+	/**
+	 * Get the bitmaps in the order they should be written.
+	 * <p>
+	 * Each bitmap is XOR compressed against whichever of the preceding few
+	 * bitmaps yields the smallest result, if that is smaller than storing the
+	 * bitmap as-is. Bitmaps of commits close in history are usually very
+	 * similar, so this shrinks the index considerably.
+	 *
+	 * @return an unmodifiable list of the entries to write, in order.
+	 */
+	public List<StoredEntry> getCompressedBitmaps() {
+		if (compressed != null)
+			return compressed;
+
+		final int cnt = bitmapsInOrder.size();
+		final List<StoredEntry> r = new ArrayList<StoredEntry>(cnt);
+		final long[][] recent = new long[MAX_XOR_OFFSET_SEARCH][];
+		for (int i = 0; i < cnt; i++) {
+			final BitmapEntry e = bitmapsInOrder.get(i);
+			final long[] plain = e.bitmap.decompress();
+
+			EWAHCompressedBitmap best = e.bitmap;
+			int bestOffset = 0;
+			final int search = Math.min(i, MAX_XOR_OFFSET_SEARCH);
+			for (int offset = 1; offset <= search; offset++) {
+				final long[] base = recent[(i - offset) % MAX_XOR_OFFSET_SEARCH];
+				final long[] xor = plain.clone();
+				for (int w = 0; w < xor.length && w < base.length; w++)
+					xor[w] ^= base[w];
+				final EWAHCompressedBitmap x = EWAHCompressedBitmap.compress(
+						xor, e.bitmap.sizeInBits());
+				if (x.sizeInBytes() < best.sizeInBytes()) {
+					best = x;
+					bestOffset = offset;
+				}
+			}
+			recent[i % MAX_XOR_OFFSET_SEARCH] = plain;
+			r.add(new StoredEntry(e.idxPosition, best, bestOffset, e.flags));
+		}
+		compressed = Collections.unmodifiableList(r);
+		return compressed;
+	}
+
+	/** Data object for the on disk representation of a bitmap entry. */
+	public static final class StoredEntry {
+		private final int idxPosition;
+
+		private final EWAHCompressedBitmap bitmap;
+
+		private final int xorOffset;
+
+		private final int flags;
+
+		StoredEntry(int idxPosition, EWAHCompressedBitmap bitmap,
+				int xorOffset, int flags) {
+			this.idxPosition = idxPosition;
+			this.bitmap = bitmap;
+			this.xorOffset = xorOffset;
+			this.flags = flags;
+		}
+
+		/** @return the bitmap, possibly XOR compressed against its base. */
+		public EWAHCompressedBitmap getBitmap() {
+			return bitmap;
+		}
+
+		/**
+		 * @return number of entries back the XOR base is stored at, or 0 if
+		 *         the bitmap is not XOR compressed.
+		 */
+		public int getXorOffset() {
+			return xorOffset;
+		}
+
+		/** @return the flags. */
+		public int getFlags() {
+			return flags;
+		}
+
+		/** @return the position of the commit in the pack's index file. */
+		public int getIdxPosition() {
+			return idxPosition;
+		}
+	}
+
+	private static final class PositionEntry extends ObjectIdOwnerMap.Entry {
+		final int offsetPosition;
+
+		int idxPosition;
+
+		PositionEntry(AnyObjectId objectId, int offsetPosition) {
+			super(objectId);
+			this.offsetPosition = offsetPosition;
+		}
+	}
+
+	private static final class BitmapEntry extends ObjectIdOwnerMap.Entry {
+		final EWAHCompressedBitmap bitmap;
+
+		final int idxPosition;
+
+		final int flags;
+
+		BitmapEntry(AnyObjectId objectId, EWAHCompressedBitmap bitmap,
+				int idxPosition, int flags) {
+			super(objectId);
+			this.bitmap = bitmap;
+			this.idxPosition = idxPosition;
+			this.flags = flags;
+		}
+	}
+}
@@ -130,6 +130,20 @@ public class PackConfig {
 	 */
 	public static final int DEFAULT_INDEX_VERSION = 2;
 
+	/**
+	 * Default value of the build bitmaps option: {@value}
+	 *
+	 * @see #setBuildBitmaps(boolean)
+	 */
+	public static final boolean DEFAULT_BUILD_BITMAPS = true;
+
+	/**
+	 * Default number of commits between two stored bitmaps: {@value}
+	 *
+	 * @see #setBitmapCommitSpan(int)
+	 */
+	public static final int DEFAULT_BITMAP_COMMIT_SPAN = 100;
+
 
 	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
@@ -147,6 +161,8 @@ public class PackConfig {
 
 	private long deltaSearchMemoryLimit;
 
+	private long deltaSearchTotalMemoryLimit;
+
 	private long deltaCacheSize = DEFAULT_DELTA_CACHE_SIZE;
 
 	private int deltaCacheLimit = DEFAULT_DELTA_CACHE_LIMIT;
@@ -159,6 +175,10 @@ public class PackConfig {
 
 	private int indexVersion = DEFAULT_INDEX_VERSION;
 
+	private boolean buildBitmaps = DEFAULT_BUILD_BITMAPS;
+
+	private int bitmapCommitSpan = DEFAULT_BITMAP_COMMIT_SPAN;
+
 
 	/** Create a default configuration. */
 	public PackConfig() {
@@ -204,12 +224,15 @@ public PackConfig(PackConfig cfg) {
 		this.maxDeltaDepth = cfg.maxDeltaDepth;
 		this.deltaSearchWindowSize = cfg.deltaSearchWindowSize;
 		this.deltaSearchMemoryLimit = cfg.deltaSearchMemoryLimit;
+		this.deltaSearchTotalMemoryLimit = cfg.deltaSearchTotalMemoryLimit;
 		this.deltaCacheSize = cfg.deltaCacheSize;
 		this.deltaCacheLimit = cfg.deltaCacheLimit;
 		this.bigFileThreshold = cfg.bigFileThreshold;
 		this.threads = cfg.threads;
 		this.executor = cfg.executor;
 		this.indexVersion = cfg.indexVersion;
+		this.buildBitmaps = cfg.buildBitmaps;
+		this.bitmapCommitSpan = cfg.bitmapCommitSpan;
 	}
 
 	/**
@@ -421,6 +444,34 @@ public void setDeltaSearchMemoryLimit(long memoryLimit) {
 		deltaSearchMemoryLimit = memoryLimit;
 	}
 
+	/**
+	 * Get maximum number of bytes all delta search threads load together.
+	 *
+	 * Default setting is 0, for an unlimited amount of memory usage. Unlike
+	 * {@link #getDeltaSearchMemoryLimit()} this limit is for the entire
+	 * writer, even if multiple threads are used.
+	 *
+	 * @return the memory limit.
+	 */
+	public long getDeltaSearchTotalMemoryLimit() {
+		return deltaSearchTotalMemoryLimit;
+	}
+
+	/**
+	 * Set the maximum number of bytes all delta search threads load together.
+	 *
+	 * Default setting is 0, for an unlimited amount of memory usage. When the
+	 * limit is reached, a thread drops the oldest objects from its own search
+	 * window, and skips objects that still do not fit.
+	 *
+	 * @param memoryLimit
+	 *            Maximum number of bytes to load at once across all threads,
+	 *            0 for unlimited.
+	 */
+	public void setDeltaSearchTotalMemoryLimit(long memoryLimit) {
+		deltaSearchTotalMemoryLimit = memoryLimit;
+	}
+
 	/**
 	 * Get the size of the in-memory delta cache.
 	 *
@@ -552,6 +603,10 @@ public int getThreads() {
 	 * the writer will start up concurrent threads and allow them to compress
 	 * different sections of the repository concurrently.
 	 *
+	 * While writing the pack, the same number of threads inflate, delta and
+	 * deflate objects that cannot be copied as-is, ahead of the thread
+	 * streaming the pack.
+	 *
 	 * An application thread pool can be set by {@link #setExecutor(Executor)}.
 	 * If not set a temporary pool will be created by the writer, and torn down
 	 * automatically when compression is over.
@@ -614,6 +669,59 @@ public void setIndexVersion(final int version) {
 		indexVersion = version;
 	}
 
+	/**
+	 * True if writer is allowed to build bitmaps for indexes.
+	 *
+	 * Default setting: {@value #DEFAULT_BUILD_BITMAPS}
+	 *
+	 * @return true if the writer can choose to output an index with
+	 *         bitmaps.
+	 */
+	public boolean isBuildBitmaps() {
+		return buildBitmaps;
+	}
+
+	/**
+	 * Set writer to allow building bitmaps for supported pack files.
+	 *
+	 * Index files can include bitmaps to speed up future ObjectWalks.
+	 *
+	 * Default setting: {@value #DEFAULT_BUILD_BITMAPS}
+	 *
+	 * @param buildBitmaps
+	 *            boolean indicating whether bitmaps may be included in the
+	 *            index.
+	 */
+	public void setBuildBitmaps(boolean buildBitmaps) {
+		this.buildBitmaps = buildBitmaps;
+	}
+
+	/**
+	 * Get the number of commits between two stored bitmaps.
+	 *
+	 * Default setting: {@value #DEFAULT_BITMAP_COMMIT_SPAN}
+	 *
+	 * @return the span between commits with a bitmap.
+	 */
+	public int getBitmapCommitSpan() {
+		return bitmapCommitSpan;
+	}
+
+	/**
+	 * Set the number of commits between two stored bitmaps.
+	 * <p>
+	 * Smaller spans make walks from arbitrary commits cheaper, at the expense
+	 * of a larger bitmap index and more time spent creating it.
+	 *
+	 * Default setting: {@value #DEFAULT_BITMAP_COMMIT_SPAN}
+	 *
+	 * @param span
+	 *            the span between commits with a bitmap.
+	 */
+	public void setBitmapCommitSpan(int span) {
+		bitmapCommitSpan = span;
+	}
+
 	/**
 	 * Update properties by setting fields from the configuration.
 	 *
@@ -629,6 +737,8 @@ public void fromConfig(final Config rc) {
 				"pack", "window", getDeltaSearchWindowSize())); //$NON-NLS-1$ //$NON-NLS-2$
 		setDeltaSearchMemoryLimit(rc.getLong(
 				"pack", "windowmemory", getDeltaSearchMemoryLimit())); //$NON-NLS-1$ //$NON-NLS-2$
+		setDeltaSearchTotalMemoryLimit(rc.getLong(
+				"pack", "totalwindowmemory", getDeltaSearchTotalMemoryLimit())); //$NON-NLS-1$ //$NON-NLS-2$
 		setDeltaCacheSize(rc.getLong(
 				"pack", "deltacachesize", getDeltaCacheSize())); //$NON-NLS-1$ //$NON-NLS-2$
 		setDeltaCacheLimit(rc.getInt(
@@ -646,5 +756,8 @@ public void fromConfig(final Config rc) {
 		setReuseObjects(rc.getBoolean("pack", "reuseobjects", isReuseObjects())); //$NON-NLS-1$ //$NON-NLS-2$
 		setDeltaCompress(rc.getBoolean(
 				"pack", "deltacompression", isDeltaCompress())); //$NON-NLS-1$ //$NON-NLS-2$
+		setBuildBitmaps(rc.getBoolean("pack", "buildbitmaps", isBuildBitmaps())); //$NON-NLS-1$ //$NON-NLS-2$
+		setBitmapCommitSpan(rc.getInt(
+				"pack", "bitmapcommitspan", getBitmapCommitSpan())); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 }
@@ -53,6 +53,12 @@ public class PackExt {
 	/** A pack index file extension. */
 	public static final PackExt INDEX = newPackExt("idx"); //$NON-NLS-1$
 
+	/** A pack bitmap index file extension. */
+	public static final PackExt BITMAP_INDEX = newPackExt("bitmap"); //$NON-NLS-1$
+
+	/** A pack reverse index file extension. */
+	public static final PackExt REVERSE_INDEX = newPackExt("rev"); //$NON-NLS-1$
+
 	/** @return all of the PackExt values. */
 	public static PackExt[] values() {
 		return VALUES;
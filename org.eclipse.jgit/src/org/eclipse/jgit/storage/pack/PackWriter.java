@@ -103,7 +103,11 @@
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.storage.file.PackBitmapIndex;
+import org.eclipse.jgit.storage.file.PackBitmapIndexWriterV1;
 import org.eclipse.jgit.storage.file.PackIndexWriter;
+import org.eclipse.jgit.storage.file.PackReverseIndexWriter;
+import org.eclipse.jgit.storage.pack.BitmapIndex.Bitmap;
 import org.eclipse.jgit.util.BlockList;
 import org.eclipse.jgit.util.TemporaryBuffer;
 
@@ -221,6 +225,9 @@ public static Iterable<PackWriter> getInstances() {
 
 	private ObjectIdSet excludeInPackLast;
 
+	/** Objects the receiver of a thin pack is known to have, may be null. */
+	private ObjectIdSet haveObjects;
+
 	private Deflater myDeflater;
 
 	private final ObjectReader reader;
@@ -238,6 +245,8 @@ public static Iterable<PackWriter> getInstances() {
 
 	private Statistics.ObjectType typeStats;
 
+	private DeflateAhead deflateAhead;
+
 	private List<ObjectToPack> sortedByName;
 
 	private byte packcsum[];
@@ -260,6 +269,14 @@ public static Iterable<PackWriter> getInstances() {
 
 	private boolean shallowPack;
 
+	private boolean useBitmaps;
+
+	private boolean canBuildBitmaps;
+
+	private Set<ObjectId> bitmapWants;
+
+	private PackBitmapIndexBuilder writeBitmaps;
+
 	private int depth;
 
 	private Collection<? extends ObjectId> unshallowObjects;
@@ -441,6 +458,24 @@ public void setUseCachedPacks(boolean useCached) {
 		useCachedPacks = useCached;
 	}
 
+	/** @return true to use bitmaps for ObjectWalks, if available. */
+	public boolean isUseBitmaps() {
+		return useBitmaps;
+	}
+
+	/**
+	 * @param useBitmaps
+	 *            if set to true, bitmaps will be used when preparing a pack,
+	 *            if the repository has a bitmap index. Objects are found by
+	 *            combining precomputed reachability bitmaps rather than by
+	 *            parsing every commit and tree, at the cost of losing the
+	 *            path hints used to order delta compression candidates. This
+	 *            is best suited for serving fetch and clone requests.
+	 */
+	public void setUseBitmaps(boolean useBitmaps) {
+		this.useBitmaps = useBitmaps;
+	}
+
 	/**
 	 * @return true to ignore objects that are uninteresting and also not found
 	 *         on local disk; false to throw a {@link MissingObjectException}
@@ -821,6 +856,57 @@ public void writeIndex(final OutputStream indexStream) throws IOException {
 		stats.timeWriting += System.currentTimeMillis() - writeStart;
 	}
 
+	/**
+	 * Create a reverse index file to match the pack file just written.
+	 * <p>
+	 * This method can only be invoked after
+	 * {@link #writePack(ProgressMonitor, ProgressMonitor, OutputStream)} has
+	 * been invoked and completed successfully. Writing a corresponding reverse
+	 * index is an optional feature that not all pack users may require.
+	 *
+	 * @param reverseIndexStream
+	 *            output for the reverse index data. Caller is responsible for
+	 *            closing this stream.
+	 * @throws IOException
+	 *             the reverse index data could not be written to the supplied
+	 *             stream.
+	 */
+	public void writeReverseIndex(final OutputStream reverseIndexStream)
+			throws IOException {
+		if (!cachedPacks.isEmpty())
+			throw new IOException(JGitText.get().cachedPacksPreventsIndexCreation);
+
+		long writeStart = System.currentTimeMillis();
+		new PackReverseIndexWriter(reverseIndexStream).write(sortByName(),
+				packcsum);
+		stats.timeWriting += System.currentTimeMillis() - writeStart;
+	}
+
+	/**
+	 * Create a bitmap index file to match the pack file just written.
+	 * <p>
+	 * This method can only be invoked after
+	 * {@link #prepareBitmapIndex(ProgressMonitor)} has been invoked and
+	 * completed successfully. Writing a corresponding bitmap index is an
+	 * optional feature that not all pack users may require.
+	 *
+	 * @param bitmapIndexStream
+	 *            output for the bitmap index data. Caller is responsible for
+	 *            closing this stream.
+	 * @throws IOException
+	 *             the index data could not be written to the supplied stream.
+	 */
+	public void writeBitmapIndex(final OutputStream bitmapIndexStream)
+			throws IOException {
+		if (writeBitmaps == null)
+			throw new IOException(JGitText.get().bitmapsMustBePrepared);
+
+		long writeStart = System.currentTimeMillis();
+		new PackBitmapIndexWriterV1(bitmapIndexStream).write(writeBitmaps,
+				packcsum);
+		stats.timeWriting += System.currentTimeMillis() - writeStart;
+	}
+
 	private List<ObjectToPack> sortByName() {
 		if (sortedByName == null) {
 			int cnt = 0;
@@ -859,6 +945,9 @@ private void beginPhase(PackingPhase phase, ProgressMonitor monitor,
 		case WRITING:
 			task = JGitText.get().writingObjects;
 			break;
+		case BUILDING_BITMAPS:
+			task = JGitText.get().buildingBitmaps;
+			break;
 		default:
 			throw new IllegalArgumentException(
 					MessageFormat.format(JGitText.get().illegalPackingPhase, phase));
@@ -986,6 +1075,81 @@ public State getState() {
 		return state.snapshot();
 	}
 
+	/**
+	 * Prepares the bitmaps to be written to the bitmap index file.
+	 * <p>
+	 * Bitmaps can be used to speed up fetches and clones by storing the
+	 * entire object graph at selected commits. Writing a bitmap index is an
+	 * optional feature that not all pack users may require. This method
+	 * can only be invoked after
+	 * {@link #writePack(ProgressMonitor, ProgressMonitor, OutputStream)} has
+	 * been invoked and completed successfully.
+	 * <p>
+	 * Bitmaps are only built for a pack that contains everything reachable
+	 * from the objects it was prepared with, that is a pack prepared without
+	 * uninteresting objects, exclusions, cached packs or shallow history.
+	 * Bitmaps are computed for the commits the pack was prepared from, and
+	 * for every {@link PackConfig#getBitmapCommitSpan()}th commit in between.
+	 *
+	 * @param pm
+	 *            progress monitor to report bitmap building work.
+	 * @return whether a bitmap index may be written.
+	 * @throws IOException
+	 *             when some I/O problem occur during reading objects.
+	 */
+	public boolean prepareBitmapIndex(ProgressMonitor pm) throws IOException {
+		if (!canBuildBitmaps || !cachedPacks.isEmpty()
+				|| getObjectCount() > Integer.MAX_VALUE)
+			return false;
+
+		if (pm == null)
+			pm = NullProgressMonitor.INSTANCE;
+
+		List<ObjectToPack> selected = selectBitmapCommits();
+		writeBitmaps = new PackBitmapIndexBuilder(sortByName());
+		BitmapIndex bitmapIndex = new BitmapIndex(writeBitmaps);
+		BitmapWalker walker = new BitmapWalker(reader, bitmapIndex,
+				NullProgressMonitor.INSTANCE);
+
+		beginPhase(PackingPhase.BUILDING_BITMAPS, pm, selected.size());
+		for (ObjectToPack cmit : selected) {
+			Bitmap bitmap = walker.findObjects(
+					Collections.singleton(cmit.copy()), null, false);
+			if (bitmapIndex.addedCount() != 0) {
+				// Something reachable is not in this pack, so the bitmaps
+				// would not describe the full closure of their commits.
+				writeBitmaps = null;
+				endPhase(pm);
+				return false;
+			}
+			writeBitmaps.addBitmap(cmit, bitmap.compress(), 0);
+			pm.update(1);
+		}
+		endPhase(pm);
+		return true;
+	}
+
+	/**
+	 * Select the commits to compute bitmaps for, oldest first. Commits were
+	 * added in descending commit time order, so walking the list backwards
+	 * lets every walk stop at the bitmaps already computed for its ancestors.
+	 */
+	private List<ObjectToPack> selectBitmapCommits() {
+		final List<ObjectToPack> commits = objectsLists[Constants.OBJ_COMMIT];
+		final int span = Math.max(1, config.getBitmapCommitSpan());
+		final List<ObjectToPack> selected = new ArrayList<ObjectToPack>();
+		int sinceLast = span;
+		for (int i = commits.size() - 1; 0 <= i; i--) {
+			ObjectToPack otp = commits.get(i);
+			if (span <= sinceLast || bitmapWants.contains(otp) || i == 0) {
+				selected.add(otp);
+				sinceLast = 1;
+			} else
+				sinceLast++;
+		}
+		return selected;
+	}
+
 	/** Release all resources used by this writer. */
 	public void release() {
 		reader.release();
@@ -1198,26 +1362,35 @@ private void searchForDeltas(final ProgressMonitor monitor,
 		if (threads == 0)
 			threads = Runtime.getRuntime().availableProcessors();
 
+		final DeltaBudget budget = new DeltaBudget(
+				config.getDeltaSearchTotalMemoryLimit());
 		if (threads <= 1 || cnt <= 2 * config.getDeltaSearchWindowSize()) {
+			Statistics.DeltaSearchThread ts = new Statistics.DeltaSearchThread();
+			long start = System.currentTimeMillis();
 			DeltaCache dc = new DeltaCache(config);
-			DeltaWindow dw = new DeltaWindow(config, dc, reader);
+			DeltaWindow dw = new DeltaWindow(config, dc, reader, budget);
 			dw.search(monitor, list, 0, cnt);
+			ts.objects = dw.getSearched();
+			ts.slices = 1;
+			ts.timeBusy = System.currentTimeMillis() - start;
+			stats.deltaSearchThreads = Collections.singletonList(ts);
 			return;
 		}
 
 		final DeltaCache dc = new ThreadSafeDeltaCache(config);
 		final ThreadSafeProgressMonitor pm = new ThreadSafeProgressMonitor(monitor);
 
-		// Guess at the size of batch we want. Because we don't really
-		// have a way for a thread to steal work from another thread if
-		// it ends early, we over partition slightly so the work units
-		// are a bit smaller.
+		// Give each thread an equal share of the list to start with.
+		// Threads that finish early steal part of the remaining work of
+		// the busiest thread, so the shares need not be accurate.
 		//
-		int estSize = cnt / (threads * 2);
+		int estSize = cnt / threads;
 		if (estSize < 2 * config.getDeltaSearchWindowSize())
 			estSize = 2 * config.getDeltaSearchWindowSize();
 
-		final List<DeltaTask> myTasks = new ArrayList<DeltaTask>(threads * 2);
+		final List<DeltaTask> myTasks = new ArrayList<DeltaTask>(threads);
+		final DeltaTask.Block block = new DeltaTask.Block(myTasks, config,
+				reader, dc, budget, pm, list);
 		for (int i = 0; i < cnt;) {
 			final int start = i;
 			final int batchSize;
@@ -1242,7 +1415,7 @@ private void searchForDeltas(final ProgressMonitor monitor,
 				batchSize = end - start;
 			}
 			i += batchSize;
-			myTasks.add(new DeltaTask(config, reader, dc, pm, batchSize, start, list));
+			myTasks.add(new DeltaTask(block, start, start + batchSize));
 		}
 		pm.startWorkers(myTasks.size());
 
@@ -1300,6 +1473,12 @@ public void run() {
 			}
 		}
 
+		List<Statistics.DeltaSearchThread> threadStats;
+		threadStats = new ArrayList<Statistics.DeltaSearchThread>(myTasks.size());
+		for (DeltaTask task : myTasks)
+			threadStats.add(task.getStatistics());
+		stats.deltaSearchThreads = Collections.unmodifiableList(threadStats);
+
 		// If any task threw an error, try to report it back as
 		// though we weren't using a threaded search algorithm.
 		//
@@ -1342,31 +1521,87 @@ private void runTasks(ExecutorService pool, ThreadSafeProgressMonitor pm,
 	}
 
 	private void writeObjects(PackOutputStream out) throws IOException {
-		writeObjects(out, objectsLists[Constants.OBJ_COMMIT]);
-		writeObjects(out, objectsLists[Constants.OBJ_TAG]);
-		writeObjects(out, objectsLists[Constants.OBJ_TREE]);
-		writeObjects(out, objectsLists[Constants.OBJ_BLOB]);
+		Executor executor = config.getExecutor();
+		ExecutorService pool = null;
+		if (executor == null) {
+			// Share one temporary pool among all of the object types.
+			int threads = 1;
+			for (List<ObjectToPack> list : objectsLists) {
+				if (list != null)
+					threads = Math.max(threads, writeThreads(list));
+			}
+			if (1 < threads) {
+				pool = Executors.newFixedThreadPool(threads);
+				executor = pool;
+			}
+		}
+		try {
+			writeObjects(out, objectsLists[Constants.OBJ_COMMIT], executor);
+			writeObjects(out, objectsLists[Constants.OBJ_TAG], executor);
+			writeObjects(out, objectsLists[Constants.OBJ_TREE], executor);
+			writeObjects(out, objectsLists[Constants.OBJ_BLOB], executor);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
 	}
 
-	private void writeObjects(PackOutputStream out, List<ObjectToPack> list)
-			throws IOException {
+	private void writeObjects(PackOutputStream out, List<ObjectToPack> list,
+			Executor executor) throws IOException {
 		if (list.isEmpty())
 			return;
 
 		typeStats = stats.objectTypes[list.get(0).getType()];
 		long beginOffset = out.length();
 
-		if (reuseSupport != null) {
-			reuseSupport.writeObjects(out, list);
-		} else {
-			for (ObjectToPack otp : list)
-				out.writeObject(otp);
+		int threads = writeThreads(list);
+		if (executor != null && 1 < threads) {
+			deflateAhead = new DeflateAhead(config, reader, list);
+			deflateAhead.start(executor, threads);
+		}
+		try {
+			if (reuseSupport != null) {
+				reuseSupport.writeObjects(out, list);
+			} else {
+				for (ObjectToPack otp : list)
+					out.writeObject(otp);
+			}
+		} finally {
+			if (deflateAhead != null) {
+				DeflateAhead ahead = deflateAhead;
+				deflateAhead = null;
+				ahead.close();
+			}
 		}
 
 		typeStats.bytes += out.length() - beginOffset;
 		typeStats.cntObjects = list.size();
 	}
 
+	/**
+	 * Number of threads to compress objects of a list ahead of the writer.
+	 *
+	 * @param list
+	 *            objects about to be written.
+	 * @return threads to use; 1 or less if the list should be written by the
+	 *         calling thread alone.
+	 */
+	private int writeThreads(List<ObjectToPack> list) {
+		int threads = config.getThreads();
+		if (threads == 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		if (threads <= 1)
+			return 1;
+
+		// Only objects that cannot be copied as-is need compression work.
+		int cnt = 0;
+		for (ObjectToPack otp : list) {
+			if (!otp.isReuseAsIs() && !otp.hasCachedDelta() && threads <= ++cnt)
+				return threads;
+		}
+		return cnt;
+	}
+
 	void writeObject(PackOutputStream out, ObjectToPack otp) throws IOException {
 		if (!otp.isWritten())
 			writeObjectImpl(out, otp);
@@ -1445,6 +1680,9 @@ private void writeBase(PackOutputStream out, ObjectToPack base)
 
 	private void writeWholeObjectDeflate(PackOutputStream out,
 			final ObjectToPack otp) throws IOException {
+		if (writeDeflated(out, otp))
+			return;
+
 		final Deflater deflater = deflater();
 		final ObjectLoader ldr = reader.open(otp, otp.getType());
 
@@ -1475,6 +1713,12 @@ private void writeDeltaObjectDeflate(PackOutputStream out,
 			}
 		}
 
+		if (writeDeflated(out, otp)) {
+			typeStats.cntDeltas++;
+			typeStats.deltaBytes += out.length() - otp.getOffset();
+			return;
+		}
+
 		TemporaryBuffer.Heap delta = delta(otp);
 		out.writeHeader(otp, delta.length());
 
@@ -1487,6 +1731,28 @@ private void writeDeltaObjectDeflate(PackOutputStream out,
 		typeStats.deltaBytes += out.length() - otp.getOffset();
 	}
 
+	private boolean writeDeflated(PackOutputStream out, ObjectToPack otp)
+			throws IOException {
+		if (deflateAhead == null)
+			return false;
+
+		DeflateAhead.Deflated d = deflateAhead.take(otp);
+		if (d == null)
+			return false;
+
+		// The representation may have changed since the worker read it,
+		// for example if reusing the base failed during writing.
+		ObjectId baseId = otp.getDeltaBaseId();
+		if (baseId == null ? d.baseId != null : !baseId.equals(d.baseId))
+			return false;
+
+		out.resetCRC32();
+		otp.setOffset(out.length());
+		out.writeHeader(otp, d.size);
+		out.write(d.data);
+		return true;
+	}
+
 	private TemporaryBuffer.Heap delta(final ObjectToPack otp)
 			throws IOException {
 		DeltaIndex index = new DeltaIndex(buffer(otp.getDeltaBaseId()));
@@ -1526,6 +1792,18 @@ private void writeChecksum(PackOutputStream out) throws IOException {
 		out.write(packcsum);
 	}
 
+	private PackBitmapIndex getBitmapIndex() {
+		if (!(reader instanceof BitmapIndexSupport))
+			return null;
+		try {
+			return ((BitmapIndexSupport) reader).getBitmapIndex();
+		} catch (IOException e) {
+			// An unreadable bitmap index is treated as missing. Walking the
+			// history finds the same objects, only more slowly.
+			return null;
+		}
+	}
+
 	private void findObjectsToPack(final ProgressMonitor countingMonitor,
 			final ObjectWalk walker, final Set<? extends ObjectId> want,
 			Set<? extends ObjectId> have)
@@ -1540,6 +1818,24 @@ private void findObjectsToPack(final ProgressMonitor countingMonitor,
 		stats.interestingObjects = Collections.unmodifiableSet(new HashSet<ObjectId>(want));
 		stats.uninterestingObjects = Collections.unmodifiableSet(new HashSet<ObjectId>(have));
 
+		canBuildBitmaps = config.isBuildBitmaps()
+				&& !shallowPack
+				&& have.isEmpty()
+				&& (excludeInPacks == null || excludeInPacks.length <= 0);
+		if (canBuildBitmaps)
+			bitmapWants = new HashSet<ObjectId>(want);
+
+		if (!shallowPack && useBitmaps && reuseSupport != null) {
+			PackBitmapIndex bitmapIndex = getBitmapIndex();
+			if (bitmapIndex != null) {
+				findObjectsToPackUsingBitmaps(countingMonitor,
+						new BitmapIndex(bitmapIndex), want, have);
+				endPhase(countingMonitor);
+				stats.timeCounting = System.currentTimeMillis() - countingStart;
+				return;
+			}
+		}
+
 		List<ObjectId> all = new ArrayList<ObjectId>(want.size() + have.size());
 		all.addAll(want);
 		all.addAll(have);
@@ -1761,6 +2057,31 @@ private void findObjectsToPack(final ProgressMonitor countingMonitor,
 		stats.timeCounting = System.currentTimeMillis() - countingStart;
 	}
 
+	private void findObjectsToPackUsingBitmaps(ProgressMonitor countingMonitor,
+			BitmapIndex bitmapIndex, Set<? extends ObjectId> want,
+			Set<? extends ObjectId> have) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		BitmapWalker bitmapWalker = new BitmapWalker(reader, bitmapIndex,
+				NullProgressMonitor.INSTANCE);
+		Bitmap haveBitmap = bitmapWalker.findObjects(have, null,
+				ignoreMissingUninteresting);
+		Bitmap needBitmap = bitmapWalker.findObjects(want, haveBitmap, false);
+		needBitmap.andNot(haveBitmap);
+
+		for (int pos = needBitmap.nextSetBit(0); 0 <= pos; pos = needBitmap
+				.nextSetBit(pos + 1)) {
+			ObjectId id = bitmapIndex.getObject(pos);
+			if (exclude(id))
+				continue;
+			addObject(id, bitmapIndex.getType(pos), 0);
+			countingMonitor.update(1);
+		}
+
+		if (thin)
+			haveObjects = haveBitmap;
+		stats.bitmapIndexMisses = bitmapWalker.getCountOfBitmapIndexMisses();
+	}
+
 	private static void pruneEdgesFromObjectList(List<ObjectToPack> list) {
 		final int size = list.size();
 		int src = 0;
@@ -1892,7 +2213,7 @@ public void select(ObjectToPack otp, StoredObjectRepresentation next) {
 			if (ptr != null && !ptr.isEdge()) {
 				otp.setDeltaBase(ptr);
 				otp.setReuseAsIs();
-			} else if (thin && ptr != null && ptr.isEdge()) {
+			} else if (thin && have(ptr, baseId)) {
 				otp.setDeltaBase(baseId);
 				otp.setReuseAsIs();
 			} else {
@@ -1920,6 +2241,11 @@ public void select(ObjectToPack otp, StoredObjectRepresentation next) {
 		otp.select(next);
 	}
 
+	private boolean have(ObjectToPack ptr, AnyObjectId objectId) {
+		return (ptr != null && ptr.isEdge())
+				|| (haveObjects != null && haveObjects.contains(objectId));
+	}
+
 	private boolean reuseDeltaFor(ObjectToPack otp) {
 		switch (otp.getType()) {
 		case Constants.OBJ_COMMIT:
@@ -2005,6 +2331,41 @@ public long getDeltaBytes() {
 			}
 		}
 
+		/** Statistics about a single thread of the delta search. */
+		public static class DeltaSearchThread {
+			long objects;
+
+			long slices;
+
+			long timeBusy;
+
+			/**
+			 * @return number of objects this thread considered for a delta
+			 *         base, including objects only kept as a base for others.
+			 */
+			public long getObjects() {
+				return objects;
+			}
+
+			/**
+			 * @return number of ranges of the object list this thread
+			 *         searched. Ranges after the first were taken over from
+			 *         busier threads.
+			 */
+			public long getSlices() {
+				return slices;
+			}
+
+			/**
+			 * @return time in milliseconds this thread spent searching. The
+			 *         thread's utilisation is this time divided by
+			 *         {@link Statistics#getTimeCompressing()}.
+			 */
+			public long getTimeBusy() {
+				return timeBusy;
+			}
+		}
+
 		Set<ObjectId> interestingObjects;
 
 		Set<ObjectId> uninterestingObjects;
@@ -2039,6 +2400,10 @@ public long getDeltaBytes() {
 
 		long timeWriting;
 
+		long bitmapIndexMisses;
+
+		List<DeltaSearchThread> deltaSearchThreads = Collections.emptyList();
+
 		ObjectType[] objectTypes;
 
 		{
@@ -2155,6 +2520,15 @@ public ObjectType byObjectType(int typeCode) {
 			return objectTypes[typeCode];
 		}
 
+		/**
+		 * @return number of commits that were walked because they had no
+		 *         stored bitmap, when bitmaps were used to find the objects.
+		 *         0 if bitmaps were not used.
+		 */
+		public long getBitmapIndexMisses() {
+			return bitmapIndexMisses;
+		}
+
 		/** @return true if the resulting pack file was a shallow pack. */
 		public boolean isShallow() {
 			return depth > 0;
@@ -2203,6 +2577,14 @@ public long getTimeCompressing() {
 			return timeCompressing;
 		}
 
+		/**
+		 * @return one entry for each thread that performed delta compression;
+		 *         empty if no delta search was done.
+		 */
+		public List<DeltaSearchThread> getDeltaSearchThreads() {
+			return deltaSearchThreads;
+		}
+
 		/**
 		 * @return time in milliseconds spent writing the pack output, from
 		 *         start of header until end of trailer. The transfer speed can
@@ -2296,7 +2678,10 @@ public static enum PackingPhase {
 		COMPRESSING,
 
 		/** Writing objects phase. */
-		WRITING;
+		WRITING,
+
+		/** Building bitmaps phase. */
+		BUILDING_BITMAPS;
 	}
 
 	/** Summary of the current state of a PackWriter. */
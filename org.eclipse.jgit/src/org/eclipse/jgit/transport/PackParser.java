@@ -52,9 +52,16 @@
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -78,6 +85,7 @@
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.ObjectStream;
 import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.ThreadSafeProgressMonitor;
 import org.eclipse.jgit.storage.file.PackLock;
 import org.eclipse.jgit.storage.pack.BinaryDelta;
 import org.eclipse.jgit.util.BlockList;
@@ -184,6 +192,19 @@ public static enum Source {
 	/** Git object size limit */
 	private long maxObjectSizeLimit;
 
+	/** Number of threads resolving deltas; 0 for one per processor. */
+	private int threads = 1;
+
+	/**
+	 * Stream position of every object, followed by the position of the pack
+	 * footer. Only recorded when deltas are resolved by several threads, so
+	 * the compressed data of an object can be copied without inflating it.
+	 */
+	private long[] objectStarts;
+
+	/** Guards the database and the delta maps while resolving in parallel. */
+	private final Object resolveLock = new Object();
+
 	/**
 	 * Initialize a pack parser.
 	 *
@@ -367,6 +388,34 @@ public void setMaxObjectSizeLimit(long limit) {
 		maxObjectSizeLimit = limit;
 	}
 
+	/** @return number of threads resolving deltas; 0 for one per processor. */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to resolve deltas.
+	 * <p>
+	 * With more than one thread each delta base and its tree of children is
+	 * resolved by one of the threads, so inflating, applying and hashing the
+	 * deltas runs concurrently. The database is still read by one thread at a
+	 * time, and the same lock is held while calling
+	 * {@link #newInfo(AnyObjectId, UnresolvedDelta, ObjectId)} and
+	 * {@link #onInflatedObjectData(PackedObjectInfo, int, byte[])}. These calls
+	 * may come from a thread other than the one invoking {@code parse}.
+	 * <p>
+	 * Bases that must be copied from the repository to complete a thin pack
+	 * are always resolved by the calling thread.
+	 *
+	 * @param threads
+	 *            number of threads; 0 to use one per available processor.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 0)
+			throw new IllegalArgumentException();
+		this.threads = threads;
+	}
+
 	/**
 	 * Get the number of objects in the stream.
 	 * <p>
@@ -463,6 +512,8 @@ public PackLock parse(ProgressMonitor receiving, ProgressMonitor resolving)
 			baseById = new ObjectIdOwnerMap<DeltaChain>();
 			baseByPos = new LongMap<UnresolvedDelta>();
 			deferredCheckBlobs = new BlockList<PackedObjectInfo>();
+			if (1 < resolvingThreads())
+				objectStarts = new long[(int) objectCount + 1];
 
 			receiving.beginTask(JGitText.get().receivingObjects,
 					(int) objectCount);
@@ -473,6 +524,8 @@ public PackLock parse(ProgressMonitor receiving, ProgressMonitor resolving)
 					if (receiving.isCancelled())
 						throw new IOException(JGitText.get().downloadCancelled);
 				}
+				if (objectStarts != null)
+					objectStarts[(int) objectCount] = streamPosition();
 				readPackFooter();
 				endInput();
 			} finally {
@@ -510,6 +563,7 @@ public PackLock parse(ProgressMonitor receiving, ProgressMonitor resolving)
 			packDigest = null;
 			baseById = null;
 			baseByPos = null;
+			objectStarts = null;
 		} finally {
 			try {
 				if (readCurs != null)
@@ -527,8 +581,19 @@ public PackLock parse(ProgressMonitor receiving, ProgressMonitor resolving)
 		return null; // By default there is no locking.
 	}
 
+	private int resolvingThreads() {
+		if (threads == 0)
+			return Runtime.getRuntime().availableProcessors();
+		return threads;
+	}
+
 	private void resolveDeltas(final ProgressMonitor progress)
 			throws IOException {
+		if (objectStarts != null && 1 < entryCount) {
+			resolveDeltasInParallel(progress);
+			return;
+		}
+
 		final int last = entryCount;
 		for (int i = 0; i < last; i++) {
 			resolveDeltas(entries[i], progress);
@@ -620,6 +685,271 @@ private void resolveDeltas(DeltaVisit visit, final int type,
 		} while (visit != null);
 	}
 
+	private void resolveDeltasInParallel(ProgressMonitor progress)
+			throws IOException {
+		final int cnt = Math.min(resolvingThreads(), entryCount);
+		final ThreadSafeProgressMonitor pm = new ThreadSafeProgressMonitor(
+				progress);
+		final AtomicInteger next = new AtomicInteger();
+		final int last = entryCount;
+		final List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+
+		ExecutorService pool = Executors.newFixedThreadPool(cnt);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(cnt);
+			pm.startWorkers(cnt);
+			for (int i = 0; i < cnt; i++)
+				futures.add(pool.submit(new DeltaResolver(pm, next, last)));
+
+			try {
+				pm.waitForCompletion();
+				for (Future<?> f : futures) {
+					try {
+						f.get();
+					} catch (ExecutionException failed) {
+						errors.add(failed.getCause());
+					}
+				}
+			} catch (InterruptedException ie) {
+				for (Future<?> f : futures)
+					f.cancel(true);
+				throw new IOException(
+						JGitText.get().downloadCancelledDuringIndexing);
+			}
+		} finally {
+			pool.shutdown();
+			for (;;) {
+				try {
+					if (pool.awaitTermination(60, TimeUnit.SECONDS))
+						break;
+				} catch (InterruptedException e) {
+					throw new IOException(
+							JGitText.get().downloadCancelledDuringIndexing);
+				}
+			}
+		}
+
+		// If any resolver failed, report it as though the deltas were
+		// resolved by the calling thread.
+		//
+		if (!errors.isEmpty()) {
+			Throwable err = errors.get(0);
+			if (err instanceof Error)
+				throw (Error) err;
+			if (err instanceof RuntimeException)
+				throw (RuntimeException) err;
+			if (err instanceof IOException)
+				throw (IOException) err;
+
+			IOException fail = new IOException(err.getMessage());
+			fail.initCause(err);
+			throw fail;
+		}
+	}
+
+	/**
+	 * Copy the stored compressed data of an object out of the database.
+	 * <p>
+	 * The caller must hold {@link #resolveLock} and have positioned the
+	 * database on the object with {@code openDatabase}.
+	 */
+	private byte[] readCompressed(long position) throws IOException {
+		long start = position + bOffset;
+		int idx = Arrays.binarySearch(objectStarts, position);
+		if (idx < 0 || idx + 1 >= objectStarts.length)
+			throw new CorruptObjectException(MessageFormat.format(
+					JGitText.get().corruptionDetectedReReadingAt,
+					Long.valueOf(position)));
+		long len = objectStarts[idx + 1] - start;
+		if (len < 0 || Integer.MAX_VALUE < len)
+			throw new CorruptObjectException(MessageFormat.format(
+					JGitText.get().corruptionDetectedReReadingAt,
+					Long.valueOf(position)));
+
+		byte[] raw = new byte[(int) len];
+		int n = 0;
+		while (n < raw.length) {
+			int p = fill(Source.DATABASE, 1);
+			int cnt = Math.min(bAvail, raw.length - n);
+			System.arraycopy(buf, p, raw, n, cnt);
+			onObjectData(Source.DATABASE, buf, p, cnt);
+			use(cnt);
+			n += cnt;
+		}
+		return raw;
+	}
+
+	/** Resolves delta trees of the bases claimed from a shared counter. */
+	private class DeltaResolver implements Callable<Object> {
+		private final ThreadSafeProgressMonitor pm;
+
+		private final AtomicInteger next;
+
+		private final int last;
+
+		private final MessageDigest md;
+
+		private final byte[] skipBuffer;
+
+		private Inflater inf;
+
+		private ObjectReader reader;
+
+		DeltaResolver(ThreadSafeProgressMonitor pm, AtomicInteger next,
+				int last) {
+			this.pm = pm;
+			this.next = next;
+			this.last = last;
+			this.md = Constants.newMessageDigest();
+			this.skipBuffer = new byte[1];
+		}
+
+		public Object call() throws Exception {
+			inf = InflaterCache.get();
+			reader = objectDatabase.newReader();
+			try {
+				for (;;) {
+					int i = next.getAndIncrement();
+					if (last <= i)
+						break;
+					resolve(entries[i]);
+					if (pm.isCancelled())
+						throw new IOException(
+								JGitText.get().downloadCancelledDuringIndexing);
+				}
+			} finally {
+				reader.release();
+				InflaterCache.release(inf);
+				pm.endWorker();
+			}
+			return null;
+		}
+
+		private void resolve(PackedObjectInfo oe) throws IOException {
+			final UnresolvedDelta children;
+			synchronized (resolveLock) {
+				children = firstChildOf(oe);
+			}
+			if (children == null)
+				return;
+
+			ObjectTypeAndSize info = new ObjectTypeAndSize();
+			byte[] raw;
+			synchronized (resolveLock) {
+				openDatabase(oe, info);
+				raw = readCompressed(oe.getOffset());
+				if (!checkCRC(oe.getCRC())) {
+					throw new IOException(MessageFormat.format(
+							JGitText.get().corruptionDetectedReReadingAt,
+							Long.valueOf(oe.getOffset())));
+				}
+			}
+
+			final int type = info.type;
+			switch (type) {
+			case Constants.OBJ_COMMIT:
+			case Constants.OBJ_TREE:
+			case Constants.OBJ_BLOB:
+			case Constants.OBJ_TAG:
+				break;
+			default:
+				throw new IOException(MessageFormat.format(
+						JGitText.get().unknownObjectType,
+						Integer.valueOf(type)));
+			}
+
+			DeltaVisit visit = new DeltaVisit();
+			visit.nextChild = children;
+			visit.data = inflate(raw, info.size);
+			visit.id = oe;
+			visit = visit.next();
+
+			do {
+				pm.update(1);
+				synchronized (resolveLock) {
+					openDatabase(visit.delta, info);
+					raw = readCompressed(visit.delta.position);
+					if (!checkCRC(visit.delta.crc))
+						throw new IOException(MessageFormat.format(
+								JGitText.get().corruptionDetectedReReadingAt,
+								Long.valueOf(visit.delta.position)));
+				}
+				switch (info.type) {
+				case Constants.OBJ_OFS_DELTA:
+				case Constants.OBJ_REF_DELTA:
+					break;
+
+				default:
+					throw new IOException(MessageFormat.format(
+							JGitText.get().unknownObjectType,
+							Integer.valueOf(info.type)));
+				}
+
+				byte[] delta = inflate(raw, info.size);
+				raw = null;
+				checkIfTooLarge(type, BinaryDelta.getResultSize(delta));
+
+				visit.data = BinaryDelta.apply(visit.parent.data, delta);
+				delta = null;
+
+				md.update(Constants.encodedTypeString(type));
+				md.update((byte) ' ');
+				md.update(Constants.encodeASCII(visit.data.length));
+				md.update((byte) 0);
+				md.update(visit.data);
+				ObjectId id = ObjectId.fromRaw(md.digest());
+
+				verifySafeObject(id, type, visit.data, reader);
+
+				synchronized (resolveLock) {
+					PackedObjectInfo obj = newInfo(id, visit.delta,
+							visit.parent.id);
+					obj.setOffset(visit.delta.position);
+					onInflatedObjectData(obj, type, visit.data);
+					addObjectAndTrack(obj);
+					visit.id = obj;
+					visit.nextChild = firstChildOf(obj);
+				}
+				visit = visit.next();
+			} while (visit != null);
+		}
+
+		private byte[] inflate(byte[] raw, long size) throws IOException {
+			final byte[] dst = new byte[(int) size];
+			inf.reset();
+			inf.setInput(raw, 0, raw.length);
+			try {
+				int n = 0;
+				while (!inf.finished()) {
+					int r;
+					if (n < dst.length) {
+						r = inf.inflate(dst, n, dst.length - n);
+						n += r;
+					} else if (inf.inflate(skipBuffer, 0, 1) != 0) {
+						throw new CorruptObjectException(MessageFormat.format(
+								JGitText.get().packfileCorruptionDetected,
+								JGitText.get().wrongDecompressedLength));
+					} else
+						r = -1;
+					if (r <= 0 && !inf.finished()
+							&& (r == 0 || inf.needsInput()))
+						throw new CorruptObjectException(MessageFormat.format(
+								JGitText.get().packfileCorruptionDetected,
+								JGitText.get().unknownZlibError));
+				}
+				if (n != dst.length)
+					throw new CorruptObjectException(MessageFormat.format(
+							JGitText.get().packfileCorruptionDetected,
+							JGitText.get().wrongDecompressedLength));
+				return dst;
+			} catch (DataFormatException dfe) {
+				throw new CorruptObjectException(MessageFormat.format(JGitText
+						.get().packfileCorruptionDetected, dfe.getMessage()));
+			}
+		}
+	}
+
 	private final void checkIfTooLarge(int typeCode, long size)
 			throws IOException {
 		if (0 < maxObjectSizeLimit && maxObjectSizeLimit < size)
@@ -873,6 +1203,8 @@ private void endInput() {
 	// Read one entire object or delta from the input.
 	private void indexOneObject() throws IOException {
 		final long streamPosition = streamPosition();
+		if (objectStarts != null)
+			objectStarts[entryCount + deltaCount] = streamPosition;
 
 		int hdrPtr = 0;
 		int c = readFrom(Source.INPUT);
@@ -994,9 +1326,17 @@ private void whole(final long pos, final int type, final long sz)
 
 	private void verifySafeObject(final AnyObjectId id, final int type,
 			final byte[] data) throws IOException {
-		if (objCheck != null) {
+		verifySafeObject(id, type, data, readCurs);
+	}
+
+	private void verifySafeObject(final AnyObjectId id, final int type,
+			final byte[] data, ObjectReader reader) throws IOException {
+		final ObjectChecker oc = objCheck;
+		if (oc != null) {
 			try {
-				objCheck.check(type, data);
+				synchronized (oc) {
+					oc.check(type, data);
+				}
 			} catch (CorruptObjectException e) {
 				throw new IOException(MessageFormat.format(
 						JGitText.get().invalidObject, Constants
@@ -1005,7 +1345,7 @@ private void verifySafeObject(final AnyObjectId id, final int type,
 		}
 
 		try {
-			final ObjectLoader ldr = readCurs.open(id, type);
+			final ObjectLoader ldr = reader.open(id, type);
 			final byte[] existingData = ldr.getCachedBytes(data.length);
 			if (!Arrays.equals(data, existingData)) {
 				throw new IOException(MessageFormat.format(
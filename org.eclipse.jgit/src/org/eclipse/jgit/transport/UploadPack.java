@@ -1141,6 +1141,7 @@ private void sendPack(final boolean sideband) throws IOException {
 			pw.setDeltaBaseAsOffset(options.contains(OPTION_OFS_DELTA));
 			pw.setThin(options.contains(OPTION_THIN_PACK));
 			pw.setReuseValidatingObjects(false);
+			pw.setUseBitmaps(depth == 0 && clientShallowCommits.isEmpty());
 
 			if (commonBase.isEmpty() && refs != null) {
 				Set<ObjectId> tagTargets = new HashSet<ObjectId>();
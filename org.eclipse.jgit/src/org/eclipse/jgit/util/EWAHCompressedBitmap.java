@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.eclipse.jgit.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.eclipse.jgit.internal.JGitText;
+
+/**
+ * An immutable bitmap compressed with the EWAH (Enhanced Word-Aligned Hybrid)
+ * scheme.
+ * <p>
+ * The bitmap is stored as a sequence of 64 bit words. Each group of words
+ * begins with a marker word describing a run of "clean" words that are all
+ * zeros or all ones, followed by a number of "dirty" literal words that are
+ * stored verbatim. Bit 0 of the marker holds the value of the clean words, bits
+ * 1-32 the number of clean words, and bits 33-63 the number of literal words
+ * that follow the marker. This is the same layout used by the reachability
+ * bitmaps written by C Git, allowing the serialized form to be shared.
+ * <p>
+ * Bitmaps are built from an uncompressed {@code long[]} using
+ * {@link #compress(long[], int)} and combined back into uncompressed arrays
+ * with {@link #or(long[])}, {@link #andNot(long[])} and {@link #xor(long[])}.
+ * Sparse or dense bitmaps (such as the set of objects reachable from a commit,
+ * which tends to be clustered by pack offset) compress very well.
+ */
+public final class EWAHCompressedBitmap {
+	private static final int RUNNING_LENGTH_BITS = 32;
+
+	private static final long RUNNING_BIT_MASK = 1L;
+
+	private static final long RUNNING_LENGTH_MASK = (1L << RUNNING_LENGTH_BITS) - 1;
+
+	private static final long MAX_RUNNING_LENGTH = RUNNING_LENGTH_MASK;
+
+	private static final int MAX_LITERAL_WORDS = Integer.MAX_VALUE;
+
+	/** An empty bitmap. */
+	public static final EWAHCompressedBitmap EMPTY = compress(new long[0], 0);
+
+	/**
+	 * Compress a plain bitmap.
+	 *
+	 * @param bits
+	 *            the uncompressed bitmap; bit {@code i} is stored in
+	 *            {@code bits[i / 64] & (1L << (i % 64))}. Words past the end of
+	 *            the array are assumed to be zero.
+	 * @param sizeInBits
+	 *            number of bits represented by the bitmap.
+	 * @return the compressed bitmap.
+	 */
+	public static EWAHCompressedBitmap compress(long[] bits, int sizeInBits) {
+		int wordLen = wordLength(sizeInBits);
+		long[] out = new long[Math.max(2, Math.min(wordLen, 64) + 1)];
+		int cnt = 1;
+		int rlw = 0;
+
+		for (int i = 0; i < wordLen; i++) {
+			long w = i < bits.length ? bits[i] : 0;
+			long marker = out[rlw];
+			if (w == 0 || w == ~0L) {
+				long run = runningLength(marker);
+				boolean bit = w != 0;
+				if (literalWords(marker) == 0 && run < MAX_RUNNING_LENGTH
+						&& (run == 0 || runningBit(marker) == bit)) {
+					out[rlw] = marker(bit, run + 1, 0);
+					continue;
+				}
+				if (cnt == out.length)
+					out = grow(out);
+				rlw = cnt++;
+				out[rlw] = marker(bit, 1, 0);
+			} else {
+				int lit = literalWords(marker);
+				if (lit == MAX_LITERAL_WORDS) {
+					if (cnt == out.length)
+						out = grow(out);
+					rlw = cnt++;
+					out[rlw] = marker(false, 0, 1);
+				} else {
+					out[rlw] = marker(runningBit(marker),
+							runningLength(marker), lit + 1);
+				}
+				if (cnt == out.length)
+					out = grow(out);
+				out[cnt++] = w;
+			}
+		}
+		return new EWAHCompressedBitmap(out, cnt, rlw, sizeInBits);
+	}
+
+	private static long[] grow(long[] a) {
+		long[] n = new long[a.length * 2];
+		System.arraycopy(a, 0, n, 0, a.length);
+		return n;
+	}
+
+	/**
+	 * Read a bitmap previously written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in
+	 *            stream to read from.
+	 * @return the bitmap.
+	 * @throws IOException
+	 *             the stream cannot be read, or does not contain a valid
+	 *             bitmap.
+	 */
+	public static EWAHCompressedBitmap readFrom(DataInput in)
+			throws IOException {
+		int sizeInBits = in.readInt();
+		int wordCount = in.readInt();
+		if (sizeInBits < 0 || wordCount < 0)
+			throw new IOException(JGitText.get().corruptCompressedBitmap);
+		long[] words = new long[wordCount];
+		for (int i = 0; i < wordCount; i++)
+			words[i] = in.readLong();
+		int rlw = in.readInt();
+
+		// Validate the marker chain so the bitmap can be trusted later.
+		long uncompressed = 0;
+		int ptr = 0;
+		int lastMarker = 0;
+		while (ptr < wordCount) {
+			lastMarker = ptr;
+			uncompressed += runningLength(words[ptr]);
+			int lit = literalWords(words[ptr]);
+			uncompressed += lit;
+			ptr += 1 + lit;
+		}
+		if (ptr != wordCount || (0 < wordCount && rlw != lastMarker)
+				|| wordLength(sizeInBits) < uncompressed)
+			throw new IOException(JGitText.get().corruptCompressedBitmap);
+		return new EWAHCompressedBitmap(words, wordCount, rlw, sizeInBits);
+	}
+
+	private static int wordLength(int sizeInBits) {
+		return (sizeInBits + 63) >>> 6;
+	}
+
+	private static long marker(boolean bit, long run, int lit) {
+		return (bit ? RUNNING_BIT_MASK : 0) | (run << 1)
+				| (((long) lit) << (1 + RUNNING_LENGTH_BITS));
+	}
+
+	private static boolean runningBit(long marker) {
+		return (marker & RUNNING_BIT_MASK) != 0;
+	}
+
+	private static long runningLength(long marker) {
+		return (marker >>> 1) & RUNNING_LENGTH_MASK;
+	}
+
+	private static int literalWords(long marker) {
+		return (int) (marker >>> (1 + RUNNING_LENGTH_BITS));
+	}
+
+	private static final int OP_OR = 0;
+
+	private static final int OP_AND_NOT = 1;
+
+	private static final int OP_XOR = 2;
+
+	private final long[] words;
+
+	private final int wordCount;
+
+	private final int rlwPosition;
+
+	private final int sizeInBits;
+
+	private EWAHCompressedBitmap(long[] words, int wordCount, int rlwPosition,
+			int sizeInBits) {
+		this.words = words;
+		this.wordCount = wordCount;
+		this.rlwPosition = rlwPosition;
+		this.sizeInBits = sizeInBits;
+	}
+
+	/** @return number of bits represented by this bitmap. */
+	public int sizeInBits() {
+		return sizeInBits;
+	}
+
+	/** @return number of bytes needed to serialize this bitmap. */
+	public int sizeInBytes() {
+		return 4 + 4 + wordCount * 8 + 4;
+	}
+
+	/**
+	 * @return number of {@code long}s needed to hold the uncompressed form of
+	 *         this bitmap.
+	 */
+	public int uncompressedWordLength() {
+		return wordLength(sizeInBits);
+	}
+
+	/** @return number of bits set in this bitmap. */
+	public int cardinality() {
+		int cnt = 0;
+		int ptr = 0;
+		while (ptr < wordCount) {
+			long m = words[ptr++];
+			if (runningBit(m))
+				cnt += (int) (runningLength(m) * 64);
+			int lit = literalWords(m);
+			for (int i = 0; i < lit; i++)
+				cnt += Long.bitCount(words[ptr++]);
+		}
+		return cnt;
+	}
+
+	/** @return a new uncompressed copy of this bitmap. */
+	public long[] decompress() {
+		long[] dst = new long[uncompressedWordLength()];
+		or(dst);
+		return dst;
+	}
+
+	/**
+	 * Set all bits of this bitmap in {@code dst}.
+	 *
+	 * @param dst
+	 *            uncompressed destination, at least
+	 *            {@link #uncompressedWordLength()} long.
+	 */
+	public void or(long[] dst) {
+		apply(dst, OP_OR);
+	}
+
+	/**
+	 * Clear all bits of this bitmap from {@code dst}.
+	 *
+	 * @param dst
+	 *            uncompressed destination. Bits past the end of the array are
+	 *            ignored.
+	 */
+	public void andNot(long[] dst) {
+		apply(dst, OP_AND_NOT);
+	}
+
+	/**
+	 * Flip all bits of this bitmap in {@code dst}.
+	 *
+	 * @param dst
+	 *            uncompressed destination, at least
+	 *            {@link #uncompressedWordLength()} long.
+	 */
+	public void xor(long[] dst) {
+		apply(dst, OP_XOR);
+	}
+
+	private void apply(long[] dst, int op) {
+		int pos = 0;
+		int ptr = 0;
+		while (ptr < wordCount) {
+			long m = words[ptr++];
+			int run = (int) runningLength(m);
+			if (runningBit(m)) {
+				int end = Math.min(pos + run, dst.length);
+				for (int i = pos; i < end; i++) {
+					switch (op) {
+					case OP_OR:
+						dst[i] = ~0L;
+						break;
+					case OP_AND_NOT:
+						dst[i] = 0;
+						break;
+					default:
+						dst[i] = ~dst[i];
+					}
+				}
+			}
+			pos += run;
+
+			int lit = literalWords(m);
+			for (int i = 0; i < lit; i++, pos++) {
+				long w = words[ptr++];
+				if (dst.length <= pos)
+					continue;
+				switch (op) {
+				case OP_OR:
+					dst[pos] |= w;
+					break;
+				case OP_AND_NOT:
+					dst[pos] &= ~w;
+					break;
+				default:
+					dst[pos] ^= w;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write this bitmap to a stream.
+	 *
+	 * @param out
+	 *            stream to write to.
+	 * @throws IOException
+	 *             the stream cannot be written to.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(sizeInBits);
+		out.writeInt(wordCount);
+		for (int i = 0; i < wordCount; i++)
+			out.writeLong(words[i]);
+		out.writeInt(rlwPosition);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = sizeInBits;
+		for (int i = 0; i < wordCount; i++)
+			h = h * 31 + (int) (words[i] ^ (words[i] >>> 32));
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof EWAHCompressedBitmap))
+			return false;
+		EWAHCompressedBitmap o = (EWAHCompressedBitmap) obj;
+		if (sizeInBits != o.sizeInBits || wordCount != o.wordCount)
+			return false;
+		for (int i = 0; i < wordCount; i++)
+			if (words[i] != o.words[i])
+				return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "EWAHCompressedBitmap[bits=" + sizeInBits //$NON-NLS-1$
+				+ ", set=" + cardinality() //$NON-NLS-1$
+				+ ", bytes=" + sizeInBytes() + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013, Google Inc.
+ * and other copyright owners as documented in the project's IP log.
+ *
+ * This program and the accompanying materials are made available
+ * under the terms of the Eclipse Distribution License v1.0 which
+ * accompanies this distribution, is reproduced below, and is
+ * available at http://www.eclipse.org/org/documents/edl-v10.php
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Eclipse Foundation, Inc. nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.eclipse.jgit.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update without contending on one location.
+ * <p>
+ * The count is spread over several cells, each on its own cache line. A
+ * thread always adds into the cell selected by its thread id, so concurrent
+ * updates from different threads usually touch different cache lines. Updates
+ * never allocate. Reading the counter sums all cells, and is therefore slower
+ * than updating it; it is meant for statistics that are written often and
+ * read rarely.
+ */
+public final class StripedCounter {
+	/** Number of longs between two cells, keeping each on its own line. */
+	private static final int PAD = 8;
+
+	private static final int STRIPES;
+
+	static {
+		int n = Runtime.getRuntime().availableProcessors();
+		n = Integer.highestOneBit(Math.max(1, Math.min(n, 64)) - 1) << 1;
+		STRIPES = Math.max(n, 1);
+	}
+
+	private final AtomicLongArray cells;
+
+	/** Create a new counter with a value of 0. */
+	public StripedCounter() {
+		cells = new AtomicLongArray(STRIPES * PAD);
+	}
+
+	/** Add one to the counter. */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Add to the counter.
+	 *
+	 * @param delta
+	 *            amount to add; may be negative.
+	 */
+	public void add(long delta) {
+		int p = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		cells.addAndGet(p * PAD, delta);
+	}
+
+	/**
+	 * @return current value of the counter. Updates made concurrently with
+	 *         this call may or may not be included.
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PAD);
+		return sum;
+	}
+
+	/** Reset the counter to 0. Concurrent updates may be lost. */
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++)
+			cells.set(i * PAD, 0);
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(get());
+	}
+}